@@ -63,16 +63,6 @@ public class Grid extends baseCDMClass implements iStationData {
 		return latLonRequest;
 	}
 
-	/**
-     * Adds a Date entry to the builder from the dates array
-     * @param builder the StringBuilder being built
-     * @param dates Date array from which the first date value (0 index) is pulled from
-     */
-    private String addDateEntry( CalendarDate date) {
-        return ("time=")+(date.toString())+",";
-       // builder.append(",");
-    }
-
     /**
      * Attempts to collect the depth values from latLons and returns them in an array
      * @param latLons hash map that has lat,lon and maybe depth
@@ -199,9 +189,9 @@ public class Grid extends baseCDMClass implements iStationData {
     }
 
     @Override
-    public String getDataResponse(int stNum) {
+    public ObservationBlock getDataBlock(int stNum) {
         if (GridData != null) {
-            StringBuilder builder = new StringBuilder();
+            ObservationBlock block = newBlock();
             Array data = null;
 
             GridDatatype grid = GridData.getGrids().get(0);
@@ -263,6 +253,17 @@ public class Grid extends baseCDMClass implements iStationData {
 
             Map<String, Integer[]> latLonDepthHash = findDataIndexs(lonDbl, latDbl, latLonRequest);
 
+            int timeColumn = block.addColumn(ObservationBlock.TIME);
+            int depthColumn = -1;
+            int binColumn = -1;
+            if (depthDbl != null) {
+                depthColumn = block.addColumn(depth_name);
+                binColumn = block.addColumn(ObservationBlock.BIN);
+            }
+            int stationColumn = block.addColumn(ObservationBlock.STATION);
+            int latColumn = block.addColumn(lat_name);
+            int lonColumn = block.addColumn(lon_name);
+
             int[] depthHeights = new int[latLonDepthHash.get(LON).length];
             Map<Integer, List<Integer>> allDepths = new HashMap<Integer, List<Integer>>();
             Boolean zeroDepths = true;
@@ -303,63 +304,45 @@ public class Grid extends baseCDMClass implements iStationData {
             }
 
             for(Integer timeIndex = timeIstart; timeIndex <= timeIend; timeIndex++){
+            	CalendarDate cD = coordTime.getCalendarDate(timeIndex);
+            	String timeStr = cD.toString();
             	for (int k=0; k<latLonDepthHash.get(LAT).length; k++) {
             		for(Integer depthIndex : allDepths.get(k)){
-
-            			CalendarDate cD = coordTime.getCalendarDate(timeIndex);
-            			String startStr = "";
-
-            			//modify for requested dates, add in for loop
-            			startStr = addDateEntry(cD);
-
-            			// add depth
-            			if(depthDbl != null) {
-            				startStr += (depth_name)+("=")+(depthDbl[depthIndex])+(",");
-            				startStr += (BIN_STR)+(depthIndex)+(",");
-            				//builder.append(depth_name).append("=").append(depthDbl[depthIndex]).append(",");
-            				//builder.append(BIN_STR).append(depthIndex).append(",");
-            			}
-            			startStr += (STATION_STR + stNum) +(",");
-
-            			startStr += lat_name + "="+latDbl[latLonDepthHash.get(LAT)[k]]+(",");
-            			startStr += lon_name + ("=") + (lonDbl[latLonDepthHash.get(LON)[k]]) +(",");
-            			
-            			
-            			//builder.append(STATION_STR + stNum).append(",");
-
-            			//builder.append(lat_name).append("=").append(latDbl[latLonDepthHash.get(LAT)[k]]).append(",");
-            			//builder.append(lon_name).append("=").append(lonDbl[latLonDepthHash.get(LON)[k]]).append(",");
             			// get data slices
             			String dataName;
             			for (int l=0; l<GridData.getGrids().size();l++) {
             				dataName = GridData.getGrids().get(l).getName();
             				if (isInVariableNames(GridData.getGrids().get(l).getName())) {
             					try {
-                    				builder.append(startStr);
+            						block.addRecord();
+            						block.setTime(timeColumn, cD.getMillis(), timeStr);
+            						// add depth
+            						if(depthDbl != null) {
+            							block.setDouble(depthColumn, depthDbl[depthIndex]);
+            							block.setLong(binColumn, depthIndex);
+            						}
+            						block.setLong(stationColumn, stNum);
+            						block.setDouble(latColumn, latDbl[latLonDepthHash.get(LAT)[k]]);
+            						block.setDouble(lonColumn, lonDbl[latLonDepthHash.get(LON)[k]]);
 
             						grid = GridData.getGrids().get(l);
             						int latI = latLonDepthHash.get(LAT)[k];
             						int lonI = latLonDepthHash.get(LON)[k];
             						data = grid.readDataSlice(timeIndex, depthIndex, latI, lonI);
-            						builder.append(dataName).append("=").append(data.getFloat(0)).append(";");
+            						block.setFloat(block.addColumn(dataName), data.getFloat(0));
             					} catch (Exception ex) {
             						System.out.println("Error in reading data slice, index " + l + " - " + ex.getMessage());
-            						builder.delete(0, builder.length());
-            						builder.append("ERROR= reading data slice from GridData: ").append(ex.getLocalizedMessage());
-            						return builder.toString();
+            						block.setError("ERROR= reading data slice from GridData: " + ex.getLocalizedMessage());
+            						return block;
             					}
             				}
             			}
-            			//if(builder.length() > 0)
-            			//	builder.deleteCharAt(builder.length()-1);
-            			//builder.append(";");
             		}
             	}
             }
-            //builder.append(" ").append("\n");
-            return builder.toString();
+            return block;
         }
-        return DATA_RESPONSE_ERROR + Grid.class;
+        return errorBlock(DATA_RESPONSE_ERROR + Grid.class);
 
     }
 
@@ -0,0 +1,326 @@
+package com.asascience.ncsos.cdmclasses;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Folds the records of a station into one record per time interval, while they are read.
+ * The resampler is the visitor of the block the records are read into, so it sees them a
+ * batch at a time and keeps only running sums, minimums, maximums, counts and last values
+ * in primitive arrays, one set per data variable and bin. Values are read with the getter
+ * of their column's type, and integer values are kept as longs too, so the minimum,
+ * maximum and last value of an integer variable keep every digit. A folded record is added to the
+ * output block as soon as the records of its interval are over, so the output holds a
+ * record per interval (and bin) that had observations, never the raw records.
+ * <p>
+ * Intervals are aligned to the epoch in UTC, so daily intervals start at midnight UTC,
+ * and a folded record carries the start of its interval as its time. Records are folded
+ * in the order they are read, which is time order for DSG files; a record earlier than
+ * the interval being folded starts a new one. Fill values are left out, as the block
+ * marks them (see {@link ObservationBlock#isFill}): NaN, and the _FillValue, missing_value
+ * and values outside the valid range of the variables, which integer variables are read
+ * with. An interval with no
+ * valid value for a variable gets a fill (NaN) value, or a count of 0. Text values are
+ * left out of the folded records.
+ */
+public class IntervalResampler implements ObservationVisitor {
+
+    /**
+     * What a folded record holds for each data variable.
+     */
+    public enum Method {
+        MEAN, MIN, MAX, COUNT, LAST;
+
+        /**
+         * @param name name of the method, any case
+         * @return the method, or null if there is none of that name
+         */
+        public static Method find(String name) {
+            for (Method method : values()) {
+                if (method.name().equalsIgnoreCase(name)) {
+                    return method;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final int UNKNOWN = 0;
+    private static final int FLOAT = 1;
+    private static final int DOUBLE = 2;
+    private static final int LONG = 3;
+
+    private final long intervalMillis;
+    private final Method method;
+    private final ObservationBlock out;
+
+    // columns of the records read; the output block has the same ones
+    private int timeColumn = -1;
+    private int stationColumn = -1;
+    private int binColumn = -1;
+    private int[] valueColumns;
+    private int[] valueTypes;
+
+    // the interval being folded, per slot: slot 0 for records without a bin, bin + 1 otherwise
+    private boolean folding = false;
+    private long intervalStart;
+    private long station;
+    private int slots;
+    private boolean[] slotUsed = new boolean[1];
+    private long[] counts = new long[0];
+    private double[] sums = new double[0];
+    private double[] minimums = new double[0];
+    private double[] maximums = new double[0];
+    private double[] lasts = new double[0];
+    // the same for integer variables, which doubles do not hold exactly past 2^53
+    private long[] longMinimums = new long[0];
+    private long[] longMaximums = new long[0];
+    private long[] longLasts = new long[0];
+
+    /**
+     * @param intervalMillis length of an interval in milliseconds
+     * @param method what a folded record holds for each variable
+     * @param out the block the folded records are added to
+     */
+    public IntervalResampler(long intervalMillis, Method method, ObservationBlock out) {
+        this.intervalMillis = intervalMillis;
+        this.method = method;
+        this.out = out;
+    }
+
+    /**
+     * Folds a batch of records. The output block may hand its own batches to a visitor
+     * meanwhile; if that one fails, its exception is thrown so the read stops.
+     */
+    public void visit(ObservationBlock batch) throws IOException {
+        try {
+            fold(batch);
+        } catch (IllegalStateException ex) {
+            if (out.getVisitorException() != null) {
+                throw out.getVisitorException();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Folds the records left in the block and adds the record of the last interval.
+     * @param block the block the records were read into
+     * @return the output block, with the error of the block if the read failed
+     */
+    public ObservationBlock finish(ObservationBlock block) {
+        if (block.hasError()) {
+            out.setError(block.getError());
+            return out;
+        }
+        fold(block);
+        emit();
+        out.setSeparated(block.isSeparated());
+        return out;
+    }
+
+    private void fold(ObservationBlock block) {
+        if (valueColumns == null) {
+            setColumns(block);
+        }
+        for (int record = 0; record < block.size(); record++) {
+            if (timeColumn < 0 || !block.hasValue(record, timeColumn)) {
+                continue;
+            }
+            long millis = block.getTime(record, timeColumn);
+            long start = millis - (((millis % intervalMillis) + intervalMillis) % intervalMillis);
+            long recordStation = (stationColumn >= 0 && block.hasValue(record, stationColumn))
+                    ? block.getLong(record, stationColumn) : -1;
+            if (folding && (start != intervalStart || recordStation != station)) {
+                emit();
+            }
+            if (!folding) {
+                folding = true;
+                intervalStart = start;
+                station = recordStation;
+            }
+            int slot = (binColumn >= 0 && block.hasValue(record, binColumn)) ? (int) block.getLong(record, binColumn) + 1 : 0;
+            int first = useSlot(slot);
+            for (int v = 0; v < valueColumns.length; v++) {
+                int column = valueColumns[v];
+                if (!block.hasValue(record, column) || block.isFill(record, column)) {
+                    continue;
+                }
+                int type;
+                switch (block.getColumnType(column)) {
+                    case FLOAT:
+                        type = FLOAT;
+                        break;
+                    case DOUBLE:
+                        type = DOUBLE;
+                        break;
+                    case LONG:
+                        type = LONG;
+                        break;
+                    default:
+                        continue;
+                }
+                if (valueTypes[v] == UNKNOWN) {
+                    valueTypes[v] = type;
+                } else if (valueTypes[v] != type) {
+                    // read as another type in an earlier batch
+                    valueTypes[v] = DOUBLE;
+                }
+                int at = first + v;
+                double number;
+                if (type == LONG) {
+                    long whole = block.getLong(record, column);
+                    if (counts[at] == 0) {
+                        longMinimums[at] = whole;
+                        longMaximums[at] = whole;
+                    } else {
+                        longMinimums[at] = Math.min(longMinimums[at], whole);
+                        longMaximums[at] = Math.max(longMaximums[at], whole);
+                    }
+                    longLasts[at] = whole;
+                    number = whole;
+                } else if (type == FLOAT) {
+                    number = block.getFloat(record, column);
+                } else {
+                    number = block.getDouble(record, column);
+                }
+                if (counts[at] == 0) {
+                    minimums[at] = number;
+                    maximums[at] = number;
+                } else {
+                    minimums[at] = Math.min(minimums[at], number);
+                    maximums[at] = Math.max(maximums[at], number);
+                }
+                sums[at] += number;
+                lasts[at] = number;
+                counts[at]++;
+            }
+        }
+    }
+
+    private void setColumns(ObservationBlock block) {
+        timeColumn = block.findColumn(ObservationBlock.TIME);
+        stationColumn = block.findColumn(ObservationBlock.STATION);
+        binColumn = block.findColumn(ObservationBlock.BIN);
+        int count = 0;
+        int[] columns = new int[block.getColumnCount()];
+        for (int column = 0; column < block.getColumnCount(); column++) {
+            out.addColumn(block.getColumnName(column));
+            if (column != timeColumn && column != stationColumn && column != binColumn) {
+                columns[count++] = column;
+            }
+        }
+        valueColumns = Arrays.copyOf(columns, count);
+        valueTypes = new int[count];
+    }
+
+    /**
+     * @return the position of the slot's first variable in the accumulator arrays
+     */
+    private int useSlot(int slot) {
+        if (slot >= slotUsed.length) {
+            int capacity = Math.max(slot + 1, slotUsed.length * 2);
+            slotUsed = Arrays.copyOf(slotUsed, capacity);
+            counts = Arrays.copyOf(counts, capacity * valueColumns.length);
+            sums = Arrays.copyOf(sums, capacity * valueColumns.length);
+            minimums = Arrays.copyOf(minimums, capacity * valueColumns.length);
+            maximums = Arrays.copyOf(maximums, capacity * valueColumns.length);
+            lasts = Arrays.copyOf(lasts, capacity * valueColumns.length);
+            longMinimums = Arrays.copyOf(longMinimums, capacity * valueColumns.length);
+            longMaximums = Arrays.copyOf(longMaximums, capacity * valueColumns.length);
+            longLasts = Arrays.copyOf(longLasts, capacity * valueColumns.length);
+        } else if (counts.length < slotUsed.length * valueColumns.length) {
+            counts = new long[slotUsed.length * valueColumns.length];
+            sums = new double[counts.length];
+            minimums = new double[counts.length];
+            maximums = new double[counts.length];
+            lasts = new double[counts.length];
+            longMinimums = new long[counts.length];
+            longMaximums = new long[counts.length];
+            longLasts = new long[counts.length];
+        }
+        slotUsed[slot] = true;
+        slots = Math.max(slots, slot + 1);
+        return slot * valueColumns.length;
+    }
+
+    /**
+     * Adds a record per used slot of the interval being folded, and clears the slots.
+     */
+    private void emit() {
+        if (!folding) {
+            return;
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            if (!slotUsed[slot]) {
+                continue;
+            }
+            out.addRecord();
+            out.setTime(timeColumn, intervalStart);
+            if (stationColumn >= 0 && station >= 0) {
+                out.setLong(stationColumn, station);
+            }
+            if (slot > 0) {
+                out.setLong(binColumn, slot - 1);
+            }
+            int first = slot * valueColumns.length;
+            for (int v = 0; v < valueColumns.length; v++) {
+                setValue(valueColumns[v], valueTypes[v], first + v);
+            }
+            slotUsed[slot] = false;
+        }
+        Arrays.fill(counts, 0, slots * valueColumns.length, 0L);
+        Arrays.fill(sums, 0, slots * valueColumns.length, 0.0);
+        slots = 0;
+        folding = false;
+    }
+
+    private void setValue(int column, int type, int at) {
+        if (method == Method.COUNT) {
+            out.setLong(column, counts[at]);
+            return;
+        }
+        if (counts[at] == 0) {
+            if (type == DOUBLE || type == LONG) {
+                out.setDouble(column, Double.NaN);
+            } else {
+                out.setFloat(column, Float.NaN);
+            }
+            return;
+        }
+        if (type == LONG && method != Method.MEAN) {
+            // values keep the type they were read as
+            switch (method) {
+                case MIN:
+                    out.setLong(column, longMinimums[at]);
+                    break;
+                case MAX:
+                    out.setLong(column, longMaximums[at]);
+                    break;
+                default:
+                    out.setLong(column, longLasts[at]);
+            }
+            return;
+        }
+        double value;
+        switch (method) {
+            case MIN:
+                value = minimums[at];
+                break;
+            case MAX:
+                value = maximums[at];
+                break;
+            case LAST:
+                value = lasts[at];
+                break;
+            default:
+                value = sums[at] / counts[at];
+        }
+        // a mean of whole numbers is a double
+        if (type == FLOAT) {
+            out.setFloat(column, (float) value);
+        } else {
+            out.setDouble(column, value);
+        }
+    }
+}
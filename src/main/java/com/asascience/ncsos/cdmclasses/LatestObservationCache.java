@@ -0,0 +1,338 @@
+package com.asascience.ncsos.cdmclasses;
+
+import com.asascience.ncsos.service.SosRequest;
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import thredds.servlet.ThreddsConfig;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.Station;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The latest observation of every station and sensor of the station datasets that were
+ * asked for their latest observations, so the next <code>latest</code> request, or a
+ * <code>network-all</code> one, does not read the file again. The stations such a
+ * request resolved to are kept with their bounds as well, so the next one does not look
+ * them up in the feature collection either. Tables are kept per dataset path and file,
+ * so NcML views of the same file are kept apart, while the file's size and modification
+ * time stay the same; appending records changes both, and the table is dropped at the
+ * next lookup.
+ * <p>
+ * The responses to <code>latest</code> GetObservation requests are kept in the same
+ * tables, by the normalized request, so a repeated request is answered before its
+ * dataset is opened. Responses of up to NCSOS.latestCache.maxResponseBytes are kept,
+ * 16 per dataset.
+ * <p>
+ * Tables are kept for up to NCSOS.latestCache.maxFiles datasets, the least recently
+ * used one is dropped first. Aggregations and remote datasets are not cached.
+ */
+public class LatestObservationCache {
+
+    private static final Map<String, FileTable> tables = new LinkedHashMap<String, FileTable>(16, 0.75f, true);
+
+    /**
+     * The latest record of a station, with the values of the sensors asked for.
+     */
+    static class Observation {
+        final long millis;
+        // null if the station has no observation
+        final Object[] values;
+        final boolean separated;
+
+        Observation(long millis, Object[] values, boolean separated) {
+            this.millis = millis;
+            this.values = values;
+            this.separated = separated;
+        }
+    }
+
+    /**
+     * The stations a request resolved to, detached from the feature collection they were
+     * found in, with the index of each in the collection's station list and its time range.
+     */
+    static class StationSetup {
+        final List<Station> stations;
+        final int[] collectionIndexes;
+        final CalendarDateRange[] dateRanges;
+
+        StationSetup(List<Station> stations, int[] collectionIndexes, CalendarDateRange[] dateRanges) {
+            this.stations = stations;
+            this.collectionIndexes = collectionIndexes;
+            this.dateRanges = dateRanges;
+        }
+    }
+
+    /**
+     * A response to a <code>latest</code> request, as written to the client.
+     */
+    public static class Response {
+        private final String contentType;
+        private final String characterEncoding;
+        private final byte[] body;
+
+        Response(String contentType, String characterEncoding, byte[] body) {
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.body = body;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getCharacterEncoding() {
+            return characterEncoding;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * The latest records of the stations of one version of a dataset file.
+     */
+    private static class FileTable {
+        final long fileSize;
+        final long lastModified;
+        final Map<String, StationEntry> stations = new ConcurrentHashMap<String, StationEntry>();
+        // by the station names of the request; a few at a time, the least recently used is dropped
+        final Map<List<String>, StationSetup> setups = new LinkedHashMap<List<String>, StationSetup>(16, 0.75f, true);
+        // by the normalized request, the least recently used is dropped
+        final Map<String, Response> responses = new LinkedHashMap<String, Response>(16, 0.75f, true);
+
+        FileTable(long fileSize, long lastModified) {
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static class StationEntry {
+        final long millis;
+        final boolean empty;
+        final boolean separated;
+        final Map<String, Object> values = new HashMap<String, Object>();
+
+        StationEntry(long millis, boolean empty, boolean separated) {
+            this.millis = millis;
+            this.empty = empty;
+            this.separated = separated;
+        }
+    }
+
+    static boolean isEnabled() {
+        return ThreddsConfig.getBoolean("NCSOS.latestCache.enabled", true)
+                && ThreddsConfig.getInt("NCSOS.latestCache.maxFiles", 64) > 0;
+    }
+
+    /**
+     * @return largest response in bytes that is kept
+     */
+    public static int getMaxResponseBytes() {
+        return ThreddsConfig.getInt("NCSOS.latestCache.maxResponseBytes", 65536);
+    }
+
+    /**
+     * @param request the parsed request
+     * @return true if the request is a GetObservation request for the latest observations,
+     *         whose response may be kept
+     */
+    public static boolean isCachedRequest(SosRequest request) {
+        String[] eventTime = request.getEventTime();
+        return request.getKind() == SosRequest.Kind.GET_OBSERVATION && eventTime != null
+                && eventTime.length == 1 && "latest".equals(eventTime[0]) && isEnabled();
+    }
+
+    /**
+     * Looks up the response to a <code>latest</code> request before its dataset is opened.
+     * @param datasetPath dataset path of the request
+     * @param file local file of the dataset, may be null if it is not known yet
+     * @param request the parsed request
+     * @return the response, or null if there is none for the current file
+     */
+    public static Response findResponse(String datasetPath, File file, SosRequest request) {
+        if (file == null || !isCachedRequest(request)) {
+            return null;
+        }
+        FileTable table = findTable(DatasetHandlerAdapter.getDatasetKey(datasetPath, file), file);
+        if (table == null) {
+            return null;
+        }
+        synchronized (table.responses) {
+            return table.responses.get(request.getNormalizedQuery());
+        }
+    }
+
+    /**
+     * Keeps the response to a <code>latest</code> request, written from the file as it was
+     * before the request read it. Responses larger than {@link #getMaxResponseBytes} are not kept.
+     * @param datasetPath dataset path of the request
+     * @param file local file of the dataset
+     * @param fileSize size of the file before it was read
+     * @param lastModified modification time of the file before it was read
+     * @param request the parsed request
+     * @param contentType content type of the response
+     * @param characterEncoding character encoding of the response
+     * @param body the response
+     */
+    public static void putResponse(String datasetPath, File file, long fileSize, long lastModified,
+            SosRequest request, String contentType, String characterEncoding, byte[] body) {
+        if (file == null || !isCachedRequest(request) || body.length > getMaxResponseBytes()) {
+            return;
+        }
+        FileTable table = tableFor(DatasetHandlerAdapter.getDatasetKey(datasetPath, file), file, fileSize,
+                lastModified);
+        if (table == null) {
+            return;
+        }
+        synchronized (table.responses) {
+            table.responses.put(request.getNormalizedQuery(), new Response(contentType, characterEncoding, body));
+            while (table.responses.size() > 16) {
+                table.responses.remove(table.responses.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * @return the table of a dataset, or null if there is none or the file changed since it was made
+     */
+    private static FileTable findTable(String key, File file) {
+        synchronized (tables) {
+            FileTable table = tables.get(key);
+            if (table != null && (table.fileSize != file.length() || table.lastModified != file.lastModified())) {
+                tables.remove(key);
+                table = null;
+            }
+            return table;
+        }
+    }
+
+    /**
+     * @return the table of a dataset for the version of its file read, or null if the file
+     *         changed while it was read
+     */
+    private static FileTable tableFor(String key, File file, long fileSize, long lastModified) {
+        synchronized (tables) {
+            FileTable table = tables.get(key);
+            if (table == null || table.fileSize != fileSize || table.lastModified != lastModified) {
+                if (file.length() != fileSize || file.lastModified() != lastModified) {
+                    // the file changed while it was read
+                    return null;
+                }
+                table = new FileTable(fileSize, lastModified);
+                tables.put(key, table);
+                int maxFiles = ThreddsConfig.getInt("NCSOS.latestCache.maxFiles", 64);
+                while (tables.size() > maxFiles) {
+                    tables.remove(tables.keySet().iterator().next());
+                }
+            }
+            return table;
+        }
+    }
+
+    /**
+     * @param key key of the dataset, see {@link com.asascience.ncsos.util.DatasetHandlerAdapter#getDatasetKey}
+     * @param file the dataset file
+     * @param stationNames station names of the request
+     * @return the stations the names resolved to, or null if they are not known or the file
+     *         changed since they were found
+     */
+    static StationSetup getSetup(String key, File file, List<String> stationNames) {
+        FileTable table = findTable(key, file);
+        if (table == null) {
+            return null;
+        }
+        synchronized (table.setups) {
+            return table.setups.get(stationNames);
+        }
+    }
+
+    /**
+     * Keeps the stations a request resolved to, found in the file as it was before they were looked up.
+     * @param key key of the dataset
+     * @param file the dataset file
+     * @param fileSize size of the file before the stations were looked up
+     * @param lastModified modification time of the file before the stations were looked up
+     * @param stationNames station names of the request
+     * @param setup the stations found
+     */
+    static void putSetup(String key, File file, long fileSize, long lastModified, List<String> stationNames,
+            StationSetup setup) {
+        FileTable table = tableFor(key, file, fileSize, lastModified);
+        if (table == null) {
+            return;
+        }
+        synchronized (table.setups) {
+            table.setups.put(new ArrayList<String>(stationNames), setup);
+            while (table.setups.size() > 16) {
+                table.setups.remove(table.setups.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * @param key key of the dataset, see {@link com.asascience.ncsos.util.DatasetHandlerAdapter#getDatasetKey}
+     * @param file the dataset file
+     * @param station name of the station
+     * @param sensors data variables asked for
+     * @return the latest observation of the station, or null if it is not known for every
+     *         sensor or the file changed since it was read
+     */
+    static Observation get(String key, File file, String station, String[] sensors) {
+        FileTable table = findTable(key, file);
+        StationEntry entry = table != null ? table.stations.get(station) : null;
+        if (entry == null) {
+            return null;
+        }
+        if (entry.empty) {
+            return new Observation(0, null, entry.separated);
+        }
+        synchronized (entry) {
+            Object[] values = new Object[sensors.length];
+            for (int i = 0; i < sensors.length; i++) {
+                if (!entry.values.containsKey(sensors[i])) {
+                    return null;
+                }
+                values[i] = entry.values.get(sensors[i]);
+            }
+            return new Observation(entry.millis, values, entry.separated);
+        }
+    }
+
+    /**
+     * Keeps the latest observation of a station, read from the file as it was before the read.
+     * @param key key of the dataset
+     * @param file the dataset file
+     * @param fileSize size of the file before it was read
+     * @param lastModified modification time of the file before it was read
+     * @param station name of the station
+     * @param sensors data variables read
+     * @param observation the record read, with no values if the station has none
+     */
+    static void put(String key, File file, long fileSize, long lastModified, String station, String[] sensors,
+            Observation observation) {
+        FileTable table = tableFor(key, file, fileSize, lastModified);
+        if (table == null) {
+            return;
+        }
+        StationEntry entry = table.stations.get(station);
+        boolean empty = observation.values == null;
+        if (entry == null || entry.empty != empty || entry.millis != observation.millis) {
+            entry = new StationEntry(observation.millis, empty, observation.separated);
+            table.stations.put(station, entry);
+        }
+        if (!empty) {
+            synchronized (entry) {
+                for (int i = 0; i < sensors.length; i++) {
+                    entry.values.put(sensors[i], observation.values[i]);
+                }
+            }
+        }
+    }
+}
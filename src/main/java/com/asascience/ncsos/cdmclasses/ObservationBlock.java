@@ -0,0 +1,616 @@
+package com.asascience.ncsos.cdmclasses;
+
+import ucar.nc2.dataset.EnhanceScaleMissing;
+import ucar.nc2.units.DateFormatter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The observations read for one station (or profile, trajectory, section or grid point
+ * set) of a GetObservation request, held as typed columns instead of key=value text.
+ * Columns are listed in the order the values of a record were always written in: time,
+ * station, bin or depth, then the data variables. A record does not need a value in every
+ * column; the rows of a grid, for example, each hold one data variable.
+ * <p>
+ * Times are kept as epoch milliseconds, numbers in float, double or long arrays with a
+ * mask of the fill values, and anything else as text. A fill value is NaN, or the
+ * _FillValue, missing_value or a value outside the valid range of a variable given to
+ * {@link #setMissingValues}, which integer variables are read with. A column takes the type of
+ * the first value set in it and is kept as text if a value of another type follows.
+ * {@link #getText} gives every value as it was written in the key=value response, which
+ * {@link #toDataResponse()} still produces for callers that want the text.
+ * <p>
+ * A block read through {@link iStationData#readData} holds one batch of records at a
+ * time: it is handed to the {@link ObservationVisitor} and cleared whenever it fills up.
+ */
+public class ObservationBlock {
+
+    public static final String TIME = "time";
+    public static final String STATION = "station";
+    public static final String BIN = "BIN";
+
+    /**
+     * What the values of a column are held as: NONE until a value is set, and TEXT once
+     * values of different types were set.
+     */
+    public enum ColumnType {
+        NONE, TIME, LONG, FLOAT, DOUBLE, TEXT
+    }
+
+    private static final int UNSET = 0;
+    private static final int TIME_MILLIS = 1;
+    private static final int LONG = 2;
+    private static final int FLOAT = 3;
+    private static final int DOUBLE = 4;
+    private static final int TEXT = 5;
+
+    private final List<Column> columns = new ArrayList<Column>();
+    private final Map<String, Integer> columnIndex = new HashMap<String, Integer>();
+    private int size;
+    private boolean separated = true;
+    private String error;
+    private DateFormatter dateFormatter;
+    private ObservationVisitor visitor;
+    private int batchSize;
+    private IOException visitorException;
+    private Map<String, ? extends EnhanceScaleMissing> missingValues = Collections.emptyMap();
+
+    private static class Column {
+        final String name;
+        int type = UNSET;
+        long[] longs;
+        float[] floats;
+        double[] doubles;
+        String[] texts;
+        final BitSet present = new BitSet();
+        final BitSet fill = new BitSet();
+        EnhanceScaleMissing missing;
+
+        Column(String name) {
+            this.name = name;
+        }
+
+        boolean isFill(double value) {
+            return Double.isNaN(value) || (missing != null && missing.isMissing(value));
+        }
+    }
+
+    /**
+     * Adds a column after the existing ones.
+     * @param name name of the column, a variable name or one of TIME, STATION and BIN
+     * @return index of the column, the existing one if the name was already added
+     */
+    public int addColumn(String name) {
+        Integer index = columnIndex.get(name);
+        if (index != null) {
+            return index;
+        }
+        Column column = new Column(name);
+        column.missing = missingValues.get(name);
+        columns.add(column);
+        columnIndex.put(name, columns.size() - 1);
+        return columns.size() - 1;
+    }
+
+    /**
+     * Marks the fill, missing and out of range values of the given variables as fill
+     * values, in the columns of the same name; applies to the values set afterwards.
+     * @param missingValues the variables with fill, missing or valid range values, by column name
+     */
+    public void setMissingValues(Map<String, ? extends EnhanceScaleMissing> missingValues) {
+        this.missingValues = missingValues;
+        for (Column column : columns) {
+            column.missing = missingValues.get(column.name);
+        }
+    }
+
+    /**
+     * @return index of the column, -1 if there is none of that name
+     */
+    public int findColumn(String name) {
+        Integer index = columnIndex.get(name);
+        return index != null ? index : -1;
+    }
+
+    public int getColumnCount() {
+        return columns.size();
+    }
+
+    public String getColumnName(int column) {
+        return columns.get(column).name;
+    }
+
+    /**
+     * @return the number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Hands the records to a visitor whenever a batch is complete, so only one batch is
+     * held at a time. If the visitor fails, or the reading thread was interrupted because
+     * its request was cancelled, {@link #addRecord()} throws an IllegalStateException to
+     * stop the read, and the failure is kept as {@link #getVisitorException()}.
+     * @param visitor receives the full batches
+     * @param batchSize number of records in a batch
+     */
+    public void setVisitor(ObservationVisitor visitor, int batchSize) {
+        this.visitor = visitor;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @return the exception thrown by the visitor, or null
+     */
+    public IOException getVisitorException() {
+        return visitorException;
+    }
+
+    /**
+     * Starts a new record; the set methods fill in its values. A full batch is handed
+     * to the visitor first.
+     * @return index of the record
+     * @throws IllegalStateException if the visitor failed to take the batch
+     */
+    public int addRecord() {
+        if (visitor != null && size >= batchSize && error == null) {
+            try {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("the request was cancelled");
+                }
+                visitor.visit(this);
+                clear();
+            } catch (IOException ex) {
+                visitorException = ex;
+                setError("ERROR =writing data: " + ex.getLocalizedMessage());
+                throw new IllegalStateException("observations could not be written", ex);
+            }
+        }
+        return size++;
+    }
+
+    /**
+     * Adds the records of another block after the existing ones, in the columns of the
+     * same name, with their fill marks; the error of a failed block replaces the records.
+     * @param other a block of the same read, such as the next batch of a station
+     */
+    public void addRecords(ObservationBlock other) {
+        if (other.error != null) {
+            setError(other.error);
+            return;
+        }
+        int[] target = new int[other.columns.size()];
+        for (int column = 0; column < target.length; column++) {
+            target[column] = addColumn(other.columns.get(column).name);
+        }
+        for (int record = 0; record < other.size; record++) {
+            addRecord();
+            for (int column = 0; column < target.length; column++) {
+                Column from = other.columns.get(column);
+                if (!from.present.get(record)) {
+                    continue;
+                }
+                switch (from.type) {
+                    case TIME_MILLIS:
+                        setTime(target[column], from.longs[record], from.texts != null ? from.texts[record] : null);
+                        break;
+                    case LONG:
+                        setLong(target[column], from.longs[record]);
+                        break;
+                    case FLOAT:
+                        setFloat(target[column], from.floats[record]);
+                        break;
+                    case DOUBLE:
+                        setDouble(target[column], from.doubles[record]);
+                        break;
+                    default:
+                        setText(target[column], from.texts[record]);
+                }
+                Column to = columns.get(target[column]);
+                if (to.type != TEXT) {
+                    to.fill.set(size - 1, from.fill.get(record));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a block holding the records of this one, without its visitor, that can be
+     *         kept after a visitor returns
+     */
+    public ObservationBlock copy() {
+        ObservationBlock copy = new ObservationBlock();
+        copy.missingValues = missingValues;
+        copy.separated = separated;
+        copy.addRecords(this);
+        return copy;
+    }
+
+    /**
+     * Drops every record, keeping the columns and their storage.
+     */
+    public void clear() {
+        this.size = 0;
+        for (Column column : columns) {
+            column.present.clear();
+            column.fill.clear();
+        }
+    }
+
+    /**
+     * Drops every record, as a failed read does.
+     * @param error description of the failure
+     */
+    public void setError(String error) {
+        this.error = error;
+        clear();
+    }
+
+    /**
+     * @return description of a failed read, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean hasError() {
+        return error != null;
+    }
+
+    /**
+     * @param separated false if the records are not followed by a separator in
+     *        {@link #toDataResponse()}, as for a station with a single record
+     */
+    public void setSeparated(boolean separated) {
+        this.separated = separated;
+    }
+
+    public boolean isSeparated() {
+        return separated;
+    }
+
+    /**
+     * Sets the time of the current record.
+     */
+    public void setTime(int column, long millis) {
+        setTime(column, millis, null);
+    }
+
+    /**
+     * Sets the time of the current record, written as the given text instead of an ISO date.
+     */
+    public void setTime(int column, long millis, String text) {
+        Column col = prepare(column, TIME_MILLIS);
+        if (col.type == TEXT) {
+            col.texts[size - 1] = text != null ? text : formatTime(millis);
+            return;
+        }
+        col.longs[size - 1] = millis;
+        if (text != null && col.texts == null) {
+            col.texts = new String[col.longs.length];
+        }
+        if (col.texts != null) {
+            // a record of a reused batch must not keep the text of the record it replaces
+            col.texts[size - 1] = text;
+        }
+    }
+
+    public void setLong(int column, long value) {
+        Column col = prepare(column, LONG);
+        if (col.type == TEXT) {
+            col.texts[size - 1] = Long.toString(value);
+        } else {
+            col.longs[size - 1] = value;
+            col.fill.set(size - 1, col.missing != null && col.missing.isMissing(value));
+        }
+    }
+
+    public void setFloat(int column, float value) {
+        Column col = prepare(column, FLOAT);
+        if (col.type == TEXT) {
+            col.texts[size - 1] = Float.toString(value);
+        } else {
+            col.floats[size - 1] = value;
+            col.fill.set(size - 1, col.isFill(value));
+        }
+    }
+
+    public void setDouble(int column, double value) {
+        Column col = prepare(column, DOUBLE);
+        if (col.type == TEXT) {
+            col.texts[size - 1] = Double.toString(value);
+        } else {
+            col.doubles[size - 1] = value;
+            col.fill.set(size - 1, col.isFill(value));
+        }
+    }
+
+    public void setText(int column, String value) {
+        Column col = prepare(column, TEXT);
+        col.texts[size - 1] = value;
+    }
+
+    /**
+     * Sets a value read from a dataset in the column of its type.
+     * @param value a Float, Double, integral Number or anything else, kept as its toString
+     */
+    public void setValue(int column, Object value) {
+        if (value instanceof Float) {
+            setFloat(column, (Float) value);
+        } else if (value instanceof Double) {
+            setDouble(column, (Double) value);
+        } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+                || value instanceof Byte) {
+            setLong(column, ((Number) value).longValue());
+        } else {
+            setText(column, String.valueOf(value));
+        }
+    }
+
+    /**
+     * @return true if the record has a value in the column
+     */
+    public boolean hasValue(int record, int column) {
+        return columns.get(column).present.get(record);
+    }
+
+    /**
+     * @return what the values of the column are held as, so they can be read with the
+     *         getter of their type
+     */
+    public ColumnType getColumnType(int column) {
+        switch (columns.get(column).type) {
+            case UNSET:
+                return ColumnType.NONE;
+            case TIME_MILLIS:
+                return ColumnType.TIME;
+            case LONG:
+                return ColumnType.LONG;
+            case FLOAT:
+                return ColumnType.FLOAT;
+            case DOUBLE:
+                return ColumnType.DOUBLE;
+            default:
+                return ColumnType.TEXT;
+        }
+    }
+
+    /**
+     * @return true if the value is NaN, or a fill, missing or out of range value of its variable
+     */
+    public boolean isFill(int record, int column) {
+        return columns.get(column).fill.get(record);
+    }
+
+    /**
+     * @return the time of a record in epoch milliseconds
+     */
+    public long getTime(int record, int column) {
+        Column col = columns.get(column);
+        if (col.type != TIME_MILLIS) {
+            throw new IllegalStateException("column " + col.name + " does not hold times");
+        }
+        return col.longs[record];
+    }
+
+    /**
+     * @return the value as a long; floating point values are truncated
+     */
+    public long getLong(int record, int column) {
+        Column col = columns.get(column);
+        switch (col.type) {
+            case TIME_MILLIS:
+            case LONG:
+                return col.longs[record];
+            case FLOAT:
+                return (long) col.floats[record];
+            case DOUBLE:
+                return (long) col.doubles[record];
+            default:
+                return Long.parseLong(col.texts[record]);
+        }
+    }
+
+    /**
+     * @return the value as a float; double values are rounded
+     */
+    public float getFloat(int record, int column) {
+        Column col = columns.get(column);
+        switch (col.type) {
+            case TIME_MILLIS:
+            case LONG:
+                return col.longs[record];
+            case FLOAT:
+                return col.floats[record];
+            case DOUBLE:
+                return (float) col.doubles[record];
+            default:
+                return Float.parseFloat(col.texts[record]);
+        }
+    }
+
+    public double getDouble(int record, int column) {
+        Column col = columns.get(column);
+        switch (col.type) {
+            case TIME_MILLIS:
+            case LONG:
+                return col.longs[record];
+            case FLOAT:
+                return col.floats[record];
+            case DOUBLE:
+                return col.doubles[record];
+            default:
+                return Double.parseDouble(col.texts[record]);
+        }
+    }
+
+    /**
+     * @return the value as a Float or Double for floating point columns, a Long for
+     *         integral and time columns, and the text of any other value parsed as a Double
+     */
+    public Number getNumber(int record, int column) {
+        Column col = columns.get(column);
+        switch (col.type) {
+            case TIME_MILLIS:
+            case LONG:
+                return col.longs[record];
+            case FLOAT:
+                return col.floats[record];
+            case DOUBLE:
+                return col.doubles[record];
+            default:
+                return Double.valueOf(col.texts[record]);
+        }
+    }
+
+    /**
+     * @return the value as set: a Float, Double or Long, a Long of epoch milliseconds for
+     *         times, or a String; null if the record has none
+     */
+    public Object getValue(int record, int column) {
+        Column col = columns.get(column);
+        if (!col.present.get(record)) {
+            return null;
+        }
+        switch (col.type) {
+            case TIME_MILLIS:
+            case LONG:
+                return col.longs[record];
+            case FLOAT:
+                return col.floats[record];
+            case DOUBLE:
+                return col.doubles[record];
+            default:
+                return col.texts[record];
+        }
+    }
+
+    /**
+     * @return the value as written in the key=value response, null if the record has none
+     */
+    public String getText(int record, int column) {
+        Column col = columns.get(column);
+        if (!col.present.get(record)) {
+            return null;
+        }
+        switch (col.type) {
+            case TIME_MILLIS:
+                if (col.texts != null && col.texts[record] != null) {
+                    return col.texts[record];
+                }
+                return formatTime(col.longs[record]);
+            case LONG:
+                return Long.toString(col.longs[record]);
+            case FLOAT:
+                return Float.toString(col.floats[record]);
+            case DOUBLE:
+                return Double.toString(col.doubles[record]);
+            default:
+                return col.texts[record];
+        }
+    }
+
+    /**
+     * @return the records as key=value text, tokens separated by ',' and records by ';',
+     *         or the error of a failed read
+     */
+    public String toDataResponse() {
+        if (error != null) {
+            return error;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int record = 0; record < size; record++) {
+            boolean first = true;
+            for (int column = 0; column < columns.size(); column++) {
+                String text = getText(record, column);
+                if (text == null) {
+                    continue;
+                }
+                if (!first) {
+                    builder.append(",");
+                }
+                builder.append(columns.get(column).name).append("=").append(text);
+                first = false;
+            }
+            if (separated) {
+                builder.append(";");
+            }
+        }
+        return builder.toString();
+    }
+
+    private String formatTime(long millis) {
+        if (dateFormatter == null) {
+            dateFormatter = new DateFormatter();
+        }
+        return dateFormatter.toDateTimeStringISO(new Date(millis));
+    }
+
+    /**
+     * Makes room for a value of the current record, changing the column to text if it
+     * holds values of another type.
+     */
+    private Column prepare(int column, int type) {
+        if (size == 0) {
+            throw new IllegalStateException("no record was added");
+        }
+        Column col = columns.get(column);
+        int record = size - 1;
+        if (col.type == UNSET) {
+            col.type = type;
+        } else if (col.type != type && col.type != TEXT) {
+            String[] texts = new String[Math.max(size, 16)];
+            for (int i = col.present.nextSetBit(0); i >= 0 && i < size; i = col.present.nextSetBit(i + 1)) {
+                texts[i] = getText(i, column);
+            }
+            col.type = TEXT;
+            col.texts = texts;
+            col.longs = null;
+            col.floats = null;
+            col.doubles = null;
+            col.fill.clear();
+        }
+        int capacity = Math.max(16, Integer.highestOneBit(size) << 1);
+        switch (col.type) {
+            case TIME_MILLIS:
+                if (col.longs == null || col.longs.length <= record) {
+                    col.longs = col.longs == null ? new long[capacity] : Arrays.copyOf(col.longs, capacity);
+                    if (col.texts != null) {
+                        col.texts = Arrays.copyOf(col.texts, capacity);
+                    }
+                }
+                break;
+            case LONG:
+                if (col.longs == null || col.longs.length <= record) {
+                    col.longs = col.longs == null ? new long[capacity] : Arrays.copyOf(col.longs, capacity);
+                }
+                break;
+            case FLOAT:
+                if (col.floats == null || col.floats.length <= record) {
+                    col.floats = col.floats == null ? new float[capacity] : Arrays.copyOf(col.floats, capacity);
+                }
+                break;
+            case DOUBLE:
+                if (col.doubles == null || col.doubles.length <= record) {
+                    col.doubles = col.doubles == null ? new double[capacity] : Arrays.copyOf(col.doubles, capacity);
+                }
+                break;
+            default:
+                if (col.texts == null || col.texts.length <= record) {
+                    col.texts = col.texts == null ? new String[capacity] : Arrays.copyOf(col.texts, capacity);
+                }
+        }
+        col.present.set(record);
+        return col;
+    }
+}
@@ -0,0 +1,19 @@
+package com.asascience.ncsos.cdmclasses;
+
+import java.io.IOException;
+
+/**
+ * Receives the observations of a station in batches while they are being read, see
+ * {@link iStationData#readData(int, ObservationVisitor)}.
+ */
+public interface ObservationVisitor {
+
+    /**
+     * Called with each batch of records, the last time with the remaining records (possibly
+     * none) or with the error of a failed read. The block is cleared and filled with the
+     * next batch after this returns, so it must not be kept.
+     * @param batch the records read since the previous call
+     * @throws IOException if the records cannot be written; reading stops
+     */
+    public void visit(ObservationBlock batch) throws IOException;
+}
@@ -14,7 +14,6 @@ import ucar.nc2.ft.PointFeature;
 import ucar.nc2.ft.PointFeatureIterator;
 import ucar.nc2.ft.ProfileFeature;
 import ucar.nc2.ft.ProfileFeatureCollection;
-import ucar.nc2.units.DateFormatter;
 import ucar.unidata.geoloc.Station;
 
 import java.io.IOException;
@@ -196,7 +195,7 @@ public class Profile extends baseCDMClass implements iStationData {
     }
 
     @Override
-    public String getDataResponse(int stNum) {
+    public ObservationBlock getDataBlock(int stNum) {
         try {
             if (profileData != null && profileList.containsKey(stNum)) {
                 return createProfileFeature(stNum);
@@ -205,9 +204,9 @@ public class Profile extends baseCDMClass implements iStationData {
             }
         } catch (IOException ex) {
             Logger.getLogger(Profile.class.getName()).log(Level.SEVERE, null, ex);
-            return DATA_RESPONSE_ERROR + Profile.class;
+            return errorBlock(DATA_RESPONSE_ERROR + Profile.class);
         }
-        return DATA_RESPONSE_ERROR + Profile.class;
+        return errorBlock(DATA_RESPONSE_ERROR + Profile.class);
     }
 
     @Override
@@ -292,7 +291,7 @@ public class Profile extends baseCDMClass implements iStationData {
     
     /**************************************************************************/
     
-    private void addProfileData(List<String> valueList, DateFormatter dateFormatter, StringBuilder builder, ProfileFeature profileFeature, int stNum) {
+    private void addProfileData(ObservationBlock block, ProfileFeature profileFeature, int stNum) {
         //set the iterator the the correct profile
         try {
             PointFeatureIterator pointIterator = profileFeature.getPointFeatureIterator(-1);
@@ -302,46 +301,36 @@ public class Profile extends baseCDMClass implements iStationData {
                 String profileID = profileFeature.getName();
                 //if there is a profile id use it against the data that is requested
                 if (profileID != null) {
-                    valueList.clear();
-                    valueList.add("time=" + dateFormatter.toDateTimeStringISO(profileFeature.getTime()));
-                    valueList.add("station=" + stNum);
-                    addProfileDataToBuilder(valueList, pointFeature, builder);
+                    block.addRecord();
+                    block.setTime(0, profileFeature.getTime().getTime());
+                    block.setLong(1, stNum);
+                    addProfileDataToBlock(block, pointFeature);
                 }
             }
         } catch (Exception ex) {
             // error reading
-            builder.delete(0, builder.length());
-            builder.append("ERROR =reading data from dataset: ").append(ex.getLocalizedMessage()).append(". Most likely this property does not exist or is improperly stored in the dataset.");
+            block.setError("ERROR =reading data from dataset: " + ex.getLocalizedMessage() + ". Most likely this property does not exist or is improperly stored in the dataset.");
         }
     }
 
-    private void addProfileDataToBuilder(List<String> valueList, PointFeature pointFeature, StringBuilder builder) throws IOException {
-        for (String variableName : variableNames) {
-            valueList.add(variableName + "=" + pointFeature.getData().getScalarObject(variableName).toString());
+    private void addProfileDataToBlock(ObservationBlock block, PointFeature pointFeature) throws IOException {
+        for (int i = 0; i < variableNames.length; i++) {
+            block.setValue(i + 2, pointFeature.getData().getScalarObject(variableNames[i]));
         }
-
-        for (int i = 0; i < valueList.size(); i++) {
-            builder.append(valueList.get(i));
-            if (i < valueList.size() - 1) {
-                builder.append(",");
-            }
-        }
-
-        builder.append(";");
     }
 
-    private String createProfileFeature(int stNum) throws IOException {
+    private ObservationBlock createProfileFeature(int stNum) throws IOException {
+        ObservationBlock block = newBlock();
+        block.addColumn(ObservationBlock.TIME);
+        block.addColumn(ObservationBlock.STATION);
+        for (String variableName : variableNames) {
+            block.addColumn(variableName);
+        }
         if (profileList != null && profileList.containsKey((Integer)stNum)) {
-            StringBuilder builder = new StringBuilder();
-            DateFormatter dateFormatter = new DateFormatter();
-            List<String> valueList = new ArrayList<String>();
-
             ProfileFeature pFeature = profileList.get(stNum);
-            addProfileData(valueList, dateFormatter, builder, pFeature, stNum);
-
-            return builder.toString();
+            addProfileData(block, pFeature, stNum);
         }
-        return "";
+        return block;
     }
 
     public List<String> getLocationsString(int stNum) {
@@ -191,16 +191,16 @@ public class Section extends baseCDMClass implements iStationData {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
-    public String getDataResponse(int stNum) {
+    public ObservationBlock getDataBlock(int stNum) {
         try {
             if (sectionData != null) {
                 return createSectionData(stNum);
             }
         } catch (Exception ex) {
 //            Logger.getLogger(Trajectory.class.getName()).log(Level.SEVERE, null, ex);
-            return DATA_RESPONSE_ERROR + Profile.class;
+            return errorBlock(DATA_RESPONSE_ERROR + Profile.class);
         }
-        return DATA_RESPONSE_ERROR + Profile.class;
+        return errorBlock(DATA_RESPONSE_ERROR + Profile.class);
     }
 
     @Override
@@ -290,16 +290,19 @@ public class Section extends baseCDMClass implements iStationData {
     
     /**************************************************************************/
 
-    private String createSectionData(int stNum) {
-        StringBuilder builder = new StringBuilder();
+    private ObservationBlock createSectionData(int stNum) {
+        ObservationBlock block = newBlock();
+        block.addColumn(ObservationBlock.TIME);
+        for (String variableName : variableNames) {
+            block.addColumn(variableName);
+        }
         SectionFeature sectionFeature = sectionList.get(stNum);
-        addTrajectoryProfileData(builder, sectionFeature, stNum);
-        return builder.toString();
+        addTrajectoryProfileData(block, sectionFeature, stNum);
+        return block;
     }
 
-    private void addTrajectoryProfileData(StringBuilder builder, SectionFeature sectionFeature, int stNum) {
+    private void addTrajectoryProfileData(ObservationBlock block, SectionFeature sectionFeature, int stNum) {
         try {
-            List<String> valueList = new LinkedList<String>();
             PointFeatureCollectionIterator profileCollectionIter = sectionFeature.getPointFeatureCollectionIterator(-1);
             
             for (;profileCollectionIter.hasNext();) {
@@ -315,15 +318,14 @@ public class Section extends baseCDMClass implements iStationData {
 
                         for (;pointIter.hasNext();) {
                             PointFeature point = pointIter.next();
-                            valueList.clear();
                             
                             pointTime = new DateTime(point.getObservationTimeAsCalendarDate().toDate());
                             
                             if (pointTime.isEqual(dtStart) || pointTime.isEqual(dtEnd) || (pointTime.isAfter(dtStart) && pointTime.isBefore(dtEnd))) {
-                                addDataLine(valueList, point, builder);
+                                addDataLine(point, block);
                             }
                             // exit if we get an error
-                            if (builder.toString().contains("ERROR"))
+                            if (block.hasError())
                                 break;
                         }
                     } else {
@@ -331,26 +333,24 @@ public class Section extends baseCDMClass implements iStationData {
 
                         for (;pointIter.hasNext();) {
                             PointFeature point = pointIter.next();
-                            valueList.clear();
                             
                             pointTime = new DateTime(point.getObservationTimeAsCalendarDate().toDate());
                             
                             if (pointTime.isEqual(dtStart)) {
-                                addDataLine(valueList, point, builder);
+                                addDataLine(point, block);
                             }
                             
                             // exit if we get an error
-                            if (builder.toString().contains("ERROR"))
+                            if (block.hasError())
                                 break;
                         }
                     }
                 } else {
                     for (;pointIter.hasNext();) {
                         PointFeature point = pointIter.next();
-                        valueList.clear();
-                        addDataLine(valueList, point, builder);
+                        addDataLine(point, block);
                         // exit if we get an error
-                        if (builder.toString().contains("ERROR"))
+                        if (block.hasError())
                             break;
                     }
                 }
@@ -359,28 +359,21 @@ public class Section extends baseCDMClass implements iStationData {
             profileCollectionIter.finish();
         } catch (Exception e) {
             // add exception to output
-            builder.delete(0, builder.length());
-            builder.append("ERROR =building data: ").append(e.getLocalizedMessage()).append(".");
+            block.setError("ERROR =building data: " + e.getLocalizedMessage() + ".");
         }
     }
 
-    private void addDataLine(List<String> valueList, PointFeature point, StringBuilder builder) {
-        valueList.add("time=" + df.toDateTimeStringISO(point.getObservationTimeAsCalendarDate().toDate()));
+    private void addDataLine(PointFeature point, ObservationBlock block) {
+        block.addRecord();
+        block.setTime(0, point.getObservationTimeAsCalendarDate().getMillis());
 
         try {
-            for (String variableName : variableNames) {
-                valueList.add(variableName + "=" + point.getData().getScalarObject(variableName).toString());
-            }
-
-            for (String str : valueList) {
-                builder.append(str).append(",");
+            for (int i = 0; i < variableNames.length; i++) {
+                block.setValue(i + 1, point.getData().getScalarObject(variableNames[i]));
             }
-            if(builder.length() > 0)
-                builder.deleteCharAt(builder.length()-1).append(";");
         } catch (Exception ex) {
             // error in reading data
-            builder.delete(0, builder.length());
-            builder.append("ERROR =reading data from dataset: ").append(ex.getLocalizedMessage()).append(". Most likely this property does not exist or is improperly stored in the dataset.");
+            block.setError("ERROR =reading data from dataset: " + ex.getLocalizedMessage() + ". Most likely this property does not exist or is improperly stored in the dataset.");
         }
     }
     
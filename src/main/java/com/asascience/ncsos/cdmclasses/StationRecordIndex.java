@@ -0,0 +1,380 @@
+package com.asascience.ncsos.cdmclasses;
+
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+
+import thredds.servlet.ThreddsConfig;
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.EnhanceScaleMissing;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The records of every station of an indexed ragged array, sorted by time. An indexed
+ * ragged array stores the observations of all stations interleaved, with a variable
+ * (the one with the <code>instance_dimension</code> attribute) giving the station of each
+ * record, so finding the records of one station means reading that variable in full.
+ * The index does this once per version of the dataset file and keeps, per station, the
+ * record positions and their times in time order.
+ * <p>
+ * Indexes are kept in memory up to NCSOS.recordIndex.maxMemoryMB megabytes in total, the
+ * least recently used one is dropped first, and written as a deflated sidecar file to the
+ * directory configured by NCSOS.recordIndex.directory. Files with more records than
+ * NCSOS.recordIndex.maxRecords are not indexed. An index is only used while the size and
+ * modification time of the dataset file match the ones it was built from. Aggregations and
+ * remote datasets are not indexed. Records without a valid time are left out.
+ */
+class StationRecordIndex {
+
+    private static final int MAGIC = 0x4E435258; // "NCRX"
+    private static final int VERSION = 1;
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final String DEFAULT_DIRECTORY = System.getProperty("java.io.tmpdir") + File.separator + "ncsos-records";
+
+    // location -> index, least recently used first; guarded by itself
+    private static final Map<String, StationRecordIndex> loaded = new LinkedHashMap<String, StationRecordIndex>(16, 0.75f, true);
+    private static long loadedBytes = 0;
+    private static final ConcurrentHashMap<String, Object> building = new ConcurrentHashMap<String, Object>();
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(StationRecordIndex.class);
+
+    private final String location;
+    private final long fileSize;
+    private final long lastModified;
+    private final String indexVariable;
+    private final String timeVariable;
+    // records of station i are offsets[i] up to offsets[i + 1]
+    private final int[] offsets;
+    private final int[] positions;
+    private final double[] times;
+
+    private StationRecordIndex(String location, long fileSize, long lastModified, String indexVariable,
+            String timeVariable, int[] offsets, int[] positions, double[] times) {
+        this.location = location;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.indexVariable = indexVariable;
+        this.timeVariable = timeVariable;
+        this.offsets = offsets;
+        this.positions = positions;
+        this.times = times;
+    }
+
+    /**
+     * Checks the threddsConfig.xml setting NCSOS.recordIndex.enabled.
+     */
+    static boolean isEnabled() {
+        return ThreddsConfig.getBoolean("NCSOS.recordIndex.enabled", true);
+    }
+
+    /**
+     * Returns the index of a dataset file from memory or disk, building it if there is
+     * none for the file as it is now.
+     * @param dataset an open dataset
+     * @param indexVariable variable giving the station of each record
+     * @param timeVariable time of each record, dimensioned like the index variable
+     * @param instances number of stations
+     * @return the index, or null if the dataset cannot be indexed
+     */
+    static StationRecordIndex find(NetcdfDataset dataset, Variable indexVariable, Variable timeVariable, int instances)
+            throws IOException, InvalidRangeException {
+        File file = DatasetHandlerAdapter.getLocalFile(dataset);
+        if (file == null || !isEnabled()
+                || indexVariable.getSize() > ThreddsConfig.getInt("NCSOS.recordIndex.maxRecords", 10000000)) {
+            return null;
+        }
+        String location = file.getAbsolutePath();
+        StationRecordIndex index = getLoaded(location);
+        if (index != null && index.matches(file, indexVariable, timeVariable, instances)) {
+            return index;
+        }
+        // readers of the same file in parallel wait for one build of its index
+        Object lock = new Object();
+        Object existing = building.putIfAbsent(location, lock);
+        try {
+            synchronized (existing != null ? existing : lock) {
+                index = getLoaded(location);
+                if (index != null && index.matches(file, indexVariable, timeVariable, instances)) {
+                    return index;
+                }
+                return load(location, file, indexVariable, timeVariable, instances);
+            }
+        } finally {
+            if (existing == null) {
+                building.remove(location, lock);
+            }
+        }
+    }
+
+    private static StationRecordIndex getLoaded(String location) {
+        synchronized (loaded) {
+            return loaded.get(location);
+        }
+    }
+
+    private static StationRecordIndex load(String location, File file, Variable indexVariable, Variable timeVariable,
+            int instances) throws IOException, InvalidRangeException {
+        File indexFile = getIndexFile(location);
+        StationRecordIndex index = null;
+        if (indexFile.isFile()) {
+            try {
+                index = read(indexFile);
+            } catch (IOException ex) {
+                _log.warn("Unable to read record index " + indexFile + ": " + ex.getMessage());
+            }
+        }
+        if (index == null || !location.equals(index.location) || !index.matches(file, indexVariable, timeVariable, instances)) {
+            long fileSize = file.length();
+            long lastModified = file.lastModified();
+            index = build(location, fileSize, lastModified, indexVariable, timeVariable, instances);
+            write(index, indexFile);
+        }
+        remember(index);
+        return index;
+    }
+
+    private boolean matches(File file, Variable indexVariable, Variable timeVariable, int instances) {
+        return file.length() == fileSize && file.lastModified() == lastModified
+                && indexVariable.getFullName().equals(this.indexVariable)
+                && timeVariable.getFullName().equals(this.timeVariable) && offsets.length == instances + 1;
+    }
+
+    /**
+     * Keeps an index in memory, dropping the least recently used ones until all fit.
+     */
+    private static void remember(StationRecordIndex index) {
+        long maxBytes = ThreddsConfig.getInt("NCSOS.recordIndex.maxMemoryMB", 256) * 1024L * 1024L;
+        long bytes = index.getMemorySize();
+        synchronized (loaded) {
+            StationRecordIndex previous = loaded.remove(index.location);
+            if (previous != null) {
+                loadedBytes -= previous.getMemorySize();
+            }
+            if (bytes > maxBytes) {
+                return;
+            }
+            Iterator<StationRecordIndex> indexes = loaded.values().iterator();
+            while (loadedBytes + bytes > maxBytes && indexes.hasNext()) {
+                loadedBytes -= indexes.next().getMemorySize();
+                indexes.remove();
+            }
+            loaded.put(index.location, index);
+            loadedBytes += bytes;
+        }
+    }
+
+    /**
+     * @return the number of bytes the arrays of the index take
+     */
+    long getMemorySize() {
+        return 4L * offsets.length + 12L * positions.length;
+    }
+
+    /**
+     * Reads the index and time variables in chunks, counts the records of every station,
+     * then places and sorts them.
+     */
+    private static StationRecordIndex build(String location, long fileSize, long lastModified, Variable indexVariable,
+            Variable timeVariable, int instances) throws IOException, InvalidRangeException {
+        int length = (int) indexVariable.getSize();
+        EnhanceScaleMissing missing = (timeVariable instanceof EnhanceScaleMissing && ((EnhanceScaleMissing) timeVariable).hasMissing())
+                ? (EnhanceScaleMissing) timeVariable : null;
+        int[] offsets = new int[instances + 1];
+        for (int first = 0; first < length; first += CHUNK_SIZE) {
+            int size = Math.min(CHUNK_SIZE, length - first);
+            Array station = indexVariable.read(new int[]{first}, new int[]{size});
+            Array time = timeVariable.read(new int[]{first}, new int[]{size});
+            for (int row = 0; row < size; row++) {
+                int instance = station.getInt(row);
+                if (instance >= 0 && instance < instances && isValid(time.getDouble(row), missing)) {
+                    offsets[instance + 1]++;
+                }
+            }
+        }
+        for (int i = 0; i < instances; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int[] positions = new int[offsets[instances]];
+        double[] times = new double[offsets[instances]];
+        int[] next = offsets.clone();
+        for (int first = 0; first < length; first += CHUNK_SIZE) {
+            int size = Math.min(CHUNK_SIZE, length - first);
+            Array station = indexVariable.read(new int[]{first}, new int[]{size});
+            Array time = timeVariable.read(new int[]{first}, new int[]{size});
+            for (int row = 0; row < size; row++) {
+                int instance = station.getInt(row);
+                double value = time.getDouble(row);
+                if (instance >= 0 && instance < instances && isValid(value, missing)) {
+                    positions[next[instance]] = first + row;
+                    times[next[instance]++] = value;
+                }
+            }
+        }
+        int[] positionBuffer = new int[positions.length];
+        double[] timeBuffer = new double[times.length];
+        for (int i = 0; i < instances; i++) {
+            sort(positions, times, offsets[i], offsets[i + 1], positionBuffer, timeBuffer);
+        }
+        return new StationRecordIndex(location, fileSize, lastModified, indexVariable.getFullName(),
+                timeVariable.getFullName(), offsets, positions, times);
+    }
+
+    private static boolean isValid(double value, EnhanceScaleMissing missing) {
+        return !Double.isNaN(value) && (missing == null || !missing.isMissing(value));
+    }
+
+    /**
+     * Stable merge sort of a range of records by time; records are mostly stored in time
+     * order already, so sorted runs are merged without copying.
+     */
+    private static void sort(int[] positions, double[] times, int from, int to, int[] positionBuffer, double[] timeBuffer) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(positions, times, from, middle, positionBuffer, timeBuffer);
+        sort(positions, times, middle, to, positionBuffer, timeBuffer);
+        if (times[middle - 1] <= times[middle]) {
+            return;
+        }
+        System.arraycopy(positions, from, positionBuffer, from, to - from);
+        System.arraycopy(times, from, timeBuffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && timeBuffer[left] <= timeBuffer[right])) {
+                positions[i] = positionBuffer[left];
+                times[i] = timeBuffer[left++];
+            } else {
+                positions[i] = positionBuffer[right];
+                times[i] = timeBuffer[right++];
+            }
+        }
+    }
+
+    /**
+     * @return the number of records of a station
+     */
+    int getCount(int instance) {
+        return offsets[instance + 1] - offsets[instance];
+    }
+
+    /**
+     * @return the record positions of a station, in time order
+     */
+    int[] getPositions(int instance) {
+        int[] copy = new int[getCount(instance)];
+        System.arraycopy(positions, offsets[instance], copy, 0, copy.length);
+        return copy;
+    }
+
+    /**
+     * @return the times of a station's records, in the units of the time variable, in order
+     */
+    double[] getTimes(int instance) {
+        double[] copy = new double[getCount(instance)];
+        System.arraycopy(times, offsets[instance], copy, 0, copy.length);
+        return copy;
+    }
+
+    static File getIndexFile(String location) {
+        String dir = ThreddsConfig.get("NCSOS.recordIndex.directory", DEFAULT_DIRECTORY);
+        String name = new File(location).getName().replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(dir, name + "." + Integer.toHexString(location.hashCode()) + ".rix");
+    }
+
+    private static void write(StationRecordIndex index, File indexFile) {
+        try {
+            File dir = indexFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("could not create directory " + dir);
+            }
+            File tmp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(index.location);
+                out.writeLong(index.fileSize);
+                out.writeLong(index.lastModified);
+                out.writeUTF(index.indexVariable);
+                out.writeUTF(index.timeVariable);
+                out.writeInt(index.offsets.length);
+                out.writeInt(index.positions.length);
+                out.flush();
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                DataOutputStream arrays = new DataOutputStream(new BufferedOutputStream(
+                        new DeflaterOutputStream(out, deflater)));
+                // counts and position deltas are small numbers that deflate well
+                for (int i = 1; i < index.offsets.length; i++) {
+                    arrays.writeInt(index.offsets[i] - index.offsets[i - 1]);
+                }
+                int previous = 0;
+                for (int position : index.positions) {
+                    arrays.writeInt(position - previous);
+                    previous = position;
+                }
+                for (double time : index.times) {
+                    arrays.writeDouble(time);
+                }
+                arrays.close();
+                deflater.end();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tmp.renameTo(indexFile)) {
+                    tmp.delete();
+                    throw new IOException("could not rename " + tmp);
+                }
+            }
+        } catch (IOException ex) {
+            _log.warn("Unable to write record index " + indexFile + ": " + ex.getMessage());
+        }
+    }
+
+    static StationRecordIndex read(File indexFile) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a record index of version " + VERSION);
+            }
+            String location = in.readUTF();
+            long fileSize = in.readLong();
+            long lastModified = in.readLong();
+            String indexVariable = in.readUTF();
+            String timeVariable = in.readUTF();
+            int[] offsets = new int[in.readInt()];
+            int[] positions = new int[in.readInt()];
+            double[] times = new double[positions.length];
+            DataInputStream arrays = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+            for (int i = 1; i < offsets.length; i++) {
+                offsets[i] = offsets[i - 1] + arrays.readInt();
+            }
+            int previous = 0;
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = previous + arrays.readInt();
+                previous = positions[i];
+            }
+            for (int i = 0; i < times.length; i++) {
+                times[i] = arrays.readDouble();
+            }
+            if (offsets.length == 0 || offsets[offsets.length - 1] != positions.length) {
+                throw new IOException("record counts do not add up");
+            }
+            return new StationRecordIndex(location, fileSize, lastModified, indexVariable, timeVariable,
+                    offsets, positions, times);
+        } finally {
+            in.close();
+        }
+    }
+}
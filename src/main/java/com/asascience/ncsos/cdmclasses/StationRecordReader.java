@@ -0,0 +1,726 @@
+package com.asascience.ncsos.cdmclasses;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.EnhanceScaleMissing;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the observations of one station of a time series dataset as whole arrays, one
+ * read per variable, instead of iterating PointFeatures and their StructureData. The
+ * records of the station are found from the layout of the file:
+ * <ul>
+ * <li>a single station, or a time variable shared by all stations (orthogonal multidimensional)</li>
+ * <li>time and data dimensioned station first (incomplete multidimensional), one row per station</li>
+ * <li>contiguous ragged arrays, by the variable with the <code>sample_dimension</code> attribute</li>
+ * <li>indexed ragged arrays, by the variable with the <code>instance_dimension</code> attribute</li>
+ * </ul>
+ * {@link #create} returns null for anything else, and {@link #read} throws for a data
+ * variable that is not laid out like the time variable; callers then iterate the features.
+ * <p>
+ * When a time window is given, the records of the station are taken to be stored in time
+ * order, as DSG writers do: the window is found by binary search on the time variable,
+ * reading one value per step, and only that slice of every variable is read. If the time
+ * values of the slice turn out not to be in order, all records of the station are read.
+ * The first or last record of a station is found the same way when a few times spread
+ * over the station are in order, and by reading every time of the station otherwise.
+ * <p>
+ * The records are read a chunk at a time, so only one chunk of every variable is held
+ * however long the time window is.
+ * <p>
+ * The records of an indexed ragged array come from its {@link StationRecordIndex} where the
+ * dataset can be indexed, already in time order and with their times, so the window is
+ * found without reading the file and the records are returned in time order.
+ */
+class StationRecordReader {
+
+    private static final int CHUNK_SIZE = 1 << 20;
+    // times read to check a station is stored in time order before a binary search for its first or last record
+    private static final int BOUNDARY_PROBES = 16;
+    private static final String SAMPLE_DIMENSION = "sample_dimension";
+    static final String INSTANCE_DIMENSION = "instance_dimension";
+
+    private enum Layout {
+        SINGLE, ORTHOGONAL, MULTIDIMENSIONAL, CONTIGUOUS, INDEXED
+    }
+
+    private final NetcdfDataset dataset;
+    private final Variable timeVariable;
+    private final Layout layout;
+    // null for a single station
+    private final Dimension instanceDimension;
+    private final Dimension sampleDimension;
+    // the row size or station index variable of a ragged layout
+    private final Variable raggedVariable;
+    private long[] rowStarts;
+    private StationRecordIndex recordIndex;
+
+    private StationRecordReader(NetcdfDataset dataset, Variable timeVariable, Layout layout,
+            Dimension instanceDimension, Dimension sampleDimension, Variable raggedVariable) {
+        this.dataset = dataset;
+        this.timeVariable = timeVariable;
+        this.layout = layout;
+        this.instanceDimension = instanceDimension;
+        this.sampleDimension = sampleDimension;
+        this.raggedVariable = raggedVariable;
+    }
+
+    /**
+     * @param dataset the dataset
+     * @param stationVariable variable holding the station names or ids, its outer dimension is the station dimension
+     * @param timeVariable time coordinate of the observations
+     * @return a reader, or null if the layout of the dataset is not understood
+     */
+    static StationRecordReader create(NetcdfDataset dataset, Variable stationVariable, Variable timeVariable) {
+        if (dataset == null || stationVariable == null || timeVariable == null) {
+            return null;
+        }
+        int stringRank = (stationVariable.getDataType() == DataType.CHAR) ? 1 : 0;
+        Dimension instanceDimension = (stationVariable.getRank() > stringRank) ? stationVariable.getDimension(0) : null;
+        List<Dimension> dimensions = timeVariable.getDimensions();
+        if (dimensions.size() == 2 && instanceDimension != null && dimensions.get(0).equals(instanceDimension)) {
+            return new StationRecordReader(dataset, timeVariable, Layout.MULTIDIMENSIONAL, instanceDimension,
+                    dimensions.get(1), null);
+        }
+        if (dimensions.size() != 1) {
+            return null;
+        }
+        Dimension sampleDimension = dimensions.get(0);
+        if (instanceDimension == null) {
+            return new StationRecordReader(dataset, timeVariable, Layout.SINGLE, null, sampleDimension, null);
+        }
+        if (sampleDimension.equals(instanceDimension)) {
+            return null;
+        }
+        Variable rowSize = findRaggedVariable(dataset, SAMPLE_DIMENSION, sampleDimension, instanceDimension);
+        if (rowSize != null) {
+            return new StationRecordReader(dataset, timeVariable, Layout.CONTIGUOUS, instanceDimension,
+                    sampleDimension, rowSize);
+        }
+        Variable index = findRaggedVariable(dataset, INSTANCE_DIMENSION, instanceDimension, sampleDimension);
+        if (index != null) {
+            return new StationRecordReader(dataset, timeVariable, Layout.INDEXED, instanceDimension,
+                    sampleDimension, index);
+        }
+        return new StationRecordReader(dataset, timeVariable, Layout.ORTHOGONAL, instanceDimension,
+                sampleDimension, null);
+    }
+
+    /**
+     * Finds the ragged array variable that has the given attribute naming <code>named</code>
+     * and is dimensioned by <code>dimension</code>.
+     */
+    static Variable findRaggedVariable(NetcdfDataset dataset, String attributeName, Dimension named,
+            Dimension dimension) {
+        for (Variable variable : dataset.getVariables()) {
+            Attribute attribute = variable.findAttribute(attributeName);
+            if (attribute != null && attribute.isString() && named.getShortName().equals(attribute.getStringValue())
+                    && variable.getRank() == 1 && variable.getDimension(0).equals(dimension)) {
+                return variable;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the observations of a station within a time window, in the order they are
+     * stored, a chunk of records at a time. Records just outside the window may be
+     * included, callers still check the time of each.
+     * @param instance index of the station along the station dimension
+     * @param variableNames data variables to read
+     * @param minTime start of the window in the units of the time variable, or negative infinity
+     * @param maxTime end of the window in the units of the time variable, or positive infinity
+     * @param chunkSize largest number of records read at once
+     * @return the chunks of the station's records, read as they are asked for
+     * @throws IOException if a variable is missing or not laid out like the time variable
+     */
+    RecordChunks read(int instance, String[] variableNames, double minTime, double maxTime, int chunkSize)
+            throws IOException, InvalidRangeException {
+        Variable[] variables = findVariables(variableNames);
+        for (Variable variable : variables) {
+            checkLayout(variable);
+        }
+        chunkSize = Math.max(1, chunkSize);
+        Selection selection = select(instance);
+        if (selection.times != null) {
+            selection = narrowIndexed(selection, minTime, maxTime);
+        } else if (minTime > Double.NEGATIVE_INFINITY || maxTime < Double.POSITIVE_INFINITY) {
+            Selection window = narrow(instance, selection, minTime, maxTime);
+            if (isSorted(instance, window, chunkSize)) {
+                selection = window;
+            }
+        }
+        return new RecordChunks(instance, variables, selection, chunkSize);
+    }
+
+    /**
+     * Reads only the first or the last observation of a station in time, the record a
+     * <code>first</code> or <code>latest</code> event time asks for.
+     * @param instance index of the station along the station dimension
+     * @param variableNames data variables to read
+     * @param last true for the latest record, false for the first
+     * @param timeSearch true to find the record by binary search where the times of the
+     *        station look stored in time order (NCSOS.getObservation.timeSearch), false to
+     *        read every time of the station
+     * @return the record, or no record if the station has no valid time
+     * @throws IOException if a variable is missing or not laid out like the time variable
+     */
+    Records readBoundary(int instance, String[] variableNames, boolean last, boolean timeSearch)
+            throws IOException, InvalidRangeException {
+        Variable[] variables = findVariables(variableNames);
+        Selection selection = select(instance);
+        int record = -1;
+        double time = Double.NaN;
+        boolean found = false;
+        if (selection.times != null) {
+            if (selection.count > 0) {
+                record = last ? selection.count - 1 : 0;
+                time = selection.times[record];
+            }
+            found = true;
+        } else if (timeSearch) {
+            // missing times sort last, so the valid records are the ones before the first missing
+            int valid = search(instance, selection, Double.MAX_VALUE, true);
+            if (looksSorted(instance, selection, valid)) {
+                if (valid > 0) {
+                    record = last ? valid - 1 : 0;
+                    time = readTime(instance, selection, record);
+                }
+                found = true;
+            }
+        }
+        if (!found) {
+            Array times = readRecords(timeVariable, instance, selection);
+            for (int i = 0; i < times.getSize(); i++) {
+                double value = times.getDouble(i);
+                if (!isMissingTime(value) && (record < 0 || (last ? value >= time : value < time))) {
+                    record = i;
+                    time = value;
+                }
+            }
+        }
+        if (record < 0) {
+            return new Records(Array.factory(double.class, new int[]{0}), this, new Array[variables.length], 0);
+        }
+        Selection boundary = (selection.positions != null)
+                ? new Selection(new int[]{selection.positions[record]}, 1)
+                : new Selection(selection.first + record, 1);
+        Array[] values = new Array[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            values[i] = readRecords(variables[i], instance, boundary);
+        }
+        return new Records(Array.factory(double.class, new int[]{1}, new double[]{time}), this, values, 1);
+    }
+
+    /**
+     * Finds the earliest and the latest time of a station's records, reading only the time
+     * variable, as the time range of a station is needed without its observations.
+     * @param instance index of the station along the station dimension
+     * @return the earliest and latest valid time in the units of the time variable, or null
+     *         if the station has no record with a valid time
+     */
+    double[] readTimeRange(int instance) throws IOException, InvalidRangeException {
+        Selection selection = select(instance);
+        if (selection.times != null) {
+            // the record index holds the valid times of the station in order
+            return (selection.count > 0) ? new double[]{selection.times[0], selection.times[selection.count - 1]} : null;
+        }
+        Array times = readRecords(timeVariable, instance, selection);
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < times.getSize(); i++) {
+            double value = times.getDouble(i);
+            if (!isMissingTime(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        return (min <= max) ? new double[]{min, max} : null;
+    }
+
+    private Variable[] findVariables(String[] variableNames) throws IOException {
+        Variable[] variables = new Variable[variableNames.length];
+        for (int i = 0; i < variableNames.length; i++) {
+            variables[i] = dataset.findVariable(variableNames[i]);
+            if (variables[i] == null) {
+                throw new IOException("no variable " + variableNames[i]);
+            }
+        }
+        return variables;
+    }
+
+    /**
+     * Narrows records in time order, with their times, to a time window.
+     */
+    private Selection narrowIndexed(Selection selection, double minTime, double maxTime) {
+        int from = lowerBound(selection.times, minTime, false);
+        int to = Math.max(from, lowerBound(selection.times, maxTime, true));
+        if (from == 0 && to == selection.count) {
+            return selection;
+        }
+        int[] positions = new int[to - from];
+        double[] times = new double[to - from];
+        System.arraycopy(selection.positions, from, positions, 0, to - from);
+        System.arraycopy(selection.times, from, times, 0, to - from);
+        return new Selection(positions, times);
+    }
+
+    /**
+     * @param after true to find the first time later than <code>time</code>, false for the
+     * first time at or later than it
+     */
+    private static int lowerBound(double[] times, double time, boolean after) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (after ? times[middle] > time : times[middle] >= time) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Narrows the records of a station to the ones from the first time at or after
+     * <code>minTime</code> up to the last time at or before <code>maxTime</code>.
+     */
+    private Selection narrow(int instance, Selection selection, double minTime, double maxTime)
+            throws IOException, InvalidRangeException {
+        int from = search(instance, selection, minTime, false);
+        int to = Math.max(from, search(instance, selection, maxTime, true));
+        if (selection.positions == null) {
+            return new Selection(selection.first + from, to - from);
+        }
+        int[] positions = new int[to - from];
+        System.arraycopy(selection.positions, from, positions, 0, to - from);
+        return new Selection(positions, positions.length);
+    }
+
+    /**
+     * Binary search over the time of the selected records; missing times sort last.
+     * @param after true to find the first record later than <code>time</code>, false for
+     * the first record at or later than it
+     * @return the position of that record in the selection, its count if there is none
+     */
+    private int search(int instance, Selection selection, double time, boolean after)
+            throws IOException, InvalidRangeException {
+        if (time == Double.NEGATIVE_INFINITY && !after) {
+            return 0;
+        }
+        if (time == Double.POSITIVE_INFINITY) {
+            return selection.count;
+        }
+        int low = 0;
+        int high = selection.count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            double value = readTime(instance, selection, middle);
+            if (isMissingTime(value) || (after ? value > time : value >= time)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Reads the time of one of the selected records.
+     */
+    private double readTime(int instance, Selection selection, int record) throws IOException, InvalidRangeException {
+        int position = (selection.positions != null) ? selection.positions[record] : selection.first + record;
+        if (layout == Layout.MULTIDIMENSIONAL) {
+            return timeVariable.read(new int[]{instance, position}, new int[]{1, 1}).getDouble(0);
+        }
+        return timeVariable.read(new int[]{position}, new int[]{1}).getDouble(0);
+    }
+
+    /**
+     * Checks the times of a few records spread over the selection, the first and last
+     * ones and the ones on either side of <code>valid</code> included, against what a
+     * binary search takes for granted: valid times in order before <code>valid</code>
+     * and missing ones from there on. The records between them are not read.
+     * @param valid the number of records found to have a valid time
+     * @return false if the records are not stored in time order
+     */
+    private boolean looksSorted(int instance, Selection selection, int valid)
+            throws IOException, InvalidRangeException {
+        int count = selection.count;
+        if (count == 0) {
+            return true;
+        }
+        int probes = Math.min(count, BOUNDARY_PROBES);
+        int[] records = new int[probes + 2];
+        for (int i = 0; i < probes; i++) {
+            records[i] = (probes == 1) ? 0 : (int) ((long) i * (count - 1) / (probes - 1));
+        }
+        records[probes] = Math.max(0, valid - 1);
+        records[probes + 1] = Math.min(count - 1, valid);
+        Arrays.sort(records);
+        double previous = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < records.length; i++) {
+            if (i > 0 && records[i] == records[i - 1]) {
+                continue;
+            }
+            double value = readTime(instance, selection, records[i]);
+            if (records[i] >= valid) {
+                if (!isMissingTime(value)) {
+                    return false;
+                }
+            } else if (isMissingTime(value) || value < previous) {
+                return false;
+            } else {
+                previous = value;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the time of the selected records a chunk at a time.
+     * @return true if the valid times never decrease
+     */
+    private boolean isSorted(int instance, Selection selection, int chunkSize)
+            throws IOException, InvalidRangeException {
+        double previous = Double.NEGATIVE_INFINITY;
+        for (int from = 0; from < selection.count; from += chunkSize) {
+            Array time = readRecords(timeVariable, instance, selection.slice(from, Math.min(chunkSize, selection.count - from)));
+            for (int i = 0; i < time.getSize(); i++) {
+                double value = time.getDouble(i);
+                if (isMissingTime(value)) {
+                    continue;
+                }
+                if (value < previous) {
+                    return false;
+                }
+                previous = value;
+            }
+        }
+        return true;
+    }
+
+    private boolean isMissingTime(double value) {
+        return Double.isNaN(value) || (timeVariable instanceof EnhanceScaleMissing
+                && ((EnhanceScaleMissing) timeVariable).hasMissing() && ((EnhanceScaleMissing) timeVariable).isMissing(value));
+    }
+
+    /**
+     * Works out which records along the sample dimension belong to a station.
+     */
+    private Selection select(int instance) throws IOException, InvalidRangeException {
+        switch (layout) {
+            case CONTIGUOUS: {
+                if (rowStarts == null) {
+                    Array rowSizes = raggedVariable.read();
+                    long[] starts = new long[(int) rowSizes.getSize() + 1];
+                    for (int i = 0; i < rowSizes.getSize(); i++) {
+                        starts[i + 1] = starts[i] + Math.max(0, rowSizes.getLong(i));
+                    }
+                    rowStarts = starts;
+                }
+                if (instance + 1 >= rowStarts.length) {
+                    throw new IOException("no row size for station " + instance);
+                }
+                return new Selection((int) rowStarts[instance], (int) (rowStarts[instance + 1] - rowStarts[instance]));
+            }
+            case INDEXED: {
+                if (recordIndex == null && StationRecordIndex.isEnabled()) {
+                    recordIndex = StationRecordIndex.find(dataset, raggedVariable, timeVariable,
+                            instanceDimension.getLength());
+                }
+                if (recordIndex != null) {
+                    if (instance >= instanceDimension.getLength()) {
+                        throw new IOException("no station " + instance);
+                    }
+                    return new Selection(recordIndex.getPositions(instance), recordIndex.getTimes(instance));
+                }
+                int length = sampleDimension.getLength();
+                int[] positions = new int[16];
+                int count = 0;
+                for (int first = 0; first < length; first += CHUNK_SIZE) {
+                    int size = Math.min(CHUNK_SIZE, length - first);
+                    Array chunk = raggedVariable.read(new int[]{first}, new int[]{size});
+                    for (int row = 0; row < size; row++) {
+                        if (chunk.getInt(row) == instance) {
+                            if (count == positions.length) {
+                                int[] grown = new int[count * 2];
+                                System.arraycopy(positions, 0, grown, 0, count);
+                                positions = grown;
+                            }
+                            positions[count++] = first + row;
+                        }
+                    }
+                }
+                return new Selection(positions, count);
+            }
+            default:
+                return new Selection(0, sampleDimension.getLength());
+        }
+    }
+
+    private boolean isByStation(Variable variable) {
+        return layout == Layout.MULTIDIMENSIONAL || (layout == Layout.ORTHOGONAL && variable != timeVariable);
+    }
+
+    /**
+     * @throws IOException if the variable is not dimensioned like the time variable, or by
+     *         station and the shared time dimension in an orthogonal layout
+     */
+    private void checkLayout(Variable variable) throws IOException {
+        List<Dimension> dimensions = variable.getDimensions();
+        if (isByStation(variable)) {
+            if (dimensions.size() != 2 || !dimensions.get(0).equals(instanceDimension)
+                    || !dimensions.get(1).equals(sampleDimension)) {
+                throw new IOException(variable.getFullName() + " is not dimensioned by station and time");
+            }
+        } else if (dimensions.size() != 1 || !dimensions.get(0).equals(sampleDimension)) {
+            throw new IOException(variable.getFullName() + " is not dimensioned like the time variable");
+        }
+    }
+
+    /**
+     * Reads the selected records of a variable dimensioned like the time variable, or by
+     * station and the shared time dimension in an orthogonal layout.
+     */
+    private Array readRecords(Variable variable, int instance, Selection selection)
+            throws IOException, InvalidRangeException {
+        checkLayout(variable);
+        if (isByStation(variable)) {
+            return variable.read(new int[]{instance, selection.first}, new int[]{1, selection.count});
+        }
+        if (selection.positions == null) {
+            return variable.read(new int[]{selection.first}, new int[]{selection.count});
+        }
+        // scattered records of an indexed ragged array: read the spans in storage order, in
+        // chunks, and put every record of the station in its place in the selection
+        long[] byPosition = new long[selection.count];
+        for (int i = 0; i < selection.count; i++) {
+            byPosition[i] = ((long) selection.positions[i] << 32) | i;
+        }
+        Arrays.sort(byPosition);
+        Array records = Array.factory(variable.getDataType(), new int[]{selection.count});
+        int at = 0;
+        while (at < selection.count) {
+            int first = (int) (byPosition[at] >>> 32);
+            int last = first;
+            int end = at;
+            while (end < selection.count && (int) (byPosition[end] >>> 32) - first < CHUNK_SIZE) {
+                last = (int) (byPosition[end++] >>> 32);
+            }
+            Array chunk = variable.read(new int[]{first}, new int[]{last - first + 1});
+            for (; at < end; at++) {
+                copy(chunk, (int) (byPosition[at] >>> 32) - first, records, (int) byPosition[at]);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Copies an element between arrays of the same type, without boxing numbers.
+     */
+    private static void copy(Array from, int fromIndex, Array to, int toIndex) {
+        switch (from.getDataType()) {
+            case DOUBLE:
+                to.setDouble(toIndex, from.getDouble(fromIndex));
+                break;
+            case FLOAT:
+                to.setFloat(toIndex, from.getFloat(fromIndex));
+                break;
+            case LONG:
+                to.setLong(toIndex, from.getLong(fromIndex));
+                break;
+            case INT:
+                to.setInt(toIndex, from.getInt(fromIndex));
+                break;
+            case SHORT:
+                to.setShort(toIndex, from.getShort(fromIndex));
+                break;
+            case BYTE:
+                to.setByte(toIndex, from.getByte(fromIndex));
+                break;
+            case CHAR:
+                to.setChar(toIndex, from.getChar(fromIndex));
+                break;
+            default:
+                to.setObject(toIndex, from.getObject(fromIndex));
+        }
+    }
+
+    /**
+     * The records of a station: a range of the sample dimension, or the positions along it,
+     * with their times if they come from the record index.
+     */
+    private static class Selection {
+        final int first;
+        final int count;
+        final int[] positions;
+        final double[] times;
+
+        Selection(int first, int count) {
+            this.first = first;
+            this.count = count;
+            this.positions = null;
+            this.times = null;
+        }
+
+        Selection(int[] positions, int count) {
+            this.first = 0;
+            this.count = count;
+            this.positions = positions;
+            this.times = null;
+        }
+
+        Selection(int[] positions, double[] times) {
+            this.first = 0;
+            this.count = positions.length;
+            this.positions = positions;
+            this.times = times;
+        }
+
+        /**
+         * @return the <code>length</code> records from the one at <code>from</code>
+         */
+        Selection slice(int from, int length) {
+            if (positions == null) {
+                return new Selection(first + from, length);
+            }
+            int[] slicedPositions = Arrays.copyOfRange(positions, from, from + length);
+            if (times == null) {
+                return new Selection(slicedPositions, length);
+            }
+            return new Selection(slicedPositions, Arrays.copyOfRange(times, from, from + length));
+        }
+    }
+
+    /**
+     * The records of a station selected by {@link #read}, read a chunk at a time.
+     */
+    class RecordChunks {
+        private final int instance;
+        private final Variable[] variables;
+        private final Selection selection;
+        private final int chunkSize;
+        private int next = 0;
+
+        private RecordChunks(int instance, Variable[] variables, Selection selection, int chunkSize) {
+            this.instance = instance;
+            this.variables = variables;
+            this.selection = selection;
+            this.chunkSize = chunkSize;
+        }
+
+        boolean hasNext() {
+            return next < selection.count;
+        }
+
+        /**
+         * Reads the next chunk of every variable.
+         * @return the time and data values of up to the chunk size records
+         * @throws InterruptedIOException if the thread was interrupted, as the request was cancelled
+         */
+        Records next() throws IOException, InvalidRangeException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("the request was cancelled");
+            }
+            int count = Math.min(chunkSize, selection.count - next);
+            Selection chunk = selection.slice(next, count);
+            next += count;
+            Array time = (chunk.times != null) ? Array.factory(double.class, new int[]{count}, chunk.times)
+                    : readRecords(timeVariable, instance, chunk);
+            Array[] values = new Array[variables.length];
+            for (int i = 0; i < variables.length; i++) {
+                values[i] = readRecords(variables[i], instance, chunk);
+            }
+            return new Records(time, StationRecordReader.this, values, count);
+        }
+    }
+
+    /**
+     * The time and data values of a station's records, each array holding one value per
+     * record in storage order. Values are copied to a block as the primitive type of their
+     * variable, picked once per variable.
+     */
+    static class Records {
+        private static final int OTHER = 0;
+        private static final int FLOAT = 1;
+        private static final int DOUBLE = 2;
+        private static final int LONG = 3;
+
+        private final Array time;
+        private final StationRecordReader reader;
+        private final Array[] values;
+        private final int[] types;
+        private final int size;
+
+        Records(Array time, StationRecordReader reader, Array[] values, int size) {
+            this.time = time;
+            this.reader = reader;
+            this.values = values;
+            this.size = size;
+            this.types = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                DataType dataType = (values[i] != null) ? values[i].getDataType() : null;
+                if (dataType == DataType.FLOAT) {
+                    types[i] = FLOAT;
+                } else if (dataType == DataType.DOUBLE) {
+                    types[i] = DOUBLE;
+                } else if (dataType == DataType.LONG || dataType == DataType.INT || dataType == DataType.SHORT
+                        || dataType == DataType.BYTE) {
+                    types[i] = LONG;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return the time of a record in the units of the time variable
+         */
+        double getTime(int record) {
+            return time.getDouble(record);
+        }
+
+        /**
+         * @return true if a record has no time, like the unused slots of a multidimensional layout
+         */
+        boolean isMissing(int record) {
+            return reader.isMissingTime(time.getDouble(record));
+        }
+
+        /**
+         * Sets the value of a data variable for a record in a column of the block's current
+         * record, the way {@link ObservationBlock#setValue} would set the boxed value.
+         * @param variable index of the data variable, as given to {@link #read}
+         */
+        void copyValue(int variable, int record, ObservationBlock block, int column) {
+            Array array = values[variable];
+            switch (types[variable]) {
+                case FLOAT:
+                    block.setFloat(column, array.getFloat(record));
+                    break;
+                case DOUBLE:
+                    block.setDouble(column, array.getDouble(record));
+                    break;
+                case LONG:
+                    block.setLong(column, array.getLong(record));
+                    break;
+                default:
+                    block.setValue(column, array.getObject(record));
+            }
+        }
+    }
+}
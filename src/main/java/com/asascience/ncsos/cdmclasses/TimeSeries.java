@@ -8,24 +8,33 @@ import com.asascience.ncsos.go.ObservationOffering;
 import com.asascience.ncsos.service.BaseRequestHandler;
 import com.asascience.ncsos.util.DatasetHandlerAdapter;
 
-import org.joda.time.Chronology;
 import org.joda.time.DateTime;
 import org.w3c.dom.Document;
 
+import thredds.servlet.ThreddsConfig;
+import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.ft.PointFeature;
 import ucar.nc2.ft.PointFeatureIterator;
 import ucar.nc2.ft.StationTimeSeriesFeature;
 import ucar.nc2.ft.StationTimeSeriesFeatureCollection;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.nc2.time.CalendarDateUnit;
 import ucar.nc2.units.DateFormatter;
-import ucar.nc2.units.DateRange;
 import ucar.nc2.units.DateUnit;
 import ucar.unidata.geoloc.Station;
+import ucar.unidata.geoloc.StationImpl;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Level;
@@ -42,6 +51,27 @@ public class TimeSeries extends baseCDMClass implements iStationData {
     private List<Station> tsStationList;
     private final ArrayList<String> eventTimes;
     private final String[] variableNames;
+    private StationRecordReader recordReader;
+    private CalendarDateUnit timeUnit;
+    private long eventStart = Long.MIN_VALUE;
+    private long eventEnd = Long.MAX_VALUE;
+    // the event time window in the units of the time variable
+    private double rawStart = Double.NEGATIVE_INFINITY;
+    private double rawEnd = Double.POSITIVE_INFINITY;
+    private boolean requestedFirst;
+    private boolean requestedLast;
+    // the file of a local dataset and its cache key, for the latest observation cache
+    private File localFile;
+    private String datasetKey;
+    // index of each requested station in the collection's station list, when the stations
+    // were taken from the latest observation cache rather than from the collection
+    private int[] collectionIndexes;
+    // time range of each station by its index along the station dimension, when already known
+    private Map<Integer, CalendarDateRange> knownDateRanges;
+    // time range of each requested station, found once in setData
+    private CalendarDateRange[] stationDateRanges;
+    // index along the station dimension by station name
+    private Map<String, Integer> stationInstances;
 
     /**
      * 
@@ -58,113 +88,361 @@ public class TimeSeries extends baseCDMClass implements iStationData {
         if (eventTime != null) {
             this.eventTimes = new ArrayList<String>();
             this.eventTimes.addAll(Arrays.asList(eventTime));
+            // parse the requested window once, not for every observation
+            Date start = df.getISODate(eventTimes.get(0));
+            Date end = df.getISODate(eventTimes.get(eventTimes.size() - 1));
+            if (start != null && end != null) {
+                eventStart = start.getTime();
+                eventEnd = end.getTime();
+            }
         }
         else
             this.eventTimes = null;
     }
 
+    /**
+     * Lets {@link #getDataBlock} read each station's records as whole arrays, when the
+     * layout of the dataset is understood and NCSOS.getObservation.bulkRead is not turned off.
+     * The event time is converted to the units of the time variable here, once, so only the
+     * records inside it are read (NCSOS.getObservation.timeSearch).
+     * @param dataset the dataset of the feature collection
+     * @param stationVariable variable holding the station names or ids
+     * @param timeVariable time coordinate of the observations
+     */
+    public void setRecordVariables(NetcdfDataset dataset, Variable stationVariable, Variable timeVariable) {
+        localFile = DatasetHandlerAdapter.getLocalFile(dataset);
+        datasetKey = DatasetHandlerAdapter.getDatasetKey(dataset);
+        findMissingValues(dataset, variableNames);
+        if (!ThreddsConfig.getBoolean("NCSOS.getObservation.bulkRead", true) || timeVariable == null
+                || timeVariable.getUnitsString() == null) {
+            return;
+        }
+        try {
+            Attribute calendar = timeVariable.findAttributeIgnoreCase("calendar");
+            timeUnit = CalendarDateUnit.of(calendar != null ? calendar.getStringValue() : null,
+                    timeVariable.getUnitsString());
+            recordReader = StationRecordReader.create(dataset, stationVariable, timeVariable);
+            if (recordReader != null && eventTimes != null && eventStart != Long.MIN_VALUE
+                    && ThreddsConfig.getBoolean("NCSOS.getObservation.timeSearch", true)
+                    && isStandardCalendar(calendar)) {
+                // widened by a second, times are matched to the second and checked record by record
+                DateUnit dateUnit = new DateUnit(timeVariable.getUnitsString());
+                rawStart = dateUnit.makeValue(new Date(eventStart - 1000));
+                rawEnd = dateUnit.makeValue(new Date(eventEnd + 1000));
+            }
+        } catch (Exception ex) {
+            _log.warn("TimeSeries - unable to read time units " + timeVariable.getUnitsString() + ": " + ex.getMessage());
+            recordReader = null;
+        }
+    }
+
+    /**
+     * Asks for only the first or the latest record of each station, as a <code>first</code>
+     * or <code>latest</code> event time does, instead of the records at the first or latest
+     * time of the whole dataset. The bulk reader then reads just that record.
+     * @param first true for the first record of each station
+     * @param latest true for the latest record of each station
+     */
+    public void setBoundaryRequest(boolean first, boolean latest) {
+        this.requestedFirst = first && !latest;
+        this.requestedLast = latest && !first;
+    }
+
+    /**
+     * Gives the time range of every station when it is known already, from the capabilities
+     * snapshot or the metadata index of the dataset, so {@link #setData} does not look for it.
+     * @param dateRanges time range by station index along the station dimension, may be null
+     */
+    public void setStationDateRanges(Map<Integer, CalendarDateRange> dateRanges) {
+        this.knownDateRanges = dateRanges;
+    }
+
+    private boolean isBoundaryRequest() {
+        return requestedFirst || requestedLast;
+    }
+
     /*******************TIMSERIES*************************/
-    private String createTimeSeriesData(int stNum) throws IOException {
-        //create the iterator for the feature
-        PointFeatureIterator iterator = tsData.getStationFeature(tsStationList.get(stNum)).getPointFeatureIterator(-1);
+    private ObservationBlock createTimeSeriesData(int stNum) throws IOException {
+        if (!isLatestCached()) {
+            return readTimeSeriesData(stNum);
+        }
+        String station = tsStationList.get(stNum).getName();
+        LatestObservationCache.Observation latest = LatestObservationCache.get(datasetKey, localFile, station,
+                variableNames);
+        if (latest != null) {
+            ObservationBlock block = createBlock();
+            block.setSeparated(latest.separated);
+            if (latest.values != null) {
+                block.addRecord();
+                block.setTime(0, latest.millis);
+                block.setLong(1, stNum);
+                for (int i = 0; i < variableNames.length; i++) {
+                    block.setValue(i + 2, latest.values[i]);
+                }
+            }
+            return block;
+        }
+        long fileSize = localFile.length();
+        long lastModified = localFile.lastModified();
+        ObservationBlock block = readTimeSeriesData(stNum);
+        if (!block.hasError() && block.size() <= 1) {
+            Object[] values = null;
+            long millis = 0;
+            if (block.size() == 1) {
+                millis = block.getTime(0, 0);
+                values = new Object[variableNames.length];
+                for (int i = 0; i < variableNames.length; i++) {
+                    values[i] = block.getValue(0, i + 2);
+                }
+            }
+            LatestObservationCache.put(datasetKey, localFile, fileSize, lastModified, station, variableNames,
+                    new LatestObservationCache.Observation(millis, values, block.isSeparated()));
+        }
+        return block;
+    }
+
+    private boolean isLatestCached() {
+        return requestedLast && datasetKey != null && LatestObservationCache.isEnabled();
+    }
+
+    /**
+     * @return the requested station as found in the feature collection
+     */
+    private Station getCollectionStation(int stNum) throws IOException {
+        if (collectionIndexes != null) {
+            return tsData.getStations().get(collectionIndexes[stNum]);
+        }
+        return tsStationList.get(stNum);
+    }
 
-        //create the string builders and other things needed
-        StringBuilder builder = new StringBuilder();
+    private ObservationBlock readTimeSeriesData(int stNum) throws IOException {
+        StationTimeSeriesFeature stationFeature = tsData.getStationFeature(getCollectionStation(stNum));
+        ObservationBlock block = createBlock();
+        // records are separated only if the station has more than one
+        block.setSeparated(stationFeature.size() > 1);
+        if (recordReader != null) {
+            int instance = getStationInstance(stNum);
+            if (instance >= 0) {
+                boolean added = false;
+                try {
+                    if (isBoundaryRequest()) {
+                        addRecords(recordReader.readBoundary(instance, variableNames, requestedLast,
+                                ThreddsConfig.getBoolean("NCSOS.getObservation.timeSearch", true)), block, stNum);
+                    } else {
+                        // a batch of records per read, so the visitor of the block writes
+                        // each batch before the next one is read
+                        StationRecordReader.RecordChunks chunks = recordReader.read(instance, variableNames,
+                                rawStart, rawEnd, ThreddsConfig.getInt("NCSOS.getObservation.batchSize", 10000));
+                        while (chunks.hasNext()) {
+                            StationRecordReader.Records records = chunks.next();
+                            added = true;
+                            addRecords(records, block, stNum);
+                        }
+                    }
+                    return block;
+                } catch (Exception ex) {
+                    if (block.getVisitorException() != null) {
+                        // batches were written already, the records must not be read again
+                        throw block.getVisitorException();
+                    }
+                    if (ex instanceof InterruptedIOException) {
+                        // the request was cancelled, the features are not read instead
+                        throw (InterruptedIOException) ex;
+                    }
+                    if (added) {
+                        throw new IOException("reading the records of station " + stNum + ": " + ex.getMessage(), ex);
+                    }
+                    _log.debug("TimeSeries - reading the features of station " + stNum + " one at a time: " + ex.toString());
+                    block = createBlock();
+                    block.setSeparated(stationFeature.size() > 1);
+                }
+            }
+        }
+
+        if (isBoundaryRequest()) {
+            addBoundaryFeature(stationFeature, block, stNum);
+            return block;
+        }
+
+        //create the iterator for the feature
+        PointFeatureIterator iterator = stationFeature.getPointFeatureIterator(-1);
         DateFormatter dateFormatter = new DateFormatter();
-        List<String> valueList = new ArrayList<String>();
 
-        while (iterator.hasNext()) {
+        while (iterator.hasNext() && !block.hasError()) {
             PointFeature pointFeature = iterator.next();
 
             //if no event time
             if (eventTimes == null) {
-                createTimeSeriesData(valueList, dateFormatter, pointFeature, builder, stNum);
+                createTimeSeriesData(pointFeature, block, stNum);
                 //count = (stationTimeSeriesFeature.size());
             } //if bounded event time        
             else if (eventTimes.size() > 1) {
-                parseMultiTimeEventTimeSeries(df, chrono, pointFeature, valueList, dateFormatter, builder, stNum);
+                parseMultiTimeEventTimeSeries(pointFeature, block, stNum);
             } //if single event time        
             else {
                 if (eventTimes.get(0).contentEquals(dateFormatter.toDateTimeStringISO(
                 		new Date(pointFeature.getObservationTimeAsCalendarDate().getMillis())))){
-                    createTimeSeriesData(valueList, dateFormatter, pointFeature, builder, stNum);
+                    createTimeSeriesData(pointFeature, block, stNum);
                 }
             }
         }
         iterator.finish();
         //setCount(count);
-        return builder.toString();
+        return block;
     }
 
-
-    private void createTimeSeriesData(List<String> valueList, DateFormatter dateFormatter, 
-    								  PointFeature pointFeature, StringBuilder builder, int stNum) {
-        //count++;
-        valueList.clear();
-        
-        Date valDate = new Date(pointFeature.getObservationTimeAsCalendarDate().getMillis());
-        valueList.add("time=" + dateFormatter.toDateTimeStringISO(valDate));
-        valueList.add(STATION_STR + stNum);
-        try {
-            for (String variableName : variableNames) {
-                valueList.add(variableName + "=" + pointFeature.getData().getScalarObject(variableName).toString());
+    /**
+     * Adds the first or latest record of a station when its records can not be read as
+     * arrays: one pass over the features finds the time, a second stops at its record.
+     */
+    private void addBoundaryFeature(StationTimeSeriesFeature stationFeature, ObservationBlock block, int stNum)
+            throws IOException {
+        long boundary = 0;
+        boolean found = false;
+        PointFeatureIterator iterator = stationFeature.getPointFeatureIterator(-1);
+        while (iterator.hasNext()) {
+            long millis = iterator.next().getObservationTimeAsCalendarDate().getMillis();
+            if (!found || (requestedLast ? millis > boundary : millis < boundary)) {
+                boundary = millis;
+                found = true;
             }
-        } catch (Exception ex) {
-            // couldn't find a data var
-            builder.delete(0, builder.length());
-            builder.append("ERROR =reading data from dataset: ").append(ex.getLocalizedMessage()).append(
-            			". Most likely this property does not exist or is improperly stored in the dataset.");
+        }
+        iterator.finish();
+        if (!found) {
             return;
         }
+        iterator = stationFeature.getPointFeatureIterator(-1);
+        while (iterator.hasNext()) {
+            PointFeature pointFeature = iterator.next();
+            if (pointFeature.getObservationTimeAsCalendarDate().getMillis() == boundary) {
+                createTimeSeriesData(pointFeature, block, stNum);
+                break;
+            }
+        }
+        iterator.finish();
+    }
+
+    /**
+     * @return an empty block with the columns of a time series record
+     */
+    private ObservationBlock createBlock() {
+        ObservationBlock block = newBlock();
+        block.addColumn(ObservationBlock.TIME);
+        block.addColumn(ObservationBlock.STATION);
+        for (String variableName : variableNames) {
+            block.addColumn(variableName);
+        }
+        return block;
+    }
 
-        for (int i = 0; i < valueList.size(); i++) {
-            builder.append(valueList.get(i));
-            if (i < valueList.size() - 1) {
-                builder.append(",");
+    /**
+     * Adds the records read as arrays in the same form as the feature iteration.
+     */
+    private void addRecords(StationRecordReader.Records records, ObservationBlock block, int stNum) {
+        DateFormatter dateFormatter = new DateFormatter();
+        for (int record = 0; record < records.size(); record++) {
+            if (!isSelected(records, record, dateFormatter)) {
+                continue;
+            }
+            block.addRecord();
+            block.setTime(0, timeUnit.makeCalendarDate(records.getTime(record)).getMillis());
+            block.setLong(1, stNum);
+            for (int i = 0; i < variableNames.length; i++) {
+                records.copyValue(i, record, block, i + 2);
             }
         }
+    }
+
+    /**
+     * @return true if a record read as arrays has a time in the requested event time
+     */
+    private boolean isSelected(StationRecordReader.Records records, int record, DateFormatter dateFormatter) {
+        if (records.isMissing(record)) {
+            return false;
+        }
+        // the record of a first or latest request is the station's own, not at the requested time
+        if (eventTimes == null || isBoundaryRequest()) {
+            return true;
+        }
+        long millis = timeUnit.makeCalendarDate(records.getTime(record)).getMillis();
+        if (eventTimes.size() > 1) {
+            return millis >= eventStart && millis <= eventEnd;
+        }
+        return eventTimes.get(0).contentEquals(dateFormatter.toDateTimeStringISO(new Date(millis)));
+    }
+
+    /**
+     * @return the index of a requested station along the station dimension, -1 if not found
+     */
+    private int getStationInstance(int stNum) {
+        if (stationInstances == null) {
+            Map<String, Integer> instances = new HashMap<String, Integer>();
+            List<Station> stations = tsData.getStations();
+            for (int i = stations.size() - 1; i >= 0; i--) {
+                instances.put(stations.get(i).getName(), i);
+            }
+            stationInstances = instances;
+        }
+        Integer instance = stationInstances.get(tsStationList.get(stNum).getName());
+        return instance != null ? instance : -1;
+    }
+
+    /**
+     * Finds the time range of a requested station: the one known already, then the one read
+     * from the time variable alone, and the bounds of the station feature, which iterate
+     * all its records, only if neither is there.
+     * @return the time range, or null if the station has no records
+     */
+    private CalendarDateRange findDateRange(int stNum) throws IOException {
+        int instance = getStationInstance(stNum);
+        if (knownDateRanges != null && instance >= 0 && knownDateRanges.get(instance) != null) {
+            return knownDateRanges.get(instance);
+        }
+        if (recordReader != null && instance >= 0) {
+            try {
+                double[] range = recordReader.readTimeRange(instance);
+                if (range != null) {
+                    return CalendarDateRange.of(timeUnit.makeCalendarDate(range[0]), timeUnit.makeCalendarDate(range[1]));
+                }
+            } catch (Exception ex) {
+                _log.debug("TimeSeries - finding the time range of station " + stNum + " from its features: " + ex.toString());
+            }
+        }
+        StationTimeSeriesFeature stationFeature = tsData.getStationFeature(getCollectionStation(stNum));
+        DatasetHandlerAdapter.calcBounds(stationFeature);
+        return stationFeature.getCalendarDateRange();
+    }
+
+
+    private void createTimeSeriesData(PointFeature pointFeature, ObservationBlock block, int stNum) {
+        //count++;
+        block.addRecord();
+        block.setTime(0, pointFeature.getObservationTimeAsCalendarDate().getMillis());
+        block.setLong(1, stNum);
         try {
-            //builder.append(tokenJoiner.join(valueList));
-            // TODO:  conditional inside loop...
-            if (tsData.getStationFeature(tsStationList.get(stNum)).size() > 1) {
-                builder.append(";");
+            for (int i = 0; i < variableNames.length; i++) {
+                block.setValue(i + 2, pointFeature.getData().getScalarObject(variableNames[i]));
             }
         } catch (Exception ex) {
-            builder = new StringBuilder();
-            builder.append("ERROR=received the following error when reading the data of the dataset: ").append(ex.getLocalizedMessage());
+            // couldn't find a data var
+            block.setError("ERROR =reading data from dataset: " + ex.getLocalizedMessage()
+                    + ". Most likely this property does not exist or is improperly stored in the dataset.");
         }
     }
 
     /**
      * 
-     * @param df
-     * @param chrono
      * @param pointFeature
-     * @param valueList
-     * @param dateFormatter
-     * @param builder
+     * @param block the block the record is added to
      * @param stNum
      * @throws IOException
      */
-    public void parseMultiTimeEventTimeSeries(DateFormatter df, Chronology chrono, PointFeature pointFeature, 
-    										  List<String> valueList, DateFormatter dateFormatter, 
-    										  StringBuilder builder, int stNum) throws IOException {
-        //get start/end date based on iso date format date        
-
-        DateTime dtStart = new DateTime(df.getISODate(eventTimes.get(0)), chrono);
-        DateTime dtEnd = new DateTime(df.getISODate(eventTimes.get(1)), chrono);
-        DateTime tsDt = new DateTime(new Date(pointFeature.getObservationTimeAsCalendarDate().getMillis()));
-     
-        //find out if current time(searchtime) is one or after startTime
-        //same as start
-        if (tsDt.isEqual(dtStart)) {
-            createTimeSeriesData(valueList, dateFormatter, pointFeature, builder, stNum);
-        } //equal end
-        else if (tsDt.isEqual(dtEnd)) {
-            createTimeSeriesData(valueList, dateFormatter, pointFeature, builder, stNum);
-        } //afterStart and before end       
-        else if (tsDt.isAfter(dtStart) && (tsDt.isBefore(dtEnd))) {
-            createTimeSeriesData(valueList, dateFormatter, pointFeature, builder, stNum);
+    public void parseMultiTimeEventTimeSeries(PointFeature pointFeature, ObservationBlock block, int stNum) throws IOException {
+        long millis = pointFeature.getObservationTimeAsCalendarDate().getMillis();
+
+        //on or after the start and on or before the end
+        if (millis >= eventStart && millis <= eventEnd) {
+            createTimeSeriesData(pointFeature, block, stNum);
         }
     }
 
@@ -178,90 +456,179 @@ public class TimeSeries extends baseCDMClass implements iStationData {
         lowerAlt = tsStationList.get(0).getAltitude();
     }
 
+    /**
+     * Finds the requested stations and their bounds. For a <code>latest</code> request the
+     * stations are taken from the latest observation cache when an earlier request for the
+     * same stations found them, so neither they nor their time ranges are looked up again.
+     */
     @Override
     public void setData(Object featureCollection) throws IOException {
         try {
             this.tsData = (StationTimeSeriesFeatureCollection) featureCollection;
-            String genericName = this.tsData.getCollectionFeatureType().name()+"-";
-            // Try to get stations by name, both with URN procedure and without
-            tsStationList = tsData.getStations(reqStationNames);
-            
-            
-            // based on files with cf_role 
-            for (String s : reqStationNames) {
-                String[] urns = s.split(":");
-                String statUrn = urns[urns.length - 1];
-                Station st = tsData.getStation(statUrn);
-                if (st != null) {
-                    tsStationList.add(st);
+            LatestObservationCache.StationSetup setup = isLatestCached()
+                    ? LatestObservationCache.getSetup(datasetKey, localFile, reqStationNames) : null;
+            if (setup != null) {
+                tsStationList = new ArrayList<Station>(setup.stations);
+                collectionIndexes = setup.collectionIndexes;
+                stationDateRanges = setup.dateRanges.clone();
+            } else {
+                long fileSize = localFile != null ? localFile.length() : 0;
+                long lastModified = localFile != null ? localFile.lastModified() : 0;
+                findStations();
+                stationDateRanges = new CalendarDateRange[tsStationList.size()];
+                for (int i = 0; i < tsStationList.size(); i++) {
+                    stationDateRanges[i] = findDateRange(i);
                 }
-                else if (statUrn.startsWith(genericName)){
-                	// check to see if generic name (ie: STATION-0)
-                	try {
-                		Integer sIndex = Integer.valueOf(statUrn.substring(genericName.length()));
-                		st = tsData.getStations().get(sIndex);
-                		if(st != null){
-                			tsStationList.add(st);
-                		}
-                	}
-                	catch(Exception n){
-                		n.printStackTrace();
-                	}
+                LatestObservationCache.StationSetup detached = isLatestCached() ? detachStations() : null;
+                if (detached != null) {
+                    LatestObservationCache.putSetup(datasetKey, localFile, fileSize, lastModified, reqStationNames,
+                            detached);
                 }
             }
-
             setNumberOfStations(tsStationList.size());
+            setBounds();
+        } catch (Exception ex) {
+            _log.error("TimeSeries - setData; exception:\n" + ex.toString());
+            throw new IOException(ex.toString());
+        }
+    }
 
-            if (tsStationList.size() > 0) {
-                DateTime dtStart = null;
-                DateTime dtEnd = null;
-                DateTime dtStartt = null;
-                DateTime dtEndt = null;
-                DateRange dateRange = null;
-                for (int i = 0; i < tsStationList.size(); i++) {
-                    //set it on the first one
-                    //calc bounds in loop
-                    DatasetHandlerAdapter.calcBounds(tsData.getStationFeature(tsStationList.get(i)));
-                    if (i == 0) {
-                        setInitialLatLonBoundaries(tsStationList);
-
-                        dateRange = tsData.getStationFeature(tsStationList.get(0)).getDateRange();
-                        dtStart = new DateTime(dateRange.getStart().getDate(), chrono);
-                        dtEnd = new DateTime(dateRange.getEnd().getDate(), chrono);
-                    } else {
-                        dateRange = tsData.getStationFeature(tsStationList.get(i)).getDateRange();
-                        dtStartt = new DateTime(dateRange.getStart().getDate(), chrono);
-                        dtEndt = new DateTime(dateRange.getEnd().getDate(), chrono);
-                        if (dtStartt.isBefore(dtStart)) {
-                            dtStart = dtStartt;
-                        }
-                        if (dtEndt.isAfter(dtEnd)) {
-                            dtEnd = dtEndt;
-                        }
-                        checkLatLonAltBoundaries(tsStationList, i);
-                    }
+    /**
+     * Copies the requested stations out of the feature collection, which belongs to the
+     * dataset handle of this request, for the latest observation cache.
+     */
+    private LatestObservationCache.StationSetup detachStations() throws IOException {
+        Map<Station, Integer> indexes = new IdentityHashMap<Station, Integer>();
+        List<Station> collectionStations = tsData.getStations();
+        for (int i = 0; i < collectionStations.size(); i++) {
+            indexes.put(collectionStations.get(i), i);
+        }
+        List<Station> stations = new ArrayList<Station>(tsStationList.size());
+        int[] positions = new int[tsStationList.size()];
+        for (int i = 0; i < tsStationList.size(); i++) {
+            Station station = tsStationList.get(i);
+            Integer index = indexes.get(station);
+            if (index == null) {
+                // not one of the collection's stations, can not be found again
+                return null;
+            }
+            positions[i] = index;
+            stations.add(new StationImpl(station.getName(), station.getDescription(), station.getWmoId(),
+                    station.getLatitude(), station.getLongitude(), station.getAltitude()));
+        }
+        return new LatestObservationCache.StationSetup(Collections.unmodifiableList(stations), positions,
+                stationDateRanges.clone());
+    }
+
+    private void findStations() throws IOException {
+        String genericName = this.tsData.getCollectionFeatureType().name()+"-";
+        // Try to get stations by name, both with URN procedure and without
+        tsStationList = tsData.getStations(reqStationNames);
+        
+        
+        // based on files with cf_role 
+        for (String s : reqStationNames) {
+            String[] urns = s.split(":");
+            String statUrn = urns[urns.length - 1];
+            Station st = tsData.getStation(statUrn);
+            if (st != null) {
+                tsStationList.add(st);
+            }
+            else if (statUrn.startsWith(genericName)){
+            	// check to see if generic name (ie: STATION-0)
+            	try {
+            		Integer sIndex = Integer.valueOf(statUrn.substring(genericName.length()));
+            		st = tsData.getStations().get(sIndex);
+            		if(st != null){
+            			tsStationList.add(st);
+            		}
+            	}
+            	catch(Exception n){
+            		n.printStackTrace();
+            	}
+            }
+        }
+    }
+
+    /**
+     * Sets the bounding box and time range of the requested stations from the stations
+     * and their time ranges.
+     */
+    private void setBounds() {
+        if (tsStationList.size() > 0) {
+            DateTime dtStart = null;
+            DateTime dtEnd = null;
+            DateTime dtStartt = null;
+            DateTime dtEndt = null;
+            for (int i = 0; i < tsStationList.size(); i++) {
+                //set it on the first one
+                if (i == 0) {
+                    setInitialLatLonBoundaries(tsStationList);
+                } else {
+                    checkLatLonAltBoundaries(tsStationList, i);
+                }
+                CalendarDateRange dateRange = stationDateRanges[i];
+                if (dateRange == null) {
+                    continue;
+                }
+                dtStartt = new DateTime(dateRange.getStart().toDate(), chrono);
+                dtEndt = new DateTime(dateRange.getEnd().toDate(), chrono);
+                if (dtStart == null || dtStartt.isBefore(dtStart)) {
+                    dtStart = dtStartt;
                 }
+                if (dtEnd == null || dtEndt.isAfter(dtEnd)) {
+                    dtEnd = dtEndt;
+                }
+            }
+            if (dtStart != null) {
                 setStartDate(df.toDateTimeStringISO(dtStart.toDate()));
                 setEndDate(df.toDateTimeStringISO(dtEnd.toDate()));
             }
-            
-        } catch (Exception ex) {
-            _log.error("TimeSeries - setData; exception:\n" + ex.toString());
-            throw new IOException(ex.toString());
         }
     }
 
     @Override
-    public String getDataResponse(int stNum) {
+    public ObservationBlock getDataBlock(int stNum) {
         try {
             if (tsData != null) {
-                return createTimeSeriesData(stNum);
+                return finishBlock(createTimeSeriesData(stNum));
             }
         } catch (IOException ex) {
             Logger.getLogger(TimeSeries.class.getName()).log(Level.SEVERE, null, ex);
-            return DATA_RESPONSE_ERROR + TimeSeries.class;
+            return errorBlock(DATA_RESPONSE_ERROR + TimeSeries.class);
         }
-        return DATA_RESPONSE_ERROR + TimeSeries.class;
+        return errorBlock(DATA_RESPONSE_ERROR + TimeSeries.class);
+    }
+
+    /**
+     * Counts the records of a station from its times alone when they can be read as arrays,
+     * the data variables are only read by {@link #readData}.
+     */
+    @Override
+    public int countData(int stNum) throws IOException {
+        int instance = (recordReader != null && !isResampling() && !isBoundaryRequest()) ? getStationInstance(stNum) : -1;
+        if (instance >= 0) {
+            try {
+                StationRecordReader.RecordChunks chunks = recordReader.read(instance, new String[0],
+                        rawStart, rawEnd, ThreddsConfig.getInt("NCSOS.getObservation.batchSize", 10000));
+                DateFormatter dateFormatter = new DateFormatter();
+                int count = 0;
+                while (chunks.hasNext()) {
+                    StationRecordReader.Records records = chunks.next();
+                    for (int record = 0; record < records.size(); record++) {
+                        if (isSelected(records, record, dateFormatter)) {
+                            count++;
+                        }
+                    }
+                }
+                return count;
+            } catch (InterruptedIOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                _log.debug("TimeSeries - counting the records of station " + stNum + " by reading them: " + ex.toString());
+            }
+        }
+        return super.countData(stNum);
     }
 
     @Override
@@ -340,30 +707,20 @@ public class TimeSeries extends baseCDMClass implements iStationData {
 
     @Override
     public String getTimeEnd(int stNum) {
-        try {
-            if (tsData != null) {
-                DatasetHandlerAdapter.calcBounds(tsData.getStationFeature(tsStationList.get(stNum)));
-                DateRange dateRange = tsData.getStationFeature(tsStationList.get(stNum)).getDateRange();
-                DateTime dtEnd = new DateTime(dateRange.getEnd().getDate(), chrono);
-                return (df.toDateTimeStringISO(dtEnd.toDate()));
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(TimeSeries.class.getName()).log(Level.SEVERE, null, ex);
+        if (tsData != null && stationDateRanges != null && stNum < stationDateRanges.length
+                && stationDateRanges[stNum] != null) {
+            DateTime dtEnd = new DateTime(stationDateRanges[stNum].getEnd().toDate(), chrono);
+            return (df.toDateTimeStringISO(dtEnd.toDate()));
         }
         return ERROR_NULL_DATE;
     }
 
     @Override
     public String getTimeBegin(int stNum) {
-        try {
-            if (tsData != null) {
-                DatasetHandlerAdapter.calcBounds(tsData.getStationFeature(tsStationList.get(stNum)));
-                DateRange dateRange = tsData.getStationFeature(tsStationList.get(stNum)).getDateRange();
-                DateTime dtStart = new DateTime(dateRange.getStart().getDate(), chrono);
-                return (df.toDateTimeStringISO(dtStart.toDate()));
-            }
-        } catch (IOException ex) {
-            Logger.getLogger(TimeSeries.class.getName()).log(Level.SEVERE, null, ex);
+        if (tsData != null && stationDateRanges != null && stNum < stationDateRanges.length
+                && stationDateRanges[stNum] != null) {
+            DateTime dtStart = new DateTime(stationDateRanges[stNum].getStart().toDate(), chrono);
+            return (df.toDateTimeStringISO(dtStart.toDate()));
         }
         return ERROR_NULL_DATE;
     }
@@ -10,11 +10,14 @@ import com.asascience.ncsos.service.BaseRequestHandler;
 import org.joda.time.DateTime;
 import org.w3c.dom.Document;
 
+import ucar.ma2.DataType;
+import ucar.nc2.Dimension;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.CoordinateAxis;
+import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.ft.*;
 import ucar.nc2.time.CalendarDateFormatter;
-import ucar.nc2.units.DateFormatter;
+import ucar.nc2.units.DateUnit;
 import ucar.unidata.geoloc.Station;
 
 import java.io.IOException;
@@ -46,6 +49,10 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
     private boolean requestedLast;
     private boolean multDimTimVar;
     CoordinateAxis heightAxis;
+    private StationRecordIndex profileIndex;
+    // the event time window in the units of the time variable
+    private double rawStart = Double.NEGATIVE_INFINITY;
+    private double rawEnd = Double.POSITIVE_INFINITY;
     /**
      * 
      * @param stationName
@@ -75,13 +82,82 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
         upperAlt = Double.NEGATIVE_INFINITY;
     }
 
+    /**
+     * Uses the {@link StationRecordIndex} of the profiles of an indexed ragged file to skip
+     * stations without a profile in the requested event time, without iterating their profiles.
+     * @param dataset the dataset of the feature collection
+     * @param stationVariable variable holding the station names or ids
+     * @param timeVariable time coordinate of the profiles
+     */
+    public void setRecordVariables(NetcdfDataset dataset, Variable stationVariable, Variable timeVariable) {
+        findMissingValues(dataset, variableNames);
+        if (eventTimes == null || requestedFirst || requestedLast || stationVariable == null
+                || timeVariable == null || timeVariable.getRank() != 1 || timeVariable.getUnitsString() == null
+                || !StationRecordIndex.isEnabled()) {
+            return;
+        }
+        if (!isStandardCalendar(timeVariable.findAttributeIgnoreCase("calendar"))) {
+            return;
+        }
+        int stringRank = (stationVariable.getDataType() == DataType.CHAR) ? 1 : 0;
+        if (stationVariable.getRank() <= stringRank) {
+            return;
+        }
+        Dimension instanceDimension = stationVariable.getDimension(0);
+        Variable stationIndex = StationRecordReader.findRaggedVariable(dataset, StationRecordReader.INSTANCE_DIMENSION,
+                instanceDimension, timeVariable.getDimension(0));
+        Date start = df.getISODate(eventTimes.get(0));
+        Date end = df.getISODate(eventTimes.get(eventTimes.size() - 1));
+        if (stationIndex == null || start == null || end == null) {
+            return;
+        }
+        try {
+            // widened by a second, profiles are matched to the second
+            DateUnit dateUnit = new DateUnit(timeVariable.getUnitsString());
+            rawStart = dateUnit.makeValue(new Date(start.getTime() - 1000));
+            rawEnd = dateUnit.makeValue(new Date(end.getTime() + 1000));
+            profileIndex = StationRecordIndex.find(dataset, stationIndex, timeVariable, instanceDimension.getLength());
+        } catch (Exception ex) {
+            _log.warn("TimeSeriesProfile - unable to index the profiles: " + ex.toString());
+            profileIndex = null;
+        }
+    }
+
+    /**
+     * @return false if the record index shows the station has no profile in the event time
+     */
+    private boolean mayHaveProfilesInWindow(int stNum) {
+        if (profileIndex == null) {
+            return true;
+        }
+        String name = tsStationList.get(stNum).getName();
+        List<Station> stations = tsProfileData.getStations();
+        for (int i = 0; i < stations.size(); i++) {
+            if (stations.get(i).getName().equals(name)) {
+                double[] times = profileIndex.getTimes(i);
+                int from = Arrays.binarySearch(times, rawStart);
+                from = from < 0 ? -from - 1 : from;
+                return from < times.length && times[from] <= rawEnd;
+            }
+        }
+        return true;
+    }
+
     /****************TIMESERIESPROFILE*******************/
-    private String createStationProfileFeature(int stNum) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        DateFormatter dateFormatter = new DateFormatter();
-        List<String> valueList = new ArrayList<String>();
+    private ObservationBlock createStationProfileFeature(int stNum) throws IOException {
+        ObservationBlock block = newBlock();
+        block.addColumn(ObservationBlock.TIME);
+        block.addColumn(ObservationBlock.STATION);
+        block.addColumn(ObservationBlock.BIN);
+        for (String variableName : variableNames) {
+            block.addColumn(variableName);
+        }
+        if (eventTimes != null && !mayHaveProfilesInWindow(stNum)) {
+            return block;
+        }
 
         StationProfileFeature stationProfileFeature = tsProfileData.getStationProfileFeature(tsStationList.get(stNum));
+        block.setSeparated(stationProfileFeature.size() > 1);
         List<Date> z = stationProfileFeature.getTimes();
 
         ProfileFeature pf = null;
@@ -97,8 +173,8 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
                 pf = stationProfileFeature.next();
                 System.out.println(pf.getTime().toGMTString());
                 if(this.multDimTimVar || !processedDates.contains(pf.getTime()) ){
-                    createStationProfileData(pf, valueList, dateFormatter, builder, stNum);
-                    if (builder.toString().contains("ERROR"))
+                    createStationProfileData(pf, block, stNum);
+                    if (block.hasError())
                         break;
                     processedDates.add(pf.getTime());
                 }
@@ -140,15 +216,15 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
                         //find out if current time(searchtime) is one or after startTime
                         //same as start
                         if (tsDt.isEqual(dtStart)) {
-                            createStationProfileData(pf, valueList, dateFormatter, builder, stNum);
+                            createStationProfileData(pf, block, stNum);
                         } //equal end
                         else if (tsDt.isEqual(dtEnd)) {
-                            createStationProfileData(pf, valueList, dateFormatter, builder, stNum);
+                            createStationProfileData(pf, block, stNum);
                         } //afterStart and before end       
                         else if (tsDt.isAfter(dtStart) && (tsDt.isBefore(dtEnd))) {
-                            createStationProfileData(pf, valueList, dateFormatter, builder, stNum);
+                            createStationProfileData(pf, block, stNum);
                         }
-                        if (builder.toString().contains("ERROR"))
+                        if (block.hasError())
                             break;
                         processedDates.add(z.get(i));
                     }
@@ -160,14 +236,14 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
 
                 if (df.toDateTimeStringISO(z.get(i)).contentEquals(eventTimes.get(0).toString())) {
                     pf = stationProfileFeature.getProfileByDate(z.get(i));
-                    createStationProfileData(pf, valueList, dateFormatter, builder, stNum);
+                    createStationProfileData(pf, block, stNum);
                 }
                 
-                if (builder.toString().contains("ERROR"))
+                if (block.hasError())
                     break;
             }
         }
-        return builder.toString();
+        return block;
     }
 
 
@@ -212,18 +288,16 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
     }
     
     
-    private void createStationProfileData(ProfileFeature pf, List<String> valueList, 
-                                           DateFormatter dateFormatter, StringBuilder builder, int stNum) {
+    private void createStationProfileData(ProfileFeature pf, ObservationBlock block, int stNum) {
 
         try {
             PointFeatureIterator it = pf.getPointFeatureIterator(-1);
             List<Double> binAlts = this.getProfileHeightsForStation(tsStationList.get(stNum).getName());
             while (it.hasNext()) {
                 PointFeature pointFeature = it.next();
-                valueList.clear();
-                valueList.add(TIME_STR + dateFormatter.toDateTimeStringISO(
-                		new Date(pointFeature.getObservationTimeAsCalendarDate().getMillis())));
-                valueList.add(STATION_STR + stNum);
+                block.addRecord();
+                block.setTime(0, pointFeature.getObservationTimeAsCalendarDate().getMillis());
+                block.setLong(1, stNum);
                 Object heightOb = null;
                 if(this.heightAxis != null)
                     heightOb = pointFeature.getData().getScalarObject(this.heightAxis.getShortName());
@@ -235,31 +309,15 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
                     alt = pointFeature.getLocation().getAltitude();
                 
                 if(binAlts != null && binAlts.contains(alt)){
-                    valueList.add(BIN_STR + binAlts.indexOf(alt));
-                }
-                for (String variableName : variableNames) {
-                    valueList.add(variableName + "=" + pointFeature.getData().getScalarObject(variableName).toString());
-                }
-
-                for (int i = 0; i < valueList.size(); i++) {
-                    builder.append(valueList.get(i));
-                    if (i < valueList.size() - 1) {
-                        builder.append(",");
-                    }
+                    block.setLong(2, binAlts.indexOf(alt));
                 }
-
-                //builder.append(tokenJoiner.join(valueList));
-                // TODO:  conditional inside loop...
-                if (tsProfileData.getStationProfileFeature(tsStationList.get(stNum)).size() > 1) {
-    //                builder.append(" ");
-    //                builder.append("\n");
-                    builder.append(";");
+                for (int i = 0; i < variableNames.length; i++) {
+                    block.setValue(i + 3, pointFeature.getData().getScalarObject(variableNames[i]));
                 }
             }
         } catch (Exception ex ) {
             // print error
-            builder.delete(0, builder.length());
-            builder.append("ERROR =reading data from dataset: ").append(ex.getLocalizedMessage()).append(". Most likely this property does not exist or is improperly stored in the dataset.");
+            block.setError("ERROR =reading data from dataset: " + ex.getLocalizedMessage() + ". Most likely this property does not exist or is improperly stored in the dataset.");
         }
     }
 
@@ -393,16 +451,16 @@ public class TimeSeriesProfile extends baseCDMClass implements iStationData {
     }
 
     @Override
-    public String getDataResponse(int stNum) {
+    public ObservationBlock getDataBlock(int stNum) {
         try {
             if (tsProfileData != null) {
-                return createStationProfileFeature(stNum);
+                return finishBlock(createStationProfileFeature(stNum));
             }
         } catch (IOException ex) {
             Logger.getLogger(TimeSeriesProfile.class.getName()).log(Level.SEVERE, null, ex);
-            return DATA_RESPONSE_ERROR + TimeSeries.class;
+            return errorBlock(DATA_RESPONSE_ERROR + TimeSeries.class);
         }
-        return DATA_RESPONSE_ERROR + TimeSeries.class;
+        return errorBlock(DATA_RESPONSE_ERROR + TimeSeries.class);
     }
 
     @Override
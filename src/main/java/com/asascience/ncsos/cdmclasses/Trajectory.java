@@ -7,7 +7,6 @@ import org.joda.time.DateTime;
 import org.w3c.dom.Document;
 
 import ucar.nc2.ft.*;
-import ucar.nc2.units.DateFormatter;
 import ucar.unidata.geoloc.Station;
 
 import java.io.IOException;
@@ -55,32 +54,24 @@ public class Trajectory extends baseCDMClass implements iStationData {
         lowerAlt = Double.POSITIVE_INFINITY;
     }
 
-    private void addAllTrajectoryData(PointFeatureIterator trajFeatureIterator, List<String> valueList, DateFormatter dateFormatter, StringBuilder builder) throws IOException {
-        while (trajFeatureIterator.hasNext()) {
+    private void addAllTrajectoryData(PointFeatureIterator trajFeatureIterator, ObservationBlock block) throws IOException {
+        while (trajFeatureIterator.hasNext() && !block.hasError()) {
             PointFeature trajFeature = trajFeatureIterator.next();
-            valueList.clear();
-            addDataLine(valueList, dateFormatter, trajFeature, builder);
+            addDataLine(trajFeature, block);
         }
     }
 
-    private void addDataLine(List<String> valueList, DateFormatter dateFormatter, PointFeature trajFeature, StringBuilder builder) {
-        valueList.add("time=" + dateFormatter.toDateTimeStringISO(
-        		new Date(trajFeature.getObservationTimeAsCalendarDate().getMillis())));
+    private void addDataLine(PointFeature trajFeature, ObservationBlock block) {
+        block.addRecord();
+        block.setTime(0, trajFeature.getObservationTimeAsCalendarDate().getMillis());
 
         try {
             for (int i = 0; i < variableNames.length; i++) {
-                valueList.add(variableNames[i] + "=" + trajFeature.getData().getScalarObject(variableNames[i]).toString());
+                block.setValue(i + 1, trajFeature.getData().getScalarObject(variableNames[i]));
             }
-
-            for (String str : valueList) {
-                builder.append(str).append(",");
-            }
-            if(builder.length() > 0)
-                builder.deleteCharAt(builder.length() - 1).append(";");
         } catch (Exception ex) {
             // print error
-            builder.delete(0, builder.length());
-            builder.append("ERROR =reading data from dataset: ").append(ex.getLocalizedMessage()).append(". Most likely this property does not exist or is improperly stored in the dataset.");
+            block.setError("ERROR =reading data from dataset: " + ex.getLocalizedMessage() + ". Most likely this property does not exist or is improperly stored in the dataset.");
         }
     }
 
@@ -213,16 +204,16 @@ public class Trajectory extends baseCDMClass implements iStationData {
     }
 
     @Override
-    public String getDataResponse(int stNum) {
+    public ObservationBlock getDataBlock(int stNum) {
         try {
             if (trajectoryData != null) {
                 return createTrajectoryFeature(stNum);
             }
         } catch (IOException ex) {
             Logger.getLogger(Trajectory.class.getName()).log(Level.SEVERE, null, ex);
-            return DATA_RESPONSE_ERROR + Profile.class;
+            return errorBlock(DATA_RESPONSE_ERROR + Profile.class);
         }
-        return DATA_RESPONSE_ERROR + Profile.class;
+        return errorBlock(DATA_RESPONSE_ERROR + Profile.class);
     }
 
     @Override
@@ -317,17 +308,19 @@ public class Trajectory extends baseCDMClass implements iStationData {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
-    private String createTrajectoryFeature(int stNum) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        DateFormatter dateFormatter = new DateFormatter();
+    private ObservationBlock createTrajectoryFeature(int stNum) throws IOException {
+        ObservationBlock block = newBlock();
+        block.addColumn(ObservationBlock.TIME);
+        for (String variableName : variableNames) {
+            block.addColumn(variableName);
+        }
         TrajectoryFeature trajFeature = trajList.get(stNum);
-        addTrajectoryData(dateFormatter, builder, trajFeature, stNum);
-        return builder.toString();
+        addTrajectoryData(block, trajFeature, stNum);
+        return block;
     }
 
-    private void addTrajectoryData(DateFormatter dateFormatter, StringBuilder builder, TrajectoryFeature traj, int stNum) throws IOException {
+    private void addTrajectoryData(ObservationBlock block, TrajectoryFeature traj, int stNum) throws IOException {
 
-        List<String> valueList = new ArrayList<String>();
         PointFeatureIterator trajFeatureIterator = traj.getPointFeatureIterator(-1);
 
         DateTime trajTime;
@@ -336,7 +329,7 @@ public class Trajectory extends baseCDMClass implements iStationData {
 
         //if no times are specified
         if (eventTimes == null) {
-            addAllTrajectoryData(trajFeatureIterator, valueList, dateFormatter, builder);
+            addAllTrajectoryData(trajFeatureIterator, block);
         } //if more than one date is specified
         else if (eventTimes.size() > 1) {
             //get the dates in iso format
@@ -345,16 +338,15 @@ public class Trajectory extends baseCDMClass implements iStationData {
 
             while (trajFeatureIterator.hasNext()) {
                 PointFeature trajFeature = trajFeatureIterator.next();
-                valueList.clear();
 
                 trajTime = new DateTime(new Date(trajFeature.getObservationTimeAsCalendarDate().getMillis()));
 
                 if (trajTime.isEqual(dtStart)) {
-                    addDataLine(valueList, dateFormatter, trajFeature, builder);
+                    addDataLine(trajFeature, block);
                 } else if (trajTime.isEqual(dtEnd)) {
-                    addDataLine(valueList, dateFormatter, trajFeature, builder);
+                    addDataLine(trajFeature, block);
                 } else if (trajTime.isAfter(dtStart) && (trajTime.isBefore(dtEnd))) {
-                    addDataLine(valueList, dateFormatter, trajFeature, builder);
+                    addDataLine(trajFeature, block);
                 }
 
             }
@@ -364,18 +356,17 @@ public class Trajectory extends baseCDMClass implements iStationData {
             dtStart = new DateTime(df.getISODate(eventTimes.get(0)), chrono);
             while (trajFeatureIterator.hasNext()) {
                 PointFeature trajFeature = trajFeatureIterator.next();
-                valueList.clear();
                 trajTime = new DateTime(new Date(trajFeature.getObservationTimeAsCalendarDate().getMillis()));
 
                 if (trajTime.isEqual(dtStart)) {
-                    addDataLine(valueList, dateFormatter, trajFeature, builder);
+                    addDataLine(trajFeature, block);
                     //if it matches return...
                     break;
                 }
             }
         } //times specified are weird, report all
         else {
-            addAllTrajectoryData(trajFeatureIterator, valueList, dateFormatter, builder);
+            addAllTrajectoryData(trajFeatureIterator, block);
         }
     }
 
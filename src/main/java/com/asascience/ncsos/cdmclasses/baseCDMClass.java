@@ -7,12 +7,20 @@ package com.asascience.ncsos.cdmclasses;
 import org.joda.time.Chronology;
 import org.joda.time.chrono.ISOChronology;
 
+import thredds.servlet.ThreddsConfig;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.EnhanceScaleMissing;
+import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.units.DateFormatter;
 import ucar.nc2.units.DateUnit;
 import ucar.unidata.geoloc.Station;
 
+import java.io.IOException;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author abird
@@ -37,6 +45,16 @@ public abstract class baseCDMClass implements iStationData {
     protected DateFormatter df = new DateFormatter();
     
     protected static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(baseCDMClass.class);
+
+    // set while readData runs, the blocks made meanwhile hand their batches to it
+    private ObservationVisitor visitor;
+    private ObservationBlock visitedBlock;
+    // set by setResampling, the records of the blocks made by newBlock() are folded per interval
+    private long resampleInterval;
+    private IntervalResampler.Method resampleMethod;
+    private IntervalResampler resampler;
+    // the fill, missing and valid range values of the data variables, marked as fill in the blocks
+    private final Map<String, EnhanceScaleMissing> missingValues = new HashMap<String, EnhanceScaleMissing>();
     
     
     @Override
@@ -72,6 +90,156 @@ public abstract class baseCDMClass implements iStationData {
     }
     
     
+    /**
+     * @return true if times of the calendar convert to dates like udunits does
+     */
+    protected static boolean isStandardCalendar(Attribute calendar) {
+        if (calendar == null || calendar.getStringValue() == null) {
+            return true;
+        }
+        String name = calendar.getStringValue().toLowerCase();
+        return name.equals("standard") || name.equals("gregorian") || name.equals("proleptic_gregorian");
+    }
+
+    /**
+     * @return the observations of a station as key=value text, see {@link ObservationBlock#toDataResponse()}
+     */
+    @Override
+    public String getDataResponse(int stNum) {
+        return getDataBlock(stNum).toDataResponse();
+    }
+
+    /**
+     * Reads the observations through {@link #getDataBlock}, with the blocks made by
+     * {@link #newBlock()} handing every NCSOS.getObservation.batchSize records to the visitor.
+     */
+    @Override
+    public void readData(int stNum, ObservationVisitor visitor) throws IOException {
+        this.visitor = visitor;
+        this.visitedBlock = null;
+        ObservationBlock block;
+        try {
+            block = getDataBlock(stNum);
+        } catch (RuntimeException ex) {
+            if (visitedBlock == null || visitedBlock.getVisitorException() == null) {
+                throw ex;
+            }
+            block = visitedBlock;
+        } finally {
+            this.visitor = null;
+        }
+        if (visitedBlock != null && visitedBlock.getVisitorException() != null) {
+            throw visitedBlock.getVisitorException();
+        }
+        visitor.visit(block);
+    }
+
+    /**
+     * Counts the records by reading them through {@link #readData}, a batch at a time;
+     * implementations override this where the records can be counted without their values.
+     */
+    @Override
+    public int countData(int stNum) throws IOException {
+        final int[] count = new int[1];
+        final String[] error = new String[1];
+        readData(stNum, new ObservationVisitor() {
+            public void visit(ObservationBlock batch) {
+                count[0] += batch.size();
+                if (batch.hasError()) {
+                    error[0] = batch.getError();
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw new IOException(error[0]);
+        }
+        return count[0];
+    }
+
+    /**
+     * @return an empty block, handing its batches to the visitor of {@link #readData} if one is running
+     */
+    protected ObservationBlock newBlock() {
+        ObservationBlock block = new ObservationBlock();
+        block.setMissingValues(missingValues);
+        int batchSize = ThreddsConfig.getInt("NCSOS.getObservation.batchSize", 10000);
+        if (resampleMethod != null) {
+            // the records are folded a batch at a time, the folded ones go to the visitor
+            ObservationBlock folded = new ObservationBlock();
+            if (visitor != null) {
+                folded.setVisitor(visitor, batchSize);
+                visitedBlock = folded;
+            }
+            resampler = new IntervalResampler(resampleInterval, resampleMethod, folded);
+            block.setVisitor(resampler, batchSize);
+        } else if (visitor != null) {
+            block.setVisitor(visitor, batchSize);
+            visitedBlock = block;
+        }
+        return block;
+    }
+
+    /**
+     * Hands out a block made by {@link #newBlock()} once its records are read.
+     * @return the block, or the records folded from it when resampling
+     */
+    protected ObservationBlock finishBlock(ObservationBlock block) {
+        if (resampler == null) {
+            return block;
+        }
+        IntervalResampler folding = resampler;
+        resampler = null;
+        return folding.finish(block);
+    }
+
+    /**
+     * Folds the observations of each station into one record per interval, see
+     * {@link IntervalResampler}; only implementations that hand their blocks out through
+     * {@link #finishBlock} can be resampled.
+     * @param intervalMillis length of an interval in milliseconds
+     * @param method what a folded record holds for each variable, null to stop resampling
+     */
+    public void setResampling(long intervalMillis, IntervalResampler.Method method) {
+        this.resampleInterval = intervalMillis;
+        this.resampleMethod = method;
+    }
+
+    /**
+     * @return true if the records are folded per interval, so they can only be counted once folded
+     */
+    protected boolean isResampling() {
+        return resampleMethod != null;
+    }
+
+    /**
+     * Finds the fill, missing and valid range values of the data variables, so the blocks
+     * mark them as fill values and resampling leaves them out, whatever type the values
+     * are read as.
+     * @param dataset the dataset of the feature collection
+     * @param variableNames data variables of the request
+     */
+    protected void findMissingValues(NetcdfDataset dataset, String[] variableNames) {
+        missingValues.clear();
+        if (dataset == null || variableNames == null) {
+            return;
+        }
+        for (String variableName : variableNames) {
+            Variable variable = dataset.findVariable(variableName);
+            if (variable instanceof EnhanceScaleMissing && ((EnhanceScaleMissing) variable).hasMissing()) {
+                missingValues.put(variableName, (EnhanceScaleMissing) variable);
+            }
+        }
+    }
+
+    /**
+     * @return a block holding no records but the error of a failed read
+     */
+    protected static ObservationBlock errorBlock(String error) {
+        ObservationBlock block = new ObservationBlock();
+        block.setError(error);
+        return block;
+    }
+
     @Override
     public List<String> getStationNames() {
         return reqStationNames;
@@ -124,6 +124,31 @@ public interface iStationData {
      * @return String that contains a formatted response of values for Get Observation response
      */
     public String getDataResponse(int stNum);
+
+    /**
+     * reads the observations of a station for the Get Observation response
+     * @param stNum station index of the set of queried stations
+     * @return the observations as typed columns, with the error of a failed read
+     */
+    public ObservationBlock getDataBlock(int stNum);
+
+    /**
+     * reads the observations of a station in batches, handing each to the visitor as soon
+     * as it is read so only one batch is held in memory
+     * @param stNum station index of the set of queried stations
+     * @param visitor receives the batches, the last one with the error of a failed read
+     * @throws IOException if the visitor fails to write a batch
+     */
+    public void readData(int stNum, ObservationVisitor visitor) throws IOException;
+
+    /**
+     * counts the observations of a station, the records {@link #readData} would hand out,
+     * without holding them
+     * @param stNum station index of the set of queried stations
+     * @return the number of records
+     * @throws IOException if the observations can not be read
+     */
+    public int countData(int stNum) throws IOException;
     
     /**
      * Does what is says on the tin
@@ -32,7 +32,7 @@ public class BaseDSHandler extends BaseRequestHandler {
     private final String procedure;
     private BaseDSInterface describer;
 
-    private final String ACCEPTABLE_RESPONSE_FORMAT = "text/xml;subtype=\"sensorML/1.0.1/profiles/ioos_sos/1.0\"";
+    public static final String ACCEPTABLE_RESPONSE_FORMAT = "text/xml;subtype=\"sensorML/1.0.1/profiles/ioos_sos/1.0\"";
     
     /**
      * Creates a DescribeSensorHandler handler that will parse the information and setup
@@ -63,7 +63,7 @@ public class BaseDSHandler extends BaseRequestHandler {
         }
         
         // make sure that the outputFormat we received is acceptable
-        if (!outputFormat.replaceAll(";\\s+subtype",";subtype").equalsIgnoreCase(ACCEPTABLE_RESPONSE_FORMAT)) {
+        if (!isAcceptableOutputFormat(outputFormat)) {
             // return exception
             formatter = new ErrorFormatter();
             ((ErrorFormatter)formatter).setException("Unknown outputFormat: " + outputFormat, 
@@ -101,6 +101,15 @@ public class BaseDSHandler extends BaseRequestHandler {
         }
     }
 
+    /**
+     * Checks an outputFormat against the one format DescribeSensor supports; does not need the dataset
+     * @param outputFormat outputFormat from the request
+     * @return true if the format is supported
+     */
+    public static boolean isAcceptableOutputFormat(String outputFormat) {
+        return outputFormat.replaceAll(";\\s+subtype",";subtype").equalsIgnoreCase(ACCEPTABLE_RESPONSE_FORMAT);
+    }
+
     /**
      * Procedure was a 'network' urn
      * @param dataset dataset we are doing the request against
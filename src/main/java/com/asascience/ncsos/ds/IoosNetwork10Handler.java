@@ -170,7 +170,10 @@ public class IoosNetwork10Handler extends Ioos10Handler implements BaseDSInterfa
         
         switch(this.getDatasetFeatureType()) {
             case STATION:
-                this.stationData = new TimeSeries(stationsNamesFromUrn, null, null);
+                TimeSeries timeSeries = new TimeSeries(stationsNamesFromUrn, null, null);
+                timeSeries.setRecordVariables(this.getNetCDFDataset(), this.stationVariable, this.timeVariable);
+                timeSeries.setStationDateRanges(this.getStationDateRanges());
+                this.stationData = timeSeries;
                 this.stationData.setData(this.getFeatureTypeDataSet());
                 break;
             case STATION_PROFILE:
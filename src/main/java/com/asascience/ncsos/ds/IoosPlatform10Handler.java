@@ -277,7 +277,10 @@ public class IoosPlatform10Handler extends Ioos10Handler implements BaseDSInterf
         }
         switch(this.getDatasetFeatureType()) {
             case STATION:
-                this.stationData = new TimeSeries(new String[] {cStationName}, null, null);
+                TimeSeries timeSeries = new TimeSeries(new String[] {cStationName}, null, null);
+                timeSeries.setRecordVariables(this.getNetCDFDataset(), this.stationVariable, this.timeVariable);
+                timeSeries.setStationDateRanges(this.getStationDateRanges());
+                this.stationData = timeSeries;
                 this.stationData.setData(this.getFeatureTypeDataSet());
                 break;
             case STATION_PROFILE:
@@ -0,0 +1,193 @@
+package com.asascience.ncsos.gc;
+
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+
+import thredds.servlet.ThreddsConfig;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.LatLonPointImpl;
+import ucar.unidata.geoloc.LatLonRect;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The bounds computed for the GetCapabilities response of one dataset: the time
+ * range and bounding box of every station and of the whole network. Snapshots are
+ * immutable, so concurrent requests share them without locking. They are cached in
+ * memory per dataset path and file, and replaced when the file's modification time or
+ * size changes; aggregations and remote datasets are not cached. The dimension lengths the
+ * bounds were computed at are kept with them, so the snapshot of a file that has grown
+ * since can be extended with the appended records instead of being computed again.
+ */
+public class CapabilitiesSnapshot {
+
+    private static final Map<String, CapabilitiesSnapshot> cache = new ConcurrentHashMap<String, CapabilitiesSnapshot>();
+
+    private final String key;
+    private final long lastModified;
+    private final long fileSize;
+    private final CalendarDate start;
+    private final CalendarDate end;
+    private final Map<Integer, CalendarDateRange> stationDateRange;
+    private final Map<Integer, LatLonRect> stationBBox;
+    private final LatLonRect networkBBox;
+    private final Map<String, Integer> dimensionLengths;
+
+    /**
+     * @param start start of the dataset time range, may be null
+     * @param end end of the dataset time range, may be null
+     * @param stationDateRange time range of each station by station index
+     * @param stationBBox bounding box of each station by station index
+     */
+    public CapabilitiesSnapshot(CalendarDate start, CalendarDate end,
+            Map<Integer, CalendarDateRange> stationDateRange, Map<Integer, LatLonRect> stationBBox) {
+        this(null, 0, 0, start, end, stationDateRange, stationBBox, Collections.<String, Integer>emptyMap());
+    }
+
+    private CapabilitiesSnapshot(String key, long lastModified, long fileSize, CalendarDate start,
+            CalendarDate end, Map<Integer, CalendarDateRange> stationDateRange, Map<Integer, LatLonRect> stationBBox,
+            Map<String, Integer> dimensionLengths) {
+        this.key = key;
+        this.lastModified = lastModified;
+        this.fileSize = fileSize;
+        this.start = start;
+        this.end = end;
+        this.stationDateRange = Collections.unmodifiableMap(new LinkedHashMap<Integer, CalendarDateRange>(stationDateRange));
+        this.stationBBox = Collections.unmodifiableMap(new LinkedHashMap<Integer, LatLonRect>(stationBBox));
+        this.dimensionLengths = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(dimensionLengths));
+
+        double latMin = Double.MAX_VALUE, latMax = Double.NEGATIVE_INFINITY, lonMin = Double.MAX_VALUE, lonMax = Double.NEGATIVE_INFINITY;
+        for (LatLonRect rect : this.stationBBox.values()) {
+            latMin = Math.min(latMin, rect.getLatMin());
+            latMax = Math.max(latMax, rect.getLatMax());
+            lonMin = Math.min(lonMin, rect.getLonMin());
+            lonMax = Math.max(lonMax, rect.getLonMax());
+        }
+        this.networkBBox = new LatLonRect(new LatLonPointImpl(latMin, lonMin), new LatLonPointImpl(latMax, lonMax));
+    }
+
+    /**
+     * Returns the cached snapshot of a dataset if the file has not changed since it was made.
+     * @param dataset an open dataset
+     * @return the snapshot, or null if it has to be computed
+     */
+    public static CapabilitiesSnapshot find(NetcdfDataset dataset) {
+        File file = DatasetHandlerAdapter.getLocalFile(dataset);
+        if (file == null) {
+            return null;
+        }
+        CapabilitiesSnapshot snapshot = cache.get(DatasetHandlerAdapter.getDatasetKey(dataset));
+        if (snapshot != null && snapshot.lastModified == file.lastModified() && snapshot.fileSize == file.length()) {
+            return snapshot;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached snapshot of a dataset file that has grown since the snapshot was made.
+     * @param dataset an open dataset
+     * @return the out of date snapshot, or null if there is none or the file did not grow
+     */
+    public static CapabilitiesSnapshot findPrevious(NetcdfDataset dataset) {
+        File file = DatasetHandlerAdapter.getLocalFile(dataset);
+        if (file == null) {
+            return null;
+        }
+        CapabilitiesSnapshot snapshot = cache.get(DatasetHandlerAdapter.getDatasetKey(dataset));
+        if (snapshot != null && !snapshot.dimensionLengths.isEmpty() && file.length() >= snapshot.fileSize
+                && file.lastModified() >= snapshot.lastModified) {
+            return snapshot;
+        }
+        return null;
+    }
+
+    /**
+     * Caches a snapshot for a dataset, tied to the state of its file before the bounds were
+     * computed. If the file changed while they were computed, the snapshot does not match
+     * the file at the next lookup and is extended or computed again.
+     * @param dataset the dataset the snapshot was computed from
+     * @param lastModified modification time of the file before the bounds were computed
+     * @param fileSize size of the file before the bounds were computed
+     * @param snapshot the computed snapshot
+     * @return the snapshot as cached, or the given snapshot if the dataset cannot be cached
+     */
+    public static CapabilitiesSnapshot store(NetcdfDataset dataset, long lastModified, long fileSize,
+            CapabilitiesSnapshot snapshot) {
+        String key = DatasetHandlerAdapter.getDatasetKey(dataset);
+        if (key == null) {
+            return snapshot;
+        }
+        CapabilitiesSnapshot cached = new CapabilitiesSnapshot(key, lastModified, fileSize, snapshot.start,
+                snapshot.end, snapshot.stationDateRange, snapshot.stationBBox, snapshot.dimensionLengths);
+        int maxDatasets = ThreddsConfig.getInt("NCSOS.capabilitiesCache.maxDatasets", 256);
+        if (maxDatasets <= 0) {
+            return cached;
+        }
+        Iterator<String> keys = cache.keySet().iterator();
+        while (cache.size() >= maxDatasets && keys.hasNext()) {
+            if (!keys.next().equals(key)) {
+                keys.remove();
+            }
+        }
+        cache.put(key, cached);
+        return cached;
+    }
+
+    /**
+     * @param dimensionLengths length of every dimension of the dataset when the bounds were computed
+     * @return a copy of this snapshot with the dimension lengths
+     */
+    public CapabilitiesSnapshot withDimensionLengths(Map<String, Integer> dimensionLengths) {
+        return new CapabilitiesSnapshot(key, lastModified, fileSize, start, end, stationDateRange, stationBBox,
+                dimensionLengths);
+    }
+
+    /**
+     * @return length of every dimension of the dataset when the bounds were computed, empty if not known
+     */
+    public Map<String, Integer> getDimensionLengths() {
+        return dimensionLengths;
+    }
+
+    public CalendarDate getStart() {
+        return start;
+    }
+
+    public CalendarDate getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the time range of the whole dataset, or null if it is not known
+     */
+    public CalendarDateRange getDateRange() {
+        return (start != null && end != null) ? CalendarDateRange.of(start, end) : null;
+    }
+
+    /**
+     * @return the time range of each station by station index
+     */
+    public Map<Integer, CalendarDateRange> getStationDateRange() {
+        return stationDateRange;
+    }
+
+    /**
+     * @return the bounding box of each station by station index
+     */
+    public Map<Integer, LatLonRect> getStationBBox() {
+        return stationBBox;
+    }
+
+    /**
+     * @return the bounding box around all stations
+     */
+    public LatLonRect getNetworkBBox() {
+        return networkBBox;
+    }
+}
@@ -0,0 +1,425 @@
+package com.asascience.ncsos.gc;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.EnhanceScaleMissing;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.nc2.time.CalendarDateUnit;
+import ucar.unidata.geoloc.LatLonPointImpl;
+import ucar.unidata.geoloc.LatLonRect;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the bounds of every station of a station, trajectory or profile dataset
+ * straight from the latitude, longitude and time variables, without building a
+ * PointFeature for every observation. The variables are read in chunks of at most
+ * CHUNK_SIZE values and reduced to a minimum and maximum per station with primitive
+ * loops. Observations are assigned to stations by the layout of the file:
+ * <ul>
+ * <li>variables dimensioned by the station dimension first (one value, or one row, per station)</li>
+ * <li>contiguous ragged arrays, by the variable with the <code>sample_dimension</code> attribute</li>
+ * <li>indexed ragged arrays, by the variable with the <code>instance_dimension</code> attribute</li>
+ * <li>a time variable of its own dimension, shared by all stations</li>
+ * </ul>
+ * Anything else, or a station without a single valid value, is left to the feature
+ * iteration of {@link FeatureBoundsCalculator}.
+ * <p>
+ * For files that only grow along their unlimited dimensions, {@link #extend} reads just
+ * the records appended since an earlier scan and widens the bounds of that scan.
+ */
+class CoordinateBoundsReader {
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(CoordinateBoundsReader.class);
+    private static final int CHUNK_SIZE = 1 << 20;
+    private static final String SAMPLE_DIMENSION = "sample_dimension";
+    private static final String INSTANCE_DIMENSION = "instance_dimension";
+
+    private final NetcdfDataset dataset;
+    // null if the dataset has a single station
+    private final Dimension instanceDimension;
+    private final int instances;
+    // dimension lengths of the earlier scan when only appended records are read, otherwise null
+    private final Map<String, Integer> previousLengths;
+
+    private CoordinateBoundsReader(NetcdfDataset dataset, Dimension instanceDimension, int instances,
+            Map<String, Integer> previousLengths) {
+        this.dataset = dataset;
+        this.instanceDimension = instanceDimension;
+        this.instances = instances;
+        this.previousLengths = previousLengths;
+    }
+
+    /**
+     * @param dataset the dataset
+     * @return the length of every dimension of the dataset by name
+     */
+    static Map<String, Integer> getDimensionLengths(NetcdfDataset dataset) {
+        Map<String, Integer> lengths = new HashMap<String, Integer>();
+        for (Dimension dimension : dataset.getDimensions()) {
+            lengths.put(dimension.getShortName(), dimension.getLength());
+        }
+        return lengths;
+    }
+
+    /**
+     * Computes the bounds of every station.
+     * @param dataset the dataset
+     * @param stationVariable variable holding the station names or ids, its outer dimension is the station dimension
+     * @param stationCount number of stations the handler found
+     * @param latVariable latitude coordinate
+     * @param lonVariable longitude coordinate
+     * @param timeVariable time coordinate
+     * @return the bounds, or null if they have to be computed from the features
+     */
+    static CapabilitiesSnapshot read(NetcdfDataset dataset, Variable stationVariable, int stationCount,
+            Variable latVariable, Variable lonVariable, Variable timeVariable) {
+        CoordinateBoundsReader reader = create(dataset, stationVariable, stationCount, latVariable, lonVariable,
+                timeVariable, null);
+        try {
+            return reader == null ? null : reader.read(latVariable, lonVariable, timeVariable, null);
+        } catch (Exception ex) {
+            _log.warn("Unable to compute the bounds from the coordinate variables: " + ex.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Widens the bounds of an earlier scan of the dataset file with the records appended
+     * since. Every dimension that is not unlimited has to have kept its length, and no
+     * unlimited dimension may have shrunk.
+     * @param previous bounds of the earlier scan, with the dimension lengths at that time
+     * @return the bounds, or null if they have to be computed from scratch
+     */
+    static CapabilitiesSnapshot extend(CapabilitiesSnapshot previous, NetcdfDataset dataset, Variable stationVariable,
+            int stationCount, Variable latVariable, Variable lonVariable, Variable timeVariable) {
+        Map<String, Integer> previousLengths = previous.getDimensionLengths();
+        if (previousLengths.isEmpty() || previous.getStart() == null || previous.getEnd() == null
+                || previous.getStationDateRange().size() != stationCount || previous.getStationBBox().size() != stationCount) {
+            return null;
+        }
+        for (Dimension dimension : dataset.getDimensions()) {
+            Integer length = previousLengths.get(dimension.getShortName());
+            if (length == null || (dimension.isUnlimited() ? dimension.getLength() < length : dimension.getLength() != length)) {
+                return null;
+            }
+        }
+        CoordinateBoundsReader reader = create(dataset, stationVariable, stationCount, latVariable, lonVariable,
+                timeVariable, previousLengths);
+        try {
+            return reader == null ? null : reader.read(latVariable, lonVariable, timeVariable, previous);
+        } catch (Exception ex) {
+            _log.warn("Unable to add the appended records to the bounds: " + ex.toString());
+            return null;
+        }
+    }
+
+    private static CoordinateBoundsReader create(NetcdfDataset dataset, Variable stationVariable, int stationCount,
+            Variable latVariable, Variable lonVariable, Variable timeVariable, Map<String, Integer> previousLengths) {
+        if (stationVariable == null || latVariable == null || lonVariable == null || timeVariable == null
+                || timeVariable.getUnitsString() == null) {
+            return null;
+        }
+        int stringRank = (stationVariable.getDataType() == DataType.CHAR) ? 1 : 0;
+        Dimension instanceDimension = null;
+        int instances = 1;
+        if (stationVariable.getRank() > stringRank) {
+            instanceDimension = stationVariable.getDimension(0);
+            instances = instanceDimension.getLength();
+        }
+        if (instances != stationCount || instances == 0) {
+            return null;
+        }
+        return new CoordinateBoundsReader(dataset, instanceDimension, instances, previousLengths);
+    }
+
+    /**
+     * @param previous bounds to widen, or null to compute them from all values
+     */
+    private CapabilitiesSnapshot read(Variable latVariable, Variable lonVariable, Variable timeVariable,
+            CapabilitiesSnapshot previous) throws IOException, InvalidRangeException {
+        double[][] lat = reduce(latVariable, false);
+        double[][] lon = lat == null ? null : reduce(lonVariable, false);
+        double[][] time = lon == null ? null : reduce(timeVariable, true);
+        if (time == null) {
+            return null;
+        }
+        Attribute calendar = timeVariable.findAttributeIgnoreCase("calendar");
+        CalendarDateUnit unit = CalendarDateUnit.of(calendar != null ? calendar.getStringValue() : null,
+                timeVariable.getUnitsString());
+        if (previous != null) {
+            return widen(previous, lat, lon, time, unit);
+        }
+
+        Map<Integer, CalendarDateRange> stationDateRange = new HashMap<Integer, CalendarDateRange>();
+        Map<Integer, LatLonRect> stationBBox = new HashMap<Integer, LatLonRect>();
+        double timeMin = Double.POSITIVE_INFINITY, timeMax = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < instances; i++) {
+            if (lat[0][i] > lat[1][i] || lon[0][i] > lon[1][i] || time[0][i] > time[1][i]) {
+                // no valid values for this station
+                return null;
+            }
+            stationDateRange.put(i, CalendarDateRange.of(unit.makeCalendarDate(time[0][i]), unit.makeCalendarDate(time[1][i])));
+            stationBBox.put(i, new LatLonRect(new LatLonPointImpl(lat[0][i], lon[0][i]), new LatLonPointImpl(lat[1][i], lon[1][i])));
+            timeMin = Math.min(timeMin, time[0][i]);
+            timeMax = Math.max(timeMax, time[1][i]);
+        }
+        return new CapabilitiesSnapshot(unit.makeCalendarDate(timeMin), unit.makeCalendarDate(timeMax),
+                stationDateRange, stationBBox);
+    }
+
+    /**
+     * Widens the bounds of every station by the values read from the appended records;
+     * stations without new values keep their bounds.
+     */
+    private CapabilitiesSnapshot widen(CapabilitiesSnapshot previous, double[][] lat, double[][] lon, double[][] time,
+            CalendarDateUnit unit) {
+        Map<Integer, CalendarDateRange> stationDateRange = new HashMap<Integer, CalendarDateRange>();
+        Map<Integer, LatLonRect> stationBBox = new HashMap<Integer, LatLonRect>();
+        CalendarDate start = previous.getStart();
+        CalendarDate end = previous.getEnd();
+        for (int i = 0; i < instances; i++) {
+            CalendarDateRange range = previous.getStationDateRange().get(i);
+            LatLonRect box = previous.getStationBBox().get(i);
+            if (range == null || box == null) {
+                return null;
+            }
+            if (time[0][i] <= time[1][i]) {
+                CalendarDate first = unit.makeCalendarDate(time[0][i]);
+                CalendarDate last = unit.makeCalendarDate(time[1][i]);
+                range = CalendarDateRange.of(first.isBefore(range.getStart()) ? first : range.getStart(),
+                        last.isAfter(range.getEnd()) ? last : range.getEnd());
+                start = first.isBefore(start) ? first : start;
+                end = last.isAfter(end) ? last : end;
+            }
+            if (lat[0][i] <= lat[1][i] && lon[0][i] <= lon[1][i]) {
+                box = new LatLonRect(new LatLonPointImpl(Math.min(lat[0][i], box.getLatMin()), Math.min(lon[0][i], box.getLonMin())),
+                        new LatLonPointImpl(Math.max(lat[1][i], box.getLatMax()), Math.max(lon[1][i], box.getLonMax())));
+            }
+            stationDateRange.put(i, range);
+            stationBBox.put(i, box);
+        }
+        return new CapabilitiesSnapshot(start, end, stationDateRange, stationBBox);
+    }
+
+    /**
+     * Reduces a variable to its minimum and maximum per station.
+     * @param shared whether a variable of a dimension of its own applies to all stations
+     * @return the minimums and maximums, or null if the layout is not understood
+     */
+    private double[][] reduce(Variable variable, boolean shared) throws IOException, InvalidRangeException {
+        double[] min = new double[instances];
+        double[] max = new double[instances];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+
+        List<Dimension> dimensions = variable.getDimensions();
+        if (dimensions.isEmpty()) {
+            reduceRows(variable, new Rows(), min, max);
+            return spread(min, max);
+        }
+        Dimension outer = dimensions.get(0);
+        if (instanceDimension == null) {
+            reduceRows(variable, new Rows(), min, max);
+            return new double[][]{min, max};
+        }
+        if (outer.equals(instanceDimension)) {
+            reduceRows(variable, new Rows() {
+                @Override
+                void assign(int first, int count, int[] instanceOfRow) {
+                    for (int row = 0; row < count; row++) {
+                        instanceOfRow[row] = first + row;
+                    }
+                }
+            }, min, max);
+            return new double[][]{min, max};
+        }
+        if (dimensions.size() != 1) {
+            return null;
+        }
+        Variable rowSize = findRaggedVariable(SAMPLE_DIMENSION, outer, instanceDimension);
+        if (rowSize != null) {
+            reduceRows(variable, new ContiguousRows(rowSize.read()), min, max);
+            return new double[][]{min, max};
+        }
+        final Variable index = findRaggedVariable(INSTANCE_DIMENSION, instanceDimension, outer);
+        if (index != null) {
+            reduceRows(variable, new Rows() {
+                @Override
+                void assign(int first, int count, int[] instanceOfRow) throws IOException, InvalidRangeException {
+                    Array chunk = index.read(new int[]{first}, new int[]{count});
+                    for (int row = 0; row < count; row++) {
+                        instanceOfRow[row] = chunk.getInt(row);
+                    }
+                }
+            }, min, max);
+            return new double[][]{min, max};
+        }
+        if (shared) {
+            reduceRows(variable, new Rows(), min, max);
+            return spread(min, max);
+        }
+        return null;
+    }
+
+    /**
+     * Finds the ragged array variable that has the given attribute naming <code>named</code>
+     * and is dimensioned by <code>dimension</code>.
+     */
+    private Variable findRaggedVariable(String attributeName, Dimension named, Dimension dimension) {
+        for (Variable variable : dataset.getVariables()) {
+            Attribute attribute = variable.findAttribute(attributeName);
+            if (attribute != null && attribute.isString() && named.getShortName().equals(attribute.getStringValue())
+                    && variable.getRank() == 1 && variable.getDimension(0).equals(dimension)) {
+                return variable;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the variable in chunks of whole rows along its outer dimension and folds every
+     * valid value into the minimum and maximum of the station its row belongs to.
+     */
+    private void reduceRows(Variable variable, Rows rows, double[] min, double[] max)
+            throws IOException, InvalidRangeException {
+        EnhanceScaleMissing missing = (variable instanceof EnhanceScaleMissing && ((EnhanceScaleMissing) variable).hasMissing())
+                ? (EnhanceScaleMissing) variable : null;
+        int[] shape = variable.getShape();
+        int firstRow = firstRow(variable);
+        if (shape.length == 0) {
+            if (firstRow == 0) {
+                int[] instanceOfRow = new int[1];
+                rows.assign(0, 1, instanceOfRow);
+                reduce(variable.read(), 1, 1, instanceOfRow, missing, min, max);
+            }
+            return;
+        }
+        int rowCount = shape[0];
+        int rowLength = 1;
+        for (int i = 1; i < shape.length; i++) {
+            rowLength *= shape[i];
+        }
+        if (firstRow >= rowCount || rowLength == 0) {
+            return;
+        }
+        int rowsPerChunk = Math.max(1, CHUNK_SIZE / rowLength);
+        int[] instanceOfRow = new int[Math.min(rowsPerChunk, rowCount - firstRow)];
+        int[] origin = new int[shape.length];
+        int[] section = shape.clone();
+        for (int first = firstRow; first < rowCount; first += rowsPerChunk) {
+            int count = Math.min(rowsPerChunk, rowCount - first);
+            origin[0] = first;
+            section[0] = count;
+            rows.assign(first, count, instanceOfRow);
+            reduce(variable.read(origin, section), count, rowLength, instanceOfRow, missing, min, max);
+        }
+    }
+
+    /**
+     * The first row of a variable to read: 0 for a full scan, otherwise the length its outer
+     * dimension had at the earlier scan. Variables that do not grow are skipped entirely.
+     */
+    private int firstRow(Variable variable) throws IOException {
+        if (previousLengths == null) {
+            return 0;
+        }
+        List<Dimension> dimensions = variable.getDimensions();
+        if (dimensions.isEmpty() || !dimensions.get(0).isUnlimited()) {
+            return dimensions.isEmpty() ? 1 : dimensions.get(0).getLength();
+        }
+        for (int i = 1; i < dimensions.size(); i++) {
+            if (dimensions.get(i).isUnlimited()) {
+                throw new IOException(variable.getFullName() + " grows along an inner dimension");
+            }
+        }
+        Integer length = previousLengths.get(dimensions.get(0).getShortName());
+        if (length == null) {
+            throw new IOException("no record count for " + dimensions.get(0).getShortName());
+        }
+        return length;
+    }
+
+    private void reduce(Array values, int count, int rowLength, int[] instanceOfRow, EnhanceScaleMissing missing,
+            double[] min, double[] max) {
+        int position = 0;
+        for (int row = 0; row < count; row++) {
+            int instance = instanceOfRow[row];
+            if (instance < 0 || instance >= instances) {
+                // fill value of an index variable
+                position += rowLength;
+                continue;
+            }
+            double rowMin = min[instance];
+            double rowMax = max[instance];
+            for (int end = position + rowLength; position < end; position++) {
+                double value = values.getDouble(position);
+                if (Double.isNaN(value) || (missing != null && missing.isMissing(value))) {
+                    continue;
+                }
+                if (value < rowMin) {
+                    rowMin = value;
+                }
+                if (value > rowMax) {
+                    rowMax = value;
+                }
+            }
+            min[instance] = rowMin;
+            max[instance] = rowMax;
+        }
+    }
+
+    /**
+     * Copies the range gathered in the first slot to every station.
+     */
+    private double[][] spread(double[] min, double[] max) {
+        Arrays.fill(min, min[0]);
+        Arrays.fill(max, max[0]);
+        return new double[][]{min, max};
+    }
+
+    /**
+     * Maps the rows of a chunk to stations; by default every row belongs to the first station.
+     */
+    private static class Rows {
+        void assign(int first, int count, int[] instanceOfRow) throws IOException, InvalidRangeException {
+            Arrays.fill(instanceOfRow, 0, count, 0);
+        }
+    }
+
+    /**
+     * Maps observations to stations by the row sizes of a contiguous ragged array.
+     */
+    private static class ContiguousRows extends Rows {
+        private final Array rowSizes;
+        private int instance = 0;
+        private long rowEnd;
+
+        ContiguousRows(Array rowSizes) {
+            this.rowSizes = rowSizes;
+            this.rowEnd = rowSizes.getSize() > 0 ? rowSizes.getLong(0) : 0;
+        }
+
+        @Override
+        void assign(int first, int count, int[] instanceOfRow) {
+            for (int row = 0; row < count; row++) {
+                while (first + row >= rowEnd && instance < rowSizes.getSize()) {
+                    instance++;
+                    rowEnd += instance < rowSizes.getSize() ? rowSizes.getLong(instance) : 0;
+                }
+                // observations past the last row belong to no station
+                instanceOfRow[row] = instance < rowSizes.getSize() ? instance : -1;
+            }
+        }
+    }
+}
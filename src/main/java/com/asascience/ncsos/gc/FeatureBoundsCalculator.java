@@ -0,0 +1,293 @@
+package com.asascience.ncsos.gc;
+
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import com.asascience.ncsos.util.DiscreteSamplingGeometryUtil;
+
+import thredds.servlet.ThreddsConfig;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ft.*;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.LatLonRect;
+import ucar.unidata.geoloc.Station;
+
+import java.io.IOException;
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes the time range and bounding box of every feature of a trajectory, station,
+ * profile, station profile or section collection. Large station and station profile
+ * collections backed by a local file are split into contiguous ranges of their station
+ * list, and every range is scanned in parallel on a shared fork-join pool as a subset of
+ * the collection, so no range iterates the stations of another. netcdf-java readers are
+ * not thread safe, so every task reads from a handle of its own, borrowed from the
+ * dataset handle pool or opened the way the request's dataset was. Partial results are
+ * merged by feature index, which gives the same station order as a serial scan. The
+ * other feature types are scanned serially.
+ * <p>
+ * Configured in the threddsConfig.xml by NCSOS.capabilities.boundsParallelism (1 scans
+ * serially) and NCSOS.capabilities.parallelMinFeatures.
+ */
+public class FeatureBoundsCalculator {
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(FeatureBoundsCalculator.class);
+    // ranges per worker, so a slow range does not hold up the whole scan
+    private static final int RANGES_PER_WORKER = 4;
+
+    private static ForkJoinPool pool;
+
+    private final FeatureType featureType;
+    private final NetcdfDataset dataset;
+    private final int parallelism;
+    private final int minFeatures;
+
+    /**
+     * @param featureType feature type of the collection
+     * @param dataset the dataset of the request the collection was read from
+     */
+    public FeatureBoundsCalculator(FeatureType featureType, NetcdfDataset dataset) {
+        this(featureType, dataset, ThreddsConfig.getInt("NCSOS.capabilities.boundsParallelism", 4),
+                ThreddsConfig.getInt("NCSOS.capabilities.parallelMinFeatures", 64));
+    }
+
+    public FeatureBoundsCalculator(FeatureType featureType, NetcdfDataset dataset, int parallelism, int minFeatures) {
+        this.featureType = featureType;
+        this.dataset = dataset;
+        this.parallelism = Math.max(1, parallelism);
+        this.minFeatures = Math.max(1, minFeatures);
+    }
+
+    /**
+     * Computes the bounds of every feature of the collection.
+     * @param collection the feature collection of the dataset
+     * @return the bounds by station index, the index being the position of the feature in the collection
+     */
+    public CapabilitiesSnapshot compute(FeatureCollection collection) {
+        if (parallelism > 1 && collection instanceof StationCollection
+                && DatasetHandlerAdapter.getLocalFile(dataset) != null) {
+            try {
+                int count = ((StationCollection) collection).getStations().size();
+                if (count >= minFeatures) {
+                    int ranges = Math.min(count, parallelism * RANGES_PER_WORKER);
+                    int rangeSize = (count + ranges - 1) / ranges;
+                    return getPool(parallelism).invoke(new ScanTask(0, count, rangeSize)).toSnapshot();
+                }
+            } catch (Exception ex) {
+                _log.warn("Unable to compute the bounds of " + dataset.getLocation()
+                        + " in parallel, computing them serially: " + ex.toString());
+            }
+        }
+        Bounds bounds = new Bounds();
+        try {
+            scan(collection, bounds);
+        } catch (Exception ex) {
+            _log.error(ex.getMessage(), ex);
+        }
+        return bounds.toSnapshot();
+    }
+
+    /**
+     * Stops the worker threads shared by all calculators.
+     */
+    public static synchronized void shutdownPool() {
+        if (pool != null) {
+            pool.shutdownNow();
+            pool = null;
+        }
+    }
+
+    private static synchronized ForkJoinPool getPool(int parallelism) {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    /**
+     * Iterates the whole collection and adds every feature to the bounds, by its position.
+     */
+    private void scan(FeatureCollection collection, Bounds bounds) throws IOException {
+        CalendarDateRange nullrange = null;
+        int index = 0;
+        switch (featureType) {
+            case TRAJECTORY: {
+                TrajectoryFeatureCollection features = (TrajectoryFeatureCollection) collection;
+                for (features.resetIteration(); features.hasNext(); index++) {
+                    bounds.add(index, features.next());
+                }
+                break;
+            }
+            case STATION: {
+                StationTimeSeriesFeatureCollection features = (StationTimeSeriesFeatureCollection) collection;
+                for (features.resetIteration(); features.hasNext(); index++) {
+                    bounds.add(index, features.next());
+                }
+                break;
+            }
+            case PROFILE: {
+                ProfileFeatureCollection features = (ProfileFeatureCollection) collection;
+                for (features.resetIteration(); features.hasNext(); index++) {
+                    bounds.addProfile(index, features.next());
+                }
+                break;
+            }
+            case STATION_PROFILE: {
+                StationProfileFeatureCollection features = (StationProfileFeatureCollection) collection;
+                for (features.resetIteration(); features.hasNext(); index++) {
+                    bounds.add(index, features.next().flatten(null, nullrange));
+                }
+                break;
+            }
+            case SECTION: {
+                SectionFeatureCollection features = (SectionFeatureCollection) collection;
+                for (features.resetIteration(); features.hasNext(); index++) {
+                    bounds.add(index, features.next().flatten(null, nullrange));
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unable to compute the bounds of a " + featureType + " collection");
+        }
+    }
+
+    /**
+     * Scans the stations from index <code>from</code> up to <code>to</code> of the station
+     * list, as a subset of the collection read from a handle of its own.
+     */
+    private Bounds scanStations(int from, int to) throws IOException {
+        NetcdfDataset handle = DatasetHandlerAdapter.openAnother(dataset);
+        try {
+            FeatureDataset featureDataset = FeatureDatasetFactoryManager.wrap(featureType, handle, null, new Formatter(System.err));
+            FeatureCollection collection = featureDataset == null ? null : DiscreteSamplingGeometryUtil.extractFeatureDatasetCollection(featureDataset);
+            if (!(collection instanceof StationCollection) || collection.getCollectionFeatureType() != featureType) {
+                throw new IOException("Unable to open the " + featureType + " collection of " + dataset.getLocation());
+            }
+            // the stations of this handle, the subset must not read through another one
+            List<Station> stations = ((StationCollection) collection).getStations();
+            Map<String, Integer> indexes = new HashMap<String, Integer>();
+            for (int index = from; index < to && index < stations.size(); index++) {
+                indexes.put(stations.get(index).getName(), index);
+            }
+            List<Station> range = stations.subList(Math.min(from, stations.size()), Math.min(to, stations.size()));
+            Bounds bounds = new Bounds();
+            if (featureType == FeatureType.STATION) {
+                StationTimeSeriesFeatureCollection features = ((StationTimeSeriesFeatureCollection) collection).subset(range);
+                for (features.resetIteration(); features.hasNext();) {
+                    StationTimeSeriesFeature feature = features.next();
+                    Integer index = indexes.get(feature.getName());
+                    if (index != null) {
+                        bounds.add(index, feature);
+                    }
+                }
+            } else {
+                CalendarDateRange nullrange = null;
+                StationProfileFeatureCollection features = ((StationProfileFeatureCollection) collection).subset(range);
+                for (features.resetIteration(); features.hasNext();) {
+                    StationProfileFeature feature = features.next();
+                    Integer index = indexes.get(feature.getName());
+                    if (index != null) {
+                        bounds.add(index, feature.flatten(null, nullrange));
+                    }
+                }
+            }
+            return bounds;
+        } finally {
+            DatasetHandlerAdapter.closeDataset(handle);
+        }
+    }
+
+    /**
+     * Splits the features in halves until a range is small enough to scan.
+     */
+    private class ScanTask extends RecursiveTask<Bounds> {
+
+        private final int from;
+        private final int to;
+        private final int rangeSize;
+
+        ScanTask(int from, int to, int rangeSize) {
+            this.from = from;
+            this.to = to;
+            this.rangeSize = rangeSize;
+        }
+
+        @Override
+        protected Bounds compute() {
+            if (to - from <= rangeSize) {
+                try {
+                    return scanStations(from, to);
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }
+            int middle = from + (to - from) / 2;
+            ScanTask first = new ScanTask(from, middle, rangeSize);
+            ScanTask second = new ScanTask(middle, to, rangeSize);
+            first.fork();
+            Bounds secondBounds = second.compute();
+            Bounds bounds = first.join();
+            bounds.merge(secondBounds);
+            return bounds;
+        }
+    }
+
+    /**
+     * Bounds of some of the features, ordered by station index.
+     */
+    private static class Bounds {
+
+        private final Map<Integer, CalendarDateRange> stationDateRange = new TreeMap<Integer, CalendarDateRange>();
+        private final Map<Integer, LatLonRect> stationBBox = new TreeMap<Integer, LatLonRect>();
+        private CalendarDate start;
+        private CalendarDate end;
+
+        void add(int index, PointFeatureCollection feature) {
+            if (DatasetHandlerAdapter.calcBounds(feature)) {
+                extend(feature.getCalendarDateRange().getStart(), feature.getCalendarDateRange().getEnd());
+                stationDateRange.put(index, feature.getCalendarDateRange());
+                stationBBox.put(index, feature.getBoundingBox());
+            } else {
+                GetCapabilitiesRequestHandler.GetExtentsFromSubFeatures(feature, index, stationDateRange, stationBBox);
+            }
+        }
+
+        void addProfile(int index, ProfileFeature feature) {
+            if (DatasetHandlerAdapter.calcBounds(feature)) {
+                CalendarDate profileDate = CalendarDate.of(feature.getTime());
+                extend(profileDate, profileDate);
+                stationDateRange.put(index, CalendarDateRange.of(profileDate, profileDate));
+                stationBBox.put(index, new LatLonRect(feature.getLatLon(), feature.getLatLon()));
+            } else {
+                GetCapabilitiesRequestHandler.GetExtentsFromSubFeatures(feature, index, stationDateRange, stationBBox);
+            }
+        }
+
+        void merge(Bounds other) {
+            stationDateRange.putAll(other.stationDateRange);
+            stationBBox.putAll(other.stationBBox);
+            if (other.start != null) {
+                extend(other.start, other.end);
+            }
+        }
+
+        private void extend(CalendarDate featureStart, CalendarDate featureEnd) {
+            if (start == null || start.isAfter(featureStart)) {
+                start = featureStart;
+            }
+            if (end == null || end.isBefore(featureEnd)) {
+                end = featureEnd;
+            }
+        }
+
+        CapabilitiesSnapshot toSnapshot() {
+            return new CapabilitiesSnapshot(start, end, stationDateRange, stationBBox);
+        }
+    }
+}
@@ -3,8 +3,10 @@ package com.asascience.ncsos.gc;
 import com.asascience.ncsos.outputformatter.ErrorFormatter;
 import com.asascience.ncsos.outputformatter.gc.GetCapsFormatter;
 import com.asascience.ncsos.service.BaseRequestHandler;
+import com.asascience.ncsos.service.DatasetMetadataIndex;
 import com.asascience.ncsos.util.DatasetHandlerAdapter;
 
+import thredds.servlet.ThreddsConfig;
 import ucar.nc2.constants.FeatureType;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.dt.GridDataset;
@@ -14,9 +16,12 @@ import ucar.nc2.time.CalendarDateRange;
 import ucar.unidata.geoloc.LatLonPointImpl;
 import ucar.unidata.geoloc.LatLonRect;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
  * Creates basic Get Capabilites request handler that can read from a netcdf dataset
@@ -35,10 +40,8 @@ public class GetCapabilitiesRequestHandler extends BaseRequestHandler {
     private String sections;
     private BitSet requestedSections;
     private static final int SECTION_COUNT = 4;
-    private static CalendarDate setStartDate;
-    private static CalendarDate setEndDate;
-    private static HashMap<Integer, CalendarDateRange> stationDateRange;
-    private static HashMap<Integer, LatLonRect> stationBBox;
+    private CapabilitiesSnapshot snapshot;
+    private OfferingFilter offeringFilter = OfferingFilter.none();
     private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(GetCapabilitiesRequestHandler.class);
 
     /**
@@ -61,11 +64,18 @@ public class GetCapabilitiesRequestHandler extends BaseRequestHandler {
         SetSectionBits();
     }
 
-    
+    /**
+     * Limits the station offerings of the Contents section; every station is listed by default.
+     * @param offeringFilter the filter and page of the request
+     */
+    public void setOfferingFilter(OfferingFilter offeringFilter) {
+        this.offeringFilter = offeringFilter;
+    }
+
     private void initializeDataParams() throws IOException{
     	if(!this.isInitialized){
     		this.initializeDataset();
-    		if (getFeatureDataset() == null) {
+    		if (!hasFeatureDataset()) {
                 // error, couldn't read dataset
                 formatter = new ErrorFormatter();
                 StringBuffer sb = new StringBuffer();
@@ -78,13 +88,71 @@ public class GetCapabilitiesRequestHandler extends BaseRequestHandler {
                 }
                 return;
             }
-            CalculateBoundsForFeatureSet();
-            
-
-    		
+            snapshot = CapabilitiesSnapshot.find(netCDFDataset);
+            if (snapshot == null) {
+                // taken before the bounds, so records appended meanwhile are read again next time
+                File file = DatasetHandlerAdapter.getLocalFile(netCDFDataset);
+                long lastModified = file != null ? file.lastModified() : 0;
+                long fileSize = file != null ? file.length() : 0;
+                Map<String, Integer> dimensionLengths = CoordinateBoundsReader.getDimensionLengths(netCDFDataset);
+                DatasetMetadataIndex index = getMetadataIndex();
+                if (index != null && index.hasStationBounds()) {
+                    snapshot = restoreBoundsFromIndex(index);
+                } else {
+                    snapshot = refreshBounds();
+                    if (snapshot == null) {
+                        snapshot = CalculateBoundsForFeatureSet();
+                    }
+                    if (index != null && !(formatter instanceof ErrorFormatter)) {
+                        index.setBounds(snapshot.getStart(), snapshot.getEnd(),
+                                snapshot.getStationBBox(), snapshot.getStationDateRange());
+                        DatasetMetadataIndex.store(index);
+                    }
+                }
+                if (!(formatter instanceof ErrorFormatter)) {
+                    snapshot = CapabilitiesSnapshot.store(netCDFDataset, lastModified, fileSize,
+                            snapshot.withDimensionLengths(dimensionLengths));
+                }
+            }
     	}
     	
     }
+    /**
+     * Extends the bounds computed for an earlier version of the dataset file with the records
+     * appended to it since, for realtime files that only grow. Turned off by setting
+     * NCSOS.capabilities.incrementalRefresh to false.
+     * @return the bounds, or null if they have to be computed from scratch
+     */
+    private CapabilitiesSnapshot refreshBounds() {
+        FeatureType featype = getDatasetFeatureType();
+        if (!ThreddsConfig.getBoolean("NCSOS.capabilities.incrementalRefresh", true)
+                || (featype != FeatureType.STATION && featype != FeatureType.TRAJECTORY && featype != FeatureType.PROFILE)) {
+            return null;
+        }
+        CapabilitiesSnapshot previous = CapabilitiesSnapshot.findPrevious(netCDFDataset);
+        if (previous == null) {
+            return null;
+        }
+        return CoordinateBoundsReader.extend(previous, netCDFDataset, stationVariable, getStationNames().size(),
+                latVariable, lonVariable, timeVariable);
+    }
+
+    /**
+     * Builds the station bounds from the metadata index instead of iterating the features.
+     * @param index metadata index holding the bounds of the dataset
+     * @return the bounds of the dataset
+     */
+    private CapabilitiesSnapshot restoreBoundsFromIndex(DatasetMetadataIndex index) {
+        Map<Integer, CalendarDateRange> stationDateRange = new HashMap<Integer, CalendarDateRange>();
+        Map<Integer, LatLonRect> stationBBox = new HashMap<Integer, LatLonRect>();
+        for (Map.Entry<Integer, DatasetMetadataIndex.StationBounds> entry : index.getStationBounds().entrySet()) {
+            stationDateRange.put(entry.getKey(), entry.getValue().getDateRange());
+            stationBBox.put(entry.getKey(), entry.getValue().getBoundingBox());
+        }
+        return new CapabilitiesSnapshot(index.getNetworkBounds().getStart(), index.getNetworkBounds().getEnd(),
+                stationDateRange, stationBBox);
+    }
+
     public void resetCapabilitiesSections(String sections) throws IOException {
         this.sections = sections.toLowerCase();
         this.requestedSections = new BitSet(SECTION_COUNT);
@@ -152,28 +220,30 @@ public class GetCapabilitiesRequestHandler extends BaseRequestHandler {
             // get the bounds
         	// early exit if we have an exception output
         
-            Double latMin = Double.MAX_VALUE, latMax = Double.NEGATIVE_INFINITY, lonMin = Double.MAX_VALUE, lonMax = Double.NEGATIVE_INFINITY;
-            for (LatLonRect rect : stationBBox.values()) {
-                latMin = (latMin > rect.getLatMin()) ? rect.getLatMin() : latMin;
-                latMax = (latMax < rect.getLatMax()) ? rect.getLatMax() : latMax;
-                lonMin = (lonMin > rect.getLonMin()) ? rect.getLonMin() : lonMin;
-                lonMax = (lonMax < rect.getLonMax()) ? rect.getLonMax() : lonMax;
-            }
-            LatLonRect setRange = new LatLonRect(new LatLonPointImpl(latMin, lonMin), new LatLonPointImpl(latMax, lonMax));
-            CalendarDateRange setTime = null;
-            if (setStartDate != null && setEndDate != null) {
-                setTime = CalendarDateRange.of(setStartDate, setEndDate);
-            }
+            LatLonRect setRange = snapshot.getNetworkBBox();
+            CalendarDateRange setTime = snapshot.getDateRange();
 
             out.setObservationOfferingNetwork(setRange, stationNames.values().toArray(
             		new String[stationNames.values().size()]), getSensorNames().keySet(), 
-            		setTime, this.getFeatureDataset().getFeatureType());
-            // Add an offering for every station
-            for (Integer index : stationNames.keySet()) {
-                ((GetCapsFormatter) formatter).setObservationOffering(
-                		this.getUrnName(stationNames.get(index)), 
-                		stationBBox.get(index), getSensorNames().keySet(), 
-                		stationDateRange.get(index), this.getFeatureDataset().getFeatureType());
+            		setTime, this.getFeatureDatasetType());
+            // Add an offering for every station that passes the filter, in station order,
+            // building only the ones on the requested page
+            int matched = 0;
+            int listed = 0;
+            for (Integer index : new TreeSet<Integer>(stationNames.keySet())) {
+                if (offeringFilter.isPageFull(listed)) {
+                    break;
+                }
+                String procedure = this.getUrnName(stationNames.get(index));
+                LatLonRect stationBBox = snapshot.getStationBBox().get(index);
+                CalendarDateRange stationDateRange = snapshot.getStationDateRange().get(index);
+                if (!offeringFilter.accepts(procedure, stationBBox, stationDateRange)
+                        || matched++ < offeringFilter.getStartIndex()) {
+                    continue;
+                }
+                ((GetCapsFormatter) formatter).setObservationOffering(procedure, stationBBox,
+                        getSensorNames().keySet(), stationDateRange, this.getFeatureDatasetType());
+                listed++;
             }
         } else {
             // remove Contents node
@@ -181,165 +251,57 @@ public class GetCapabilitiesRequestHandler extends BaseRequestHandler {
         }
     }
 
-    private void CalculateBoundsForFeatureSet() throws IOException {
+    /**
+     * Finds the time range and bounding box of every station, from the coordinate variables
+     * where the layout of the dataset allows it and by iterating the features otherwise.
+     * @return the bounds; empty if the feature type is not known
+     */
+    private CapabilitiesSnapshot CalculateBoundsForFeatureSet() throws IOException {
         FeatureType featype = this.getDatasetFeatureType();
+        Map<Integer, CalendarDateRange> stationDateRange = new HashMap<Integer, CalendarDateRange>();
+        Map<Integer, LatLonRect> stationBBox = new HashMap<Integer, LatLonRect>();
+        CalendarDate start = null, end = null;
         if (featype != null) {
-            this.stationDateRange = new HashMap<Integer, CalendarDateRange>();
-            this.stationBBox = new HashMap<Integer, LatLonRect>();
-            CalendarDate start = null, end = null;
-            int stationIndex = 0;
             switch (featype) {
                 case TRAJECTORY:
-                    try {
-                        TrajectoryFeatureCollection collection = (TrajectoryFeatureCollection) getFeatureTypeDataSet();
-                        collection.resetIteration();
-                        while (collection.hasNext()) {
-                            TrajectoryFeature feature = collection.next();
-                            if (DatasetHandlerAdapter.calcBounds(feature)) {
-                                if (start == null || start.isAfter(feature.getCalendarDateRange().getStart())) {
-                                    start = feature.getCalendarDateRange().getStart();
-                                }
-                                if (end == null || end.isBefore(feature.getCalendarDateRange().getEnd())) {
-                                    end = feature.getCalendarDateRange().getEnd();
-                                }
-                                this.stationDateRange.put(stationIndex, feature.getCalendarDateRange());
-                                this.stationBBox.put(stationIndex, feature.getBoundingBox());
-                                stationIndex++;
-                            } else {
-                                GetExtentsFromSubFeatures(feature, stationIndex);
-                            }
-                        }
-                    } catch (Exception ex) {
-                        _log.error(ex.getMessage(), ex);
-                    }
-                    break;
                 case STATION:
-                    try {
-                        StationTimeSeriesFeatureCollection collection = (StationTimeSeriesFeatureCollection) getFeatureTypeDataSet();
-                        collection.resetIteration();
-                        while (collection.hasNext()) {
-                            StationTimeSeriesFeature feature = collection.next();
-                            if (DatasetHandlerAdapter.calcBounds(feature)) {
-                                if (start == null || start.isAfter(feature.getCalendarDateRange().getStart())) {
-                                    start = feature.getCalendarDateRange().getStart();
-                                }
-                                if (end == null || end.isBefore(feature.getCalendarDateRange().getEnd())) {
-                                    end = feature.getCalendarDateRange().getEnd();
-                                }
-                                this.stationDateRange.put(stationIndex, feature.getCalendarDateRange());
-                                this.stationBBox.put(stationIndex, feature.getBoundingBox());
-                            } else {
-                                GetExtentsFromSubFeatures(feature, stationIndex);
-                            }
-                            stationIndex++;
-                        }
-                    } catch (Exception ex) {
-                        _log.error(ex.getMessage(), ex);
-                    }
-                    break;
                 case PROFILE:
-                    try {
-                        ProfileFeatureCollection collection = (ProfileFeatureCollection) getFeatureTypeDataSet();
-                        collection.resetIteration();
-                        while (collection.hasNext()) {
-                            ProfileFeature feature = collection.next();
-                            if (DatasetHandlerAdapter.calcBounds(feature)) {
-                                CalendarDate profileDate = CalendarDate.of(feature.getTime());
-                                if (start == null || start.isAfter(profileDate)) {
-                                    start = profileDate;
-                                }
-                                if (end == null || end.isBefore(profileDate)) {
-                                    end = profileDate;
-                                }
-                                this.stationDateRange.put(stationIndex, CalendarDateRange.of(profileDate, profileDate));
-                                this.stationBBox.put(stationIndex, new LatLonRect(feature.getLatLon(), feature.getLatLon()));
-                                stationIndex++;
-                            } else {
-                                GetExtentsFromSubFeatures(feature, stationIndex);
-                            }
-                        }
-                    } catch (Exception ex) {
-                        _log.error(ex.getMessage(), ex);
+                    CapabilitiesSnapshot bounds = CoordinateBoundsReader.read(netCDFDataset, stationVariable,
+                            getStationNames().size(), latVariable, lonVariable, timeVariable);
+                    if (bounds != null) {
+                        return bounds;
                     }
-                    break;
+                    // layout not understood, iterate the features
+                case STATION_PROFILE:
+                case SECTION:
+                    FeatureBoundsCalculator calculator = new FeatureBoundsCalculator(featype, netCDFDataset);
+                    return calculator.compute(getFeatureTypeDataSet());
                 case GRID:
                 	GridDataset gridData = getGridDataset();
                     start = gridData.getCalendarDateStart();
                     end = gridData.getCalendarDateEnd();
-                    this.stationDateRange.put(0, CalendarDateRange.of(start, end));
-                    this.stationBBox.put(0, gridData.getBoundingBox());
-                    break;
-                case STATION_PROFILE:
-                    try {
-                        CalendarDateRange nullrange = null;
-                        StationProfileFeatureCollection collection = (StationProfileFeatureCollection) getFeatureTypeDataSet();
-                        collection.resetIteration();
-                        while (collection.hasNext()) {
-                            StationProfileFeature feature = collection.next();
-                            PointFeatureCollection flattened = feature.flatten(null, nullrange);
-                            if (DatasetHandlerAdapter.calcBounds(flattened)) {
-                                if (start == null || start.isAfter(flattened.getCalendarDateRange().getStart())) {
-                                    start = flattened.getCalendarDateRange().getStart();
-                                }
-                                if (end == null || end.isBefore(flattened.getCalendarDateRange().getEnd())) {
-                                    end = flattened.getCalendarDateRange().getEnd();
-                                }
-                                this.stationDateRange.put(stationIndex, flattened.getCalendarDateRange());
-                                this.stationBBox.put(stationIndex, flattened.getBoundingBox());
-                                stationIndex++;
-                            } else {
-                                GetExtentsFromSubFeatures(flattened, stationIndex);
-                            }
-                        }
-                    } catch (Exception ex) {
-                        _log.error(ex.getMessage(), ex);
-                    }
-                    break;
-                case SECTION:
-                    try {
-                        CalendarDateRange nullrange = null;
-                        SectionFeatureCollection collection = (SectionFeatureCollection) getFeatureTypeDataSet();
-                        collection.resetIteration();
-                        while (collection.hasNext()) {
-                            SectionFeature feature = collection.next();
-                            PointFeatureCollection flattened = feature.flatten(null, nullrange);
-                            if (DatasetHandlerAdapter.calcBounds(flattened)) {
-                                if (start == null || start.isAfter(flattened.getCalendarDateRange().getStart())) {
-                                    start = flattened.getCalendarDateRange().getStart();
-                                }
-                                if (end == null || end.isBefore(flattened.getCalendarDateRange().getEnd())) {
-                                    end = flattened.getCalendarDateRange().getEnd();
-                                }
-                                this.stationDateRange.put(stationIndex, flattened.getCalendarDateRange());
-                                this.stationBBox.put(stationIndex, flattened.getBoundingBox());
-                                stationIndex++;
-                            } else {
-                                GetExtentsFromSubFeatures(flattened, stationIndex);
-                            }
-                        }
-                    } catch (Exception ex) {
-                        _log.error(ex.getMessage(), ex);
-                    }
+                    stationDateRange.put(0, CalendarDateRange.of(start, end));
+                    stationBBox.put(0, gridData.getBoundingBox());
                     break;
                 case POINT:
                     _log.error("NcSOS does not support the Point featureType at this time.");
                     formatter = new ErrorFormatter();
                     ((ErrorFormatter)formatter).setException("NcSOS does not support the Point featureType at this time.");
-                    return;
+                    break;
                 default:
                     _log.error("Unknown feature type - NetCDF-Java could not figure out what this dataset was!");
                     formatter = new ErrorFormatter();
                     ((ErrorFormatter)formatter).setException("Unknown feature type - NetCDF-Java could not figure out what this dataset was!");
-                    return;
+                    break;
             }
-            this.setStartDate = start;
-            this.setEndDate = end;
         } else {
             _log.error("Unknown feature type - getDatasetFeatureType is null");
         }
+        return new CapabilitiesSnapshot(start, end, stationDateRange, stationBBox);
     }
 
-    private void GetExtentsFromSubFeatures(PointFeatureCollection coll, int index) {
+    static void GetExtentsFromSubFeatures(PointFeatureCollection coll, int index,
+            Map<Integer, CalendarDateRange> stationDateRange, Map<Integer, LatLonRect> stationBBox) {
         try {
             // calculate the bounds of this particular station
             CalendarDate start = CalendarDate.present();
@@ -347,36 +309,33 @@ public class GetCapabilitiesRequestHandler extends BaseRequestHandler {
             double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY, minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
             for (coll.resetIteration(); coll.hasNext();) {
                 PointFeature pf = coll.next();
-                if (pf.getObservationTimeAsCalendarDate().isAfter(end)) {
-                    end = pf.getObservationTimeAsCalendarDate();
-                } else if (pf.getObservationTimeAsCalendarDate().isBefore(start)) {
-                    start = pf.getObservationTimeAsCalendarDate();
+                CalendarDate time = pf.getObservationTimeAsCalendarDate();
+                if (time.isAfter(end)) {
+                    end = time;
                 }
-
-                if (minLat > pf.getLocation().getLatitude()) {
-                    minLat = pf.getLocation().getLatitude();
-                } else if (maxLat < pf.getLocation().getLatitude()) {
-                    maxLat = pf.getLocation().getLatitude();
+                if (time.isBefore(start)) {
+                    start = time;
                 }
 
-                if (minLon > pf.getLocation().getLongitude()) {
-                    minLon = pf.getLocation().getLongitude();
-                } else if (maxLon < pf.getLocation().getLongitude()) {
-                    maxLon = pf.getLocation().getLongitude();
-                }
+                double lat = pf.getLocation().getLatitude();
+                double lon = pf.getLocation().getLongitude();
+                minLat = Math.min(minLat, lat);
+                maxLat = Math.max(maxLat, lat);
+                minLon = Math.min(minLon, lon);
+                maxLon = Math.max(maxLon, lon);
             }
             // add the values to the table
-            this.stationDateRange.put(index, CalendarDateRange.of(start, end));
-            this.stationBBox.put(index, new LatLonRect(new LatLonPointImpl(minLat, minLon), new LatLonPointImpl(maxLat, maxLon)));
+            stationDateRange.put(index, CalendarDateRange.of(start, end));
+            stationBBox.put(index, new LatLonRect(new LatLonPointImpl(minLat, minLon), new LatLonPointImpl(maxLat, maxLon)));
         } catch (Exception ex) {
             // failed, um just add global bounds
             _log.error("GetExtentsFromSubFeatures: Could not manually get extents, adding globals...\n\t" + ex.toString());
-            this.stationDateRange.put(index, CalendarDateRange.of(CalendarDate.of(0), CalendarDate.of(CalendarDate.present().getDifferenceInMsecs(CalendarDate.of(0)))));
-            this.stationBBox.put(index, new LatLonRect(new LatLonPointImpl(-90, -180), new LatLonPointImpl(90, 180)));
+            stationDateRange.put(index, CalendarDateRange.of(CalendarDate.of(0), CalendarDate.of(CalendarDate.present().getDifferenceInMsecs(CalendarDate.of(0)))));
+            stationBBox.put(index, new LatLonRect(new LatLonPointImpl(-90, -180), new LatLonPointImpl(90, 180)));
         } catch (Error err) {
             _log.error("GetExtentsFromSubFeatures: Could not manually get extents, adding globals...\n\t" + err.toString());
-            this.stationDateRange.put(index, CalendarDateRange.of(CalendarDate.of(0), CalendarDate.of(CalendarDate.present().getDifferenceInMsecs(CalendarDate.of(0)))));
-            this.stationBBox.put(index, new LatLonRect(new LatLonPointImpl(-90, -180), new LatLonPointImpl(90, 180)));
+            stationDateRange.put(index, CalendarDateRange.of(CalendarDate.of(0), CalendarDate.of(CalendarDate.present().getDifferenceInMsecs(CalendarDate.of(0)))));
+            stationBBox.put(index, new LatLonRect(new LatLonPointImpl(-90, -180), new LatLonPointImpl(90, 180)));
         }
     }
 
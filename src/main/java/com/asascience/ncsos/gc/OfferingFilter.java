@@ -0,0 +1,171 @@
+package com.asascience.ncsos.gc;
+
+import com.asascience.ncsos.service.Parser;
+import com.asascience.ncsos.service.SosRequest;
+
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.LatLonRect;
+
+/**
+ * Selects the station offerings listed in the Contents section of a GetCapabilities
+ * response. Offerings can be filtered by bounding box (bbox=minLon,minLat,maxLon,maxLat),
+ * by time (eventTime=instant or start/end, matching stations whose time range overlaps
+ * it) and by the start of the procedure urn (procedurePrefix), and the matching offerings
+ * paged with startIndex (0 based) and pageSize. The network-all offering is always listed.
+ */
+public class OfferingFilter {
+
+    private static final OfferingFilter NONE = new OfferingFilter();
+
+    private double[] bbox;
+    private CalendarDate start;
+    private CalendarDate end;
+    private String procedurePrefix;
+    private int startIndex = 0;
+    private int pageSize = -1;
+    private String error;
+    private String locator;
+
+    private OfferingFilter() {
+    }
+
+    /**
+     * @return a filter listing every station offering
+     */
+    public static OfferingFilter none() {
+        return NONE;
+    }
+
+    /**
+     * Reads the filter parameters of a GetCapabilities request.
+     * @param sosRequest the parsed request
+     * @return the filter; check {@link #getError()} before using it
+     */
+    public static OfferingFilter parse(SosRequest sosRequest) {
+        if (!sosRequest.hasParameter(Parser.BBOX) && !sosRequest.hasParameter(Parser.EVENT_TIME)
+                && !sosRequest.hasParameter(Parser.PROCEDURE_PREFIX) && !sosRequest.hasParameter(Parser.START_INDEX)
+                && !sosRequest.hasParameter(Parser.PAGE_SIZE)) {
+            return NONE;
+        }
+        OfferingFilter filter = new OfferingFilter();
+        filter.procedurePrefix = sosRequest.getParameter(Parser.PROCEDURE_PREFIX);
+
+        String bbox = sosRequest.getParameter(Parser.BBOX);
+        if (bbox != null) {
+            String[] values = bbox.split(",");
+            try {
+                if (values.length != 4) {
+                    throw new NumberFormatException();
+                }
+                filter.bbox = new double[4];
+                for (int i = 0; i < 4; i++) {
+                    filter.bbox[i] = Double.parseDouble(values[i].trim());
+                }
+            } catch (NumberFormatException ex) {
+                return filter.fail("bbox must be minLon,minLat,maxLon,maxLat: " + bbox, Parser.BBOX);
+            }
+            if (filter.bbox[0] > filter.bbox[2] || filter.bbox[1] > filter.bbox[3]) {
+                return filter.fail("bbox minimum is larger than its maximum: " + bbox, Parser.BBOX);
+            }
+        }
+
+        CalendarDate[] instants = sosRequest.getEventTimeInstants();
+        if (instants != null) {
+            if (instants.length > 2 || instants[0] == null || instants[instants.length - 1] == null) {
+                return filter.fail("eventTime of a GetCapabilities request must be an ISO 8601 instant or start/end: "
+                        + sosRequest.getParameter(Parser.EVENT_TIME), Parser.EVENT_TIME);
+            }
+            filter.start = instants[0];
+            filter.end = instants[instants.length - 1];
+            if (filter.start.isAfter(filter.end)) {
+                return filter.fail("eventTime start is after its end", Parser.EVENT_TIME);
+            }
+        }
+
+        try {
+            if (sosRequest.hasParameter(Parser.START_INDEX)) {
+                filter.startIndex = Integer.parseInt(sosRequest.getParameter(Parser.START_INDEX));
+                if (filter.startIndex < 0) {
+                    throw new NumberFormatException();
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return filter.fail("startIndex must be a number of 0 or more", Parser.START_INDEX);
+        }
+        try {
+            if (sosRequest.hasParameter(Parser.PAGE_SIZE)) {
+                filter.pageSize = Integer.parseInt(sosRequest.getParameter(Parser.PAGE_SIZE));
+                if (filter.pageSize < 1) {
+                    throw new NumberFormatException();
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return filter.fail("pageSize must be a number of 1 or more", Parser.PAGE_SIZE);
+        }
+        return filter;
+    }
+
+    private OfferingFilter fail(String error, String locator) {
+        this.error = error;
+        this.locator = locator;
+        return this;
+    }
+
+    /**
+     * @return a description of an invalid filter parameter, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the name of the invalid filter parameter
+     */
+    public String getLocator() {
+        return locator;
+    }
+
+    /**
+     * @return true if every station offering is listed
+     */
+    public boolean isEmpty() {
+        return this == NONE;
+    }
+
+    public int getStartIndex() {
+        return startIndex;
+    }
+
+    /**
+     * @param listed the number of offerings listed so far
+     * @return true if no more offerings are listed
+     */
+    public boolean isPageFull(int listed) {
+        return pageSize >= 0 && listed >= pageSize;
+    }
+
+    /**
+     * Checks a station against the filters; stations without a bounding box or time
+     * range do not match a filter on them.
+     * @param procedure urn of the station
+     * @param stationBBox bounding box of the station, may be null
+     * @param stationDateRange time range of the station, may be null
+     * @return true if the station's offering is listed
+     */
+    public boolean accepts(String procedure, LatLonRect stationBBox, CalendarDateRange stationDateRange) {
+        if (procedurePrefix != null && !procedure.startsWith(procedurePrefix)) {
+            return false;
+        }
+        if (bbox != null && (stationBBox == null
+                || stationBBox.getLonMax() < bbox[0] || stationBBox.getLatMax() < bbox[1]
+                || stationBBox.getLonMin() > bbox[2] || stationBBox.getLatMin() > bbox[3])) {
+            return false;
+        }
+        if (start != null && (stationDateRange == null
+                || stationDateRange.getEnd().isBefore(start) || stationDateRange.getStart().isAfter(end))) {
+            return false;
+        }
+        return true;
+    }
+}
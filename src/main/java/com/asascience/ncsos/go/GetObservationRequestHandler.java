@@ -7,10 +7,12 @@ import com.asascience.ncsos.outputformatter.go.Ioos10Formatter;
 import com.asascience.ncsos.outputformatter.go.JsonFormatter;
 import com.asascience.ncsos.outputformatter.go.OosTethysFormatter;
 import com.asascience.ncsos.service.BaseRequestHandler;
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import com.asascience.ncsos.util.DiscreteSamplingGeometryUtil;
 import com.asascience.ncsos.util.ListComprehension;
 import com.asascience.ncsos.util.VocabDefinitions;
 
-import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
 import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
 import ucar.nc2.VariableSimpleIF;
@@ -20,6 +22,8 @@ import ucar.nc2.constants.FeatureType;
 import ucar.nc2.dataset.CoordinateAxis;
 import ucar.nc2.dataset.CoordinateAxis1D;
 import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.time.CalendarDateRange;
 import ucar.nc2.units.DateUnit;
 
 import java.io.IOException;
@@ -27,6 +31,7 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,9 +58,18 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
     private static final String LATEST_TIME = "latest";
     private static final String FIRST_TIME = "first";
     private static final String ALL_OBS = "all";
+    private static final String RESPONSE_TOO_LARGE = "ResponseExceedsSizeLimit";
     private String latAxisName;
     private String lonAxisName;
     private String depthAxisName;
+    private ParallelObservationReader parallelReader;
+    private boolean parallelReadChecked;
+    private Resampling resampling;
+    // what the request resolved to, for setting it up again on the handles of parallel reads
+    private String[] requestedStationNames;
+    private String[] requestedEventTime;
+    private Map<String, String> requestedLatLon;
+    private Map<Integer, CalendarDateRange> stationDateRanges;
     /**
      * SOS get obs request handler
      * @param netCDFDataset dataset for which the get observation request is being made
@@ -89,7 +103,26 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
         
     }
 
-    
+    /**
+     * Checks a responseFormat against the formats GetObservation can write; does not need the dataset
+     * @param responseFormat responseFormat from the request
+     * @return true if one of the formatters handles it
+     */
+    public static boolean isSupportedResponseFormat(String responseFormat) {
+        try {
+            responseFormat = URLDecoder.decode(responseFormat, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        responseFormat = responseFormat.replaceAll(";\\s+subtype",";subtype");
+        return responseFormat.equalsIgnoreCase(OOSTETHYS_RESPONSE_FORMAT)
+                || responseFormat.equalsIgnoreCase(IOOS10_RESPONSE_FORMAT)
+                || responseFormat.equalsIgnoreCase(CSV_RESPONSE_FORMAT)
+                || responseFormat.equalsIgnoreCase(JSON_RESPONSE_FORMAT);
+    }
+
     private List<String> setupGetObservation(NetcdfDataset netCDFDataset,
             String[] requestedProcedures,
             String offering,
@@ -218,26 +251,19 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
         }
 
         if (eventTime != null && eventTime.length > 0) {
-            Array timeVals = null;
             DateUnit dateUnit = null;
             for(int eventTimeI = 0; eventTimeI < eventTime.length; eventTimeI++){
                 if(eventTime[eventTimeI].equals(LATEST_TIME) ||
                         eventTime[eventTimeI].equals(FIRST_TIME)){
-                    int timeIndex = 0;
-                    if(timeVals == null)
-                        timeVals = this.timeVariable.read();
                     if(dateUnit == null)
                         dateUnit = new DateUnit(timeVariable.getUnitsString());
-                    if(eventTime[eventTimeI].equals(FIRST_TIME)){
-                        this.requestFirstTime = true;
-                    }
-                    
-                    if(eventTime[eventTimeI].equals(LATEST_TIME)) {
-                        timeIndex = (int)timeVals.getSize() - 1;
+                    boolean latest = eventTime[eventTimeI].equals(LATEST_TIME);
+                    if(latest) {
                         this.requestLastTime = true;
+                    } else {
+                        this.requestFirstTime = true;
                     }
-                    double lastT = timeVals.getDouble(timeIndex);
-                    eventTime[eventTimeI] = dateUnit.makeStandardDateString(lastT);
+                    eventTime[eventTimeI] = dateUnit.makeStandardDateString(readBoundaryTime(latest));
                 }
 
             }
@@ -259,6 +285,111 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
 
     }
     
+    /**
+     * Creates the observations of the requested stations of a point dataset, before any is read.
+     * @param dataset the request's dataset or another handle on it
+     * @param featureType feature type of the dataset
+     * @param heightAxis vertical axis of the dataset, may be null
+     * @param stationVariable station variable of the dataset, may be null
+     * @param timeVariable time variable of the dataset
+     * @return the observations, or null if the feature type is not one of the point types
+     */
+    private iStationData newStationData(NetcdfDataset dataset, FeatureType featureType, CoordinateAxis heightAxis,
+            Variable stationVariable, Variable timeVariable) {
+        if (featureType == FeatureType.TRAJECTORY) {
+            return new Trajectory(requestedStationNames, requestedEventTime, this.obsProperties);
+        } else if (featureType == FeatureType.STATION) {
+            TimeSeries timeSeries = new TimeSeries(requestedStationNames, requestedEventTime, this.obsProperties);
+            timeSeries.setRecordVariables(dataset, stationVariable, timeVariable);
+            timeSeries.setStationDateRanges(stationDateRanges);
+            if (requestedEventTime != null
+                    && requestedEventTime[0].equals(requestedEventTime[requestedEventTime.length - 1])) {
+                timeSeries.setBoundaryRequest(this.requestFirstTime, this.requestLastTime);
+            }
+            return timeSeries;
+        } else if (featureType == FeatureType.STATION_PROFILE) {
+            TimeSeriesProfile timeSeriesProfile = new TimeSeriesProfile(requestedStationNames, requestedEventTime,
+                    this.obsProperties, this.requestFirstTime, this.requestLastTime,
+                    timeVariable.getRank() > 1,
+                    heightAxis);
+            timeSeriesProfile.setRecordVariables(dataset, stationVariable, timeVariable);
+            return timeSeriesProfile;
+        } else if (featureType == FeatureType.PROFILE) {
+            return new Profile(requestedStationNames, requestedEventTime, this.obsProperties);
+        } else if (featureType == FeatureType.SECTION) {
+            return new Section(requestedStationNames, requestedEventTime, this.obsProperties);
+        }
+        return null;
+    }
+
+    /**
+     * Sets up the observations of the request on another handle of its dataset, for a
+     * parallel read, from the procedures, observed properties and times the request
+     * resolved to.
+     * @param handle another handle on the dataset of the request
+     * @return the observations on the handle
+     */
+    private iStationData createReaderData(NetcdfDataset handle) throws IOException {
+        FeatureDataset handleFeatures = DatasetHandlerAdapter.wrapFeatures(handle, getFeatureDatasetType());
+        if (handleFeatures == null) {
+            throw new IOException("Unable to wrap " + handle.getLocation() + " as " + getFeatureDatasetType());
+        }
+        iStationData data;
+        if (getDatasetFeatureType() == FeatureType.GRID) {
+            data = new Grid(this.procedures, requestedEventTime, this.obsProperties, requestedLatLon);
+            data.setData(DiscreteSamplingGeometryUtil.extractGridDatasetCollection(handleFeatures));
+            return data;
+        }
+        Variable handleStation = (this.stationVariable != null)
+                ? handle.findVariable(this.stationVariable.getFullNameEscaped()) : null;
+        data = newStationData(handle, getDatasetFeatureType(), handle.findCoordinateAxis(AxisType.Height),
+                handleStation, handle.findCoordinateAxis(AxisType.Time));
+        if (data == null) {
+            return null;
+        }
+        if (resampling != null && !resampling.isEmpty()) {
+            ((baseCDMClass) data).setResampling(resampling.getIntervalMillis(), resampling.getMethod());
+        }
+        data.setData(DiscreteSamplingGeometryUtil.extractFeatureDatasetCollection(handleFeatures));
+        return data;
+    }
+
+    /**
+     * Returns the observations of each station folded into intervals.
+     * Only station time series and station profile datasets can be resampled. For any
+     * other dataset the response becomes an exception report.
+     * @param resampling the resampling parameters of the request, may be null
+     */
+    public void setResampling(Resampling resampling) {
+        this.resampling = resampling;
+        if (resampling == null || resampling.isEmpty() || CDMDataSet == null) {
+            return;
+        }
+        if (CDMDataSet instanceof TimeSeries || CDMDataSet instanceof TimeSeriesProfile) {
+            ((baseCDMClass) CDMDataSet).setResampling(resampling.getIntervalMillis(), resampling.getMethod());
+        } else {
+            formatter = new ErrorFormatter();
+            ((ErrorFormatter) formatter).setException("Observations can only be resampled for station time series"
+                    + " and station profile datasets", INVALID_PARAMETER, "resampleInterval");
+        }
+    }
+
+    /**
+     * Reads the first or the last value of the time variable, the time a <code>first</code>
+     * or <code>latest</code> event time stands for, without reading the whole variable.
+     * @param last true for the last value
+     */
+    private double readBoundaryTime(boolean last) throws IOException, InvalidRangeException {
+        int[] shape = timeVariable.getShape();
+        int[] origin = new int[shape.length];
+        int[] one = new int[shape.length];
+        for (int i = 0; i < shape.length; i++) {
+            origin[i] = last ? shape[i] - 1 : 0;
+            one[i] = 1;
+        }
+        return timeVariable.read(origin, one).getDouble(0);
+    }
+
     public boolean is3dGrid(String station){
     	boolean is3dGrid = false;
     	if(this.getCDMDataset() instanceof Grid){
@@ -346,6 +477,15 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
                 this.latAxisName = latAxis.getFullName();
                 this.obsProperties = checkNetcdfFileForAxis(latAxis, this.obsProperties);
               
+                boolean allDepths = !latLonRequest.containsKey(DEPTH)
+                        && ListComprehension.filter(Arrays.asList(this.obsProperties), DEPTH).size() > 0;
+                long cost = new ObservationCostEstimator(netCDFDataset).estimateGridValues(getGridDataset(),
+                        this.obsProperties, latLonRequest, eventTime, allDepths);
+                if (exceedsCostLimit(netCDFDataset, cost)) {
+                    return;
+                }
+                this.requestedEventTime = eventTime;
+                this.requestedLatLon = latLonRequest;
                 CDMDataSet = new Grid(this.procedures, eventTime, this.obsProperties, latLonRequest);
                 CDMDataSet.setData(getGridDataset());
             }
@@ -357,26 +497,24 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
             for(int statI = 0; statI < this.procedures.length; statI++){
             		stationsNamesFromUrn[statI]  = urnMap.get(procedures[statI]);
             }
-            
-            
-            if (currType == FeatureType.TRAJECTORY) {
-                CDMDataSet = new Trajectory(stationsNamesFromUrn, eventTime, this.obsProperties);
-            } else if (currType  == FeatureType.STATION) {
-                CDMDataSet = new TimeSeries(stationsNamesFromUrn, eventTime, this.obsProperties);
-            } else if (currType  == FeatureType.STATION_PROFILE) {
-                
-                CDMDataSet = new TimeSeriesProfile(stationsNamesFromUrn, eventTime, 
-                                                   this.obsProperties, this.requestFirstTime, this.requestLastTime,
-                                                   this.timeVariable.getRank() > 1,
-                                                   heightAxis);
-            } else if (currType == FeatureType.PROFILE) {
-                CDMDataSet = new Profile(stationsNamesFromUrn, eventTime, this.obsProperties);
-            } else if (currType  == FeatureType.SECTION) {
-                CDMDataSet = new Section(stationsNamesFromUrn, eventTime, this.obsProperties);
-            } else {
+            Set<String> requestedStations = new HashSet<String>(Arrays.asList(stationsNamesFromUrn));
+            requestedStations.remove(null);
+            long cost = new ObservationCostEstimator(netCDFDataset).estimatePointValues(this.obsProperties,
+                    this.timeVariable, requestedStations.size(), getStationNames().size(), eventTime,
+                    getMetadataIndex());
+            if (exceedsCostLimit(netCDFDataset, cost)) {
+                return;
+            }
+            this.requestedStationNames = stationsNamesFromUrn;
+            this.requestedEventTime = eventTime;
+            if (currType == FeatureType.STATION) {
+                this.stationDateRanges = getStationDateRanges();
+            }
+
+            CDMDataSet = newStationData(netCDFDataset, currType, heightAxis, this.stationVariable, this.timeVariable);
+            if (CDMDataSet == null) {
                 formatter = new ErrorFormatter();
                 ((ErrorFormatter)formatter).setException("NetCDF-Java could not recognize the dataset's FeatureType");
-                CDMDataSet = null;
                 return;
             }
             
@@ -394,7 +532,27 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
         	this.latAxisName = latAxis.getFullName();
     }
 
-    
+    /**
+     * Refuses the request with an exception report if the estimated number of values
+     * is over the limit of the dataset.
+     * @param netCDFDataset dataset of the request
+     * @param cost estimated number of values the request reads
+     * @return true if the request was refused
+     */
+    private boolean exceedsCostLimit(NetcdfDataset netCDFDataset, long cost) {
+        long limit = new ObservationCostEstimator(netCDFDataset).getLimit();
+        if (limit <= 0 || cost <= limit) {
+            return false;
+        }
+        _log.info("Refusing GetObservation request of about " + cost + " values, limit is " + limit);
+        formatter = new ErrorFormatter();
+        ((ErrorFormatter)formatter).setException("The request would return about " + cost
+                + " values, more than the " + limit + " allowed for this dataset. Request fewer procedures,"
+                + " observed properties or a shorter eventTime.", RESPONSE_TOO_LARGE);
+        CDMDataSet = null;
+        return true;
+    }
+
     public String getDepthUnits(){
     	String depthUnits = null;
     	
@@ -524,6 +682,84 @@ public class GetObservationRequestHandler extends BaseRequestHandler {
         String retval = CDMDataSet.getDataResponse(relIndex);
         return retval.replaceAll("\\.", decimal).replaceAll(",", token).replaceAll(";", block);
     }
+
+    /**
+     * Reads the observations of a procedure as typed columns, for formatters that do
+     * not need them as text.
+     * @param relIndex index of the procedure in the request
+     * @return the observations, with the error of a failed read
+     */
+    public ObservationBlock getObservationBlock(int relIndex) {
+        _log.info("Getting data for index: " + relIndex);
+        ParallelObservationReader reader = getParallelReader();
+        if (reader != null) {
+            ObservationBlock block = reader.get(relIndex);
+            if (block != null) {
+                return block;
+            }
+        }
+        return CDMDataSet.getDataBlock(relIndex);
+    }
+
+    /**
+     * Reads the observations of a procedure in batches, for formatters that write them
+     * as they are read.
+     * @param relIndex index of the procedure in the request
+     * @param visitor receives the batches
+     * @throws IOException if the visitor fails to write a batch
+     */
+    public void readObservations(int relIndex, ObservationVisitor visitor) throws IOException {
+        _log.info("Getting data for index: " + relIndex);
+        ParallelObservationReader reader = getParallelReader();
+        if (reader != null && reader.readObservations(relIndex, visitor)) {
+            return;
+        }
+        CDMDataSet.readData(relIndex, visitor);
+    }
+
+    /**
+     * Counts the observations of a procedure on the dataset of the request, without
+     * holding them or taking the ones read ahead, for formatters that write the count
+     * ahead of the values they stream.
+     * @param relIndex index of the procedure in the request
+     * @return the number of records {@link #readObservations} hands out
+     * @throws IOException if the observations can not be read
+     */
+    public int countObservations(int relIndex) throws IOException {
+        return CDMDataSet.countData(relIndex);
+    }
+
+    /**
+     * Stops reading procedures ahead and gives the dataset handles of the readers back;
+     * formatters call this once they have written the observations.
+     */
+    public void closeObservationReads() {
+        if (parallelReader != null) {
+            parallelReader.close();
+            parallelReader = null;
+        }
+        parallelReadChecked = true;
+    }
+
+    /**
+     * @return the reader reading the procedures ahead on handles of their own, or null if
+     *         the procedures are read one by one on the dataset of the request
+     */
+    private ParallelObservationReader getParallelReader() {
+        if (!parallelReadChecked) {
+            parallelReadChecked = true;
+            int procedureCount = procedures != null ? procedures.length : 0;
+            if (CDMDataSet != null && getNetCDFDataset() != null && ParallelObservationReader.isEnabled(procedureCount)) {
+                parallelReader = new ParallelObservationReader(getNetCDFDataset(),
+                        new ParallelObservationReader.StationDataFactory() {
+                            public iStationData create(NetcdfDataset handle) throws Exception {
+                                return createReaderData(handle);
+                            }
+                        }, procedureCount);
+            }
+        }
+        return parallelReader;
+    }
     //</editor-fold>
 
     public String getFillValue(String obsProp) {
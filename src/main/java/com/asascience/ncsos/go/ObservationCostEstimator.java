@@ -0,0 +1,236 @@
+package com.asascience.ncsos.go;
+
+import com.asascience.ncsos.cdmclasses.Grid;
+import com.asascience.ncsos.service.DatasetMetadataIndex;
+
+import thredds.servlet.ThreddsConfig;
+import ucar.ma2.Array;
+import ucar.nc2.Attribute;
+import ucar.nc2.Dimension;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.CoordinateAxis1D;
+import ucar.nc2.dataset.CoordinateAxis1DTime;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.dt.GridCoordSystem;
+import ucar.nc2.dt.GridDataset;
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateFormatter;
+import ucar.nc2.units.DateUnit;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Estimates how many values a GetObservation request will read, using only the
+ * shapes of the variables and the time coordinate, so oversized requests can be
+ * refused before any data is read.
+ * <p>
+ * The limit comes from the global attribute <code>ncsos_max_values</code> of the
+ * dataset (which can be added per dataset with NcML) or else from
+ * NCSOS.getObservation.maxValues in the threddsConfig.xml. A limit of 0, the default,
+ * turns the check off.
+ */
+public class ObservationCostEstimator {
+
+    public static final String MAX_VALUES_ATTRIBUTE = "ncsos_max_values";
+    public static final long DEFAULT_MAX_VALUES = 0L;
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(ObservationCostEstimator.class);
+
+    private final NetcdfDataset dataset;
+
+    public ObservationCostEstimator(NetcdfDataset dataset) {
+        this.dataset = dataset;
+    }
+
+    /**
+     * @return maximum number of values a single request may read from this dataset, 0 for no limit
+     */
+    public long getLimit() {
+        Attribute att = dataset.findGlobalAttributeIgnoreCase(MAX_VALUES_ATTRIBUTE);
+        if (att != null) {
+            try {
+                return att.isString() ? Long.parseLong(att.getStringValue().trim()) : att.getNumericValue().longValue();
+            } catch (NumberFormatException ex) {
+                _log.warn("Ignoring invalid " + MAX_VALUES_ATTRIBUTE + " attribute: " + att.getStringValue());
+            }
+        }
+        String configured = ThreddsConfig.get("NCSOS.getObservation.maxValues", null);
+        if (configured != null) {
+            try {
+                return Long.parseLong(configured.trim());
+            } catch (NumberFormatException ex) {
+                _log.warn("Ignoring invalid NCSOS.getObservation.maxValues: " + configured);
+            }
+        }
+        return DEFAULT_MAX_VALUES;
+    }
+
+    /**
+     * Estimates the values read for point (station, profile, trajectory) data:
+     * requested stations x matched time indices x variables x depth levels. The
+     * size of each variable already is stations x times x depths, so it is scaled
+     * by the fraction of stations requested and the fraction of the dataset time
+     * range covered by the request.
+     * @param variables observed properties of the request
+     * @param timeVariable time coordinate of the dataset
+     * @param requestedStations number of stations in the request
+     * @param totalStations number of stations in the dataset
+     * @param eventTime start and end of the request, or null for all times
+     * @param index metadata index of the dataset, may be null
+     * @return estimated number of values
+     */
+    public long estimatePointValues(String[] variables, Variable timeVariable, int requestedStations,
+            int totalStations, String[] eventTime, DatasetMetadataIndex index) throws IOException {
+        totalStations = Math.max(1, totalStations);
+        double stationFraction = Math.min(1.0, (double) Math.max(1, requestedStations) / totalStations);
+        double timeFraction = 1.0;
+        if (eventTime != null && eventTime.length > 0 && timeVariable != null && timeVariable.getSize() > 0) {
+            timeFraction = getTimeFraction(eventTime, timeVariable, index);
+            double minimum = 1.0 / getTimesPerStation(variables, timeVariable, totalStations);
+            timeFraction = Math.max(timeFraction, minimum);
+        }
+
+        double total = 0;
+        for (String name : variables) {
+            Variable var = dataset.findVariable(name);
+            if (var == null || var.isCoordinateVariable()) {
+                continue;
+            }
+            total += Math.max(1.0, var.getSize() * stationFraction * timeFraction);
+        }
+        return (long) Math.ceil(total);
+    }
+
+    /**
+     * Estimates the values read for a grid: for each requested grid the number of
+     * requested points x time indices in the window x depth levels.
+     * @param grids the grid dataset
+     * @param variables observed properties of the request
+     * @param latLonRequest requested latitude, longitude and depth values
+     * @param eventTime start and end of the request, or null for all times
+     * @param allDepths true if every level of the vertical axis is returned
+     * @return estimated number of values
+     */
+    public long estimateGridValues(GridDataset grids, String[] variables, Map<String, String> latLonRequest,
+            String[] eventTime, boolean allDepths) {
+        String lats = latLonRequest.get(Grid.LAT);
+        long points = lats != null ? lats.split(",").length : 1;
+        long total = 0;
+        for (String name : variables) {
+            GridDatatype grid = grids.findGridDatatype(name);
+            if (grid == null) {
+                continue;
+            }
+            GridCoordSystem gcs = grid.getCoordinateSystem();
+            long times = countTimes(gcs.getTimeAxis1D(), eventTime);
+            long depths = 1;
+            CoordinateAxis1D vertical = gcs.getVerticalAxis();
+            if (vertical != null && allDepths) {
+                depths = vertical.getSize();
+            }
+            total += points * times * depths;
+        }
+        return total;
+    }
+
+    private long countTimes(CoordinateAxis1DTime timeAxis, String[] eventTime) {
+        if (timeAxis == null) {
+            return 1;
+        }
+        if (eventTime == null || eventTime.length == 0) {
+            return timeAxis.getSize();
+        }
+        if (eventTime.length == 1 || eventTime[0].equals(eventTime[1])) {
+            return 1;
+        }
+        CalendarDate start = parseTime(eventTime[0]);
+        CalendarDate end = parseTime(eventTime[1]);
+        if (start == null || end == null) {
+            return timeAxis.getSize();
+        }
+        long count = 0;
+        for (CalendarDate date : timeAxis.getCalendarDates()) {
+            if (!date.isBefore(start) && !date.isAfter(end)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fraction of the dataset time range covered by the requested window. The range
+     * comes from the metadata index when it has one, otherwise from the first and
+     * last value of a one dimensional time coordinate.
+     */
+    private double getTimeFraction(String[] eventTime, Variable timeVariable, DatasetMetadataIndex index)
+            throws IOException {
+        CalendarDate reqStart = parseTime(eventTime[0]);
+        CalendarDate reqEnd = parseTime(eventTime[eventTime.length - 1]);
+        if (reqStart == null || reqEnd == null) {
+            return 1.0;
+        }
+
+        CalendarDate dataStart = null;
+        CalendarDate dataEnd = null;
+        if (index != null && index.getNetworkBounds() != null && index.getNetworkBounds().getDateRange() != null) {
+            dataStart = index.getNetworkBounds().getStart();
+            dataEnd = index.getNetworkBounds().getEnd();
+        } else if (timeVariable.getRank() == 1) {
+            try {
+                int last = (int) timeVariable.getSize() - 1;
+                Array first = timeVariable.read(new int[]{0}, new int[]{1});
+                Array end = timeVariable.read(new int[]{last}, new int[]{1});
+                DateUnit dateUnit = new DateUnit(timeVariable.getUnitsString());
+                CalendarDate a = CalendarDate.of(dateUnit.makeDate(first.getDouble(0)));
+                CalendarDate b = CalendarDate.of(dateUnit.makeDate(end.getDouble(0)));
+                dataStart = a.isBefore(b) ? a : b;
+                dataEnd = a.isBefore(b) ? b : a;
+            } catch (Exception ex) {
+                _log.debug("Unable to read the time range of " + timeVariable.getFullName() + ": " + ex.getMessage());
+                return 1.0;
+            }
+        }
+        if (dataStart == null || dataEnd == null) {
+            return 1.0;
+        }
+        long span = dataEnd.getMillis() - dataStart.getMillis();
+        if (span <= 0) {
+            return 1.0;
+        }
+        long from = Math.max(reqStart.getMillis(), dataStart.getMillis());
+        long to = Math.min(reqEnd.getMillis(), dataEnd.getMillis());
+        return Math.max(0.0, (double) (to - from) / span);
+    }
+
+    /**
+     * Number of time values per station: the length of a shared time dimension
+     * (orthogonal arrays), or else the time values spread over all stations
+     * (multidimensional and ragged arrays).
+     */
+    private long getTimesPerStation(String[] variables, Variable timeVariable, int totalStations) {
+        if (timeVariable.getRank() == 1) {
+            Dimension timeDim = timeVariable.getDimension(0);
+            for (String name : variables) {
+                Variable var = dataset.findVariable(name);
+                if (var != null && var.getRank() > 1 && var.getDimensions().contains(timeDim)) {
+                    return Math.max(1, timeDim.getLength());
+                }
+            }
+        }
+        return Math.max(1, timeVariable.getSize() / totalStations);
+    }
+
+    /**
+     * @return the time, or null if it is not an ISO 8601 time ('latest', 'first' or invalid);
+     *         the whole time range is counted then
+     */
+    private static CalendarDate parseTime(String time) {
+        try {
+            return CalendarDateFormatter.isoStringToCalendarDate(null, time);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+}
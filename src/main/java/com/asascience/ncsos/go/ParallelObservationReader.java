@@ -0,0 +1,531 @@
+package com.asascience.ncsos.go;
+
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.cdmclasses.ObservationVisitor;
+import com.asascience.ncsos.cdmclasses.iStationData;
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+
+import thredds.servlet.ThreddsConfig;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the observations of the procedures of a GetObservation request ahead of the
+ * formatter, several procedures at a time, and hands them over in procedure order.
+ * <p>
+ * NetcdfDataset handles can not be read from by several threads, so every reader has a
+ * handle of its own, opened the way the request's handle was (borrowed from the dataset
+ * handle pool when one is idle), and the observations of the request set up on it from
+ * the procedures, observed properties and times the request resolved to. The reads run
+ * on a pool shared by all requests
+ * (NCSOS.getObservation.readThreads); at most NCSOS.getObservation.readsPerDataset reads
+ * of the same dataset run at once across all requests, and a request has no more readers
+ * than that.
+ * <p>
+ * A procedure is read a batch at a time into a queue of its own holding a few batches, so
+ * a procedure of any size is read ahead in bounded memory: its read waits for the
+ * formatter once the queue is full, without holding a read of the dataset meanwhile.
+ * Readers are taken in procedure order, so the procedure the formatter waits for is never
+ * left without one. A procedure whose read has not started when the formatter gets to
+ * it, as when the read threads are busy with other requests, is read by the formatter
+ * on the dataset of the request instead.
+ */
+class ParallelObservationReader {
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(ParallelObservationReader.class);
+
+    // batches of a procedure queued ahead of the formatter
+    private static final int QUEUED_BATCHES = 2;
+    // queued after the last batch of a procedure
+    private static final ObservationBlock END = new ObservationBlock();
+
+    private static ThreadPoolExecutor executor = null;
+    // dataset location -> reads of the dataset, while any is running
+    private static final Map<String, DatasetPermits> datasetPermits = new HashMap<String, DatasetPermits>();
+
+    /**
+     * Sets up the observations of the request on a reader's own dataset handle.
+     */
+    interface StationDataFactory {
+        iStationData create(NetcdfDataset dataset) throws Exception;
+    }
+
+    /**
+     * A dataset handle and the observations of the request set up on it.
+     */
+    private static class Reader {
+        final NetcdfDataset handle;
+        final iStationData data;
+
+        Reader(NetcdfDataset handle, iStationData data) {
+            this.handle = handle;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The reads of a dataset that may run at once, and the number of reads using them.
+     */
+    private static class DatasetPermits extends Semaphore {
+        int reads = 0;
+
+        DatasetPermits(int permits) {
+            super(permits, true);
+        }
+    }
+
+    private final NetcdfDataset dataset;
+    private final String location;
+    private final StationDataFactory factory;
+    private final int procedureCount;
+    private final int maxReaders;
+    private final Future<?>[] reads;
+    private final BlockingQueue<ObservationBlock>[] queues;
+    // per procedure: its read started, it was stopped, it took a reader or never will
+    private final boolean[] started;
+    private final boolean[] stopped;
+    private final boolean[] passed;
+    private final LinkedList<Reader> idleReaders = new LinkedList<Reader>();
+    private final List<NetcdfDataset> opened = new ArrayList<NetcdfDataset>();
+    private final List<NetcdfDataset> inUse = new ArrayList<NetcdfDataset>();
+    private int readersMade = 0;
+    private int submitted = 0;
+    // procedures before this one were asked for or passed over by the formatter
+    private int consumed = 0;
+    // the procedure next in line for a reader
+    private int nextReader = 0;
+    private boolean closed = false;
+
+    /**
+     * @return true if the procedures of a request are read in parallel
+     */
+    static boolean isEnabled(int procedureCount) {
+        return procedureCount > 1 && ThreddsConfig.getInt("NCSOS.getObservation.readThreads",
+                Runtime.getRuntime().availableProcessors()) > 1 && getReadsPerDataset() > 1;
+    }
+
+    private static int getReadsPerDataset() {
+        return ThreddsConfig.getInt("NCSOS.getObservation.readsPerDataset", 2);
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, ThreddsConfig.getInt("NCSOS.getObservation.readThreads",
+                    Runtime.getRuntime().availableProcessors()));
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "ncsos-read-" + threadCount.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+    private static DatasetPermits joinPermits(String location) {
+        synchronized (datasetPermits) {
+            DatasetPermits permits = datasetPermits.get(location);
+            if (permits == null) {
+                permits = new DatasetPermits(Math.max(1, getReadsPerDataset()));
+                datasetPermits.put(location, permits);
+            }
+            permits.reads++;
+            return permits;
+        }
+    }
+
+    private static void leavePermits(String location, DatasetPermits permits) {
+        synchronized (datasetPermits) {
+            if (--permits.reads == 0) {
+                datasetPermits.remove(location);
+            }
+        }
+    }
+
+    /**
+     * @return true while a read of the dataset is running
+     */
+    static boolean isReading(String location) {
+        synchronized (datasetPermits) {
+            return datasetPermits.containsKey(location);
+        }
+    }
+
+    /**
+     * @param dataset dataset of the request, opened again for every reader
+     * @param factory sets up the observations of the request on a reader's handle
+     * @param procedureCount number of procedures of the request
+     */
+    ParallelObservationReader(NetcdfDataset dataset, StationDataFactory factory, int procedureCount) {
+        this(dataset, factory, procedureCount, getReadsPerDataset());
+    }
+
+    /**
+     * @param maxReaders most handles the request reads from at once
+     */
+    @SuppressWarnings("unchecked")
+    ParallelObservationReader(NetcdfDataset dataset, StationDataFactory factory, int procedureCount, int maxReaders) {
+        this.dataset = dataset;
+        this.location = dataset.getLocation();
+        this.factory = factory;
+        this.procedureCount = procedureCount;
+        this.maxReaders = Math.max(1, Math.min(maxReaders, procedureCount));
+        this.reads = new Future[procedureCount];
+        this.queues = new BlockingQueue[procedureCount];
+        this.started = new boolean[procedureCount];
+        this.stopped = new boolean[procedureCount];
+        this.passed = new boolean[procedureCount];
+    }
+
+    /**
+     * Waits for the observations of a procedure, starting the reads of the ones after it.
+     * @param relIndex index of the procedure in the request
+     * @return the observations, or null if the procedure was not read ahead (it was asked
+     *         for already, or its read had not started) and has to be read by the caller
+     */
+    ObservationBlock get(int relIndex) {
+        final ObservationBlock[] block = new ObservationBlock[1];
+        try {
+            boolean read = readObservations(relIndex, new ObservationVisitor() {
+                public void visit(ObservationBlock batch) {
+                    // the batches are copies, the first one can be kept
+                    if (block[0] == null) {
+                        block[0] = batch;
+                    } else {
+                        block[0].addRecords(batch);
+                    }
+                }
+            });
+            return read ? block[0] : null;
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+    }
+
+    /**
+     * Hands the batches of a procedure to a visitor as they are read, starting the reads
+     * of the ones after it.
+     * @param relIndex index of the procedure in the request
+     * @param visitor receives the batches
+     * @return false if the procedure was not read ahead and has to be read by the caller
+     * @throws IOException if the visitor fails to write a batch; the read of the
+     *         procedure is stopped
+     */
+    boolean readObservations(int relIndex, ObservationVisitor visitor) throws IOException {
+        BlockingQueue<ObservationBlock> queue = take(relIndex);
+        if (queue == null) {
+            return false;
+        }
+        boolean done = false;
+        try {
+            for (ObservationBlock batch = queue.take(); batch != END; batch = queue.take()) {
+                visitor.visit(batch);
+            }
+            done = true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("the request was cancelled");
+        } finally {
+            if (!done) {
+                stop(relIndex);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the reads and gives the dataset handles back.
+     */
+    void close() {
+        List<NetcdfDataset> handles;
+        synchronized (this) {
+            closed = true;
+            for (int p = 0; p < submitted; p++) {
+                stop(p);
+            }
+            idleReaders.clear();
+            handles = new ArrayList<NetcdfDataset>(opened);
+            opened.clear();
+            notifyAll();
+        }
+        // handles still being read from are given back by their read
+        for (NetcdfDataset handle : handles) {
+            if (!isInUse(handle)) {
+                release(handle);
+            }
+        }
+    }
+
+    /**
+     * Starts the reads up to a few procedures after the one asked for, and stops the ones
+     * the formatter passed over.
+     * @return the queue of the procedure, or null if the caller has to read it
+     */
+    private synchronized BlockingQueue<ObservationBlock> take(int relIndex) {
+        if (closed || relIndex < consumed || relIndex >= procedureCount) {
+            return null;
+        }
+        for (int p = consumed; p < relIndex && p < submitted; p++) {
+            stop(p);
+        }
+        consumed = relIndex + 1;
+        while (submitted < procedureCount && submitted <= relIndex + maxReaders) {
+            final int p = submitted++;
+            if (p < relIndex) {
+                stopped[p] = true;
+                passed[p] = true;
+                continue;
+            }
+            final BlockingQueue<ObservationBlock> queue = new ArrayBlockingQueue<ObservationBlock>(QUEUED_BATCHES);
+            queues[p] = queue;
+            reads[p] = getExecutor().submit(new Runnable() {
+                public void run() {
+                    readAhead(p, queue);
+                }
+            });
+        }
+        advance();
+        if (!started[relIndex]) {
+            // the read threads are busy, do not wait behind the reads of other requests
+            stop(relIndex);
+            return null;
+        }
+        BlockingQueue<ObservationBlock> queue = queues[relIndex];
+        queues[relIndex] = null;
+        return queue;
+    }
+
+    private synchronized void stop(int p) {
+        if (stopped[p]) {
+            return;
+        }
+        stopped[p] = true;
+        if (queues[p] != null) {
+            queues[p].clear();
+            queues[p] = null;
+        }
+        if (reads[p] != null) {
+            // a read that started may be waiting for room in its queue
+            reads[p].cancel(started[p]);
+            reads[p] = null;
+        }
+        if (!started[p]) {
+            passed[p] = true;
+            advance();
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean start(int p) {
+        if (stopped[p]) {
+            return false;
+        }
+        started[p] = true;
+        return true;
+    }
+
+    private synchronized boolean isStopped(int p) {
+        return stopped[p];
+    }
+
+    /**
+     * Moves the turn for a reader past the procedures that took one or never will.
+     */
+    private void advance() {
+        while (nextReader < procedureCount && passed[nextReader]) {
+            nextReader++;
+        }
+        notifyAll();
+    }
+
+    private synchronized boolean isInUse(NetcdfDataset handle) {
+        return inUse.contains(handle);
+    }
+
+    /**
+     * Reads a procedure into its queue, followed by END unless the read was stopped.
+     */
+    private void readAhead(final int p, final BlockingQueue<ObservationBlock> queue) {
+        if (!start(p)) {
+            return;
+        }
+        Reader reader = null;
+        boolean reusable = false;
+        try {
+            reader = takeReader(p);
+            if (reader == null) {
+                return;
+            }
+            final DatasetPermits permits = joinPermits(location);
+            try {
+                permits.acquire();
+                try {
+                    reader.data.readData(p, new ObservationVisitor() {
+                        public void visit(ObservationBlock batch) throws IOException {
+                            hand(p, queue, batch.copy(), permits);
+                        }
+                    });
+                } finally {
+                    permits.release();
+                }
+            } finally {
+                leavePermits(location, permits);
+            }
+            reusable = true;
+            hand(p, queue, END, null);
+        } catch (Throwable ex) {
+            if (!isStopped(p)) {
+                _log.error("Unable to read procedure " + p + " of " + location, ex);
+                try {
+                    hand(p, queue, failed(ex), null);
+                    hand(p, queue, END, null);
+                } catch (IOException stopped) {
+                    // the formatter stopped waiting for the procedure
+                }
+            }
+        } finally {
+            if (reader != null) {
+                giveBack(reader, reusable);
+            }
+        }
+    }
+
+    /**
+     * Queues a batch of a procedure, waiting for the formatter to take the ones before it
+     * when the queue is full; the dataset is left to other reads meanwhile.
+     * @param permits the permits of the dataset, one of them held by the read
+     * @throws IOException if the read of the procedure was stopped
+     */
+    private void hand(int p, BlockingQueue<ObservationBlock> queue, ObservationBlock batch,
+            Semaphore permits) throws IOException {
+        if (isStopped(p)) {
+            throw new InterruptedIOException("the request was cancelled");
+        }
+        if (queue.offer(batch)) {
+            return;
+        }
+        if (permits != null) {
+            permits.release();
+        }
+        try {
+            queue.put(batch);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("the request was cancelled");
+        } finally {
+            if (permits != null) {
+                permits.acquireUninterruptibly();
+            }
+        }
+    }
+
+    /**
+     * Waits for the turn of the procedure and a reader.
+     * @return the reader, or null if the read of the procedure was stopped
+     */
+    private Reader takeReader(int p) throws Exception {
+        synchronized (this) {
+            try {
+                while (!closed && !stopped[p]
+                        && (nextReader != p || (idleReaders.isEmpty() && readersMade >= maxReaders))) {
+                    wait();
+                }
+            } finally {
+                passed[p] = true;
+                advance();
+            }
+            if (closed || stopped[p]) {
+                return null;
+            }
+            if (!idleReaders.isEmpty()) {
+                Reader reader = idleReaders.removeFirst();
+                inUse.add(reader.handle);
+                return reader;
+            }
+            readersMade++;
+        }
+        NetcdfDataset handle = null;
+        try {
+            handle = DatasetHandlerAdapter.openAnother(dataset);
+            iStationData data = factory.create(handle);
+            if (data == null) {
+                throw new IllegalStateException("the observations of " + location + " can not be read");
+            }
+            boolean keep;
+            synchronized (this) {
+                // a request closed meanwhile did not see the handle
+                keep = !closed;
+                if (keep) {
+                    opened.add(handle);
+                    inUse.add(handle);
+                }
+            }
+            if (!keep) {
+                release(handle);
+                return null;
+            }
+            return new Reader(handle, data);
+        } catch (Exception ex) {
+            synchronized (this) {
+                readersMade--;
+                notifyAll();
+            }
+            release(handle);
+            throw ex;
+        }
+    }
+
+    /**
+     * Gives a reader back for the next procedure, or its handle back to the pool if the
+     * request was closed or the read did not finish.
+     */
+    private void giveBack(Reader reader, boolean reusable) {
+        boolean release;
+        synchronized (this) {
+            inUse.remove(reader.handle);
+            release = closed || !reusable;
+            if (!release) {
+                idleReaders.addLast(reader);
+            } else if (!closed) {
+                opened.remove(reader.handle);
+                readersMade--;
+            }
+            notifyAll();
+        }
+        if (release) {
+            release(reader.handle);
+        }
+    }
+
+    private static void release(NetcdfDataset handle) {
+        if (handle != null) {
+            DatasetHandlerAdapter.closeDataset(handle);
+        }
+    }
+
+    private static ObservationBlock failed(Throwable cause) {
+        ObservationBlock block = new ObservationBlock();
+        block.setError("ERROR =reading data from dataset: " + cause.getLocalizedMessage());
+        return block;
+    }
+}
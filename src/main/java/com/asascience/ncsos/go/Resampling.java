@@ -0,0 +1,119 @@
+package com.asascience.ncsos.go;
+
+import com.asascience.ncsos.cdmclasses.IntervalResampler;
+import com.asascience.ncsos.service.Parser;
+import com.asascience.ncsos.service.SosRequest;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The resampling asked for by a GetObservation request: resampleInterval, an ISO 8601
+ * duration of weeks, days, hours, minutes and seconds (P1D, PT6H, PT30M), and
+ * resampleMethod, one of mean (the default), min, max, count and last. The observations
+ * of each station are then returned as one record per interval, see {@link IntervalResampler}.
+ * Years and months are not accepted, their length varies.
+ */
+public class Resampling {
+
+    private static final Resampling NONE = new Resampling();
+    private static final Pattern DURATION = Pattern.compile(
+            "P(?:(\\d+)W)?(?:(\\d+)D)?(?:T(?:(\\d+)H)?(?:(\\d+)M)?(?:(\\d+(?:\\.\\d+)?)S)?)?",
+            Pattern.CASE_INSENSITIVE);
+
+    private long intervalMillis;
+    private IntervalResampler.Method method;
+    private String error;
+    private String locator;
+
+    private Resampling() {
+    }
+
+    /**
+     * Reads the resampling parameters of a GetObservation request.
+     * @param sosRequest the parsed request
+     * @return the resampling; check {@link #getError()} before using it
+     */
+    public static Resampling parse(SosRequest sosRequest) {
+        String interval = sosRequest.getParameter(Parser.RESAMPLE_INTERVAL);
+        String method = sosRequest.getParameter(Parser.RESAMPLE_METHOD);
+        if (interval == null && method == null) {
+            return NONE;
+        }
+        Resampling resampling = new Resampling();
+        if (interval == null) {
+            return resampling.fail("resampleMethod needs a resampleInterval", Parser.RESAMPLE_INTERVAL);
+        }
+        resampling.intervalMillis = parseDuration(interval);
+        if (resampling.intervalMillis <= 0) {
+            return resampling.fail("resampleInterval must be an ISO 8601 duration of weeks, days, hours, minutes"
+                    + " or seconds, like P1D or PT6H: " + interval, Parser.RESAMPLE_INTERVAL);
+        }
+        resampling.method = (method != null) ? IntervalResampler.Method.find(method) : IntervalResampler.Method.MEAN;
+        if (resampling.method == null) {
+            return resampling.fail("resampleMethod must be one of mean, min, max, count or last: " + method,
+                    Parser.RESAMPLE_METHOD);
+        }
+        return resampling;
+    }
+
+    /**
+     * @return the length of the duration in milliseconds, 0 if it is not one
+     */
+    private static long parseDuration(String duration) {
+        Matcher matcher = DURATION.matcher(duration);
+        if (!matcher.matches()) {
+            return 0;
+        }
+        try {
+            long[] unitMillis = {7L * 24 * 3600000, 24L * 3600000, 3600000L, 60000L};
+            long millis = 0;
+            for (int i = 0; i < unitMillis.length; i++) {
+                if (matcher.group(i + 1) != null) {
+                    millis += Long.parseLong(matcher.group(i + 1)) * unitMillis[i];
+                }
+            }
+            if (matcher.group(5) != null) {
+                millis += Math.round(Double.parseDouble(matcher.group(5)) * 1000);
+            }
+            return millis;
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    private Resampling fail(String error, String locator) {
+        this.error = error;
+        this.locator = locator;
+        return this;
+    }
+
+    /**
+     * @return a description of an invalid resampling parameter, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the name of the invalid resampling parameter
+     */
+    public String getLocator() {
+        return locator;
+    }
+
+    /**
+     * @return true if the observations are returned as read
+     */
+    public boolean isEmpty() {
+        return this == NONE;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public IntervalResampler.Method getMethod() {
+        return method;
+    }
+}
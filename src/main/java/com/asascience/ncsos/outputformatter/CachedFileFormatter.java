@@ -4,90 +4,214 @@
  */
 package com.asascience.ncsos.outputformatter;
 
-import com.asascience.ncsos.util.XMLDomUtils;
-import org.jdom.Document;
+import org.jdom.Comment;
 import org.jdom.Element;
-import org.jdom.Namespace;
-import org.jdom.output.Format;
-import org.jdom.output.XMLOutputter;
 
-import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.BitSet;
 
 /**
- *
+ * A GetCapabilities response kept as pre-serialized fragments: the start of the
+ * document, each of the four sections and the end of the document, UTF-8 encoded.
+ * Any combination of sections is written by concatenating the fragments, without
+ * parsing or building XML.
  * @author SCowan
  */
-public class CachedFileFormatter extends XmlOutputFormatter {
-    
-    private Document document;
-    private String errorString;
-    private boolean exceptionFlag;
-    
+public class CachedFileFormatter extends OutputFormatter {
+
+    public static final String CHARACTER_ENCODING = "UTF-8";
+
     private enum Sections {
         OPERATIONSMETADATA, SERVICEIDENTIFICATION, SERVICEPROVIDER, CONTENTS
     }
     private static final int SECTION_COUNT = 4;
+    // the sections in the order they appear in the document, with their element names
+    private static final Sections[] DOCUMENT_ORDER = {Sections.SERVICEIDENTIFICATION, Sections.SERVICEPROVIDER,
+            Sections.OPERATIONSMETADATA, Sections.CONTENTS};
+    private static final String[] ELEMENT_NAMES = {"ServiceIdentification", "ServiceProvider",
+            "OperationsMetadata", "Contents"};
+    private static final String[] ELEMENT_PREFIXES = {"ows", "ows", "ows", "sos"};
+    private static final String MARKER = "@@ncsos-section-";
+
+    private final byte[] start;
+    private final byte[][] sections;
+    private final byte[] end;
     private BitSet requestedSections;
-    private String TEMPLATE;
-    private String fileToRead;
-    
-    private final static String capabilitiesElement = "Capabilities";
-    
-    public CachedFileFormatter(File fileToRead) {
-        this.fileToRead = fileToRead.getAbsolutePath();
-        this.document = XMLDomUtils.loadFile(getClass().getClassLoader().getResourceAsStream(this.fileToRead));
-        this.initNamespaces();
-        requestedSections = new BitSet(SECTION_COUNT);
+
+    /**
+     * @param start the document up to the first section
+     * @param sections the serialized sections in document order, empty for a missing section
+     * @param end the document after the last section
+     */
+    private CachedFileFormatter(byte[] start, byte[][] sections, byte[] end) {
+        this.start = start;
+        this.sections = sections;
+        this.end = end;
+        this.requestedSections = new BitSet(SECTION_COUNT);
+        this.requestedSections.set(0, SECTION_COUNT);
+    }
+
+    /**
+     * Splits a complete GetCapabilities document into fragments. Marker comments are
+     * added around the sections of the document, so the formatter should not be used
+     * afterwards.
+     * @param capabilities a formatter holding every section
+     * @return the fragments of the document
+     */
+    public static CachedFileFormatter fromDocument(XmlOutputFormatter capabilities) throws IOException {
+        Element root = capabilities.getRoot();
+        for (int i = 0; i < DOCUMENT_ORDER.length; i++) {
+            Element section = root.getChild(ELEMENT_NAMES[i], capabilities.getNamespace(ELEMENT_PREFIXES[i]));
+            if (section != null) {
+                int at = root.indexOf(section);
+                root.addContent(at + 1, new Comment(MARKER + "end-" + i + "@@"));
+                root.addContent(at, new Comment(MARKER + "begin-" + i + "@@"));
+            }
+        }
+        StringWriter writer = new StringWriter();
+        capabilities.writeOutput(writer);
+        String xml = writer.toString();
+
+        byte[][] sections = new byte[DOCUMENT_ORDER.length][];
+        int documentStart = -1;
+        int documentEnd = -1;
+        for (int i = 0; i < DOCUMENT_ORDER.length; i++) {
+            String begin = "<!--" + MARKER + "begin-" + i + "@@-->";
+            String end = "<!--" + MARKER + "end-" + i + "@@-->";
+            int beginAt = xml.indexOf(begin);
+            int endAt = xml.indexOf(end);
+            if (beginAt < 0 || endAt < 0) {
+                sections[i] = new byte[0];
+                continue;
+            }
+            // keep the line break and indentation in front of the marker with the section
+            int lineStart = beginAt;
+            while (lineStart > 0 && Character.isWhitespace(xml.charAt(lineStart - 1))) {
+                lineStart--;
+            }
+            String section = xml.substring(lineStart, beginAt) + xml.substring(beginAt + begin.length(), endAt).trim();
+            sections[i] = section.getBytes(CHARACTER_ENCODING);
+            if (documentStart < 0) {
+                documentStart = lineStart;
+            }
+            documentEnd = endAt + end.length();
+        }
+        if (documentStart < 0) {
+            throw new IOException("The GetCapabilities document has no sections");
+        }
+        return new CachedFileFormatter(xml.substring(0, documentStart).getBytes(CHARACTER_ENCODING), sections,
+                xml.substring(documentEnd).getBytes(CHARACTER_ENCODING));
     }
 
-    protected String getTemplateLocation() {
-        return this.fileToRead;
+    /**
+     * Checks a sections parameter.
+     * @param sections comma separated section names or 'all', may be empty
+     * @return true if every name is a known section
+     */
+    public static boolean isValidSections(String sections) {
+        try {
+            parseSections(sections);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
     }
 
-    public void setSections(String sections) {
-        String[] sectionSplit = sections.split(",");
-        
-        for (String sect : sectionSplit) {
+    private static BitSet parseSections(String sections) {
+        BitSet requested = new BitSet(SECTION_COUNT);
+        for (String sect : sections.toLowerCase().split(",")) {
             if (sect.equals("all")) {
-                requestedSections.set(0, SECTION_COUNT);
-            } else {
-                requestedSections.set(Sections.valueOf(sect.toUpperCase()).ordinal());
+                requested.set(0, SECTION_COUNT);
+            } else if (!sect.equals("")) {
+                requested.set(Sections.valueOf(sect.toUpperCase()).ordinal());
             }
         }
+        return requested;
+    }
 
-        Namespace sosns = Namespace.getNamespace("sos");
-        Namespace owsns = Namespace.getNamespace("ows");
-        Element capsNode = this.getRoot().getChild(capabilitiesElement, sosns);
+    /**
+     * Copies the fragments for a request with the given sections.
+     * @param sections comma separated section names or 'all'
+     * @return a formatter writing only the requested sections
+     * @throws IllegalArgumentException if a section is not known
+     */
+    public CachedFileFormatter withSections(String sections) {
+        CachedFileFormatter formatter = new CachedFileFormatter(start, this.sections, end);
+        formatter.requestedSections = parseSections(sections);
+        return formatter;
+    }
 
-        if (!this.requestedSections.get(Sections.SERVICEIDENTIFICATION.ordinal())) {
-            capsNode.removeContent(capsNode.getChild("ServiceIdentification", owsns));
-        }
-        if (!this.requestedSections.get(Sections.SERVICEPROVIDER.ordinal())) {
-            capsNode.removeContent(capsNode.getChild("ServiceProvider", owsns));
+    /**
+     * Writes the fragments to a cache file.
+     */
+    public void writeFragments(DataOutputStream out) throws IOException {
+        writeBytes(out, start);
+        out.writeInt(sections.length);
+        for (byte[] section : sections) {
+            writeBytes(out, section);
         }
-        if (!this.requestedSections.get(Sections.OPERATIONSMETADATA.ordinal())) {
-            capsNode.removeContent(capsNode.getChild("OperationsMetadata", owsns));
+        writeBytes(out, end);
+    }
+
+    /**
+     * Reads fragments written by {@link #writeFragments}.
+     */
+    public static CachedFileFormatter readFragments(DataInputStream in) throws IOException {
+        byte[] start = readBytes(in);
+        int count = in.readInt();
+        if (count != DOCUMENT_ORDER.length) {
+            throw new IOException("expected " + DOCUMENT_ORDER.length + " sections, found " + count);
         }
-        if (!this.requestedSections.get(Sections.CONTENTS.ordinal())) {
-            capsNode.removeContent(capsNode.getChild("Contents", sosns));
+        byte[][] sections = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            sections[i] = readBytes(in);
         }
+        return new CachedFileFormatter(start, sections, readBytes(in));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
     }
 
     /***************************************************************************
      *   Interface Methods    **************************************************
      **************************************************************************/
-    
-  
+
+    /**
+     * Writes the requested sections as they were serialized, in {@link #CHARACTER_ENCODING}.
+     */
+    public void writeOutput(OutputStream out) throws IOException {
+        out.write(start);
+        for (int i = 0; i < DOCUMENT_ORDER.length; i++) {
+            if (requestedSections.get(DOCUMENT_ORDER[i].ordinal())) {
+                out.write(sections[i]);
+            }
+        }
+        out.write(end);
+    }
 
     public void writeOutput(Writer writer) throws IOException {
-        XMLOutputter xmlOutput = new XMLOutputter();
-        xmlOutput.setFormat(Format.getPrettyFormat());
-        xmlOutput.output(this.document, writer);
+        writer.write(new String(start, CHARACTER_ENCODING));
+        for (int i = 0; i < DOCUMENT_ORDER.length; i++) {
+            if (requestedSections.get(DOCUMENT_ORDER[i].ordinal())) {
+                writer.write(new String(sections[i], CHARACTER_ENCODING));
+            }
+        }
+        writer.write(new String(end, CHARACTER_ENCODING));
     }
-    
+
     public String getContentType() {
         return "text/xml";
     }
@@ -19,6 +19,21 @@ public abstract class OutputFormatter {
      */
     public abstract String getContentType();
 
-    
+    /**
+     * Whether the formatter reads the data while it writes the output and flushes the
+     * writer after every batch (one procedure), instead of building the whole response
+     * in memory first. Streamed responses are sent with chunked transfer encoding, so
+     * once the first batch has been flushed an error can no longer replace the response.
+     */
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Whether the output is an exception report instead of the requested response.
+     */
+    public boolean hasError() {
+        return hasError;
+    }
 
 }
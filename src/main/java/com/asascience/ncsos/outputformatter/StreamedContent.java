@@ -0,0 +1,18 @@
+package com.asascience.ncsos.outputformatter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Content of an xml element that is produced while the response is written rather than
+ * when the document is built, see {@link XmlOutputFormatter#addStreamedContent}.
+ */
+public interface StreamedContent {
+
+    /**
+     * Writes the (unescaped) text content of the element.
+     * @param writer escapes the text and forwards it to the response
+     * @throws IOException
+     */
+    public void write(Writer writer) throws IOException;
+}
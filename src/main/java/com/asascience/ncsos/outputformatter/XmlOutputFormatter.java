@@ -9,7 +9,9 @@ import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 
@@ -100,7 +102,11 @@ public abstract class XmlOutputFormatter extends OutputFormatter {
     public static final String COUNT = "Count";
     public static final String VALUES = "values";
 
+    private static final String STREAM_MARKER = "@@ncsos-stream-";
+    private static final String STREAM_MARKER_END = "@@";
+
     protected Document  document;
+    private final List<StreamedContent> streamedContent = new ArrayList<StreamedContent>();
 
     public XmlOutputFormatter() {
         this.document = XMLDomUtils.loadFile(getClass().getClassLoader().getResourceAsStream(this.getTemplateLocation()));
@@ -164,7 +170,81 @@ public abstract class XmlOutputFormatter extends OutputFormatter {
     public void writeOutput(Writer writer) throws IOException {
         XMLOutputter xmlOutput = new XMLOutputter();
         xmlOutput.setFormat(Format.getPrettyFormat());
-        xmlOutput.output(this.document, writer);
+        if (this.streamedContent.isEmpty()) {
+            xmlOutput.output(this.document, writer);
+            return;
+        }
+        // write the document around the placeholders, filling each one in from its source
+        StringWriter docWriter = new StringWriter();
+        xmlOutput.output(this.document, docWriter);
+        String xml = docWriter.toString();
+        Writer escaping = new EscapingWriter(writer);
+        int pos = 0;
+        for (int i = 0; i < this.streamedContent.size(); i++) {
+            String marker = STREAM_MARKER + i + STREAM_MARKER_END;
+            int at = xml.indexOf(marker, pos);
+            if (at < 0) {
+                continue;
+            }
+            writer.write(xml, pos, at - pos);
+            this.streamedContent.get(i).write(escaping);
+            writer.flush();
+            pos = at + marker.length();
+        }
+        writer.write(xml, pos, xml.length() - pos);
+    }
+
+    /**
+     * Sets the text of an element to content that is only produced when the output is
+     * written, so the data does not have to be held in the document. Elements have to be
+     * added in document order.
+     * @param element element to fill in
+     * @param content source of the element text
+     * @return the element
+     */
+    protected Element addStreamedContent(Element element, StreamedContent content) {
+        element.setText(STREAM_MARKER + this.streamedContent.size() + STREAM_MARKER_END);
+        this.streamedContent.add(content);
+        return element;
+    }
+
+    /**
+     * Escapes xml character data on its way to the response writer.
+     */
+    private static class EscapingWriter extends Writer {
+        private final Writer out;
+
+        EscapingWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            int start = off;
+            for (int i = off; i < off + len; i++) {
+                String replacement;
+                switch (cbuf[i]) {
+                    case '&': replacement = "&amp;"; break;
+                    case '<': replacement = "&lt;"; break;
+                    case '>': replacement = "&gt;"; break;
+                    default: continue;
+                }
+                out.write(cbuf, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            }
+            out.write(cbuf, start, off + len - start);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
     }
 
     public void setBoundedBy(String srsName, String lowerCorner, String upperCorner) {
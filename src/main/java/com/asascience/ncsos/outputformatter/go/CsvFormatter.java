@@ -8,170 +8,206 @@ import java.util.List;
 import java.util.Map;
 
 import com.asascience.ncsos.cdmclasses.Grid;
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.cdmclasses.ObservationVisitor;
 import com.asascience.ncsos.cdmclasses.TimeSeriesProfile;
-import com.asascience.ncsos.cdmclasses.baseCDMClass;
 import com.asascience.ncsos.go.GetObservationRequestHandler;
 import com.asascience.ncsos.outputformatter.OutputFormatter;
 
 public class CsvFormatter extends OutputFormatter {
 	private GetObservationRequestHandler handler;
+	private List<String> obsProps;
+	private boolean isFirstBlock = true;
+	private String headerStr = "";
+	private Map<String, List<Double>> heightMap = new HashMap<String, List<Double>>();
+	private boolean isProfile;
+	private boolean is3dGrid;
+	private List<String> allObsInHeader = new ArrayList<String>();
+
 	public CsvFormatter(GetObservationRequestHandler getObservationRequestHandler) {
 		this.handler = getObservationRequestHandler;
 	}
 
 	
 	  @Override
-	  public void writeOutput(Writer writer) throws IOException {
+	  public void writeOutput(final Writer writer) throws IOException {
 		  if (!hasError) {
-			  List<String> obsProps = this.handler.getRequestedObservedProperties();
-			  StringBuilder newString = new StringBuilder();
-			  Boolean isFirstBlock = true;
-			  String headerStr = "";
-			  Map<String, List<Double>> heightMap = new HashMap<String, List<Double>>();
-
-          	  boolean isProfile = handler.getCDMDataset() instanceof TimeSeriesProfile;
-          	  boolean is3dGrid =  this.handler.is3dGrid(this.handler.getCDMDataset().getStationName(0));
-          	  List<String> allObsInHeader = new ArrayList<String>();
-			  for (int p = 0; p < this.handler.getProcedures().length; p++) {
-				  String keyVals = this.handler.getValueBlockForAllObs(BLOCK_SEPERATOR, DECIMAL_SEPERATOR, TOKEN_SEPERATOR, p);
-				  for (String block :keyVals.split(BLOCK_SEPERATOR)) {
-					  // split on token seperator
-					  StringBuilder newBlock = new StringBuilder();
-					  boolean appendedHeader = false;
-					  Integer stNum = null;
-					  Integer bin = null;
-					  String currTime = null;
-					  String lat = null;
-					  String currDepth = null;
-					  String lon = null;
-					  for (String token : block.split(TOKEN_SEPERATOR)) {
-						  String[] tokenSplit = token.split("=");
-						  
-						  if(isFirstBlock && appendedHeader){
-							  headerStr = headerStr + TOKEN_SEPERATOR;
-							  appendedHeader = false;
-						  }
-						  
-						  if (token.contains(baseCDMClass.TIME_STR)) {
-							  currTime  = tokenSplit[1];
-							  if (isFirstBlock){
-								  headerStr = headerStr + tokenSplit[0];
-								  appendedHeader = true;
+			  obsProps = this.handler.getRequestedObservedProperties();
+          	  isProfile = handler.getCDMDataset() instanceof TimeSeriesProfile;
+          	  is3dGrid =  this.handler.is3dGrid(this.handler.getCDMDataset().getStationName(0));
+			  try {
+				  for (int p = 0; p < this.handler.getProcedures().length; p++) {
+					  // rows are written a batch at a time while the procedure is read
+					  this.handler.readObservations(p, new ObservationVisitor() {
+						  private boolean headerWritten = false;
+
+						  public void visit(ObservationBlock batch) throws IOException {
+							  StringBuilder newString = new StringBuilder();
+							  appendRecords(batch, newString);
+							  if (!headerWritten) {
+								  // the header is complete once the first records were seen
+								  writer.write(headerStr + BLOCK_SEPERATOR);
+								  headerWritten = true;
 							  }
+							  writer.write(newString.toString());
+							  writer.flush();
+						  }
+					  });
+				  }
+			  } finally {
+				  this.handler.closeObservationReads();
+			  }
+		  }
+	  }
 
-						  } 
+	  /**
+	   * Appends a line per observed value of the records, adding to the header while the
+	   * first records are seen.
+	   */
+	  private void appendRecords(ObservationBlock block, StringBuilder newString) {
+		  for (int record = 0; record < block.size(); record++) {
+			  StringBuilder newBlock = new StringBuilder();
+			  boolean appendedHeader = false;
+			  Integer stNum = null;
+			  Integer bin = null;
+			  String currTime = null;
+			  String lat = null;
+			  String currDepth = null;
+			  String lon = null;
+			  for (int column = 0; column < block.getColumnCount(); column++) {
+				  if (!block.hasValue(record, column)) {
+					  continue;
+				  }
+				  String name = block.getColumnName(column);
+				  
+				  if(isFirstBlock && appendedHeader){
+					  headerStr = headerStr + TOKEN_SEPERATOR;
+					  appendedHeader = false;
+				  }
+				  
+				  if (name.equals(ObservationBlock.TIME)) {
+					  currTime  = block.getText(record, column);
+					  if (isFirstBlock){
+						  headerStr = headerStr + name;
+						  appendedHeader = true;
+					  }
 
-						  else if (token.contains(baseCDMClass.STATION_STR)) {
-							  stNum = Integer.parseInt(tokenSplit[1]);
-							  
-							  if(isFirstBlock){
-								  headerStr = headerStr  + tokenSplit[0];
-								  appendedHeader = true;
+				  } 
+
+				  else if (name.equals(ObservationBlock.STATION)) {
+					  stNum = (int) block.getLong(record, column);
+					  
+					  if(isFirstBlock){
+						  headerStr = headerStr  + name;
+						  appendedHeader = true;
 
+					  }
+				  } 
+				  else if (name.equals("lat") || name.equals("lon")){
+					  if(isFirstBlock){
+						  headerStr = headerStr  + name;
+						  appendedHeader = true;
+					  }
+					  if(name.equals("lat"))
+						  lat = block.getText(record, column);
+					  else
+						  lon = block.getText(record, column);
+				  }
+			
+				  else if(name.equals(ObservationBlock.BIN) && (isProfile || is3dGrid)){
+					  bin = (int) block.getLong(record, column);
+				  }
+				  else if(name.equals(this.handler.getDepthAxisName())){
+					  currDepth = block.getText(record, column);
+				  }
+				  else {
+					  if (obsProps.contains(name)) {
+						  String value = block.getText(record, column);
+						  String station = "";
+						  if(stNum != null)
+							  station = this.handler.stationToFieldName(this.handler.getProcedures()[stNum]) + "_";
+						  String stationSensor = station + name;
+						  if(isFirstBlock){
+							  headerStr += "variable"+TOKEN_SEPERATOR;
+							  if(!(isProfile || is3dGrid) && currDepth != null){
+								  headerStr += this.handler.getDepthAxisName()+ "(" + this.handler.getDepthUnits() +")"+TOKEN_SEPERATOR;
 							  }
-						  } 
-						  else if (tokenSplit[0].equals("lat") || tokenSplit[0].equals("lon")){
-							  if(isFirstBlock){
-								  headerStr = headerStr  + tokenSplit[0];
-								  appendedHeader = true;
+						  }
+						  if((isProfile || is3dGrid) && !heightMap.containsKey(stationSensor)) {
+							  if(isProfile){
+								  if(isFirstBlock)
+									  headerStr = headerStr + "height(" +  ((TimeSeriesProfile )handler.getCDMDataset()).getHeightAxisUnits() +")"+TOKEN_SEPERATOR;
+								  heightMap.put(stationSensor, ((TimeSeriesProfile )
+											handler.getCDMDataset()).getProfileHeightsForStation(stNum));
+								 
 							  }
-							  if(tokenSplit[0].equals("lat"))
-								  lat = tokenSplit[1];
-							  else
-								  lon = tokenSplit[1];
+							  
+							  else {
+								  Grid grid = ((Grid) this.handler.getCDMDataset());
+								  heightMap.put(stationSensor, grid.getDepths(name));
+								  if(isFirstBlock)
+									  headerStr = headerStr + this.handler.getDepthAxisName()+ "(" +
+											  ((Grid) this.handler.getCDMDataset()).getDepthUnits(name)  +")"+TOKEN_SEPERATOR;
+							  }
+							  appendedHeader = true;
+
 						  }
-					
-						  else if(token.startsWith("BIN") && (isProfile || is3dGrid)){
-							  bin = Integer.valueOf(tokenSplit[1]);
+						  newBlock.append(currTime).append(TOKEN_SEPERATOR);
+						  if(lat != null){
+							  newBlock.append(lat).append(TOKEN_SEPERATOR);
 						  }
-						  else if(tokenSplit[0].equals(this.handler.getDepthAxisName())){
-							  currDepth = tokenSplit[1];
+						  if(lon != null){
+							  newBlock.append(lon).append(TOKEN_SEPERATOR);
 						  }
-						  else {
-							  if (obsProps.contains(tokenSplit[0]) && tokenSplit.length > 1) {
-								  String station = "";
-								  if(stNum != null)
-									  station = this.handler.stationToFieldName(this.handler.getProcedures()[stNum]) + "_";
-								  String stationSensor = station + tokenSplit[0];
-								  if(isFirstBlock){
-									  headerStr += "variable"+TOKEN_SEPERATOR;
-									  if(!(isProfile || is3dGrid) && currDepth != null){
-										  headerStr += this.handler.getDepthAxisName()+ "(" + this.handler.getDepthUnits() +")"+TOKEN_SEPERATOR;
-									  }
-								  }
-								  if((isProfile || is3dGrid) && !heightMap.containsKey(stationSensor)) {
-									  if(isProfile){
-										  if(isFirstBlock)
-											  headerStr = headerStr + "height(" +  ((TimeSeriesProfile )handler.getCDMDataset()).getHeightAxisUnits() +")"+TOKEN_SEPERATOR;
-										  heightMap.put(stationSensor, ((TimeSeriesProfile )
-													handler.getCDMDataset()).getProfileHeightsForStation(stNum));
-										 
-									  }
-									  
-									  else {
-										  Grid grid = ((Grid) this.handler.getCDMDataset());
-										  heightMap.put(stationSensor, grid.getDepths(tokenSplit[0]));
-										  if(isFirstBlock)
-											  headerStr = headerStr + this.handler.getDepthAxisName()+ "(" +
-													  ((Grid) this.handler.getCDMDataset()).getDepthUnits(tokenSplit[0])  +")"+TOKEN_SEPERATOR;
-									  }
-									  appendedHeader = true;
-
-								  }
-								  newBlock.append(currTime).append(TOKEN_SEPERATOR);
-								  if(lat != null){
-									  newBlock.append(lat).append(TOKEN_SEPERATOR);
-								  }
-								  if(lon != null){
-									  newBlock.append(lon).append(TOKEN_SEPERATOR);
-								  }
-								  
-								  newBlock.append(stationSensor);
-								  if(isProfile || is3dGrid){
-									  if (bin != null)
-										  newBlock.append(TOKEN_SEPERATOR).append(heightMap.get(stationSensor).get(bin));
-									  else{
-										  newBlock.append(TOKEN_SEPERATOR).append("");
-									  }
-								  }
-								  else if(currDepth != null){
-									  newBlock.append(TOKEN_SEPERATOR).append(currDepth);
-								  }
-								  newBlock.append(TOKEN_SEPERATOR).append(tokenSplit[1]).append(BLOCK_SEPERATOR);
-								  String sensorUnits = this.handler.getUnitsString(tokenSplit[0]);
-								  if(sensorUnits == null)
-									  sensorUnits = "none";
-								  if(isFirstBlock){
-									  headerStr += "value";
-								  }
-								  if(!allObsInHeader.contains(tokenSplit[0])){
-									  String statName = "";
-									  if(stNum != null){
-										  statName = this.handler.stationToFieldName(this.handler.getProcedures()[stNum]) + "_";
-									  }
-									  headerStr = statName+ tokenSplit[0] + " => " +this.handler.getVariableStandardName(tokenSplit[0]) + 
-											  "(" + sensorUnits +")"+"\n" + headerStr;
-									  allObsInHeader.add(tokenSplit[0]);
-									  appendedHeader = true;
-
-								  }
-								  isFirstBlock = false;
-
+						  
+						  newBlock.append(stationSensor);
+						  if(isProfile || is3dGrid){
+							  if (bin != null)
+								  newBlock.append(TOKEN_SEPERATOR).append(heightMap.get(stationSensor).get(bin));
+							  else{
+								  newBlock.append(TOKEN_SEPERATOR).append("");
 							  }
 						  }
-					  }
+						  else if(currDepth != null){
+							  newBlock.append(TOKEN_SEPERATOR).append(currDepth);
+						  }
+						  newBlock.append(TOKEN_SEPERATOR).append(value).append(BLOCK_SEPERATOR);
+						  String sensorUnits = this.handler.getUnitsString(name);
+						  if(sensorUnits == null)
+							  sensorUnits = "none";
+						  if(isFirstBlock){
+							  headerStr += "value";
+						  }
+						  if(!allObsInHeader.contains(name)){
+							  String statName = "";
+							  if(stNum != null){
+								  statName = this.handler.stationToFieldName(this.handler.getProcedures()[stNum]) + "_";
+							  }
+							  headerStr = statName+ name + " => " +this.handler.getVariableStandardName(name) + 
+									  "(" + sensorUnits +")"+"\n" + headerStr;
+							  allObsInHeader.add(name);
+							  appendedHeader = true;
 
-					  newString.append(newBlock.toString());
-					  //newString.append(BLOCK_SEPERATOR);
+						  }
+						  isFirstBlock = false;
+
+					  }
 				  }
-				  writer.write(headerStr + BLOCK_SEPERATOR + newString.toString());
 			  }
+
+			  newString.append(newBlock.toString());
+			  //newString.append(BLOCK_SEPERATOR);
 		  }
 	  }
 
 
 
 
+	@Override
+	public boolean isStreaming() {
+		return !hasError;
+	}
+
 	@Override
 	public String getContentType() {
 		
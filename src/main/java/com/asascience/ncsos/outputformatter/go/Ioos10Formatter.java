@@ -1,15 +1,16 @@
 package com.asascience.ncsos.outputformatter.go;
 
 import com.asascience.ncsos.cdmclasses.Grid;
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.cdmclasses.ObservationVisitor;
 import com.asascience.ncsos.cdmclasses.TimeSeriesProfile;
-import com.asascience.ncsos.cdmclasses.baseCDMClass;
 import com.asascience.ncsos.go.GetObservationRequestHandler;
+import com.asascience.ncsos.outputformatter.StreamedContent;
 import com.asascience.ncsos.outputformatter.XmlOutputFormatter;
 import com.asascience.ncsos.service.BaseRequestHandler;
 
 import org.jdom.Element;
 import org.jdom.Namespace;
-import org.springframework.util.StringUtils;
 
 import ucar.nc2.Attribute;
 import ucar.nc2.Variable;
@@ -369,27 +370,39 @@ public class Ioos10Formatter extends XmlOutputFormatter {
 
         Element dynamic_array = new Element("DataArray", this.SWE2_NS);
         dynamic_array.setAttribute(DEFINITION, OBS_COLLECTION_DEF);
-        // get the count of records (total)
-        StringBuilder strBuilder = new StringBuilder();
-        for (int p = 0; p < this.handler.getProcedures().length; p++) {
-            strBuilder.append(this.handler.getValueBlockForAllObs(BLOCK_SEPERATOR, DECIMAL_SEPERATOR, TOKEN_SEPERATOR, p));
-        }
-
-        if (StringUtils.countOccurrencesOf(strBuilder.toString(), "ERROR") > 0) {
-            this.hasError = true;
-            this.setupException(strBuilder.toString());
-            return dr;
-        }
-
         boolean is3dGrid = this.handler.is3dGrid(this.handler.getCDMDataset().getStationName(0));
 
-      
-
         if(this.handler.getCDMDataset() instanceof TimeSeriesProfile || is3dGrid){
-            this.createValuesElementTimeSeriesProfile(strBuilder, dynamic_array);
+            // the values are written one observed property at a time, so every procedure is held
+            List<ObservationBlock> blocks = new ArrayList<ObservationBlock>();
+            StringBuilder errors = new StringBuilder();
+            for (int p = 0; p < this.handler.getProcedures().length; p++) {
+                ObservationBlock block = this.handler.getObservationBlock(p);
+                if (block.hasError()) {
+                    errors.append(block.getError());
+                }
+                blocks.add(block);
+            }
+            if (errors.length() > 0) {
+                this.hasError = true;
+                this.setupException(errors.toString());
+                return dr;
+            }
+            this.createValuesElementTimeSeriesProfile(blocks, dynamic_array);
         }
         else {
-            int count = StringUtils.countOccurrencesOf(strBuilder.toString(), BLOCK_SEPERATOR);
+            // get the count of records (total), the values are read again as they are written
+            int count = 0;
+            try {
+                for (int p = 0; p < this.handler.getProcedures().length; p++) {
+                    count += this.handler.countObservations(p);
+                }
+            } catch (IOException ex) {
+                this.hasError = true;
+                this.setupException(ex.getMessage());
+                return dr;
+            }
+
             // create count element
             dynamic_array.addContent(this.createElementCount(count));
 
@@ -400,7 +413,14 @@ public class Ioos10Formatter extends XmlOutputFormatter {
             // create encoding element
             dynamic_array.addContent(this.createEncodingElement());
             // add value block to values
-            dynamic_array.addContent(this.createValuesElement(strBuilder));
+            dynamic_array.addContent(this.addStreamedContent(new Element("values", this.SWE2_NS), new StreamedContent() {
+                public void write(Writer writer) throws IOException {
+                    ValuesWriter values = new ValuesWriter(writer);
+                    for (int p = 0; p < handler.getProcedures().length; p++) {
+                        handler.readObservations(p, values);
+                    }
+                }
+            }));
         }
 
         dynamic_data.addContent(dynamic_array);
@@ -645,15 +665,14 @@ public class Ioos10Formatter extends XmlOutputFormatter {
         }
     }
 
-    private void createValuesElementTimeSeriesProfile(StringBuilder strBuilder, Element dynamicArray) {
+    private void createValuesElementTimeSeriesProfile(List<ObservationBlock> blocks, Element dynamicArray) {
         /*
          * Creates:
          * <swe2:valuse>data_blocks</swe2:values>
          */
-        // need to operate to pull out the unwanted information from the data string
-        // here is what it looks like from the observation handler:
+        // the records of the observation handler look like:
         //time=1990-01-01T00:00:00Z,station=0,temperature=22.0,alt=5.6375227[BLOCK_SEPERATOR]time=1990-01-01T00:00:00Z,station=1,temperature=14.0,alt=7.396358
-        // we need to remove all of the 'keys' (ie time, station, etc) and replace with desired info
+        // the 'keys' (ie time, station, etc) are replaced with desired info
         StringBuilder newString = new StringBuilder();
         List<String> obsProps = this.handler.getRequestedObservedProperties();
         String previousTime = null;
@@ -661,61 +680,64 @@ public class Ioos10Formatter extends XmlOutputFormatter {
         boolean firstProp = true;
         for(String obsProp : obsProps){
             previousTime = null;
-            for (String block : strBuilder.toString().split(BLOCK_SEPERATOR)) {
+            for (ObservationBlock block : blocks) {
+                for (int record = 0; record < block.size(); record++) {
             	
-                // split on token seperator
-                StringBuilder newBlock = new StringBuilder();
-                String binDef = null;
+                    StringBuilder newBlock = new StringBuilder();
+                    String binDef = null;
                 
-                boolean inPrevBlock = false;
-                String currTime = null;
-                for (String token : block.split(TOKEN_SEPERATOR)) {
-                    if (token.contains(baseCDMClass.TIME_STR)) {
-                        currTime = token.replaceAll("time=", "");
- 
-                        if((previousTime != null && !previousTime.equals(currTime)) ||
-                            (previousTime == null && !firstProp)){
-                            newBlock.append(BLOCK_SEPERATOR);
-
-                            inPrevBlock = false;
-                        }
-                        else if(previousTime != null) {
-                            inPrevBlock = true;
+                    boolean inPrevBlock = false;
+                    String currTime = null;
+                    for (int column = 0; column < block.getColumnCount(); column++) {
+                        if (!block.hasValue(record, column)) {
+                            continue;
                         }
-                        newBlock.append(currTime).append(TOKEN_SEPERATOR);
-                    } 
-                    else if(token.startsWith(TimeSeriesProfile.BIN_STR)){
-                        binDef = token.replaceAll(TimeSeriesProfile.BIN_STR, "");
+                        String name = block.getColumnName(column);
+                        if (name.equals(ObservationBlock.TIME)) {
+                            currTime = block.getText(record, column);
+ 
+                            if((previousTime != null && !previousTime.equals(currTime)) ||
+                                (previousTime == null && !firstProp)){
+                                newBlock.append(BLOCK_SEPERATOR);
 
-                    }
-                    else if (token.contains(baseCDMClass.STATION_STR)) {
-                        String[] tokenSplit = token.split("=");
-                        int stNum = Integer.parseInt(tokenSplit[1]);
+                                inPrevBlock = false;
+                            }
+                            else if(previousTime != null) {
+                                inPrevBlock = true;
+                            }
+                            newBlock.append(currTime).append(TOKEN_SEPERATOR);
+                        } 
+                        else if(name.equals(ObservationBlock.BIN)){
+                            binDef = block.getText(record, column);
 
-                        if(!inPrevBlock){
-                            newBlock.append(this.handler.stationToFieldName(this.handler.getProcedures()[stNum])).append("_");
                         }
+                        else if (name.equals(ObservationBlock.STATION)) {
+                            int stNum = (int) block.getLong(record, column);
 
-                    } 
-                    else {
-                        String[] tokenSplit = token.split("=");
-                        if (obsProp.equals(tokenSplit[0]) && tokenSplit.length > 1) {
-                            previousTime = currTime;
-
-                            // create a new block for each measurement
-                            // add name of measurement to match the data choice 
                             if(!inPrevBlock){
-                                newString.append(newBlock.toString()).append(tokenSplit[0]);
-                                countElems++;
+                                newBlock.append(this.handler.stationToFieldName(this.handler.getProcedures()[stNum])).append("_");
                             }
 
-                            newString.append(TOKEN_SEPERATOR);
+                        } 
+                        else {
+                            if (obsProp.equals(name)) {
+                                previousTime = currTime;
 
-                            if(binDef != null){
-                                newString.append(binDef).append(TOKEN_SEPERATOR);
-                            }
-                            newString.append(tokenSplit[1]);
+                                // create a new block for each measurement
+                                // add name of measurement to match the data choice 
+                                if(!inPrevBlock){
+                                    newString.append(newBlock.toString()).append(name);
+                                    countElems++;
+                                }
+
+                                newString.append(TOKEN_SEPERATOR);
+
+                                if(binDef != null){
+                                    newString.append(binDef).append(TOKEN_SEPERATOR);
+                                }
+                                newString.append(block.getText(record, column));
 
+                            }
                         }
                     }
                 }
@@ -741,49 +763,53 @@ public class Ioos10Formatter extends XmlOutputFormatter {
         
         dynamicArray.addContent(values);
     }
-    private Element createValuesElement(StringBuilder strBuilder) {
-        /*
-         * Creates:
-         * <swe2:valuse>data_blocks</swe2:values>
-         */
-        // need to operate to pull out the unwanted information from the data string
-        // here is what it looks like from the observation handler:
-        //time=1990-01-01T00:00:00Z,station=0,temperature=22.0,alt=5.6375227[BLOCK_SEPERATOR]time=1990-01-01T00:00:00Z,station=1,temperature=14.0,alt=7.396358
-        // we need to remove all of the 'keys' (ie time, station, etc) and replace with desired info
-        StringBuilder newString = new StringBuilder();
-        List<String> obsProps = this.handler.getRequestedObservedProperties();
-        for (String block : strBuilder.toString().split(BLOCK_SEPERATOR)) {
-            // split on token seperator
-            StringBuilder newBlock = new StringBuilder();
-     
-            for (String token : block.split(TOKEN_SEPERATOR)) {
-                if (token.contains(baseCDMClass.TIME_STR)) {
-                    newBlock.append(token.replaceAll("time=", "")).append(TOKEN_SEPERATOR);
-                } 
- 
-                else if (token.contains(baseCDMClass.STATION_STR)) {
-                    String[] tokenSplit = token.split("=");
-                    int stNum = Integer.parseInt(tokenSplit[1]);
-                    newBlock.append(this.handler.stationToFieldName(this.handler.getProcedures()[stNum])).append("_");
-                } else {
-                    String[] tokenSplit = token.split("=");
-                    if (obsProps.contains(tokenSplit[0]) && tokenSplit.length > 1) {
+    /**
+     * Writes the values of the procedures a batch at a time as they are read, each
+     * measurement a block of its own:
+     * time,station_sensor,value[BLOCK_SEPERATOR]time,station_sensor,value
+     * The block separator goes ahead of every block but the first, so none trails the last.
+     */
+    private class ValuesWriter implements ObservationVisitor {
+        private final Writer writer;
+        private final List<String> obsProps = handler.getRequestedObservedProperties();
+        private boolean first = true;
+
+        ValuesWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        public void visit(ObservationBlock block) throws IOException {
+            if (block.hasError()) {
+                throw new IOException(block.getError());
+            }
+            StringBuilder newString = new StringBuilder();
+            for (int record = 0; record < block.size(); record++) {
+                StringBuilder newBlock = new StringBuilder();
+
+                for (int column = 0; column < block.getColumnCount(); column++) {
+                    if (!block.hasValue(record, column)) {
+                        continue;
+                    }
+                    String name = block.getColumnName(column);
+                    if (name.equals(ObservationBlock.TIME)) {
+                        newBlock.append(block.getText(record, column)).append(TOKEN_SEPERATOR);
+                    } else if (name.equals(ObservationBlock.STATION)) {
+                        int stNum = (int) block.getLong(record, column);
+                        newBlock.append(handler.stationToFieldName(handler.getProcedures()[stNum])).append("_");
+                    } else if (obsProps.contains(name)) {
                         // create a new block for each measurement
                         // add name of measurement to match the data choice
-                        newString.append(newBlock.toString()).append(tokenSplit[0]).append(TOKEN_SEPERATOR);
-                        newString.append(tokenSplit[1]);
-                        newString.append(BLOCK_SEPERATOR);
+                        if (!first) {
+                            newString.append(BLOCK_SEPERATOR);
+                        }
+                        first = false;
+                        newString.append(newBlock).append(name).append(TOKEN_SEPERATOR);
+                        newString.append(block.getText(record, column));
                     }
                 }
             }
+            writer.write(newString.toString());
         }
-        // remove the last block seperator
-        Element values = new Element("values", this.SWE2_NS);
-        int endIndex = newString.length() - BLOCK_SEPERATOR.length();
-        if(endIndex < 0)
-            endIndex = 0;
-        values.setText(newString.substring(0, endIndex));
-        return values;
     }
 
     private Element createElementCount(Integer count) {
@@ -1079,12 +1105,25 @@ public class Ioos10Formatter extends XmlOutputFormatter {
     }
 
 
+    /**
+     * The values of the procedures are read and written one batch at a time.
+     */
+    @Override
+    public boolean isStreaming() {
+        return !hasError;
+    }
+
     @Override
     public void writeOutput(Writer writer) throws IOException {
-        if (!hasError) {
-            this.createIoosSosResponse();
+        try {
+            if (!hasError) {
+                this.createIoosSosResponse();
+            }
+            // the observations are read while the document is written
+            super.writeOutput(writer);
+        } finally {
+            this.handler.closeObservationReads();
         }
-        super.writeOutput(writer);
     }
 
 
@@ -10,8 +10,8 @@ import ucar.nc2.constants.AxisType;
 import ucar.nc2.dataset.CoordinateAxis;
 
 import com.asascience.ncsos.cdmclasses.Grid;
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
 import com.asascience.ncsos.cdmclasses.TimeSeriesProfile;
-import com.asascience.ncsos.cdmclasses.baseCDMClass;
 import com.asascience.ncsos.go.GetObservationRequestHandler;
 import com.asascience.ncsos.outputformatter.OutputFormatter;
 import com.asascience.ncsos.service.BaseRequestHandler;
@@ -21,6 +21,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class JsonFormatter extends OutputFormatter {
 	private GetObservationRequestHandler handler;
+	// the station index of the next station_<variable> key, for feature types without stations
+	private int cStat;
 	
 	
 	public JsonFormatter(
@@ -28,109 +30,104 @@ public class JsonFormatter extends OutputFormatter {
 		this.handler = getObservationRequestHandler;
 	}
 	
-	public void createDataStructs(Map<String, Map<String, JsonFormatterData>> stationData,
-			Map<String, Integer> stationToNum){
+	/**
+	 * Collects the data of a single procedure by station and variable.
+	 * @param stationData filled with the data by station and variable
+	 * @param stationToNum filled with the station index of each station key
+	 * @param p index of the procedure to read
+	 * @return false if the data have no station and are keyed station_&lt;variable&gt; like
+	 *         those of every other procedure, so they are only complete once all are read
+	 */
+	public boolean createDataStructs(Map<String, Map<String, JsonFormatterData>> stationData,
+			Map<String, Integer> stationToNum, int p){
 
 		List<String> obsProps = handler.getRequestedObservedProperties();
-		String time_keyname = baseCDMClass.TIME_STR.replace("=","");
-		String station_keyname = baseCDMClass.STATION_STR.replace("=", "");
-		String binKeyname = TimeSeriesProfile.BIN_STR.replace("=","");
 		Map<String, List<Double>> heightMap = new HashMap<String, List<Double>>();
 		boolean isProfile = handler.getCDMDataset() instanceof TimeSeriesProfile;
 		boolean is3dGrid =  this.handler.is3dGrid(this.handler.getCDMDataset().getStationName(0));
-		int cStat = 0;
-		for (int p = 0; p < handler.getProcedures().length; p++) {
-			String keyVals = handler.getValueBlockForAllObs(BLOCK_SEPERATOR, DECIMAL_SEPERATOR, TOKEN_SEPERATOR, p);
-			for (String block :keyVals.split(BLOCK_SEPERATOR)) {
-				String blockAr[] = block.split(TOKEN_SEPERATOR);
-				String station = "station";
-				String time = null;
-				int stationNum = -1;
-				String currDepth = null;
-				int bin = 0; // default when not a profile
-				for (String token : blockAr) {
-					String[] tokenSplit = token.split("=");
-					if (tokenSplit[0].equals(station_keyname)) {
-						stationNum = Integer.parseInt(tokenSplit[1]);
-						station = this.handler.stationToFieldName(this.handler.getProcedures()[stationNum]);
-					}
-					else if (tokenSplit[0].equals(time_keyname)) {
-						time = tokenSplit[1];
-					}
-					else if(tokenSplit[0].equals(binKeyname)){
-						bin = Integer.parseInt(tokenSplit[1]);
-					}
-					else if(tokenSplit[0].equals(this.handler.getDepthAxisName())){
-						currDepth = tokenSplit[1];
-					}
+		ObservationBlock block = handler.getObservationBlock(p);
+		int timeColumn = block.findColumn(ObservationBlock.TIME);
+		int stationColumn = block.findColumn(ObservationBlock.STATION);
+		int binColumn = block.findColumn(ObservationBlock.BIN);
+		int depthColumn = this.handler.getDepthAxisName() != null ? block.findColumn(this.handler.getDepthAxisName()) : -1;
+		for (int record = 0; record < block.size(); record++) {
+			String station = "station";
+			int stationNum = -1;
+			if (stationColumn >= 0 && block.hasValue(record, stationColumn)) {
+				stationNum = (int) block.getLong(record, stationColumn);
+				station = this.handler.stationToFieldName(this.handler.getProcedures()[stationNum]);
+			}
+			if (timeColumn < 0 || !block.hasValue(record, timeColumn)) continue;
+			String time = block.getText(record, timeColumn);
+			int bin = 0; // default when not a profile
+			if (binColumn >= 0 && block.hasValue(record, binColumn)) {
+				bin = (int) block.getLong(record, binColumn);
+			}
+			Double currDepth = null;
+			if (depthColumn >= 0 && block.hasValue(record, depthColumn)) {
+				currDepth = block.getDouble(record, depthColumn);
+			}
+
+			for (int column = 0; column < block.getColumnCount(); column++) {
+				String var = block.getColumnName(column);
+				if (column == timeColumn || column == stationColumn) {
+					continue;
 				}
-				
-				if(time == null) continue;
-
-		
-				
-				for (String token : blockAr) {
-					String[] tokenSplit = token.split("=");
-					String var = tokenSplit[0];
-					if (var.equals(time_keyname) || var.equals(station_keyname)) {
-						continue;
-					}
-					if (obsProps.contains(var) && tokenSplit.length > 1) {
-						String varValue = tokenSplit[1];
-						station = station + "_" + var;
-						if(!stationData.containsKey(station)){
-							if(stationNum != -1)
-								stationToNum.put(station, stationNum);
-							else {
-								stationToNum.put(station, cStat);
-								cStat++;
-							}
-							stationData.put(station, new HashMap<String, JsonFormatterData>());
+				if (obsProps.contains(var) && block.hasValue(record, column)) {
+					station = station + "_" + var;
+					if(!stationData.containsKey(station)){
+						if(stationNum != -1)
+							stationToNum.put(station, stationNum);
+						else {
+							stationToNum.put(station, cStat);
+							cStat++;
 						}
-						String varStandard = handler.getVariableStandardName(var);
-						if(varStandard.equals(BaseRequestHandler.UNKNOWN)){
-							varStandard = station;
-						}
-						Map<String, JsonFormatterData> cData = stationData.get(station);
+						stationData.put(station, new HashMap<String, JsonFormatterData>());
+					}
+					String varStandard = handler.getVariableStandardName(var);
+					if(varStandard.equals(BaseRequestHandler.UNKNOWN)){
+						varStandard = station;
+					}
+					Map<String, JsonFormatterData> cData = stationData.get(station);
 
-						if (!cData.containsKey(varStandard)){
-							String heightUnits = null;
-							if(isProfile){
-								heightUnits = ((TimeSeriesProfile )
-										handler.getCDMDataset()).getHeightAxisUnits();
+					if (!cData.containsKey(varStandard)){
+						String heightUnits = null;
+						if(isProfile){
+							heightUnits = ((TimeSeriesProfile )
+									handler.getCDMDataset()).getHeightAxisUnits();
 
-								heightMap.put(station, ((TimeSeriesProfile )
-										handler.getCDMDataset()).getProfileHeightsForStation(stationNum));
-							}
-							else if(is3dGrid){
-						      	Grid grid = ((Grid) this.handler.getCDMDataset());
-					        	heightMap.put(station, grid.getDepths(var));
-					        	heightUnits = grid.getDepthUnits(var);
-							}
-							else {
-								heightUnits = null;
-								CoordinateAxis zAxis = this.handler.getNetCDFDataset().findCoordinateAxis(AxisType.Height);
-								if(zAxis != null && zAxis.getSize() > 1){
-										heightUnits = this.handler.getDepthUnits();
-								}
+							heightMap.put(station, ((TimeSeriesProfile )
+									handler.getCDMDataset()).getProfileHeightsForStation(stationNum));
+						}
+						else if(is3dGrid){
+					      	Grid grid = ((Grid) this.handler.getCDMDataset());
+				        	heightMap.put(station, grid.getDepths(var));
+				        	heightUnits = grid.getDepthUnits(var);
+						}
+						else {
+							heightUnits = null;
+							CoordinateAxis zAxis = this.handler.getNetCDFDataset().findCoordinateAxis(AxisType.Height);
+							if(zAxis != null && zAxis.getSize() > 1){
+									heightUnits = this.handler.getDepthUnits();
 							}
-							// 
-							JsonFormatterData jdata = new JsonFormatterData(varStandard,
-									(handler.getUnitsString(var)), heightUnits);
-							cData.put(varStandard, jdata);
 						}
-						JsonFormatterData data = cData.get(varStandard);
-
-						data.getTimeValues().add(time);
-						data.getDataValues().add(varValue);
-						if(isProfile || is3dGrid)
-							data.getHeightValues().add(heightMap.get(station).get(bin));
-						else if(currDepth != null && data.heightValues != null)
-							data.heightValues.add(Double.valueOf(currDepth));
+						// 
+						JsonFormatterData jdata = new JsonFormatterData(varStandard,
+								(handler.getUnitsString(var)), heightUnits);
+						cData.put(varStandard, jdata);
 					}
+					JsonFormatterData data = cData.get(varStandard);
+
+					data.getTimeValues().add(time);
+					data.getDataValues().add(block.getNumber(record, column));
+					if(isProfile || is3dGrid)
+						data.getHeightValues().add(heightMap.get(station).get(bin));
+					else if(currDepth != null && data.heightValues != null)
+						data.heightValues.add(currDepth);
 				}
 			}
 		}
+		return stationColumn >= 0;
 	}
 	
 	  @Override
@@ -138,17 +135,6 @@ public class JsonFormatter extends OutputFormatter {
 		  JsonGenerator jsonGen = new JsonFactory().createGenerator(writer);
 		  Map<String, Map<String, JsonFormatterData>> stationData = new HashMap<String, Map<String, JsonFormatterData>>();
 		  Map<String, Integer> stationToNum = new HashMap<String, Integer>();
-		  String times = "times";
-		  String units = "units";
-		  String stationstr = "station";
-		  String values = "values";
-		  String coordinates = "coordinates";
-		  String heightstr = "height";
-		  if (!hasError) {
-			  this.createDataStructs(stationData, stationToNum);
-	  
-		  }
-		  
 		  /*{
 		   * station {
 		   *   coordinates   []
@@ -165,6 +151,37 @@ public class JsonFormatter extends OutputFormatter {
 		   */
 		  jsonGen.writeStartObject();
 
+		  int procedureCount = hasError ? 0 : this.handler.getProcedures().length;
+		  cStat = 0;
+		  try {
+			  for (int p = 0; p < procedureCount; p++) {
+				  // the data of a station are flushed before the next procedure is read; those
+				  // without stations share their keys across procedures and are written once all are read
+				  if (this.createDataStructs(stationData, stationToNum, p)) {
+					  this.writeStations(jsonGen, stationData, stationToNum);
+					  stationData.clear();
+					  stationToNum.clear();
+				  }
+			  }
+			  this.writeStations(jsonGen, stationData, stationToNum);
+		  } finally {
+			  if (!hasError) {
+				  this.handler.closeObservationReads();
+			  }
+		  }
+		  jsonGen.writeEndObject();
+
+		  jsonGen.flush();
+
+	  }
+
+	  private void writeStations(JsonGenerator jsonGen, Map<String, Map<String, JsonFormatterData>> stationData,
+			  Map<String, Integer> stationToNum) throws IOException {
+		  String times = "times";
+		  String units = "units";
+		  String values = "values";
+		  String coordinates = "coordinates";
+		  String heightstr = "height";
 		  for(String stationKey : stationData.keySet()){
 
 			  int stationNum = stationToNum.get(stationKey);
@@ -185,7 +202,7 @@ public class JsonFormatter extends OutputFormatter {
 					  jsonGen.writeString((String)t);
 				  }
 				  jsonGen.writeEndArray();
-				  
+		  
 				  if(data.isProfileData){
 					  jsonGen.writeObjectFieldStart(heightstr);
 					  jsonGen.writeStringField(units, data.getHeightUnits());
@@ -200,7 +217,11 @@ public class JsonFormatter extends OutputFormatter {
 				  jsonGen.writeArrayFieldStart(values);
 				  List<Object> dAr = data.getDataValues();
 				  for(Object dv : dAr){
-						  jsonGen.writeNumber(Double.valueOf((String) dv));					  
+					  // floats are written as they print, not widened to double
+					  if (dv instanceof Float)
+						  jsonGen.writeNumber((Float) dv);
+					  else
+						  jsonGen.writeNumber(((Number) dv).doubleValue());
 				  }
 				  jsonGen.writeEndArray();
 				  jsonGen.writeStringField(units, data.getUnits());
@@ -211,15 +232,16 @@ public class JsonFormatter extends OutputFormatter {
 			  jsonGen.writeEndObject();
 			  jsonGen.flush();
 
-			  
+	  
 		  }
-		  jsonGen.writeEndObject();
-
-		  jsonGen.flush();
-
 	  }
 
 	 
+	@Override
+	public boolean isStreaming() {
+		return !hasError;
+	}
+
 	@Override
 	public String getContentType() {
 		return "text/json";
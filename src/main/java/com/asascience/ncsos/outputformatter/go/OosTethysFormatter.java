@@ -1,6 +1,9 @@
 package com.asascience.ncsos.outputformatter.go;
 
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.cdmclasses.ObservationVisitor;
 import com.asascience.ncsos.go.GetObservationRequestHandler;
+import com.asascience.ncsos.outputformatter.StreamedContent;
 import com.asascience.ncsos.outputformatter.XmlOutputFormatter;
 import org.jdom.Element;
 import org.jdom.Namespace;
@@ -40,12 +43,27 @@ public class OosTethysFormatter extends XmlOutputFormatter {
         return TEMPLATE;
     }
 
+    /**
+     * The values of each observation are read and written one procedure at a time.
+     */
+    @Override
+    public boolean isStreaming() {
+        return !hasError;
+    }
+
     public void writeOutput(Writer writer) throws IOException {
         // create output if we don't already have an exception
         if (!hasError) {
             parseObservations(this.handler.getProcedures());
         }
-        super.writeOutput(writer);
+        try {
+            // the observations are read while the document is written
+            super.writeOutput(writer);
+        } finally {
+            if (!hasError) {
+                this.handler.closeObservationReads();
+            }
+        }
     }
 
     private void parseObservations(String[] procedures) {
@@ -169,7 +187,7 @@ public class OosTethysFormatter extends XmlOutputFormatter {
         return retval;
     }
 
-    private Element getResultElement(int index) {
+    private Element getResultElement(final int index) {
         Element parent = new Element("result", OM_NS);
         
         Element dataArray = new Element(DATA_ARRAY, OM_NS);
@@ -214,71 +232,100 @@ public class OosTethysFormatter extends XmlOutputFormatter {
         dataArray.addContent(getEncodingElement());
         
 //        dataArray.appendChild(createNodeWithText("swe:values", obsHandler.getValueBlockForAllObs(BLOCK_SEPERATOR, DECIMAL_SEPERATOR, TOKEN_SEPERATOR, index)));
-        dataArray.addContent(createNodeWithText(SWE_NS, "values",
-                processDataBlock(this.handler.getValueBlockForAllObs(BLOCK_SEPERATOR, DECIMAL_SEPERATOR, TOKEN_SEPERATOR, index))));
+        dataArray.addContent(addStreamedContent(new Element("values", SWE_NS), new StreamedContent() {
+            public void write(Writer writer) throws IOException {
+                ValuesWriter values = new ValuesWriter(writer);
+                handler.readObservations(index, values);
+                values.finish();
+            }
+        }));
         
         parent.addContent(dataArray);
         
         return parent;
     }
     
-    private String processDataBlock(String dataBlock) {
-        // split on token separator then on '='
-        StringBuilder retval = new StringBuilder();
-        String[] blockSplit = dataBlock.split(BLOCK_SEPERATOR);
-        String lastTime = null;
-        String latAxisName = this.handler.getLatAxisName();
-        String lonAxisName = this.handler.getLonAxisName();
-        String depthAxisName = this.handler.getDepthAxisName();
-        boolean skipLatLonBlock;
-        String lastDepth = null;
-        for (String block : blockSplit) {
-        	String[] tokenSplit = block.split(TOKEN_SEPERATOR);
-        	skipLatLonBlock = false;
-        	String skippedStr = "";
-        	for (String obsValue : tokenSplit) {
-        		String[] obs = obsValue.split("=");
-        		if (obs.length > 1 && (obs[0].equals("time") || isInRequestObservedProperties(obs[0]))){
-        			if(lastTime != null && obs[0].equals("time")) {
-        				if(!lastTime.equals(obs[1])){
-        					// remove last token seperator
-        					if (retval.length() > 1)
-        						retval.deleteCharAt(retval.length()-1);
-        					retval.append(BLOCK_SEPERATOR);
-        				}
-        				else
-        					skipLatLonBlock = true;
-        			}
-        			if(depthAxisName !=  null && obs[0].equals(depthAxisName)){
-        				if(skipLatLonBlock){
-        					if(lastDepth != obs[1]){
-        						skipLatLonBlock = false;
-        						if (retval.length() > 1)
-            						retval.deleteCharAt(retval.length()-1);
-        						retval.append(BLOCK_SEPERATOR);
-                				retval.append(skippedStr);
-                				skippedStr = "";
-        					}
-        				}
-        				lastDepth = obs[1];
-        			}
-        			if(! ((obs[0].equals(latAxisName)  || obs[0].equals(lonAxisName) || obs[0].equals("time") ||
-        					(depthAxisName !=  null && obs[0].equals(depthAxisName))) && skipLatLonBlock)){
-        				retval.append(obs[1]).append(TOKEN_SEPERATOR);
-        			}
-        			else {
-        				skippedStr += obs[1] + TOKEN_SEPERATOR;
-        			}
-        			if(obs[0].equals("time") )
-        				lastTime = obs[1];
-        		}
-        	}
+    /**
+     * Writes the values of a procedure a batch at a time as they are read. The last
+     * character written is held back, as a new block replaces the token separator before it.
+     */
+    private class ValuesWriter implements ObservationVisitor {
+        private final Writer writer;
+        private final StringBuilder retval = new StringBuilder();
+        private final String latAxisName = handler.getLatAxisName();
+        private final String lonAxisName = handler.getLonAxisName();
+        private final String depthAxisName = handler.getDepthAxisName();
+        private String lastTime = null;
+        private String lastDepth = null;
+        private long written = 0;
+
+        ValuesWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        public void visit(ObservationBlock dataBlock) throws IOException {
+            processDataBlock(dataBlock);
+            if (retval.length() > 1) {
+                writer.write(retval.substring(0, retval.length() - 1));
+                written += retval.length() - 1;
+                retval.delete(0, retval.length() - 1);
+            }
         }
-        // remove last block separator
-        if (retval.length() > 1)
+
+        void finish() throws IOException {
+            // remove last block separator
+            removeLast();
+            writer.write(retval.toString());
+        }
+
+        private void removeLast() {
+            if (written + retval.length() > 1 && retval.length() > 0)
                 retval.deleteCharAt(retval.length()-1);
-        
-        return retval.toString();
+        }
+
+        private void processDataBlock(ObservationBlock dataBlock) {
+            boolean skipLatLonBlock;
+            for (int record = 0; record < dataBlock.size(); record++) {
+            	skipLatLonBlock = false;
+            	String skippedStr = "";
+            	for (int column = 0; column < dataBlock.getColumnCount(); column++) {
+            		String key = dataBlock.getColumnName(column);
+            		String value = dataBlock.getText(record, column);
+            		if (value != null && (key.equals("time") || isInRequestObservedProperties(key))){
+            			if(lastTime != null && key.equals("time")) {
+            				if(!lastTime.equals(value)){
+            					// remove last token seperator
+            					removeLast();
+            					retval.append(BLOCK_SEPERATOR);
+            				}
+            				else
+            					skipLatLonBlock = true;
+            			}
+            			if(depthAxisName !=  null && key.equals(depthAxisName)){
+            				if(skipLatLonBlock){
+            					if(lastDepth != value){
+            						skipLatLonBlock = false;
+            						removeLast();
+            						retval.append(BLOCK_SEPERATOR);
+                    				retval.append(skippedStr);
+                    				skippedStr = "";
+            					}
+            				}
+            				lastDepth = value;
+            			}
+            			if(! ((key.equals(latAxisName)  || key.equals(lonAxisName) || key.equals("time") ||
+            					(depthAxisName !=  null && key.equals(depthAxisName))) && skipLatLonBlock)){
+            				retval.append(value).append(TOKEN_SEPERATOR);
+            			}
+            			else {
+            				skippedStr += value + TOKEN_SEPERATOR;
+            			}
+            			if(key.equals("time") )
+            				lastTime = value;
+            		}
+            	}
+            }
+        }
     }
     
     private boolean isInRequestObservedProperties(String name) {
@@ -1,5 +1,6 @@
 package com.asascience.ncsos.service;
 
+import com.asascience.ncsos.gc.CapabilitiesSnapshot;
 import com.asascience.ncsos.outputformatter.OutputFormatter;
 import com.asascience.ncsos.outputformatter.XmlOutputFormatter;
 import com.asascience.ncsos.util.DiscreteSamplingGeometryUtil;
@@ -18,6 +19,7 @@ import ucar.nc2.dt.GridDataset;
 import ucar.nc2.dt.GridDataset.Gridset;
 import ucar.nc2.dt.GridDatatype;
 import ucar.nc2.ft.*;
+import ucar.nc2.time.CalendarDateRange;
 
 import java.io.IOException;
 import java.text.NumberFormat;
@@ -59,6 +61,9 @@ public abstract class BaseRequestHandler {
     private FeatureDataset featureDataset;
     private FeatureCollection CDMPointFeatureCollection;
     private GridDataset gridDataSet = null;
+    private boolean featureDatasetOpened = false;
+    private FeatureType featureDatasetType;
+    protected DatasetMetadataIndex metadataIndex;
     
     // Global Attributes
     protected HashMap<String, Object> global_attributes = new HashMap<String, Object>();
@@ -183,19 +188,26 @@ public abstract class BaseRequestHandler {
     
     
     protected void initializeDataset() throws IOException{
+        // reuse the metadata index of an unchanged dataset file instead of parsing it again
+        DatasetMetadataIndex index = DatasetMetadataIndex.find(netCDFDataset);
+        if (index != null) {
+            parseGlobalAttributes();
+            if (restoreFromIndex(index)) {
+                metadataIndex = index;
+                isInitialized = true;
+                return;
+            }
+            // a variable of the index is not in the dataset, the index is stale
+            _log.info("Rebuilding the metadata index of " + netCDFDataset.getLocation());
+            stationVariable = null;
+        }
         // get the feature dataset (wraps the dataset in variety of accessor methods)
-        findFeatureDataset(FeatureDatasetFactoryManager.findFeatureType(netCDFDataset));
+        openFeatureDataset();
         // verify we could get a dataset (make sure the dataset is CF 1.6 compliant or whatever)
         if (gridDataSet == null && featureDataset == null) {
             _log.error("Unknown feature type! " + FeatureDatasetFactoryManager.findFeatureType(netCDFDataset));
             return;
         }
-        // if dataFeatureType is none/null (not GRID) get the point feature collection
-        if (dataFeatureType == null || dataFeatureType == FeatureType.NONE) {
-            CDMPointFeatureCollection = DiscreteSamplingGeometryUtil.extractFeatureDatasetCollection(featureDataset);
-            dataFeatureType = CDMPointFeatureCollection.getCollectionFeatureType();
-
-        }
         // find the global attributes
         parseGlobalAttributes();
         // get the station variable and several other bits needed
@@ -208,7 +220,169 @@ public abstract class BaseRequestHandler {
         timeVariable = netCDFDataset.findCoordinateAxis(AxisType.Time);
         depthVariable = netCDFDataset.findCoordinateAxis(AxisType.Height);
         isInitialized = true;
+        metadataIndex = buildIndex();
+        if (metadataIndex != null) {
+            DatasetMetadataIndex.store(metadataIndex);
+        }
     }
+
+    /**
+     * Wraps the dataset according to its feature type and, for anything but grids,
+     * extracts the point feature collection.
+     * @throws IOException
+     */
+    private void openFeatureDataset() throws IOException {
+        featureDatasetOpened = true;
+        findFeatureDataset(FeatureDatasetFactoryManager.findFeatureType(netCDFDataset));
+        // if dataFeatureType is not GRID get the point feature collection
+        if (featureDataset != null && gridDataSet == null && dataFeatureType != FeatureType.GRID) {
+            CDMPointFeatureCollection = DiscreteSamplingGeometryUtil.extractFeatureDatasetCollection(featureDataset);
+            dataFeatureType = CDMPointFeatureCollection.getCollectionFeatureType();
+        }
+    }
+
+    /**
+     * Opens the feature dataset on first use when the handler was initialized from
+     * the metadata index.
+     */
+    private void ensureFeatureDataset() {
+        if (!featureDatasetOpened && netCDFDataset != null) {
+            try {
+                openFeatureDataset();
+            } catch (IOException ex) {
+                _log.error("Unable to open the feature dataset: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Puts the metadata parsed from the dataset into a new index, if every variable it
+     * names can be found in the dataset again without the feature dataset.
+     */
+    private DatasetMetadataIndex buildIndex() {
+        DatasetMetadataIndex index = DatasetMetadataIndex.create(netCDFDataset);
+        if (index == null) {
+            return null;
+        }
+        for (Map.Entry<String, VariableSimpleIF> entry : sensorNames.entrySet()) {
+            Variable var = findDatasetVariable(entry.getValue());
+            if (var == null) {
+                return null;
+            }
+            index.sensorVariables.put(entry.getKey(), var.getFullNameEscaped());
+        }
+        index.featureType = dataFeatureType != null ? dataFeatureType.name() : null;
+        index.featureDatasetType = featureDataset != null && featureDataset.getFeatureType() != null ? featureDataset.getFeatureType().name() : null;
+        index.stationVariable = stationVariable != null ? stationVariable.getFullNameEscaped() : null;
+        index.latVariable = latVariable != null ? latVariable.getFullNameEscaped() : null;
+        index.lonVariable = lonVariable != null ? lonVariable.getFullNameEscaped() : null;
+        index.timeVariable = timeVariable != null ? timeVariable.getFullNameEscaped() : null;
+        index.depthVariable = depthVariable != null ? depthVariable.getFullNameEscaped() : null;
+        index.stationNames.putAll(stationNames);
+        index.urnToStationName.putAll(urnToStationName);
+        for (Map.Entry<String, Variable> entry : platformVariableMap.entrySet()) {
+            index.platformVariables.put(entry.getKey(), entry.getValue() != null ? entry.getValue().getFullNameEscaped() : null);
+        }
+        index.gridVariables.putAll(gridVariableMap);
+        return index;
+    }
+
+    /**
+     * Finds the dataset variable of a feature dataset variable, by its full name.
+     * @return the variable, or null if it is not a variable of the dataset
+     */
+    private Variable findDatasetVariable(VariableSimpleIF var) {
+        if (var instanceof Variable) {
+            return netCDFDataset.findVariable(((Variable) var).getFullNameEscaped());
+        }
+        if (var != null) {
+            for (Variable candidate : netCDFDataset.getVariables()) {
+                if (candidate.getFullName().equals(var.getFullName())) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the metadata of the dataset from its index.
+     * @return false if a variable of the index is not in the dataset
+     */
+    private boolean restoreFromIndex(DatasetMetadataIndex index) {
+        dataFeatureType = index.featureType != null ? FeatureType.valueOf(index.featureType) : null;
+        featureDatasetType = index.featureDatasetType != null ? FeatureType.valueOf(index.featureDatasetType) : null;
+        stationVariable = index.stationVariable != null ? netCDFDataset.findVariable(index.stationVariable) : null;
+        latVariable = findAxis(index.latVariable);
+        lonVariable = findAxis(index.lonVariable);
+        timeVariable = findAxis(index.timeVariable);
+        depthVariable = findAxis(index.depthVariable);
+        stationNames = new HashMap<Integer, String>(index.stationNames);
+        urnToStationName = new HashMap<String, String>(index.urnToStationName);
+        gridVariableMap = new HashMap<String, String>(index.gridVariables);
+        platformVariableMap = new HashMap<String, Variable>();
+        for (Map.Entry<String, String> entry : index.platformVariables.entrySet()) {
+            Variable var = entry.getValue() != null ? netCDFDataset.findVariable(entry.getValue()) : null;
+            if (entry.getValue() != null && var == null) {
+                return false;
+            }
+            platformVariableMap.put(entry.getKey(), var);
+        }
+        sensorNames = new HashMap<String, VariableSimpleIF>();
+        for (Map.Entry<String, String> entry : index.sensorVariables.entrySet()) {
+            VariableSimpleIF var = netCDFDataset.findVariable(entry.getValue());
+            if (var == null) {
+                return false;
+            }
+            sensorNames.put(entry.getKey(), var);
+        }
+        return (index.stationVariable == null || stationVariable != null)
+                && (index.latVariable == null || latVariable != null)
+                && (index.lonVariable == null || lonVariable != null)
+                && (index.timeVariable == null || timeVariable != null)
+                && (index.depthVariable == null || depthVariable != null);
+    }
+
+    private Variable findAxis(String name) {
+        if (name == null) {
+            return null;
+        }
+        Variable var = netCDFDataset.findVariable(name);
+        if (var == null) {
+            return null;
+        }
+        Variable axis = netCDFDataset.findCoordinateAxis(var.getFullName());
+        return axis != null ? axis : var;
+    }
+
+    /**
+     * Returns the metadata index used or built for this dataset
+     * @return the index, or null if the dataset is not indexed
+     */
+    public DatasetMetadataIndex getMetadataIndex() {
+        return metadataIndex;
+    }
+
+    /**
+     * Finds the time range of every station where it was computed before, by a GetCapabilities
+     * request of the same version of the dataset or in its metadata index.
+     * @return time range by station index, or null if it has not been computed
+     */
+    public Map<Integer, CalendarDateRange> getStationDateRanges() {
+        CapabilitiesSnapshot snapshot = CapabilitiesSnapshot.find(netCDFDataset);
+        if (snapshot != null) {
+            return snapshot.getStationDateRange();
+        }
+        if (metadataIndex != null && metadataIndex.hasStationBounds()) {
+            Map<Integer, CalendarDateRange> dateRanges = new HashMap<Integer, CalendarDateRange>();
+            for (Map.Entry<Integer, DatasetMetadataIndex.StationBounds> entry : metadataIndex.getStationBounds().entrySet()) {
+                dateRanges.put(entry.getKey(), entry.getValue().getDateRange());
+            }
+            return dateRanges;
+        }
+        return null;
+    }
+
     /**
      * Attempts to set the feature dataset based on the dataset's FeatureType
      * @param datasetFT The FeatureType of the netcdf dataset, found with the factory manager
@@ -657,7 +831,7 @@ public abstract class BaseRequestHandler {
      */
     protected String getUnitsOfVariable(String varName) {
         String units = "none";
-        if (featureDataset != null) {
+        if (getFeatureDataset() != null) {
            VariableSimpleIF ivar = featureDataset.getDataVariable(varName);
            if(ivar != null){
         	   units = ivar.getUnitsString();
@@ -678,7 +852,7 @@ public abstract class BaseRequestHandler {
 
 	protected Attribute[] getAttributesOfVariable(String varName) {
 		VariableSimpleIF var;
-        if (featureDataset != null) {
+        if (getFeatureDataset() != null) {
             var = featureDataset.getDataVariable(varName);
         } else {
             var = netCDFDataset.findVariable(varName);
@@ -703,14 +877,40 @@ public abstract class BaseRequestHandler {
      * @return wrapped dataset
      */
     public FeatureDataset getFeatureDataset() {
+        ensureFeatureDataset();
         return featureDataset;
     }
 
+    /**
+     * Returns the feature type netcdf-java wrapped the dataset as, without opening
+     * the feature dataset when it is known from the metadata index
+     * @return feature type of the wrapped dataset
+     */
+    public FeatureType getFeatureDatasetType() {
+        if (featureDatasetType == null && getFeatureDataset() != null) {
+            featureDatasetType = getFeatureDataset().getFeatureType();
+        }
+        return featureDatasetType;
+    }
+
+    /**
+     * Checks whether netcdf-java could wrap the dataset, without opening the feature
+     * dataset when the handler was initialized from the metadata index
+     * @return T if there is a feature or grid dataset
+     */
+    public boolean hasFeatureDataset() {
+        if (metadataIndex != null && !featureDatasetOpened) {
+            return true;
+        }
+        return featureDataset != null || gridDataSet != null;
+    }
+
     /**
      * If the dataset has feature type of Grid, this will return the wrapped dataset
      * @return wrapped dataset
      */
     public GridDataset getGridDataset() {
+        ensureFeatureDataset();
         return gridDataSet;
     }
     
@@ -727,6 +927,7 @@ public abstract class BaseRequestHandler {
      * @return feature collection dataset
      */
     public FeatureCollection getFeatureTypeDataSet() {
+        ensureFeatureDataset();
         return CDMPointFeatureCollection;
     }
 
@@ -894,7 +1095,7 @@ public abstract class BaseRequestHandler {
      */
     public String[] getCRSSRSAuthorities() {
         ArrayList<String> returnList = new ArrayList<String>();
-        for (VariableSimpleIF var : featureDataset.getDataVariables()) {
+        for (VariableSimpleIF var : getFeatureDataset().getDataVariables()) {
             for (Attribute attr : var.getAttributes()) {
                 if (attr.getFullName().equalsIgnoreCase(GRID_MAPPING)) {
                     String stName = attr.getValue(0).toString();
@@ -992,7 +1193,7 @@ public abstract class BaseRequestHandler {
      * @return list of variable interfaces
      */
     public List<VariableSimpleIF> getDataVariables() {
-        List<VariableSimpleIF> retval = ListComprehension.map(this.featureDataset.getDataVariables(), new ListComprehension.Func<VariableSimpleIF, VariableSimpleIF>() {
+        List<VariableSimpleIF> retval = ListComprehension.map(this.getFeatureDataset().getDataVariables(), new ListComprehension.Func<VariableSimpleIF, VariableSimpleIF>() {
             public VariableSimpleIF apply(VariableSimpleIF in) {
                 // check for direct name comparisons
                 for (String name : NON_DATAVAR_NAMES) {
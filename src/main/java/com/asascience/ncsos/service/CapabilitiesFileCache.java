@@ -0,0 +1,115 @@
+package com.asascience.ncsos.service;
+
+import com.asascience.ncsos.outputformatter.CachedFileFormatter;
+
+import thredds.servlet.ThreddsConfig;
+
+import java.io.*;
+
+/**
+ * Complete GetCapabilities documents, split into pre-serialized sections, written to
+ * the directory configured by NCSOS.capabilitiesFileCache.directory. A document is
+ * kept per request URL, since the URL is part of the document, and is only used while
+ * the size and modification time of the dataset file match the ones it was built from.
+ * Aggregations and remote datasets are not cached.
+ */
+public class CapabilitiesFileCache {
+
+    private static final int MAGIC = 0x4E434743; // "NCGC"
+    private static final int VERSION = 1;
+    private static final String DEFAULT_DIRECTORY = System.getProperty("java.io.tmpdir") + File.separator + "ncsos-getcaps";
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(CapabilitiesFileCache.class);
+
+    private CapabilitiesFileCache() {
+    }
+
+    /**
+     * Checks the threddsConfig.xml setting NCSOS.capabilitiesFileCache.enabled.
+     */
+    public static boolean isEnabled() {
+        return ThreddsConfig.getBoolean("NCSOS.capabilitiesFileCache.enabled", true);
+    }
+
+    /**
+     * Reads the cached document of a request URL if it was built from the dataset file as it is now.
+     * @param threddsURI url of the GetCapabilities request
+     * @param datasetFile local file of the dataset, may be null
+     * @return the document, or null if it has to be built
+     */
+    public static CachedFileFormatter find(String threddsURI, File datasetFile) {
+        if (datasetFile == null || !isEnabled()) {
+            return null;
+        }
+        File cacheFile = getCacheFile(threddsURI);
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw new IOException("not a GetCapabilities cache file of version " + VERSION);
+                }
+                if (!threddsURI.equals(in.readUTF()) || !datasetFile.getAbsolutePath().equals(in.readUTF())
+                        || in.readLong() != datasetFile.length() || in.readLong() != datasetFile.lastModified()) {
+                    return null;
+                }
+                return CachedFileFormatter.readFragments(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            _log.warn("Unable to read cached GetCapabilities document " + cacheFile + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes the document of a request URL to the cache directory.
+     * @param threddsURI url of the GetCapabilities request
+     * @param datasetFile local file of the dataset
+     * @param fileSize size of the dataset file before the document was built
+     * @param lastModified modification time of the dataset file before the document was built
+     * @param document the document with all sections
+     */
+    public static void store(String threddsURI, File datasetFile, long fileSize, long lastModified,
+            CachedFileFormatter document) {
+        File cacheFile = getCacheFile(threddsURI);
+        try {
+            File dir = cacheFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("could not create directory " + dir);
+            }
+            File tmp = File.createTempFile(cacheFile.getName(), ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(threddsURI);
+                out.writeUTF(datasetFile.getAbsolutePath());
+                out.writeLong(fileSize);
+                out.writeLong(lastModified);
+                document.writeFragments(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(cacheFile)) {
+                cacheFile.delete();
+                if (!tmp.renameTo(cacheFile)) {
+                    tmp.delete();
+                    throw new IOException("could not rename " + tmp);
+                }
+            }
+        } catch (IOException ex) {
+            _log.warn("Unable to write cached GetCapabilities document " + cacheFile + ": " + ex.getMessage());
+        }
+    }
+
+    private static File getCacheFile(String threddsURI) {
+        String dir = ThreddsConfig.get("NCSOS.capabilitiesFileCache.directory", DEFAULT_DIRECTORY);
+        String path = threddsURI.split("\\?")[0];
+        String name = path.substring(path.lastIndexOf('/') + 1).replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(dir, name + "." + Integer.toHexString(threddsURI.hashCode()) + ".caps");
+    }
+}
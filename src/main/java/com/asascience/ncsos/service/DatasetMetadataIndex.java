@@ -0,0 +1,368 @@
+package com.asascience.ncsos.service;
+
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+
+import thredds.servlet.ThreddsConfig;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.LatLonPointImpl;
+import ucar.unidata.geoloc.LatLonRect;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The SOS metadata of a dataset that BaseRequestHandler.initializeDataset would otherwise
+ * rebuild on every request: station names and urns, the platform variables, sensor names,
+ * axis variable names, the feature type and the per-station bounding box and time range.
+ * <p>
+ * Indexes are kept in memory and written as a small binary sidecar file to the directory
+ * configured by NCSOS.metadataIndex.directory, keyed by the dataset path and the file, so
+ * NcML views of a file have indexes of their own. At most NCSOS.metadataIndex.maxDatasets
+ * indexes are kept in memory, the least recently used is dropped first. An index is only used while the size and
+ * modification time of the dataset file match the ones it was built from. Aggregations and
+ * remote datasets are not indexed.
+ */
+public class DatasetMetadataIndex {
+
+    private static final int MAGIC = 0x4E434958; // "NCIX"
+    // version 3 names variables by their escaped full names
+    private static final int VERSION = 3;
+    private static final String DEFAULT_DIRECTORY = System.getProperty("java.io.tmpdir") + File.separator + "ncsos-index";
+
+    private static final Map<String, DatasetMetadataIndex> loaded = Collections.synchronizedMap(
+            new LinkedHashMap<String, DatasetMetadataIndex>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DatasetMetadataIndex> eldest) {
+                    return size() > Math.max(1, ThreddsConfig.getInt("NCSOS.metadataIndex.maxDatasets", 256));
+                }
+            });
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(DatasetMetadataIndex.class);
+
+    private final String key;
+    private final String path;
+    private final long fileSize;
+    private final long lastModified;
+
+    String featureType;
+    String featureDatasetType;
+    String stationVariable;
+    String latVariable, lonVariable, timeVariable, depthVariable;
+    LinkedHashMap<Integer, String> stationNames = new LinkedHashMap<Integer, String>();
+    LinkedHashMap<String, String> urnToStationName = new LinkedHashMap<String, String>();
+    LinkedHashMap<String, String> platformVariables = new LinkedHashMap<String, String>();
+    LinkedHashMap<String, String> gridVariables = new LinkedHashMap<String, String>();
+    // sensor name -> escaped full name of its variable
+    LinkedHashMap<String, String> sensorVariables = new LinkedHashMap<String, String>();
+
+    private volatile StationBounds networkBounds;
+    private volatile Map<Integer, StationBounds> stationBounds;
+
+    DatasetMetadataIndex(String key, String path, long fileSize, long lastModified) {
+        this.key = key;
+        this.path = path;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Checks the threddsConfig.xml setting NCSOS.metadataIndex.enabled.
+     */
+    public static boolean isEnabled() {
+        return ThreddsConfig.getBoolean("NCSOS.metadataIndex.enabled", true);
+    }
+
+    /**
+     * Returns the index for a dataset if there is one in memory or on disk that
+     * matches the current size and modification time of the dataset file.
+     * @param dataset an open dataset
+     * @return the index, or null if it has to be built
+     */
+    public static DatasetMetadataIndex find(NetcdfDataset dataset) {
+        File file = DatasetHandlerAdapter.getLocalFile(dataset);
+        if (file == null || !isEnabled()) {
+            return null;
+        }
+        String key = DatasetHandlerAdapter.getDatasetKey(dataset);
+        DatasetMetadataIndex index = loaded.get(key);
+        if (index != null && index.isCurrent(file)) {
+            return index;
+        }
+        loaded.remove(key);
+        File indexFile = getIndexFile(file, key);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try {
+            index = read(indexFile);
+        } catch (IOException ex) {
+            _log.warn("Unable to read metadata index " + indexFile + ": " + ex.getMessage());
+            return null;
+        }
+        if (!key.equals(index.key) || !index.isCurrent(file)) {
+            return null;
+        }
+        loaded.put(key, index);
+        return index;
+    }
+
+    /**
+     * Creates an empty index for the dataset file as it is now.
+     * @param dataset an open dataset
+     * @return a new index, or null if the dataset cannot be indexed
+     */
+    public static DatasetMetadataIndex create(NetcdfDataset dataset) {
+        File file = DatasetHandlerAdapter.getLocalFile(dataset);
+        if (file == null || !isEnabled()) {
+            return null;
+        }
+        return new DatasetMetadataIndex(DatasetHandlerAdapter.getDatasetKey(dataset), file.getAbsolutePath(),
+                file.length(), file.lastModified());
+    }
+
+    /**
+     * Makes the index available to later requests and writes it to the index directory.
+     * @param index a complete index
+     */
+    public static void store(DatasetMetadataIndex index) {
+        loaded.put(index.key, index);
+        File indexFile = getIndexFile(new File(index.path), index.key);
+        try {
+            File dir = indexFile.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("could not create directory " + dir);
+            }
+            File tmp = File.createTempFile(indexFile.getName(), ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                index.write(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tmp.renameTo(indexFile)) {
+                    tmp.delete();
+                    throw new IOException("could not rename " + tmp);
+                }
+            }
+        } catch (IOException ex) {
+            _log.warn("Unable to write metadata index " + indexFile + ": " + ex.getMessage());
+        }
+    }
+
+    static File getIndexFile(File file, String key) {
+        String dir = ThreddsConfig.get("NCSOS.metadataIndex.directory", DEFAULT_DIRECTORY);
+        String name = file.getName().replaceAll("[^A-Za-z0-9_.-]", "_");
+        return new File(dir, name + "." + Integer.toHexString(key.hashCode()) + ".idx");
+    }
+
+    private boolean isCurrent(File file) {
+        return file.length() == fileSize && file.lastModified() == lastModified;
+    }
+
+    /**
+     * @return true if the per-station bounds have been added to the index
+     */
+    public boolean hasStationBounds() {
+        return stationBounds != null;
+    }
+
+    /**
+     * @return bounds of the whole dataset, or null if not indexed yet
+     */
+    public StationBounds getNetworkBounds() {
+        return networkBounds;
+    }
+
+    /**
+     * @return bounds of each station by station index, or null if not indexed yet
+     */
+    public Map<Integer, StationBounds> getStationBounds() {
+        return stationBounds;
+    }
+
+    /**
+     * Adds the bounds calculated for the dataset; call {@link #store} afterwards to persist them.
+     * @param start start of the dataset time range, may be null
+     * @param end end of the dataset time range, may be null
+     * @param bboxes bounding box for each station index
+     * @param ranges time range for each station index
+     */
+    public void setBounds(CalendarDate start, CalendarDate end,
+            Map<Integer, LatLonRect> bboxes, Map<Integer, CalendarDateRange> ranges) {
+        Map<Integer, StationBounds> bounds = new LinkedHashMap<Integer, StationBounds>();
+        for (Map.Entry<Integer, LatLonRect> entry : bboxes.entrySet()) {
+            bounds.put(entry.getKey(), new StationBounds(entry.getValue(), ranges.get(entry.getKey())));
+        }
+        CalendarDateRange range = (start != null && end != null) ? CalendarDateRange.of(start, end) : null;
+        this.networkBounds = new StationBounds(null, range);
+        this.stationBounds = Collections.unmodifiableMap(bounds);
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(key);
+        out.writeUTF(path);
+        out.writeLong(fileSize);
+        out.writeLong(lastModified);
+        writeString(out, featureType);
+        writeString(out, featureDatasetType);
+        writeString(out, stationVariable);
+        writeString(out, latVariable);
+        writeString(out, lonVariable);
+        writeString(out, timeVariable);
+        writeString(out, depthVariable);
+        out.writeInt(stationNames.size());
+        for (Map.Entry<Integer, String> entry : stationNames.entrySet()) {
+            out.writeInt(entry.getKey());
+            writeString(out, entry.getValue());
+        }
+        writeMap(out, urnToStationName);
+        writeMap(out, platformVariables);
+        writeMap(out, gridVariables);
+        writeMap(out, sensorVariables);
+        Map<Integer, StationBounds> bounds = stationBounds;
+        out.writeBoolean(bounds != null);
+        if (bounds != null) {
+            networkBounds.write(out);
+            out.writeInt(bounds.size());
+            for (Map.Entry<Integer, StationBounds> entry : bounds.entrySet()) {
+                out.writeInt(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+    }
+
+    static DatasetMetadataIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a metadata index of version " + VERSION);
+            }
+            DatasetMetadataIndex index = new DatasetMetadataIndex(in.readUTF(), in.readUTF(), in.readLong(), in.readLong());
+            index.featureType = readString(in);
+            index.featureDatasetType = readString(in);
+            index.stationVariable = readString(in);
+            index.latVariable = readString(in);
+            index.lonVariable = readString(in);
+            index.timeVariable = readString(in);
+            index.depthVariable = readString(in);
+            for (int i = in.readInt(); i > 0; i--) {
+                index.stationNames.put(in.readInt(), readString(in));
+            }
+            readMap(in, index.urnToStationName);
+            readMap(in, index.platformVariables);
+            readMap(in, index.gridVariables);
+            readMap(in, index.sensorVariables);
+            if (in.readBoolean()) {
+                index.networkBounds = StationBounds.read(in);
+                Map<Integer, StationBounds> bounds = new LinkedHashMap<Integer, StationBounds>();
+                for (int i = in.readInt(); i > 0; i--) {
+                    bounds.put(in.readInt(), StationBounds.read(in));
+                }
+                index.stationBounds = Collections.unmodifiableMap(bounds);
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeMap(DataOutputStream out, Map<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static void readMap(DataInputStream in, Map<String, String> map) throws IOException {
+        for (int i = in.readInt(); i > 0; i--) {
+            map.put(readString(in), readString(in));
+        }
+    }
+
+    /**
+     * Bounding box and time range of a station, either may be missing.
+     */
+    public static class StationBounds {
+        private final double latMin, lonMin, latMax, lonWidth;
+        private final long start, end;
+        private final boolean hasBox, hasRange;
+
+        StationBounds(LatLonRect bbox, CalendarDateRange range) {
+            this.hasBox = bbox != null;
+            this.latMin = hasBox ? bbox.getLatMin() : 0;
+            this.lonMin = hasBox ? bbox.getLonMin() : 0;
+            this.latMax = hasBox ? bbox.getLatMax() : 0;
+            this.lonWidth = hasBox ? bbox.getWidth() : 0;
+            this.hasRange = range != null;
+            this.start = hasRange ? range.getStart().getMillis() : 0;
+            this.end = hasRange ? range.getEnd().getMillis() : 0;
+        }
+
+        private StationBounds(boolean hasBox, double latMin, double lonMin, double latMax, double lonWidth,
+                boolean hasRange, long start, long end) {
+            this.hasBox = hasBox;
+            this.latMin = latMin;
+            this.lonMin = lonMin;
+            this.latMax = latMax;
+            this.lonWidth = lonWidth;
+            this.hasRange = hasRange;
+            this.start = start;
+            this.end = end;
+        }
+
+        public LatLonRect getBoundingBox() {
+            if (!hasBox) {
+                return null;
+            }
+            return new LatLonRect(new LatLonPointImpl(latMin, lonMin), latMax - latMin, lonWidth);
+        }
+
+        public CalendarDateRange getDateRange() {
+            if (!hasRange) {
+                return null;
+            }
+            return CalendarDateRange.of(CalendarDate.of(start), CalendarDate.of(end));
+        }
+
+        public CalendarDate getStart() {
+            return hasRange ? CalendarDate.of(start) : null;
+        }
+
+        public CalendarDate getEnd() {
+            return hasRange ? CalendarDate.of(end) : null;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeBoolean(hasBox);
+            out.writeDouble(latMin);
+            out.writeDouble(lonMin);
+            out.writeDouble(latMax);
+            out.writeDouble(lonWidth);
+            out.writeBoolean(hasRange);
+            out.writeLong(start);
+            out.writeLong(end);
+        }
+
+        private static StationBounds read(DataInputStream in) throws IOException {
+            return new StationBounds(in.readBoolean(), in.readDouble(), in.readDouble(), in.readDouble(),
+                    in.readDouble(), in.readBoolean(), in.readLong(), in.readLong());
+        }
+    }
+}
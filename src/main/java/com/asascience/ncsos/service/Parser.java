@@ -3,21 +3,21 @@ package com.asascience.ncsos.service;
 import com.asascience.ncsos.ds.BaseDSHandler;
 import com.asascience.ncsos.error.ExceptionResponseHandler;
 import com.asascience.ncsos.gc.GetCapabilitiesRequestHandler;
+import com.asascience.ncsos.gc.OfferingFilter;
 import com.asascience.ncsos.go.GetObservationRequestHandler;
+import com.asascience.ncsos.go.Resampling;
 import com.asascience.ncsos.outputformatter.CachedFileFormatter;
+import com.asascience.ncsos.outputformatter.ErrorFormatter;
+import com.asascience.ncsos.outputformatter.OutputFormatter;
 import com.asascience.ncsos.outputformatter.XmlOutputFormatter;
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
 import com.asascience.ncsos.util.LogUtils;
-import com.asascience.ncsos.util.LowerCaseStringMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.SAXException;
 import ucar.nc2.dataset.NetcdfDataset;
 
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
-import java.net.URLDecoder;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -31,12 +31,12 @@ public class Parser {
     public static final String SECTIONS = "sections";
     public static final String USECACHE = "usecache";
     public static final String XML = "xml";
-    private LowerCaseStringMap queryParameters;
+    private SosRequest sosRequest;
+    // the request planRequest found valid, its parameters are not checked again
+    private SosRequest plannedRequest;
     private Logger _log;
-    private Map<String, String> coordsHash;
     private final String defService = "sos";
     private final String defVersion = "1.0.0";
-    private final String TRUE_STRING = "true";
     public final static String PROCEDURE = "procedure";
     public final static String ACCEPT_VERSIONS = "AcceptVersions";
     public final static String VERSION = "version";
@@ -50,9 +50,12 @@ public class Parser {
     public final static String OBSERVED_PROPERTY = "observedProperty";
     public final static String OFFERING = "offering";
     public final static String EVENT_TIME = "eventTime";
-    private final int numDays = 7;
-    // millisecs per sec * secs per hour * hour per day * day limit (1 week)
-    private final long CACHE_AGE_LIMIT = 1000 * 3600 * 24 * numDays;
+    public final static String BBOX = "bbox";
+    public final static String PROCEDURE_PREFIX = "procedurePrefix";
+    public final static String START_INDEX = "startIndex";
+    public final static String PAGE_SIZE = "pageSize";
+    public final static String RESAMPLE_INTERVAL = "resampleInterval";
+    public final static String RESAMPLE_METHOD = "resampleMethod";
 
 
 
@@ -91,23 +94,95 @@ public class Parser {
 
 
     public HashMap<String, Object> enhanceGETRequest(final NetcdfDataset dataset, final String query, String threddsURI, String savePath) throws IOException {
-        // clear anything that can cause issue if we were to use the same parser for multiple requests
-        queryParameters = new LowerCaseStringMap();
-        coordsHash = new HashMap<String, String>();
+        return enhanceGETRequest(dataset, SosRequest.parse(query), threddsURI, savePath);
+    }
 
-        if (query != null) {
-            // parse the query string
-            queryParameters.putAll(parseQuery(query));
+    /**
+     * First phase of a request, done before the dataset is opened: checks the parameters
+     * that can be checked without the dataset. {@link #enhanceGETRequest} does not check
+     * them again for the same request.
+     * @param sosRequest the parsed request
+     * @return an exception report if the request is invalid, otherwise null
+     */
+    public OutputFormatter planRequest(final SosRequest sosRequest) {
+        this.sosRequest = sosRequest;
+        this.plannedRequest = null;
+
+        HashMap<String, Object> retval = checkQueryParameters();
+        if (retval.containsKey(ERROR)) {
+            return errorHandler.getOutputFormatter();
+        }
+
+        SosRequest.Kind kind = sosRequest.getKind();
+        if (kind == SosRequest.Kind.GET_OBSERVATION) {
+            if (!GetObservationRequestHandler.isSupportedResponseFormat(sosRequest.getResponseFormat())) {
+                errorHandler.setException("Could not recognize response format: " + sosRequest.getResponseFormat(),
+                        BaseRequestHandler.INVALID_PARAMETER, "responseFormat");
+                return errorHandler.getOutputFormatter();
+            }
+            Resampling resampling = Resampling.parse(sosRequest);
+            if (resampling.getError() != null) {
+                errorHandler.setException(resampling.getError(), BaseRequestHandler.INVALID_PARAMETER,
+                        resampling.getLocator());
+                return errorHandler.getOutputFormatter();
+            }
+        } else if (kind == SosRequest.Kind.DESCRIBE_SENSOR) {
+            if (!BaseDSHandler.isAcceptableOutputFormat(sosRequest.getOutputFormat())) {
+                errorHandler.setException("Unknown outputFormat: " + sosRequest.getOutputFormat(),
+                        BaseRequestHandler.INVALID_PARAMETER, "outputFormat");
+                return errorHandler.getOutputFormatter();
+            }
+        } else if (kind == SosRequest.Kind.GET_CAPABILITIES) {
+            OfferingFilter filter = OfferingFilter.parse(sosRequest);
+            if (filter.getError() != null) {
+                errorHandler.setException(filter.getError(), BaseRequestHandler.INVALID_PARAMETER, filter.getLocator());
+                return errorHandler.getOutputFormatter();
+            }
         } else {
-            // we are assuming that a request made here w/o a query string is a 'GetCapabilities' request
-            // add the request to our query parameters, as well as some other default values
-            queryParameters.put(REQUEST, GETCAPABILITIES);
-            queryParameters.put(SERVICE, defService);
-            queryParameters.put(ACCEPT_VERSIONS, defVersion);
+            String message = sosRequest.getRequest() + " is not a supported request.";
+            _log.error(message);
+            errorHandler.setException(message, BaseRequestHandler.OPERATION_NOT_SUPPORTED, "request");
+            return errorHandler.getOutputFormatter();
         }
+        this.plannedRequest = sosRequest;
+        return null;
+    }
 
-        // check the query parameters to make sure all required parameters are passed in
-        HashMap<String, Object> retval = checkQueryParameters();
+    /**
+     * Looks up the cached document of a GetCapabilities request, without opening the dataset.
+     * @param sosRequest the parsed request
+     * @param threddsURI
+     * @param datasetFile local file of the dataset, may be null
+     * @return the requested sections of the cached document, or null if the dataset has to be read
+     */
+    public OutputFormatter findCachedCapabilities(final SosRequest sosRequest, String threddsURI, File datasetFile) {
+        String sections = sosRequest.getSections() != null ? sosRequest.getSections() : "all";
+        if (sosRequest.getKind() != SosRequest.Kind.GET_CAPABILITIES || !CachedFileFormatter.isValidSections(sections)
+                || !OfferingFilter.parse(sosRequest).isEmpty()) {
+            // filtered and paged documents are built for the request
+            return null;
+        }
+        CachedFileFormatter document = CapabilitiesFileCache.find(threddsURI, datasetFile);
+        return document != null ? document.withSections(sections) : null;
+    }
+
+    /**
+     * enhanceGETRequest - creates the handler for an already parsed request
+     * @param dataset NetcdfDataset to enhanceGETRequest the NCML
+     * @param sosRequest the parsed request
+     * @param threddsURI
+     * @param savePath not used, cached GetCapabilities documents go to NCSOS.capabilitiesFileCache.directory
+     * @return
+     * @throws IOException
+     */
+    public HashMap<String, Object> enhanceGETRequest(final NetcdfDataset dataset, final SosRequest sosRequest, String threddsURI, String savePath) throws IOException {
+        this.sosRequest = sosRequest;
+        final String query = sosRequest.getQuery();
+
+        // check the query parameters to make sure all required parameters are passed in,
+        // unless planRequest did already
+        HashMap<String, Object> retval = (sosRequest == plannedRequest)
+                ? new HashMap<String, Object>() : checkQueryParameters();
 
         if (retval.containsKey(ERROR)) {
             retval.put(OUTPUT_FORMATTER, errorHandler.getOutputFormatter());
@@ -115,52 +190,44 @@ public class Parser {
         }
 
         try {
-            String request = queryParameters.get(REQUEST).toString();
+            SosRequest.Kind kind = sosRequest.getKind();
 
-            if (request.equalsIgnoreCase(GETCAPABILITIES)) {
+            if (kind == SosRequest.Kind.GET_CAPABILITIES) {
                 GetCapabilitiesRequestHandler capHandler = null;
                 String sections = "all";
-                if (queryParameters.containsKey(SECTIONS)) {
-                    sections = queryParameters.get(SECTIONS).toString();
+                if (sosRequest.getSections() != null) {
+                    sections = sosRequest.getSections();
                 }
-                // check to see if cache is enabled
-                if (queryParameters.containsKey(USECACHE) && queryParameters.get(USECACHE).toString().equals(TRUE_STRING) && savePath != null) {
-                    //Check to see if get caps exists, if it does not actual parse the file
-                    _log.debug("Cache enabled for GetCapabilities");
-                    File f = new File(savePath + getCacheXmlFileName(threddsURI));
-                    if (f.exists()) {
-                        //if the file exists check the modified data against current data
-                        long fileDateTime = f.lastModified();
-                        Calendar today = Calendar.getInstance();
-                        //if the file is older than seven days (age limit) reprocess the data
-                        if (today.getTimeInMillis() - fileDateTime > CACHE_AGE_LIMIT) {
-                            _log.debug("File is older than " + Integer.toString(numDays) + " days");
-                            capHandler = createGetCapsCacheFile(dataset, threddsURI, savePath);
-                            capHandler.resetCapabilitiesSections(sections);
-                        } else {
-                            try {
-                                // add the cached file to the response
-                                retval.put(OUTPUT_FORMATTER, fileIsInDate(f, sections));
-                            } catch (Exception ex) {
-                                _log.error(ex.getLocalizedMessage());
-                                errorHandler.setException("Unable to retrieve cached get capabilities document");
-                                retval.put(OUTPUT_FORMATTER, errorHandler.getOutputFormatter());
-                            }
-                        }
-                    } else {
-                        _log.debug("File does NOT exist");
+                OfferingFilter filter = OfferingFilter.parse(sosRequest);
+                File datasetFile = DatasetHandlerAdapter.getLocalFile(dataset);
+                if (CapabilitiesFileCache.isEnabled() && datasetFile != null && CachedFileFormatter.isValidSections(sections)
+                        && filter.isEmpty()) {
+                    // build the whole document once and keep its sections for every later request
+                    CachedFileFormatter document = CapabilitiesFileCache.find(threddsURI, datasetFile);
+                    if (document == null) {
+                        long fileSize = datasetFile.length();
+                        long lastModified = datasetFile.lastModified();
                         try {
-                            //create the file as it does not exist
-                            capHandler = createGetCapsCacheFile(dataset, threddsURI, savePath);
-                            capHandler.resetCapabilitiesSections(sections);
+                            GetCapabilitiesRequestHandler allSections = new GetCapabilitiesRequestHandler(dataset, threddsURI, "all");
+                            parseGetCaps(allSections);
+                            OutputFormatter output = allSections.getOutputFormatter();
+                            // exception reports are not cached, the regular path below reports them
+                            if (output instanceof XmlOutputFormatter && !(output instanceof ErrorFormatter)) {
+                                document = CachedFileFormatter.fromDocument((XmlOutputFormatter) output);
+                                CapabilitiesFileCache.store(threddsURI, datasetFile, fileSize, lastModified, document);
+                            }
                         } catch (IOException ex) {
-                            _log.error(ex.getMessage());
-                            capHandler = null;
+                            _log.error(ex.getMessage(), ex);
                         }
                     }
-                } else {
+                    if (document != null) {
+                        retval.put(OUTPUT_FORMATTER, document.withSections(sections));
+                    }
+                }
+                if (!retval.containsKey(OUTPUT_FORMATTER)) {
                     try {
                         capHandler = new GetCapabilitiesRequestHandler(dataset, threddsURI, sections);
+                        capHandler.setOfferingFilter(filter);
                     } catch (IOException ex) {
                         _log.error(ex.getMessage(), ex);
                         capHandler = null;
@@ -173,38 +240,19 @@ public class Parser {
                     errorHandler.setException("Internal Error in preparing output for GetCapabilities request, received null handler.");
                     retval.put(OUTPUT_FORMATTER, errorHandler.getOutputFormatter());
                 }
-            } else if (request.equalsIgnoreCase(GETOBSERVATION)) {
+            } else if (kind == SosRequest.Kind.GET_OBSERVATION) {
                 GetObservationRequestHandler obsHandler = null;
-                // setup our coordsHash
-                if (queryParameters.containsKey(LAT)) {
-                    coordsHash.put(LAT, queryParameters.get(LAT).toString());
-                }
-                if (queryParameters.containsKey(LON)) {
-                    coordsHash.put(LON, queryParameters.get(LON).toString());
-                }
-                if (queryParameters.containsKey(DEPTH)) {
-                    coordsHash.put(DEPTH, queryParameters.get(DEPTH).toString());
-                }
+                Map<String, String> coordsHash = sosRequest.getCoordinates();
                 try {
-
-                    String[] procedure = null;
-                    String[] eventTime = null;
-
-                    if (queryParameters.containsKey(PROCEDURE)) {
-                        procedure = (String[]) queryParameters.get(PROCEDURE);
-                    }
-
-                    if (queryParameters.containsKey(EVENT_TIME)) {
-                        eventTime = (String[]) queryParameters.get(EVENT_TIME);
-                    }
                     // create a new handler for our get observation request and then write its result to output
                     obsHandler = new GetObservationRequestHandler(dataset,
-                            procedure,
-                            (String) queryParameters.get(OFFERING),
-                            (String[]) queryParameters.get(OBSERVED_PROPERTY),
-                            eventTime,
-                            queryParameters.get(RESPONSE_FORMAT).toString(),
+                            sosRequest.getProcedures(),
+                            sosRequest.getOffering(),
+                            sosRequest.getObservedProperties(),
+                            sosRequest.getEventTime(),
+                            sosRequest.getResponseFormat(),
                             coordsHash);
+                    obsHandler.setResampling(Resampling.parse(sosRequest));
 
                     if (obsHandler.getFeatureDataset() == null) {
                         errorHandler.setException("NetCDF-Java can not determine the FeatureType of the dataset.");
@@ -222,14 +270,14 @@ public class Parser {
                     errorHandler.setException("Internal Error in creating output for GetObservation request - " + ex.toString());
                     retval.put(OUTPUT_FORMATTER, errorHandler.getOutputFormatter());
                 }
-            } else if (request.equalsIgnoreCase(DESCRIBESENSOR)) {
+            } else if (kind == SosRequest.Kind.DESCRIBE_SENSOR) {
                 try {
                     BaseDSHandler sensorHandler;
                     // get the first procedure
-                    String procedure = ((String[]) queryParameters.get(PROCEDURE))[0];
+                    String procedure = sosRequest.getProcedures()[0];
                     // create a describe sensor handler
                     sensorHandler = new BaseDSHandler(dataset,
-                            queryParameters.get(OUTPUT_FORMAT).toString(),
+                            sosRequest.getOutputFormat(),
                             procedure,
                             threddsURI,
                             query);
@@ -243,7 +291,7 @@ public class Parser {
                 }
             } else {
                 // return a 'not supported' error
-                String message = queryParameters.get(REQUEST).toString() + " is not a supported request.";
+                String message = sosRequest.getRequest() + " is not a supported request.";
                 _log.error(message);
                 errorHandler.setException(message, BaseRequestHandler.OPERATION_NOT_SUPPORTED, "request");
                 retval.put(OUTPUT_FORMATTER, errorHandler.getOutputFormatter());
@@ -251,7 +299,7 @@ public class Parser {
             }
         } catch (IllegalArgumentException ex) {
             // create a get caps response with exception
-            String message = "Unrecognized request " + queryParameters.get("request").toString();
+            String message = "Unrecognized request " + sosRequest.getRequest();
             _log.error(message, ex);
             errorHandler.setException(message, BaseRequestHandler.INVALID_PARAMETER, "request");
             retval.put(OUTPUT_FORMATTER, errorHandler.getOutputFormatter());
@@ -266,110 +314,6 @@ public class Parser {
         capHandler.parseGetCapabilitiesDocument();
     }
 
-    private HashMap<String, Object> parseQuery(String query) {
-        // @TODO: this needs to be rewritten using apache commons URLEncodedUtils sadly not available until 4.0
-
-        LowerCaseStringMap queryMap = new LowerCaseStringMap();
-        
-        String[] queryArguments = query.split("&");
-        for (String arg : queryArguments) {
-            String[] keyVal = arg.split("=");
-            String key;
-            String value;
-       
-            if(keyVal.length == 1 && keyVal[0].equalsIgnoreCase(SECTIONS)){
-                queryMap.put(SECTIONS, "");
-                continue;
-            }
-            if (keyVal.length < 2) {
-                _log.info("Could not detect key-value pair, continuing");
-                continue;
-            }
-       
-            try {
-                key = URLDecoder.decode(keyVal[0], "UTF-8");
-                value = URLDecoder.decode(keyVal[1], "UTF-8").trim();
-            } catch (UnsupportedEncodingException e) {
-                _log.info("Unsupported Encoding exception, continuing", e);
-                continue;
-            }
-
-            if (key.equalsIgnoreCase(PROCEDURE)) {
-                String[] howManyStation = value.split(",");
-                queryMap.put(key.toLowerCase(), howManyStation);
-            } else if (key.equalsIgnoreCase(RESPONSE_FORMAT)) {
-                parseOutputFormat(RESPONSE_FORMAT, value);
-            } else if (key.equalsIgnoreCase(OUTPUT_FORMAT)) {
-                parseOutputFormat(OUTPUT_FORMAT, value);
-            } else if (key.equalsIgnoreCase(EVENT_TIME)) {
-                String[] eventtime;
-                if (value.contains("/")) {
-                    eventtime = value.split("/");
-                } else {
-                    eventtime = new String[]{value};
-                }
-                queryMap.put(key, eventtime);
-            } else if (key.equalsIgnoreCase(OBSERVED_PROPERTY)) {
-                String[] param;
-                if (value.contains(",")) {
-                    param = value.split(",");
-                } else {
-                    param = new String[]{value};
-                }
-                queryMap.put(key, param);
-            } else if (key.equalsIgnoreCase(ACCEPT_VERSIONS)) {
-                String[] param;
-                if (value.contains(",")) {
-                    param = value.split(",");
-                } else {
-                    param = new String[]{value};
-                }
-                queryMap.put(ACCEPT_VERSIONS, param);
-
-            } else {
-                queryMap.put(key, value);
-            }
-        }
-
-        return queryMap;
-    }
-
-    public void parseOutputFormat(String fieldName, String value) {
-        queryParameters.put(fieldName, value);
-    }
-
-    private String getCacheXmlFileName(String threddsURI) {
-        _log.debug("thredds uri: " + threddsURI);
-        String[] splitStr = threddsURI.split("/");
-        String dName = splitStr[splitStr.length - 1];
-        splitStr = dName.split("\\.");
-        dName = "";
-        for (int i = 0; i < splitStr.length - 1; i++) {
-            dName += splitStr[i] + ".";
-        }
-        return "/" + dName + XML;
-    }
-
-    private GetCapabilitiesRequestHandler createGetCapsCacheFile(NetcdfDataset dataset, String threddsURI, String savePath) throws IOException {
-        _log.debug("Writing cache file for Get Capabilities request.");
-        GetCapabilitiesRequestHandler cacheHandle = new GetCapabilitiesRequestHandler(dataset, threddsURI, "all");
-        parseGetCaps(cacheHandle);
-        File file = new File(savePath + getCacheXmlFileName(threddsURI));
-        file.createNewFile();
-        Writer writer = new BufferedWriter(new FileWriter(file, false));
-        writer.flush();
-        cacheHandle.formatter.writeOutput(writer);
-        _log.debug("Write cache to: " + file.getAbsolutePath());
-        return cacheHandle;
-    }
-
-    private XmlOutputFormatter fileIsInDate(File f, String sections) throws ParserConfigurationException, SAXException, IOException {
-        _log.debug("Using cached get capabilities doc");
-        CachedFileFormatter retval = new CachedFileFormatter(f);
-        retval.setSections(sections);
-        return retval;
-    }
-
     private HashMap<String, Object> checkQueryParameters() {
         try {
             HashMap<String, Object> retval = new HashMap<String, Object>();
@@ -385,13 +329,14 @@ public class Parser {
             								VERSION};
 
             // general parameters expected
-            if (queryParameters.containsKey(ERROR)) {
-                errorHandler.setException("Error with request - " + queryParameters.get(ERROR).toString());
+            if (sosRequest.getError() != null || sosRequest.hasParameter(ERROR)) {
+                String error = sosRequest.getError() != null ? sosRequest.getError() : sosRequest.getParameter(ERROR);
+                errorHandler.setException("Error with request - " + error);
                 retval.put(ERROR, true);
                 return retval;
             } else {
                 for (String req : requiredGlobalParameters) {
-                    if (!queryParameters.containsKey(req.toLowerCase())) {
+                    if (!sosRequest.hasParameter(req)) {
                         errorHandler.setException("Required parameter '" + req + 
                                 "' not found. Check GetCapabilities document for required parameters.", 
                                 BaseRequestHandler.MISSING_PARAMETER, req);
@@ -400,7 +345,7 @@ public class Parser {
                     }
                 }
 
-                if (!queryParameters.get(SERVICE).toString().equalsIgnoreCase(defService)) {
+                if (!sosRequest.getService().equalsIgnoreCase(defService)) {
                     errorHandler.setException("Currently the only supported service is SOS.", 
                             BaseRequestHandler.INVALID_PARAMETER, "service");
                     retval.put(ERROR, true);
@@ -408,18 +353,13 @@ public class Parser {
                 }
             }
             // specific parameters expected
-            String request = queryParameters.get(REQUEST).toString();
+            SosRequest.Kind kind = sosRequest.getKind();
 
-            if (request.equalsIgnoreCase(GETCAPABILITIES)) {
+            if (kind == SosRequest.Kind.GET_CAPABILITIES) {
                 // check requirements for version and service
-                if (queryParameters.containsKey(ACCEPT_VERSIONS)) {
-                    String[] versions = null;
-                    if (queryParameters.get(ACCEPT_VERSIONS) instanceof String[]) {
-                        versions = (String[]) queryParameters.get(ACCEPT_VERSIONS);
-                    } else if (queryParameters.get(ACCEPT_VERSIONS) instanceof String) {
-                        versions = new String[]{(String) queryParameters.get(ACCEPT_VERSIONS)};
-                    }
-                    if (versions != null && versions.length == 1) {
+                String[] versions = sosRequest.getAcceptVersions();
+                if (versions != null) {
+                    if (versions.length == 1) {
                         if (!versions[0].equalsIgnoreCase(defVersion)) {
                             errorHandler.setException("Currently only SOS version " + 
                                     defVersion + " is supported.", BaseRequestHandler.VERSION_NEGOTIATION);
@@ -433,9 +373,9 @@ public class Parser {
                         return retval;
                     }
                 }
-            } else if (request.equalsIgnoreCase(DESCRIBESENSOR)) {
+            } else if (kind == SosRequest.Kind.DESCRIBE_SENSOR) {
                 for (String req : requiredDSParameters) {
-                    if (!queryParameters.containsKey(req.toLowerCase())) {
+                    if (!sosRequest.hasParameter(req)) {
                         errorHandler.setException("Required parameter '" + req + "' not found. " + 
                                 "Check GetCapabilities document for required parameters of DescribeSensor requests.", 
                                 BaseRequestHandler.MISSING_PARAMETER, req);
@@ -444,15 +384,15 @@ public class Parser {
                     }
                 }
                 // Check version
-                if (!queryParameters.get(VERSION).equals(defVersion)) {
+                if (!sosRequest.getVersion().equals(defVersion)) {
                     errorHandler.setException("Currently only SOS version " + defVersion + " is supported", 
                             BaseRequestHandler.INVALID_PARAMETER, "version");
                     retval.put(ERROR, true);
                     return retval;
                 }
-            } else if (request.equalsIgnoreCase(GETOBSERVATION)) {
+            } else if (kind == SosRequest.Kind.GET_OBSERVATION) {
                 for (String req : requiredGOParameters) {
-                    if (!queryParameters.containsKey(req)) {
+                    if (!sosRequest.hasParameter(req)) {
                         errorHandler.setException("Required parameter '" + req + "' not found. " +
                                 "Check GetCapabilities document for required parameters of GetObservation requests.", 
                                 BaseRequestHandler.MISSING_PARAMETER, req);
@@ -461,12 +401,18 @@ public class Parser {
                     }
                 }
                 // Check version
-                if (!queryParameters.get(VERSION).equals(defVersion)) {
+                if (!sosRequest.getVersion().equals(defVersion)) {
                     errorHandler.setException("Currently only SOS version " + defVersion + " is supported", 
                             BaseRequestHandler.INVALID_PARAMETER, "version");
                     retval.put(ERROR, true);
                     return retval;
                 }
+                if (sosRequest.getCoordinateError() != null) {
+                    errorHandler.setException(sosRequest.getCoordinateError(),
+                            BaseRequestHandler.INVALID_PARAMETER, sosRequest.getCoordinateLocator());
+                    retval.put(ERROR, true);
+                    return retval;
+                }
             }
 
             return retval;
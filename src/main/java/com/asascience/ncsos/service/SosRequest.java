@@ -0,0 +1,471 @@
+package com.asascience.ncsos.service;
+
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateFormatter;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The parameters of a SOS request, parsed from the query string in a single pass.
+ * Keys are matched case insensitively; values are URL decoded and trimmed, the list
+ * valued parameters are split, and latitude, longitude and depth are parsed into
+ * numeric ranges. Instances are immutable and can be shared by everything that
+ * handles the request.
+ */
+public class SosRequest {
+
+    public enum Kind {
+        GET_CAPABILITIES, GET_OBSERVATION, DESCRIBE_SENSOR, OTHER
+    }
+
+    private static final String DEFAULT_SERVICE = "sos";
+    private static final String DEFAULT_VERSION = "1.0.0";
+
+    private final String query;
+    private final Map<String, String> parameters;
+    private final Kind kind;
+    private final String request;
+    private final String service;
+    private final String version;
+    private final String[] acceptVersions;
+    private final String sections;
+    private final boolean useCache;
+    private final String[] procedures;
+    private final String offering;
+    private final String[] observedProperties;
+    private final String[] eventTime;
+    private final CalendarDate[] eventTimeInstants;
+    private final String latitude;
+    private final String longitude;
+    private final String depth;
+    private final Range[] latitudeRanges;
+    private final Range[] longitudeRanges;
+    private final Range[] depthRanges;
+    private final String coordinateError;
+    private final String coordinateLocator;
+    private final String normalizedQuery;
+    private final String responseFormat;
+    private final String outputFormat;
+    private final String error;
+
+    private SosRequest(String query, Map<String, String> parameters, String error) {
+        this.query = query;
+        this.parameters = Collections.unmodifiableMap(parameters);
+        this.error = error;
+        this.request = parameters.get(Parser.REQUEST.toLowerCase());
+        this.service = parameters.get(Parser.SERVICE.toLowerCase());
+        this.version = parameters.get(Parser.VERSION.toLowerCase());
+        this.acceptVersions = split(parameters.get(Parser.ACCEPT_VERSIONS.toLowerCase()), ",");
+        this.sections = parameters.get(Parser.SECTIONS);
+        this.useCache = "true".equals(parameters.get(Parser.USECACHE));
+        this.procedures = split(parameters.get(Parser.PROCEDURE), ",");
+        this.offering = parameters.get(Parser.OFFERING.toLowerCase());
+        this.observedProperties = split(parameters.get(Parser.OBSERVED_PROPERTY.toLowerCase()), ",");
+        this.eventTime = split(parameters.get(Parser.EVENT_TIME.toLowerCase()), "/");
+        this.latitude = parameters.get(Parser.LAT);
+        this.longitude = parameters.get(Parser.LON);
+        this.depth = parameters.get(Parser.DEPTH);
+        this.responseFormat = parameters.get(Parser.RESPONSE_FORMAT.toLowerCase());
+        this.outputFormat = parameters.get(Parser.OUTPUT_FORMAT.toLowerCase());
+
+        if (request == null) {
+            kind = null;
+        } else if (request.equalsIgnoreCase(Parser.GETCAPABILITIES)) {
+            kind = Kind.GET_CAPABILITIES;
+        } else if (request.equalsIgnoreCase(Parser.GETOBSERVATION)) {
+            kind = Kind.GET_OBSERVATION;
+        } else if (request.equalsIgnoreCase(Parser.DESCRIBESENSOR)) {
+            kind = Kind.DESCRIBE_SENSOR;
+        } else {
+            kind = Kind.OTHER;
+        }
+
+        if (eventTime != null) {
+            eventTimeInstants = new CalendarDate[eventTime.length];
+            for (int i = 0; i < eventTime.length; i++) {
+                eventTimeInstants[i] = parseInstant(eventTime[i]);
+            }
+        } else {
+            eventTimeInstants = null;
+        }
+
+        // the error and locator of the first coordinate that is not valid
+        String[] coordinateFailure = new String[2];
+        this.latitudeRanges = parseRanges(latitude, Parser.LAT, coordinateFailure);
+        this.longitudeRanges = parseRanges(longitude, Parser.LON, coordinateFailure);
+        this.depthRanges = parseRanges(depth, Parser.DEPTH, coordinateFailure);
+        this.coordinateError = coordinateFailure[0];
+        this.coordinateLocator = coordinateFailure[1];
+        this.normalizedQuery = normalize();
+    }
+
+    /**
+     * A coordinate value or range of a request; a single value has the same minimum and maximum.
+     */
+    public static class Range {
+        private final double min;
+        private final double max;
+
+        Range(double min, double max) {
+            this.min = Math.min(min, max);
+            this.max = Math.max(min, max);
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public boolean isPoint() {
+            return min == max;
+        }
+
+        @Override
+        public String toString() {
+            return isPoint() ? String.valueOf(min) : min + "_" + max;
+        }
+    }
+
+    /**
+     * Parses a query string. A request without a query string is a GetCapabilities request.
+     * @param query the query string of the request, may be null
+     * @return the parsed request
+     */
+    public static SosRequest parse(String query) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null) {
+            parameters.put(Parser.REQUEST, Parser.GETCAPABILITIES);
+            parameters.put(Parser.SERVICE, DEFAULT_SERVICE);
+            parameters.put(Parser.ACCEPT_VERSIONS.toLowerCase(), DEFAULT_VERSION);
+            return new SosRequest(null, parameters, null);
+        }
+
+        String error = null;
+        int length = query.length();
+        int start = 0;
+        while (start <= length) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = length;
+            }
+            int equals = query.indexOf('=', start);
+            try {
+                if (equals < 0 || equals > end) {
+                    // a key without a value, only 'sections' means something on its own
+                    if (decode(query, start, end).trim().equalsIgnoreCase(Parser.SECTIONS)) {
+                        parameters.put(Parser.SECTIONS, "");
+                    }
+                } else {
+                    String key = decode(query, start, equals).toLowerCase();
+                    String value = decode(query, equals + 1, end).trim();
+                    if (!key.isEmpty() && !value.isEmpty()) {
+                        parameters.put(key, value);
+                    } else if (key.equals(Parser.SECTIONS)) {
+                        parameters.put(Parser.SECTIONS, "");
+                    }
+                }
+            } catch (IllegalArgumentException ex) {
+                error = "could not decode '" + query.substring(start, end) + "'";
+            }
+            start = end + 1;
+        }
+        return new SosRequest(query, parameters, error);
+    }
+
+    /**
+     * Decodes part of the query; parts without escapes are returned without decoding.
+     */
+    private static String decode(String query, int start, int end) {
+        boolean escaped = false;
+        for (int i = start; i < end && !escaped; i++) {
+            char c = query.charAt(i);
+            escaped = c == '%' || c == '+';
+        }
+        String part = query.substring(start, end);
+        if (!escaped) {
+            return part;
+        }
+        try {
+            return URLDecoder.decode(part, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return part;
+        }
+    }
+
+    private static String[] split(String value, String separator) {
+        if (value == null) {
+            return null;
+        }
+        return value.contains(separator) ? value.split(separator) : new String[]{value};
+    }
+
+    /**
+     * Parses a comma separated list of values and of ranges written as min_max.
+     * @param failure takes the error and the locator of the parameter if it is the first
+     *        one not valid
+     * @return the ranges, or null if the parameter was not sent or is not valid
+     */
+    private static Range[] parseRanges(String value, String name, String[] failure) {
+        if (value == null) {
+            return null;
+        }
+        String[] items = value.split(",");
+        Range[] ranges = new Range[items.length];
+        try {
+            for (int i = 0; i < items.length; i++) {
+                String item = items[i].trim();
+                int separator = item.indexOf('_', 1);
+                if (separator > 0) {
+                    ranges[i] = new Range(Double.parseDouble(item.substring(0, separator)),
+                            Double.parseDouble(item.substring(separator + 1)));
+                } else {
+                    double point = Double.parseDouble(item);
+                    ranges[i] = new Range(point, point);
+                }
+            }
+        } catch (NumberFormatException ex) {
+            if (failure[0] == null) {
+                failure[0] = "Invalid " + name + " specified: " + value;
+                failure[1] = name;
+            }
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Builds the canonical form of the request from its parsed parameters, see {@link #getNormalizedQuery()}.
+     */
+    private String normalize() {
+        TreeMap<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : parameters.entrySet()) {
+            String key = entry.getKey();
+            String value = entry.getValue();
+            if (key.equals(Parser.REQUEST) || key.equals(Parser.SERVICE)) {
+                value = value.toLowerCase();
+            } else if (key.equals(Parser.PROCEDURE) || key.equals(Parser.OFFERING.toLowerCase())
+                    || key.equals(Parser.OBSERVED_PROPERTY.toLowerCase())) {
+                // gml:id style URNs ("_-_" for ":") name the same procedure; list order is kept
+                // since it is the order of the response
+                value = join(split(value, ","), true);
+            } else if (key.equals(Parser.LAT) && latitudeRanges != null) {
+                value = join(latitudeRanges, false);
+            } else if (key.equals(Parser.LON) && longitudeRanges != null) {
+                value = join(longitudeRanges, false);
+            } else if (key.equals(Parser.DEPTH) && depthRanges != null) {
+                value = join(depthRanges, false);
+            }
+            sorted.put(key, value);
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    private static String join(Object[] items, boolean urns) {
+        StringBuilder builder = new StringBuilder();
+        for (Object item : items) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            String text = item.toString().trim();
+            builder.append(urns ? text.replace("_-_", ":") : text);
+        }
+        return builder.toString();
+    }
+
+    private static CalendarDate parseInstant(String value) {
+        try {
+            return CalendarDateFormatter.isoStringToCalendarDate(null, value);
+        } catch (IllegalArgumentException ex) {
+            // 'latest', 'first' or not a date
+            return null;
+        }
+    }
+
+    /**
+     * @return the query string the request was parsed from, null for a request without one
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @param name parameter name, any case
+     * @return the decoded value of any parameter, or null if it was not sent
+     */
+    public String getParameter(String name) {
+        return parameters.get(name.toLowerCase());
+    }
+
+    public boolean hasParameter(String name) {
+        return parameters.containsKey(name.toLowerCase());
+    }
+
+    /**
+     * @return the kind of request, or null if there is no request parameter
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String[] getAcceptVersions() {
+        return copy(acceptVersions);
+    }
+
+    /**
+     * @return the sections parameter, empty if it was sent without a value, null if not sent
+     */
+    public String getSections() {
+        return sections;
+    }
+
+    public boolean isUseCache() {
+        return useCache;
+    }
+
+    public String[] getProcedures() {
+        return copy(procedures);
+    }
+
+    public String getOffering() {
+        return offering;
+    }
+
+    public String[] getObservedProperties() {
+        return copy(observedProperties);
+    }
+
+    /**
+     * @return the event time split on '/', as sent ('latest' and 'first' included)
+     */
+    public String[] getEventTime() {
+        return copy(eventTime);
+    }
+
+    /**
+     * @return the event time values parsed as dates, null entries for values that are not dates
+     */
+    public CalendarDate[] getEventTimeInstants() {
+        return eventTimeInstants == null ? null : eventTimeInstants.clone();
+    }
+
+    public String getLatitude() {
+        return latitude;
+    }
+
+    public String getLongitude() {
+        return longitude;
+    }
+
+    public String getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return the latitude values and ranges, or null if not sent or not valid
+     */
+    public Range[] getLatitudeRanges() {
+        return latitudeRanges == null ? null : latitudeRanges.clone();
+    }
+
+    /**
+     * @return the longitude values and ranges, or null if not sent or not valid
+     */
+    public Range[] getLongitudeRanges() {
+        return longitudeRanges == null ? null : longitudeRanges.clone();
+    }
+
+    /**
+     * @return the depth values and ranges, or null if not sent or not valid
+     */
+    public Range[] getDepthRanges() {
+        return depthRanges == null ? null : depthRanges.clone();
+    }
+
+    /**
+     * @return a description of a latitude, longitude or depth that is not a number, or null
+     */
+    public String getCoordinateError() {
+        return coordinateError;
+    }
+
+    /**
+     * @return the name of the invalid coordinate parameter
+     */
+    public String getCoordinateLocator() {
+        return coordinateLocator;
+    }
+
+    /**
+     * Canonical form of the request, built from the parsed parameters: keys lower cased,
+     * values decoded and trimmed, the request and service values lower cased, URNs in
+     * their ':' form, coordinates as parsed numbers and the parameters sorted by key.
+     * Two requests that ncSOS answers the same way give the same string.
+     * @return the normalized query
+     */
+    public String getNormalizedQuery() {
+        return normalizedQuery;
+    }
+
+    /**
+     * @return the latitude, longitude and depth parameters that were sent, keyed by name
+     */
+    public Map<String, String> getCoordinates() {
+        Map<String, String> coords = new HashMap<String, String>();
+        if (latitude != null) {
+            coords.put(Parser.LAT, latitude);
+        }
+        if (longitude != null) {
+            coords.put(Parser.LON, longitude);
+        }
+        if (depth != null) {
+            coords.put(Parser.DEPTH, depth);
+        }
+        return coords;
+    }
+
+    public String getResponseFormat() {
+        return responseFormat;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * @return a description of a part of the query that could not be decoded, or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    private static String[] copy(String[] values) {
+        return values == null ? null : values.clone();
+    }
+}
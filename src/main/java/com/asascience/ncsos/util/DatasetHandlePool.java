@@ -0,0 +1,302 @@
+package com.asascience.ncsos.util;
+
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ft.FeatureDataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of open NetcdfDataset handles, keyed by the dataset path of the
+ * request. A handle is only ever lent to one request at a time; when the request
+ * is done it is handed back and kept open for the next request on the same path.
+ * <p>
+ * Idle handles are evicted least-recently-used first once the pool holds more than
+ * <code>maxHandles</code>, when they have been idle longer than <code>maxIdleMillis</code>,
+ * or when the modification time of the underlying file no longer matches the one
+ * recorded when the handle was opened.
+ * <p>
+ * The feature datasets wrapped around a handle are kept with it, so the requests it is
+ * lent to next do not have to wrap it again.
+ */
+public class DatasetHandlePool {
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(DatasetHandlePool.class);
+
+    private final int maxHandles;
+    private final long maxIdleMillis;
+
+    // path -> idle handles, most recently used path last
+    private final LinkedHashMap<String, LinkedList<PooledHandle>> idle =
+            new LinkedHashMap<String, LinkedList<PooledHandle>>(16, 0.75f, true);
+    private final Map<NetcdfDataset, PooledHandle> borrowed = new IdentityHashMap<NetcdfDataset, PooledHandle>();
+    private int idleCount = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxHandles maximum number of idle handles kept open across all datasets; 0 disables pooling
+     * @param maxIdleSeconds number of seconds an idle handle is kept before it is closed
+     */
+    public DatasetHandlePool(int maxHandles, int maxIdleSeconds) {
+        this.maxHandles = Math.max(0, maxHandles);
+        this.maxIdleMillis = Math.max(0, maxIdleSeconds) * 1000L;
+    }
+
+    public boolean isEnabled() {
+        return maxHandles > 0;
+    }
+
+    /**
+     * Takes an idle, still valid handle for the path out of the pool.
+     * @param path dataset path of the request
+     * @return an open dataset, or null if the caller has to open a new one
+     */
+    public NetcdfDataset borrow(String path) {
+        if (!isEnabled()) {
+            return null;
+        }
+        List<PooledHandle> stale = new ArrayList<PooledHandle>();
+        PooledHandle found = null;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            LinkedList<PooledHandle> handles = idle.get(path);
+            while (handles != null && !handles.isEmpty() && found == null) {
+                PooledHandle handle = handles.removeLast();
+                idleCount--;
+                if (handle.isExpired(now, maxIdleMillis) || handle.isModified()) {
+                    stale.add(handle);
+                } else {
+                    found = handle;
+                    borrowed.put(handle.dataset, handle);
+                }
+            }
+            if (handles != null && handles.isEmpty()) {
+                idle.remove(path);
+            }
+        }
+        closeAll(stale);
+        if (found == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return found.dataset;
+    }
+
+    /**
+     * Registers a freshly opened dataset so it is returned to the pool on release.
+     * @param path dataset path of the request
+     * @param dataset the newly opened dataset
+     */
+    public void track(String path, NetcdfDataset dataset) {
+        if (!isEnabled() || dataset == null) {
+            return;
+        }
+        PooledHandle handle = new PooledHandle(path, dataset);
+        synchronized (this) {
+            borrowed.put(dataset, handle);
+        }
+    }
+
+    /**
+     * Hands a dataset back after a request. Datasets that were not lent out by the
+     * pool, or whose file changed while in use, are closed.
+     * @param dataset the dataset the request is done with
+     */
+    public void release(NetcdfDataset dataset) {
+        if (dataset == null) {
+            return;
+        }
+        PooledHandle handle;
+        boolean pooled;
+        List<PooledHandle> evicted = new ArrayList<PooledHandle>();
+        synchronized (this) {
+            handle = borrowed.remove(dataset);
+            pooled = handle != null;
+            if (handle != null && !handle.isModified()) {
+                handle.lastUsed = System.currentTimeMillis();
+                LinkedList<PooledHandle> handles = idle.get(handle.path);
+                if (handles == null) {
+                    handles = new LinkedList<PooledHandle>();
+                    idle.put(handle.path, handles);
+                }
+                handles.addLast(handle);
+                idleCount++;
+                evictOverflow(evicted);
+                handle = null;
+            }
+        }
+        closeAll(evicted);
+        if (handle != null) {
+            evictions.incrementAndGet();
+            close(handle.dataset);
+        } else if (!pooled) {
+            close(dataset);
+        }
+    }
+
+    /**
+     * @param dataset a handle lent out by the pool
+     * @param featureType feature type the handle was wrapped as
+     * @return the feature dataset wrapped around the handle while it was lent out before,
+     *         or null if it was not wrapped as the feature type or is not a pooled handle
+     */
+    public synchronized FeatureDataset getFeatures(NetcdfDataset dataset, FeatureType featureType) {
+        PooledHandle handle = borrowed.get(dataset);
+        return handle != null ? handle.features.get(featureType) : null;
+    }
+
+    /**
+     * Keeps a feature dataset wrapped around a lent out handle with the handle.
+     * @param dataset a handle lent out by the pool
+     * @param featureType feature type the handle was wrapped as
+     * @param features the feature dataset reading from the handle
+     */
+    public synchronized void putFeatures(NetcdfDataset dataset, FeatureType featureType, FeatureDataset features) {
+        PooledHandle handle = borrowed.get(dataset);
+        if (handle != null) {
+            handle.features.put(featureType, features);
+        }
+    }
+
+    /**
+     * Closes idle handles that exceeded the idle time limit.
+     */
+    public void evictIdle() {
+        List<PooledHandle> expired = new ArrayList<PooledHandle>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Map.Entry<String, LinkedList<PooledHandle>>> paths = idle.entrySet().iterator();
+            while (paths.hasNext()) {
+                LinkedList<PooledHandle> handles = paths.next().getValue();
+                Iterator<PooledHandle> it = handles.iterator();
+                while (it.hasNext()) {
+                    PooledHandle handle = it.next();
+                    if (handle.isExpired(now, maxIdleMillis)) {
+                        it.remove();
+                        idleCount--;
+                        expired.add(handle);
+                    }
+                }
+                if (handles.isEmpty()) {
+                    paths.remove();
+                }
+            }
+        }
+        closeAll(expired);
+    }
+
+    /**
+     * Closes all idle handles. Handles currently lent out are closed when released.
+     */
+    public void clear() {
+        List<PooledHandle> all = new ArrayList<PooledHandle>();
+        synchronized (this) {
+            for (LinkedList<PooledHandle> handles : idle.values()) {
+                all.addAll(handles);
+            }
+            idle.clear();
+            idleCount = 0;
+            for (PooledHandle handle : borrowed.values()) {
+                handle.discard = true;
+            }
+        }
+        closeAll(all);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getIdleCount() {
+        return idleCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DatasetHandlePool[hits=" + getHits() + ", misses=" + getMisses()
+                + ", evictions=" + getEvictions() + ", idle=" + getIdleCount() + "]";
+    }
+
+    private void evictOverflow(List<PooledHandle> evicted) {
+        Iterator<Map.Entry<String, LinkedList<PooledHandle>>> paths = idle.entrySet().iterator();
+        while (idleCount > maxHandles && paths.hasNext()) {
+            LinkedList<PooledHandle> handles = paths.next().getValue();
+            while (idleCount > maxHandles && !handles.isEmpty()) {
+                evicted.add(handles.removeFirst());
+                idleCount--;
+            }
+            if (handles.isEmpty()) {
+                paths.remove();
+            }
+        }
+    }
+
+    private void closeAll(List<PooledHandle> handles) {
+        for (PooledHandle handle : handles) {
+            evictions.incrementAndGet();
+            close(handle.dataset);
+        }
+    }
+
+    private static void close(NetcdfDataset dataset) {
+        try {
+            dataset.close();
+        } catch (IOException ioe) {
+            _log.warn("Failed to properly close the dataset", ioe);
+        }
+    }
+
+    /**
+     * Last modification time of the file backing a dataset, or 0 when the location is not a local file.
+     */
+    static long lastModified(NetcdfDataset dataset) {
+        File file = DatasetHandlerAdapter.getLocalFile(dataset);
+        return file != null ? file.lastModified() : 0L;
+    }
+
+    private static class PooledHandle {
+        final String path;
+        final NetcdfDataset dataset;
+        final long mtime;
+        final Map<FeatureType, FeatureDataset> features = new EnumMap<FeatureType, FeatureDataset>(FeatureType.class);
+        long lastUsed;
+        boolean discard = false;
+
+        PooledHandle(String path, NetcdfDataset dataset) {
+            this.path = path;
+            this.dataset = dataset;
+            this.mtime = lastModified(dataset);
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        boolean isExpired(long now, long maxIdleMillis) {
+            return maxIdleMillis > 0 && now - lastUsed > maxIdleMillis;
+        }
+
+        boolean isModified() {
+            return discard || lastModified(dataset) != mtime;
+        }
+    }
+}
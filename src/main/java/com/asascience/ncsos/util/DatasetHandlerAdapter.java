@@ -3,40 +3,114 @@ package com.asascience.ncsos.util;
 //import org.apache.log4j.Logger;
 import thredds.servlet.DatasetHandler;
 import thredds.servlet.ServletUtil;
+import thredds.servlet.ThreddsConfig;
 import ucar.nc2.NetcdfFile;
+import ucar.nc2.constants.FeatureType;
 import ucar.nc2.dataset.NetcdfDataset;
 import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
 import ucar.nc2.ft.PointFeatureCollection;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Formatter;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 public class DatasetHandlerAdapter {
 	  static final Logger _log= LogManager.getLogger(DatasetHandlerAdapter.class.getName());
 
   //  private static final Logger _log = Logger.getLogger(DatasetHandlerAdapter.class);
+
+    private static DatasetHandlePool pool = null;
+
+    // dataset path of a request -> local file it was last opened from, for the
+    // NCSOS.localFiles.maxDatasets most recently used paths
+    private static final Map<String, File> localFiles = Collections.synchronizedMap(
+            new LinkedHashMap<String, File>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, File> eldest) {
+                    return size() > Math.max(1, ThreddsConfig.getInt("NCSOS.localFiles.maxDatasets", 1024));
+                }
+            });
+
+    // open dataset -> dataset path it was opened under
+    private static final Map<NetcdfDataset, String> datasetPaths =
+            Collections.synchronizedMap(new WeakHashMap<NetcdfDataset, String>());
+
+    // dataset lent to a request -> the request, so more handles can be opened the same way
+    private static final Map<NetcdfDataset, Opener> openers =
+            Collections.synchronizedMap(new IdentityHashMap<NetcdfDataset, Opener>());
+
+    /**
+     * The request a dataset was opened for, kept while the request has the dataset.
+     */
+    private static class Opener {
+        final HttpServletRequest req;
+        final HttpServletResponse res;
+        final String datasetPath;
+
+        Opener(HttpServletRequest req, HttpServletResponse res, String datasetPath) {
+            this.req = req;
+            this.res = res;
+            this.datasetPath = datasetPath;
+        }
+    }
+
+    /**
+     * The pool of open dataset handles shared by all requests, configured by the
+     * NCSOS.datasetPool.maxHandles and NCSOS.datasetPool.maxIdleSeconds settings.
+     */
+    public static synchronized DatasetHandlePool getPool() {
+        if (pool == null) {
+            pool = new DatasetHandlePool(ThreddsConfig.getInt("NCSOS.datasetPool.maxHandles", 16),
+                    ThreddsConfig.getInt("NCSOS.datasetPool.maxIdleSeconds", 300));
+        }
+        return pool;
+    }
+
+    /**
+     * Close every pooled dataset handle, used when the service shuts down.
+     */
+    public static synchronized void shutdownPool() {
+        if (pool != null) {
+            _log.info("Closing dataset handle pool: " + pool);
+            pool.clear();
+            pool = null;
+        }
+    }
+
     /** 
      * Open a NetcdfDataset based on the incoming url request.
      * 
      * @param req incoming url request
      * @param res outgoing web based response
-     * @return dataset a NetcdfDataset as specifing in the request
+     * @return dataset a NetcdfDataset as specifing in the request; a pooled handle
+     *         is reused if one is open for the same path and the file is unchanged
      */
     public static NetcdfDataset openDataset(final HttpServletRequest req,
             final HttpServletResponse res) throws Exception {
 
+        DatasetHandlePool handles = getPool();
+        handles.evictIdle();
         NetcdfFile netcdfFile = null;
         NetcdfDataset dataset = null;
-        String datasetPath = null;
-        String servletPath = req.getServletPath();
-        if(servletPath !=  null)
-            datasetPath = servletPath.substring("/sos".length()  , servletPath.length());
-        if (datasetPath == null) { // passing in a dataset URL, presumably
+        String datasetPath = getDatasetPath(req);
+        if (req.getServletPath() == null) { // passing in a dataset URL, presumably
             // opendap
-            datasetPath = ServletUtil.getParameterIgnoreCase(req, "dataset");
             _log.debug("opendap datasetPath: " + datasetPath);
+            dataset = handles.borrow(datasetPath);
+            if (dataset != null) {
+                datasetPaths.put(dataset, datasetPath);
+                openers.put(dataset, new Opener(req, res, datasetPath));
+                return dataset;
+            }
             try {
                 dataset = NetcdfDataset.openDataset(datasetPath);
             } catch (IOException e) {
@@ -45,6 +119,18 @@ public class DatasetHandlerAdapter {
             }
             
         } else {
+            // restricted datasets are still checked on every request, even when a handle is pooled
+            if (handles.isEnabled()) {
+                if (!DatasetHandler.resourceControlOk(req, res, datasetPath)) {
+                    throw new Exception("Access to dataset <" + datasetPath + "> denied");
+                }
+                dataset = handles.borrow(datasetPath);
+                if (dataset != null) {
+                    datasetPaths.put(dataset, datasetPath);
+                    openers.put(dataset, new Opener(req, res, datasetPath));
+                    return dataset;
+                }
+            }
             try {
             	
                             netcdfFile = DatasetHandler.getNetcdfFile(req, res, datasetPath);
@@ -56,12 +142,120 @@ public class DatasetHandlerAdapter {
                         + e.getMessage());
             }
         }
+        handles.track(datasetPath, dataset);
+        datasetPaths.put(dataset, datasetPath);
+        openers.put(dataset, new Opener(req, res, datasetPath));
+        File file = getLocalFile(dataset);
+        if (file != null) {
+            localFiles.put(datasetPath, file);
+        }
         return dataset;
 
     }
 
+    /**
+     * Opens another handle on the dataset of a request, for reading it from another thread.
+     * A pooled handle of the same dataset path is reused, otherwise the dataset is opened
+     * the way the request's handle was, so THREDDS dataset roots and NcML apply to it too.
+     * Only valid while the request has its dataset; the handle is given back through
+     * {@link #closeDataset}.
+     * @param dataset the dataset of the request
+     * @return a new handle on the same dataset
+     */
+    public static NetcdfDataset openAnother(final NetcdfDataset dataset) throws IOException {
+        Opener opener = openers.get(dataset);
+        if (opener == null) {
+            throw new IOException("Dataset <" + dataset.getLocation() + "> was not opened for a request");
+        }
+        DatasetHandlePool handles = getPool();
+        NetcdfDataset another = handles.borrow(opener.datasetPath);
+        if (another == null) {
+            if (opener.req.getServletPath() == null) {
+                another = NetcdfDataset.openDataset(opener.datasetPath);
+            } else {
+                NetcdfFile netcdfFile = DatasetHandler.getNetcdfFile(opener.req, opener.res, opener.datasetPath);
+                if (netcdfFile == null) {
+                    throw new IOException("Failed to open dataset <" + opener.datasetPath + ">");
+                }
+                another = new NetcdfDataset(netcdfFile);
+            }
+            handles.track(opener.datasetPath, another);
+        }
+        datasetPaths.put(another, opener.datasetPath);
+        return another;
+    }
+
+    /**
+     * Wraps a handle opened by {@link #openAnother} as a feature dataset, reusing the one
+     * a previous request wrapped around the same pooled handle.
+     * @param handle a handle opened by {@link #openAnother}
+     * @param featureType feature type of the dataset
+     * @return the feature dataset, or null if the handle can not be read as the feature type
+     */
+    public static FeatureDataset wrapFeatures(final NetcdfDataset handle, final FeatureType featureType) throws IOException {
+        DatasetHandlePool handles = getPool();
+        FeatureDataset features = handles.getFeatures(handle, featureType);
+        if (features == null) {
+            features = FeatureDatasetFactoryManager.wrap(featureType, handle, null, new Formatter(System.err));
+            if (features != null) {
+                handles.putFeatures(handle, featureType, features);
+            }
+        }
+        return features;
+    }
+
+    /**
+     * The dataset path of a request: the part of the servlet path after /sos, or
+     * the dataset parameter for requests that pass in a dataset URL.
+     * @param req incoming url request
+     * @return the dataset path
+     */
+    public static String getDatasetPath(final HttpServletRequest req) {
+        String servletPath = req.getServletPath();
+        if (servletPath != null) {
+            return servletPath.substring("/sos".length(), servletPath.length());
+        }
+        return ServletUtil.getParameterIgnoreCase(req, "dataset");
+    }
+
+    /**
+     * Finds the local file of the dataset of a request without opening the dataset.
+     * Only datasets opened before are known; restricted datasets are checked first.
+     * @param req incoming url request
+     * @param res outgoing web based response
+     * @return the file, or null if it is not known or access is denied
+     */
+    public static File findLocalFile(final HttpServletRequest req, final HttpServletResponse res) throws IOException {
+        String datasetPath = getDatasetPath(req);
+        if (datasetPath == null) {
+            return null;
+        }
+        File file = localFiles.get(datasetPath);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        if (!isAccessAllowed(req, res)) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Checks the THREDDS resource control of the dataset of a request without opening it.
+     * @param req incoming url request
+     * @param res outgoing web based response
+     * @return true if the dataset is not restricted or the user may access it
+     */
+    public static boolean isAccessAllowed(final HttpServletRequest req, final HttpServletResponse res) throws IOException {
+        if (req.getServletPath() == null) {
+            return true;
+        }
+        return DatasetHandler.resourceControlOk(req, res, getDatasetPath(req));
+    }
+
     /** 
-     * Close a NetcdfDataset.
+     * Close a NetcdfDataset. Datasets opened through {@link #openDataset} are handed
+     * back to the handle pool instead of being closed.
      * 
      * @param dataset the NetcdfDataset to close 
      */
@@ -69,13 +263,52 @@ public class DatasetHandlerAdapter {
         if (dataset == null) {
             return;
         }
-        try {
-            dataset.close();
-        } catch (IOException ioe) {
-            _log.warn("Failed to properly close the dataset", ioe);
-        }
+        openers.remove(dataset);
+        getPool().release(dataset);
     }
     
+    /**
+     * Finds the local file backing a dataset, used to validate anything cached for it.
+     * @param dataset an open dataset
+     * @return the file, or null if the dataset is an aggregation or is not a local file
+     */
+    public static File getLocalFile(final NetcdfDataset dataset) {
+        if (dataset == null || dataset.getLocation() == null || dataset.getAggregation() != null) {
+            return null;
+        }
+        String location = dataset.getLocation();
+        if (location.startsWith("file:")) {
+            location = location.substring("file:".length());
+        }
+        File file = new File(location);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Identifies a dataset for anything cached about it: the local file backing it and
+     * the dataset path it was opened under, so NcML views of the same file are kept apart.
+     * @param dataset an open dataset
+     * @return the key, or null if the dataset is an aggregation or is not a local file
+     */
+    public static String getDatasetKey(final NetcdfDataset dataset) {
+        File file = getLocalFile(dataset);
+        if (file == null) {
+            return null;
+        }
+        return getDatasetKey(datasetPaths.get(dataset), file);
+    }
+
+    /**
+     * The key {@link #getDatasetKey(NetcdfDataset)} gives the dataset of a request, found
+     * before the dataset is opened.
+     * @param datasetPath dataset path of the request, may be null
+     * @param file local file of the dataset, see {@link #findLocalFile}
+     * @return the key
+     */
+    public static String getDatasetKey(final String datasetPath, final File file) {
+        return datasetPath != null ? datasetPath + "!" + file.getAbsolutePath() : file.getAbsolutePath();
+    }
+
     /**
      * Encapsulates calcBounds in a try-catch block. Returns whether or not the attempt was succesful
      * @since authored by Sean Cowan - 10.16.2012
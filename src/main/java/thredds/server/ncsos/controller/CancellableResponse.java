@@ -0,0 +1,267 @@
+package thredds.server.ncsos.controller;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Future;
+
+/**
+ * The response a worker thread writes a request to. When the request times out or the
+ * client goes away, the container recycles the response while the worker may still be
+ * reading and writing; once the request is cancelled, everything the worker does to the
+ * response is refused, and the response is left to whoever cancelled the request.
+ * <p>
+ * The worker and the canceller hold the same lock while they touch the response, so a
+ * write is either done before the request is cancelled or not at all. The worker is
+ * interrupted as well, so its reads stop at the next batch instead of running to the end.
+ */
+class CancellableResponse extends HttpServletResponseWrapper {
+
+    private final Object lock = new Object();
+    private boolean cancelled = false;
+    private boolean finished = false;
+    private OutputStream stream;
+    private Future<?> worker;
+
+    CancellableResponse(HttpServletResponse response) {
+        super(response);
+    }
+
+    /**
+     * Takes the response away from the worker, unless it finished the request first.
+     * While the lock is held nothing else writes to the response.
+     * @return true if the request was cancelled by this call
+     */
+    boolean cancel() {
+        Future<?> running;
+        synchronized (lock) {
+            if (cancelled || finished) {
+                return false;
+            }
+            cancelled = true;
+            running = worker;
+        }
+        if (running != null) {
+            running.cancel(true);
+        }
+        return true;
+    }
+
+    /**
+     * Sets the queued request writing the response, interrupted when the request is
+     * cancelled, right away if that happened while it was being queued.
+     */
+    void setWorker(Future<?> worker) {
+        synchronized (lock) {
+            this.worker = worker;
+            if (!cancelled) {
+                return;
+            }
+        }
+        worker.cancel(true);
+    }
+
+    /**
+     * Marks the request as finished by the worker.
+     * @return true if the worker may complete the request, false if it was cancelled
+     */
+    boolean finish() {
+        synchronized (lock) {
+            if (cancelled) {
+                return false;
+            }
+            finished = true;
+            return true;
+        }
+    }
+
+    boolean isCancelled() {
+        synchronized (lock) {
+            return cancelled;
+        }
+    }
+
+    private void check() throws IOException {
+        if (cancelled) {
+            throw new IOException("the request was cancelled");
+        }
+    }
+
+    private void checkState() {
+        if (cancelled) {
+            throw new IllegalStateException("the request was cancelled");
+        }
+    }
+
+    /**
+     * @return the output stream of the response, refusing writes once the request is cancelled
+     */
+    OutputStream getGuardedStream() throws IOException {
+        synchronized (lock) {
+            check();
+            if (stream == null) {
+                stream = new GuardedStream(super.getOutputStream());
+            }
+            return stream;
+        }
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        synchronized (lock) {
+            check();
+            return super.getOutputStream();
+        }
+    }
+
+    @Override
+    public boolean isCommitted() {
+        synchronized (lock) {
+            // a cancelled response is no longer the worker's to reset or write an error to
+            return cancelled || super.isCommitted();
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized (lock) {
+            checkState();
+            super.reset();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        synchronized (lock) {
+            checkState();
+            super.resetBuffer();
+        }
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        synchronized (lock) {
+            check();
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        synchronized (lock) {
+            check();
+            super.sendError(sc, msg);
+        }
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        synchronized (lock) {
+            check();
+            super.sendError(sc);
+        }
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        synchronized (lock) {
+            checkState();
+            super.setStatus(sc);
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        synchronized (lock) {
+            checkState();
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        synchronized (lock) {
+            checkState();
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+        synchronized (lock) {
+            checkState();
+            super.setDateHeader(name, date);
+        }
+    }
+
+    @Override
+    public void setContentType(String type) {
+        synchronized (lock) {
+            checkState();
+            super.setContentType(type);
+        }
+    }
+
+    @Override
+    public void setCharacterEncoding(String charset) {
+        synchronized (lock) {
+            checkState();
+            super.setCharacterEncoding(charset);
+        }
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+        synchronized (lock) {
+            checkState();
+            super.setBufferSize(size);
+        }
+    }
+
+    /**
+     * The output stream of the response, refusing writes once the request is cancelled.
+     */
+    private class GuardedStream extends FilterOutputStream {
+
+        GuardedStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized (lock) {
+                check();
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (lock) {
+                check();
+                out.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (lock) {
+                check();
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (lock) {
+                // the canceller owns the stream now, leave it open
+                if (!cancelled) {
+                    out.close();
+                }
+            }
+        }
+    }
+}
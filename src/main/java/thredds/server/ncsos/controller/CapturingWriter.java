@@ -0,0 +1,59 @@
+package thredds.server.ncsos.controller;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+
+/**
+ * Writer that passes everything through to the response and keeps a copy of it, so
+ * the response can be cached once it is complete. Copying stops once more than
+ * <code>maxChars</code> characters have been written.
+ */
+class CapturingWriter extends Writer {
+
+    private final Writer writer;
+    private final int maxChars;
+    private StringBuilder copy = new StringBuilder();
+
+    CapturingWriter(Writer writer, int maxChars) {
+        this.writer = writer;
+        this.maxChars = maxChars;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        writer.write(cbuf, off, len);
+        if (copy != null) {
+            if (copy.length() + len > maxChars) {
+                copy = null;
+            } else {
+                copy.append(cbuf, off, len);
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * @return false if the output was too large to keep a copy of
+     */
+    boolean isComplete() {
+        return copy != null;
+    }
+
+    /**
+     * @param characterEncoding encoding of the response
+     * @return the output written so far, encoded
+     */
+    byte[] getBytes(String characterEncoding) throws UnsupportedEncodingException {
+        return copy.toString().getBytes(characterEncoding);
+    }
+}
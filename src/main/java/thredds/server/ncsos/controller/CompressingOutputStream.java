@@ -0,0 +1,167 @@
+package thredds.server.ncsos.controller;
+
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output stream that compresses a response with gzip or deflate while it is written.
+ * The first <code>minSize</code> bytes are held back; a response that ends before
+ * reaching that size is sent as is, anything larger is compressed from the start.
+ * Flushing a compressed response sync-flushes the compressor, so streamed
+ * responses still go out in pieces. An ETag set on the response is given the
+ * content-coding once compression starts, so the compressed and identity bodies
+ * never share a strong ETag.
+ */
+public class CompressingOutputStream extends OutputStream {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private final OutputStream out;
+    private final HttpServletResponse res;
+    private final String encoding;
+    private final int level;
+    private final int minSize;
+
+    private ByteArrayOutputStream pending;
+    private DeflaterOutputStream compressed;
+    private Deflater deflater;
+    private boolean closed = false;
+
+    /**
+     * @param out the response output stream
+     * @param res the response, used to set Content-Encoding once compression starts
+     * @param encoding {@link #GZIP} or {@link #DEFLATE}
+     * @param level compression level, 1 (fastest) to 9 (smallest)
+     * @param minSize number of bytes below which a response is not compressed
+     */
+    public CompressingOutputStream(OutputStream out, HttpServletResponse res, String encoding, int level, int minSize) {
+        this.out = out;
+        this.res = res;
+        this.encoding = encoding;
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.minSize = Math.max(0, minSize);
+        this.pending = new ByteArrayOutputStream(Math.min(this.minSize, 8192) + 1);
+    }
+
+    /**
+     * Picks the encoding to use from an Accept-Encoding header, preferring gzip.
+     * @param acceptEncoding value of the Accept-Encoding request header, may be null
+     * @return {@link #GZIP}, {@link #DEFLATE} or null if the client accepts neither
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = 0;
+        double deflate = 0;
+        double any = 0;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim().toLowerCase();
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException ex) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = q;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        if (gzip == 0 && !acceptEncoding.toLowerCase().contains(GZIP)) {
+            gzip = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (compressed != null) {
+            compressed.write(b, off, len);
+            return;
+        }
+        pending.write(b, off, len);
+        if (pending.size() >= minSize) {
+            startCompression();
+        }
+    }
+
+    /**
+     * Sends what has been written so far. Bytes held back below the minimum size
+     * stay held back, since the response might still be small.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (compressed != null) {
+            compressed.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (compressed != null) {
+                compressed.finish();
+            } else {
+                pending.writeTo(out);
+                pending = null;
+            }
+            out.close();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void startCompression() throws IOException {
+        res.setHeader("Content-Encoding", encoding);
+        String etag = res.getHeader("ETag");
+        if (etag != null) {
+            res.setHeader("ETag", ConditionalGet.withCoding(etag, encoding));
+        }
+        if (GZIP.equals(encoding)) {
+            compressed = new GZIPOutputStream(out, 8192, true) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        } else {
+            deflater = new Deflater(level);
+            compressed = new DeflaterOutputStream(out, deflater, 8192, true);
+        }
+        pending.writeTo(compressed);
+        pending = null;
+    }
+}
@@ -0,0 +1,133 @@
+package thredds.server.ncsos.controller;
+
+import com.asascience.ncsos.service.SosRequest;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HTTP validators for the responses that only change when the dataset file changes
+ * (GetCapabilities and DescribeSensor). The ETag is derived from the request URL the
+ * documents link back to, the dataset path, the modification time and size of the
+ * file, and the normalized query, so it can be computed before the dataset is opened.
+ * <p>
+ * A compressed body is a different representation from the identity one and gets the
+ * ETag with its content-coding appended, e.g. <code>"...-gzip"</code>; see
+ * {@link CompressingOutputStream}. A client holding either one is answered with 304.
+ */
+public class ConditionalGet {
+
+    private final String etag;
+    private final long lastModified;
+    // the tag of the client's copy, sent back with a 304
+    private String matched;
+
+    private ConditionalGet(String etag, long lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * Builds the validators for a request, if its response can be validated.
+     * @param threddsURI the request URL, with the host, the documents link back to
+     * @param datasetPath dataset path of the request
+     * @param request the parsed request
+     * @param file local file of the dataset, may be null
+     * @return the validators, or null if the request is not a GetCapabilities or
+     *         DescribeSensor request or the dataset file is not known
+     */
+    public static ConditionalGet forRequest(String threddsURI, String datasetPath, SosRequest request, File file) {
+        if (file == null || (request.getKind() != SosRequest.Kind.GET_CAPABILITIES
+                && request.getKind() != SosRequest.Kind.DESCRIBE_SENSOR)) {
+            return null;
+        }
+        String normalized = request.getNormalizedQuery();
+        String key = threddsURI + '\n' + datasetPath + '\n' + file.lastModified() + '\n' + file.length() + '\n' + normalized;
+        return new ConditionalGet('"' + digest(key) + '"', file.lastModified());
+    }
+
+    /**
+     * Checks the If-None-Match and If-Modified-Since headers of the request. If-None-Match
+     * takes precedence when both are sent.
+     * @param req incoming url request
+     * @return true if the client's copy is current
+     */
+    public boolean isNotModified(HttpServletRequest req) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag) || tag.equals(withCoding(etag, CompressingOutputStream.GZIP))
+                        || tag.equals(withCoding(etag, CompressingOutputStream.DEFLATE))) {
+                    matched = tag.equals("*") ? etag : tag;
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = req.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        // HTTP dates have a resolution of one second
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    /**
+     * Sets the ETag and Last-Modified headers of a response.
+     */
+    public void setHeaders(HttpServletResponse res) {
+        res.setHeader("ETag", etag);
+        res.setDateHeader("Last-Modified", lastModified);
+    }
+
+    /**
+     * Answers the request with 304 Not Modified, with the ETag of the client's copy.
+     */
+    public void sendNotModified(HttpServletResponse res) {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        res.setHeader("ETag", matched != null ? matched : etag);
+        res.setDateHeader("Last-Modified", lastModified);
+    }
+
+    /**
+     * @param etag the ETag of the identity body
+     * @param encoding the content-coding of the body
+     * @return the ETag of the body sent with the content-coding
+     */
+    public static String withCoding(String etag, String encoding) {
+        if (etag.endsWith("\"")) {
+            return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+        return etag + "-" + encoding;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    private static String digest(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : hash) {
+                builder.append(String.format("%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            return Integer.toHexString(key.hashCode());
+        } catch (UnsupportedEncodingException ex) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package thredds.server.ncsos.controller;
 
+import com.asascience.ncsos.cdmclasses.LatestObservationCache;
+import com.asascience.ncsos.gc.FeatureBoundsCalculator;
+import com.asascience.ncsos.outputformatter.CachedFileFormatter;
 import com.asascience.ncsos.outputformatter.ErrorFormatter;
 import com.asascience.ncsos.outputformatter.OutputFormatter;
 import com.asascience.ncsos.service.Parser;
+import com.asascience.ncsos.service.SosRequest;
 import com.asascience.ncsos.util.DatasetHandlerAdapter;
 
 import org.springframework.stereotype.Controller;
@@ -11,13 +15,22 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import ucar.nc2.dataset.NetcdfDataset;
 import thredds.servlet.ThreddsConfig;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 @Controller
 @RequestMapping("/sos")
@@ -26,9 +39,12 @@ public class SosController implements ISosContoller {
     private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(SosController.class);
     private static org.slf4j.Logger _logServerStartup = org.slf4j.LoggerFactory.getLogger("serverStartup");
 
+
     private boolean allow = false;
 
-    private HashMap<String, Object> respMap;
+    private SosRequestExecutor executor;
+
+    private SosResponseCache responseCache;
 
     protected String getPath() {
         return "Sos/";
@@ -40,12 +56,44 @@ public class SosController implements ISosContoller {
     }
 
     public void destroy() {
+        synchronized (this) {
+            if (executor != null) {
+                _logServerStartup.info("Stopping request executor: " + executor);
+                executor.shutdown();
+                executor = null;
+            }
+            if (responseCache != null) {
+                _logServerStartup.info("Clearing response cache: " + responseCache);
+                responseCache.shutdown();
+                responseCache = null;
+            }
+        }
+        DatasetHandlerAdapter.shutdownPool();
+        FeatureBoundsCalculator.shutdownPool();
         NetcdfDataset.shutdown();
         _logServerStartup.info("SOS Service - destroy done");
     }
 
+    private synchronized SosRequestExecutor getExecutor() {
+        if (executor == null) {
+            executor = new SosRequestExecutor();
+        }
+        return executor;
+    }
+
+    private synchronized SosResponseCache getResponseCache() {
+        if (responseCache == null) {
+            responseCache = new SosResponseCache();
+        }
+        return responseCache;
+    }
+
     /** 
-     * Generate SOS for the underlying NetcdfDataset
+     * Generate SOS for the underlying NetcdfDataset. The request is handed to the
+     * bounded request executor, asynchronously if the container supports it; when the
+     * executor's queue is full the request is turned away with a Retry-After header.
+     * A request that times out, or whose client goes away, is taken from its worker
+     * before the container recycles the response.
      * 
      * @param request incoming url request 
      * @param response outgoing web based response
@@ -56,41 +104,313 @@ public class SosController implements ISosContoller {
     @Override
     public void handleSOSRequest(final HttpServletRequest req, final HttpServletResponse res) throws ServletException, IOException {
 
-        NetcdfDataset dataset = null;
-
         allow = ThreddsConfig.getBoolean("NCSOS.allow", false);
         if (!allow) {
             res.sendError(HttpServletResponse.SC_FORBIDDEN, "ncSOS service not enabled");
             return;
         }
 
-        respMap = new HashMap<String, Object>();
-        Writer writer = res.getWriter();
+        // the query is parsed once, before any dataset I/O, and shared by everything below;
+        // GetCapabilities and DescribeSensor are answered in a lane of their own, not behind GetObservation reads
+        final SosRequest sosRequest = SosRequest.parse(req.getQueryString());
+        boolean metadata = sosRequest.getKind() == SosRequest.Kind.GET_CAPABILITIES
+                || sosRequest.getKind() == SosRequest.Kind.DESCRIBE_SENSOR;
+        // by default a request runs as long as its reads take; a configured timeout cancels it
+        long timeoutMillis = ThreddsConfig.getInt("NCSOS.executor.timeoutSeconds", 0) * 1000L;
+        final CancellableResponse guarded = new CancellableResponse(res);
+
+        if (req.isAsyncSupported()) {
+            final AsyncContext ctx = req.startAsync();
+            ctx.setTimeout(timeoutMillis);
+            ctx.addListener(new AsyncListener() {
+                public void onComplete(AsyncEvent event) {
+                }
+
+                public void onTimeout(AsyncEvent event) {
+                    if (guarded.cancel()) {
+                        _log.warn("Request timed out after " + ctx.getTimeout() + " ms: " + req.getQueryString());
+                        writeCancelled(res, "The request timed out");
+                        ctx.complete();
+                    }
+                }
+
+                public void onError(AsyncEvent event) {
+                    // the client went away, there is no one to answer
+                    if (guarded.cancel()) {
+                        _log.info("Request failed before it was answered: " + event.getThrowable());
+                        ctx.complete();
+                    }
+                }
+
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+            Future<?> worker = getExecutor().submit(new Runnable() {
+                public void run() {
+                    try {
+                        processRequest(req, guarded, sosRequest);
+                    } catch (IOException e) {
+                        if (!guarded.isCancelled()) {
+                            _log.error("Unable to write the response", e);
+                        }
+                    } finally {
+                        if (guarded.finish()) {
+                            ctx.complete();
+                        }
+                    }
+                }
+            }, metadata);
+            if (worker != null) {
+                guarded.setWorker(worker);
+            } else if (guarded.finish()) {
+                getExecutor().reject(res);
+                ctx.complete();
+            }
+        } else {
+            // the container thread still has to wait, but the number of requests reading data is bounded
+            final CountDownLatch done = new CountDownLatch(1);
+            final IOException[] failure = new IOException[1];
+            Future<?> worker = getExecutor().submit(new Runnable() {
+                public void run() {
+                    try {
+                        processRequest(req, guarded, sosRequest);
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    } finally {
+                        guarded.finish();
+                        done.countDown();
+                    }
+                }
+            }, metadata);
+            if (worker == null) {
+                getExecutor().reject(res);
+                return;
+            }
+            guarded.setWorker(worker);
+            try {
+                boolean finished = true;
+                if (timeoutMillis > 0) {
+                    finished = done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    done.await();
+                }
+                if (!finished && guarded.cancel()) {
+                    _log.warn("Request timed out after " + timeoutMillis + " ms: " + req.getQueryString());
+                    writeCancelled(res, "The request timed out");
+                    return;
+                }
+            } catch (InterruptedException e) {
+                // stop the worker from writing to a response the container is about to recycle
+                guarded.cancel();
+                Thread.currentThread().interrupt();
+                throw new ServletException("Interrupted while waiting for the request to be processed", e);
+            }
+            // the worker is done with the response, or finished just as it timed out
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+    }
+
+    /**
+     * Answers a request that was taken away from its worker with an exception report,
+     * unless part of the response was sent already.
+     */
+    private void writeCancelled(final HttpServletResponse res, String message) {
+        try {
+            if (res.isCommitted()) {
+                return;
+            }
+            res.reset();
+            res.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            ErrorFormatter output = new ErrorFormatter();
+            res.setContentType(output.getContentType().toString());
+            output.setException(message);
+            Writer writer = new OutputStreamWriter(res.getOutputStream(), res.getCharacterEncoding());
+            output.writeOutput(writer);
+            writer.flush();
+            writer.close();
+        } catch (Exception e) {
+            _log.debug("Unable to answer the cancelled request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the writer for the response body, compressed with gzip or deflate when the
+     * client accepts it and NCSOS.compression.enabled is set.
+     */
+    private Writer openWriter(final HttpServletRequest req, final CancellableResponse res) throws IOException {
+        return new OutputStreamWriter(openStream(req, res), res.getCharacterEncoding());
+    }
+
+    private OutputStream openStream(final HttpServletRequest req, final CancellableResponse res) throws IOException {
+        OutputStream out = res.getGuardedStream();
+        if (ThreddsConfig.getBoolean("NCSOS.compression.enabled", true)) {
+            res.addHeader("Vary", "Accept-Encoding");
+            String encoding = CompressingOutputStream.negotiate(req.getHeader("Accept-Encoding"));
+            if (encoding != null) {
+                out = new CompressingOutputStream(out, res, encoding,
+                        ThreddsConfig.getInt("NCSOS.compression.level", 6),
+                        ThreddsConfig.getInt("NCSOS.compression.minSize", 1024));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Parses the request, reads the dataset and writes the response.
+     */
+    private void processRequest(final HttpServletRequest req, final CancellableResponse res,
+            final SosRequest sosRequest) throws IOException {
+
+        NetcdfDataset dataset = null;
+
+        HashMap<String, Object> respMap = new HashMap<String, Object>();
+        Writer writer = null;
         try {
             //see http://tomcat.apache.org/tomcat-5.5-doc/config/context.html ----- workdir    
             String tempdir = System.getProperty("java.io.tmpdir");
          
-            dataset = DatasetHandlerAdapter.openDataset(req, res);
+            String threddsURI = req.getRequestURL()+"?".toString();
+            String datasetPath = DatasetHandlerAdapter.getDatasetPath(req);
 
+            // phase one: invalid requests are answered without the dataset
             Parser md = new Parser();
-            respMap = md.enhanceGETRequest(dataset, req.getQueryString(), req.getRequestURL()+"?".toString(),tempdir); 
-            OutputFormatter output = (OutputFormatter)respMap.get("outputFormatter");
+            OutputFormatter output = md.planRequest(sosRequest);
+
+            ConditionalGet validators = null;
+            SosResponseCache cache = getResponseCache();
+            String cacheKey = null;
+            if (output == null) {
+                File knownFile = DatasetHandlerAdapter.findLocalFile(req, res);
+
+                // GetCapabilities and DescribeSensor only change with the file, answer 304 before opening it if we can
+                validators = ConditionalGet.forRequest(threddsURI, datasetPath, sosRequest, knownFile);
+                if (validators != null && validators.isNotModified(req)) {
+                    validators.sendNotModified(res);
+                    return;
+                }
+
+                // GetCapabilities documents are kept on disk until the file changes
+                output = md.findCachedCapabilities(sosRequest, threddsURI, knownFile);
+
+                // latest observations are answered from memory while the file is unchanged
+                LatestObservationCache.Response latest = LatestObservationCache.findResponse(datasetPath,
+                        knownFile, sosRequest);
+                if (latest != null) {
+                    res.setContentType(latest.getContentType());
+                    res.setCharacterEncoding(latest.getCharacterEncoding());
+                    OutputStream out = openStream(req, res);
+                    out.write(latest.getBody());
+                    out.close();
+                    return;
+                }
+
+                // identical GetObservation requests are answered from memory while the file is unchanged
+                cacheKey = cache.isEnabled() ? SosResponseCache.keyFor(datasetPath, sosRequest) : null;
+                SosResponseCache.Entry cached = cache.get(cacheKey, knownFile);
+                if (cached != null) {
+                    res.setContentType(cached.getContentType());
+                    res.setCharacterEncoding(cached.getCharacterEncoding());
+                    OutputStream out = openStream(req, res);
+                    out.write(cached.getBody());
+                    out.close();
+                    return;
+                }
+            }
+            if (output == null) {
+                // phase two: the request needs the dataset
+                dataset = DatasetHandlerAdapter.openDataset(req, res);
+
+                if (validators == null) {
+                    validators = ConditionalGet.forRequest(threddsURI, datasetPath, sosRequest,
+                            DatasetHandlerAdapter.getLocalFile(dataset));
+                    if (validators != null && validators.isNotModified(req)) {
+                        validators.sendNotModified(res);
+                        return;
+                    }
+                }
+
+                respMap = md.enhanceGETRequest(dataset, sosRequest, threddsURI, tempdir);
+                output = (OutputFormatter)respMap.get("outputFormatter");
+            }
             res.setContentType(output.getContentType().toString());            
+            if (validators != null && !(output instanceof ErrorFormatter)) {
+                validators.setHeaders(res);
+            }
+            if (output.isStreaming()) {
+                // no content length; every flushed batch goes out as a chunk
+                res.setBufferSize(ThreddsConfig.getInt("NCSOS.streaming.bufferSize", 8192));
+            }
+            if (output instanceof CachedFileFormatter) {
+                // the cached sections are already serialized, copy the bytes
+                res.setCharacterEncoding(CachedFileFormatter.CHARACTER_ENCODING);
+                OutputStream out = openStream(req, res);
+                ((CachedFileFormatter) output).writeOutput(out);
+                out.close();
+                return;
+            }
+            writer = openWriter(req, res);
+            CapturingWriter capture = null;
+            File cacheFile = null;
+            long lastModified = 0;
+            long fileSize = 0;
+            boolean keepLatest = dataset != null && LatestObservationCache.isCachedRequest(sosRequest);
+            if ((cacheKey != null || keepLatest) && !(output instanceof ErrorFormatter) && !output.hasError()) {
+                cacheFile = DatasetHandlerAdapter.getLocalFile(dataset);
+                if (cacheFile != null) {
+                    lastModified = cacheFile.lastModified();
+                    fileSize = cacheFile.length();
+                    int maxChars = Math.max(cacheKey != null ? cache.getMaxEntryBytes() : 0,
+                            keepLatest ? LatestObservationCache.getMaxResponseBytes() : 0);
+                    capture = new CapturingWriter(writer, maxChars);
+                    writer = capture;
+                }
+            }
             output.writeOutput(writer);            
             writer.flush();
             writer.close();
+            if (capture != null && capture.isComplete() && !output.hasError()) {
+                byte[] body = capture.getBytes(res.getCharacterEncoding());
+                if (cacheKey != null) {
+                    cache.put(cacheKey, lastModified, fileSize, res.getContentType(), res.getCharacterEncoding(), body);
+                }
+                if (keepLatest) {
+                    LatestObservationCache.putResponse(datasetPath, cacheFile, fileSize, lastModified, sosRequest,
+                            res.getContentType(), res.getCharacterEncoding(), body);
+                }
+            }
          
 
         } 
         
         catch (Exception e) {
+            if (res.isCancelled()) {
+                // the request timed out or its client went away, the response is not ours anymore
+                _log.debug("Stopped a cancelled request: " + e.getMessage());
+                return;
+            }
             _log.error("Something went wrong", e);
+            if (res.isCommitted()) {
+                // part of a streamed response was already sent, an exception report can't replace it
+                if (writer != null) {
+                    writer.close();
+                }
+                return;
+            }
+            // drop anything buffered, including a Content-Encoding header
+            res.reset();
 
             ErrorFormatter  output = new ErrorFormatter();
             res.setContentType(output.getContentType().toString());        
             output.setException(e.getMessage());
 
-
+            writer = openWriter(req, res);
             output.writeOutput(writer);            
             writer.flush();
             writer.close();
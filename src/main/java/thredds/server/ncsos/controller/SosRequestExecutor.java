@@ -0,0 +1,180 @@
+package thredds.server.ncsos.controller;
+
+import thredds.servlet.ThreddsConfig;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of worker threads that runs SOS requests off the container threads.
+ * Requests wait in a queue of limited size; when it is full they are rejected so the
+ * caller can answer with 429/503 instead of tying up another container thread.
+ * <p>
+ * GetCapabilities and DescribeSensor requests run in a lane of their own, so they are not
+ * queued behind long GetObservation reads.
+ * <p>
+ * Configured in the threddsConfig.xml by NCSOS.executor.threads, NCSOS.executor.queueSize
+ * and NCSOS.executor.metadataThreads; with no metadata threads all requests share one lane.
+ */
+public class SosRequestExecutor implements SosRequestExecutorMBean {
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(SosRequestExecutor.class);
+    private static final String OBJECT_NAME = "com.asascience.ncsos:type=RequestExecutor";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    private final ThreadPoolExecutor executor;
+    // null if metadata requests share the executor
+    private final ThreadPoolExecutor metadataExecutor;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+
+    public SosRequestExecutor() {
+        this(ThreddsConfig.getInt("NCSOS.executor.threads", 4),
+             ThreddsConfig.getInt("NCSOS.executor.queueSize", 32),
+             ThreddsConfig.getInt("NCSOS.executor.metadataThreads", 2));
+    }
+
+    public SosRequestExecutor(int threads, int queueSize, int metadataThreads) {
+        this.executor = newExecutor("ncsos-request-", threads, queueSize);
+        this.metadataExecutor = metadataThreads > 0 ? newExecutor("ncsos-metadata-", metadataThreads, queueSize) : null;
+        registerMBean();
+    }
+
+    private static ThreadPoolExecutor newExecutor(final String namePrefix, int threads, int queueSize) {
+        threads = Math.max(1, threads);
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, namePrefix + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Queues a request for a worker thread.
+     * @param request the work to do
+     * @param metadata true for GetCapabilities and DescribeSensor requests, which run in their own lane
+     * @return the queued request, cancelled with interruption when it times out, or null if
+     *         the queue is full and the request was not accepted
+     */
+    public Future<?> submit(final Runnable request, boolean metadata) {
+        final long queued = System.currentTimeMillis();
+        ThreadPoolExecutor lane = (metadata && metadataExecutor != null) ? metadataExecutor : executor;
+        try {
+            return lane.submit(new Runnable() {
+                public void run() {
+                    recordWait(System.currentTimeMillis() - queued);
+                    request.run();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            rejected.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Answers a request that could not be queued with 429 (or the status set by
+     * NCSOS.executor.rejectStatus) and a Retry-After header.
+     */
+    public void reject(HttpServletResponse res) throws IOException {
+        _log.warn("Request queue is full, rejecting request: " + this);
+        res.setHeader("Retry-After", String.valueOf(ThreddsConfig.getInt("NCSOS.executor.retryAfterSeconds", 5)));
+        res.sendError(ThreddsConfig.getInt("NCSOS.executor.rejectStatus", SC_TOO_MANY_REQUESTS),
+                "ncSOS is busy, please retry later");
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        if (metadataExecutor != null) {
+            metadataExecutor.shutdownNow();
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception ex) {
+            _log.debug("Unable to unregister " + OBJECT_NAME + ": " + ex.getMessage());
+        }
+    }
+
+    private void recordWait(long millis) {
+        waited.incrementAndGet();
+        totalWaitMillis.addAndGet(millis);
+        long max = maxWaitMillis.get();
+        while (millis > max && !maxWaitMillis.compareAndSet(max, millis)) {
+            max = maxWaitMillis.get();
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception ex) {
+            _log.warn("Unable to register " + OBJECT_NAME + ": " + ex.getMessage());
+        }
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getMetadataQueueDepth() {
+        return metadataExecutor != null ? metadataExecutor.getQueue().size() : 0;
+    }
+
+    public int getMetadataActiveCount() {
+        return metadataExecutor != null ? metadataExecutor.getActiveCount() : 0;
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount()
+                + (metadataExecutor != null ? metadataExecutor.getCompletedTaskCount() : 0);
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long count = waited.get();
+        return count == 0 ? 0 : (double) totalWaitMillis.get() / count;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SosRequestExecutor[queue=" + getQueueDepth() + ", active=" + getActiveCount()
+                + ", metadataQueue=" + getMetadataQueueDepth() + ", metadataActive=" + getMetadataActiveCount()
+                + ", completed=" + getCompletedCount() + ", rejected=" + getRejectedCount()
+                + ", avgWaitMs=" + getAverageWaitMillis() + ", maxWaitMs=" + getMaxWaitMillis() + "]";
+    }
+}
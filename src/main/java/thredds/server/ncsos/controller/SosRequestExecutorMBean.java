@@ -0,0 +1,48 @@
+package thredds.server.ncsos.controller;
+
+/**
+ * Metrics of the SOS request executor, registered with JMX as
+ * com.asascience.ncsos:type=RequestExecutor
+ */
+public interface SosRequestExecutorMBean {
+
+    /**
+     * @return number of requests waiting for a worker thread
+     */
+    int getQueueDepth();
+
+    /**
+     * @return number of requests currently being processed
+     */
+    int getActiveCount();
+
+    /**
+     * @return number of GetCapabilities and DescribeSensor requests waiting in their own lane
+     */
+    int getMetadataQueueDepth();
+
+    /**
+     * @return number of GetCapabilities and DescribeSensor requests being processed in their own lane
+     */
+    int getMetadataActiveCount();
+
+    /**
+     * @return number of requests processed since startup
+     */
+    long getCompletedCount();
+
+    /**
+     * @return number of requests turned away because the queue was full
+     */
+    long getRejectedCount();
+
+    /**
+     * @return average time in milliseconds a request waited in the queue
+     */
+    double getAverageWaitMillis();
+
+    /**
+     * @return longest time in milliseconds a request waited in the queue
+     */
+    long getMaxWaitMillis();
+}
@@ -0,0 +1,239 @@
+package thredds.server.ncsos.controller;
+
+import com.asascience.ncsos.service.SosRequest;
+
+import thredds.servlet.ThreddsConfig;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serialized GetObservation responses kept in memory under a total byte budget,
+ * least recently used first out. A response is keyed by the dataset path and the
+ * normalized query and is only returned while the dataset file has the size and
+ * modification time it had when the response was made.
+ * <p>
+ * Configured in the threddsConfig.xml by NCSOS.responseCache.maxBytes (0 disables
+ * the cache) and NCSOS.responseCache.maxEntryBytes.
+ */
+public class SosResponseCache implements SosResponseCacheMBean {
+
+    private static org.slf4j.Logger _log = org.slf4j.LoggerFactory.getLogger(SosResponseCache.class);
+    private static final String OBJECT_NAME = "com.asascience.ncsos:type=ResponseCache";
+
+    private final long maxBytes;
+    private final int maxEntryBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+    private long sizeBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public SosResponseCache() {
+        this(ThreddsConfig.getInt("NCSOS.responseCache.maxBytes", 32 * 1024 * 1024),
+             ThreddsConfig.getInt("NCSOS.responseCache.maxEntryBytes", 1024 * 1024));
+    }
+
+    public SosResponseCache(long maxBytes, int maxEntryBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntryBytes = (int) Math.max(0, Math.min(maxEntryBytes, this.maxBytes));
+        if (isEnabled()) {
+            registerMBean();
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return largest response in bytes that is kept
+     */
+    public int getMaxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /**
+     * Cache key of a request.
+     * @param datasetPath dataset path of the request
+     * @param request the parsed request
+     * @return the key, or null if the request is not a GetObservation request
+     */
+    public static String keyFor(String datasetPath, SosRequest request) {
+        if (datasetPath == null || request.getKind() != SosRequest.Kind.GET_OBSERVATION) {
+            return null;
+        }
+        return datasetPath + '?' + request.getNormalizedQuery();
+    }
+
+    /**
+     * Looks up a response.
+     * @param key key from {@link #keyFor}
+     * @param file local file of the dataset
+     * @return the cached response, or null if there is none for the current file
+     */
+    public Entry get(String key, File file) {
+        if (!isEnabled() || key == null || file == null) {
+            return null;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isCurrent(file)) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            if (entry != null) {
+                remove(key, entry);
+                invalidations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds a response, evicting least recently used responses to stay within the budget.
+     * @param key key from {@link #keyFor}
+     * @param lastModified modification time of the dataset file before the response was made
+     * @param fileSize size of the dataset file before the response was made
+     * @param contentType content type of the response
+     * @param characterEncoding character encoding of the body
+     * @param body the serialized response
+     */
+    public void put(String key, long lastModified, long fileSize, String contentType, String characterEncoding,
+            byte[] body) {
+        if (!isEnabled() || key == null || body.length > maxEntryBytes) {
+            return;
+        }
+        Entry entry = new Entry(lastModified, fileSize, contentType, characterEncoding, body);
+        synchronized (this) {
+            Entry old = entries.remove(key);
+            if (old != null) {
+                sizeBytes -= old.body.length;
+            }
+            entries.put(key, entry);
+            sizeBytes += body.length;
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (sizeBytes > maxBytes && it.hasNext()) {
+                sizeBytes -= it.next().getValue().body.length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    public void shutdown() {
+        clear();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (Exception ex) {
+            _log.debug("Unable to unregister " + OBJECT_NAME + ": " + ex.getMessage());
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        entries.remove(key);
+        sizeBytes -= entry.body.length;
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception ex) {
+            _log.warn("Unable to register " + OBJECT_NAME + ": " + ex.getMessage());
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = getHits() + getMisses();
+        return lookups == 0 ? 0 : (double) getHits() / lookups;
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SosResponseCache[hits=" + getHits() + ", misses=" + getMisses() + ", hitRatio=" + getHitRatio()
+                + ", entries=" + getEntryCount() + ", bytes=" + getSizeBytes() + "/" + getMaxBytes() + "]";
+    }
+
+    /**
+     * A cached response body with its content type.
+     */
+    public static class Entry {
+        private final long lastModified;
+        private final long fileSize;
+        private final String contentType;
+        private final String characterEncoding;
+        private final byte[] body;
+
+        Entry(long lastModified, long fileSize, String contentType, String characterEncoding, byte[] body) {
+            this.lastModified = lastModified;
+            this.fileSize = fileSize;
+            this.contentType = contentType;
+            this.characterEncoding = characterEncoding;
+            this.body = body;
+        }
+
+        boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == fileSize;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getCharacterEncoding() {
+            return characterEncoding;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package thredds.server.ncsos.controller;
+
+/**
+ * Metrics of the GetObservation response cache, registered with JMX as
+ * com.asascience.ncsos:type=ResponseCache
+ */
+public interface SosResponseCacheMBean {
+
+    /**
+     * @return number of requests answered from the cache
+     */
+    long getHits();
+
+    /**
+     * @return number of cacheable requests that were not in the cache
+     */
+    long getMisses();
+
+    /**
+     * @return hits divided by all lookups, 0 if there were none
+     */
+    double getHitRatio();
+
+    /**
+     * @return number of responses removed to stay within the memory budget
+     */
+    long getEvictions();
+
+    /**
+     * @return number of responses dropped because the dataset file changed
+     */
+    long getInvalidations();
+
+    /**
+     * @return number of responses in the cache
+     */
+    int getEntryCount();
+
+    /**
+     * @return bytes held by the cached responses
+     */
+    long getSizeBytes();
+
+    /**
+     * @return memory budget of the cache in bytes
+     */
+    long getMaxBytes();
+
+    /**
+     * Drops every cached response.
+     */
+    void clear();
+}
@@ -0,0 +1,139 @@
+package com.asascience.ncsos;
+
+import com.asascience.ncsos.service.SosRequest;
+import org.jdom.Element;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import thredds.server.ncsos.controller.CompressingOutputStream;
+import thredds.server.ncsos.controller.ConditionalGet;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses a GetCapabilities document the way the controller sends it, and checks it
+ * reads back the same with either coding.
+ */
+public class GCCompressionTest extends NcSOSTest {
+
+    private static File datasetFile;
+    private static byte[] capabilities;
+
+    @BeforeClass
+    public static void setupEnvironment() throws Exception {
+        NcSOSTest.setUpClass();
+
+        String outputDir = baseOutputDir + NcSOSTest.systemSeparator + "GetCapabilities-Compression" + NcSOSTest.systemSeparator;
+
+        // Create output directories if they don't exist
+        new File(outputDir).mkdirs();
+
+        datasetFile = new File("resources" + NcSOSTest.systemSeparator + "datasets" + NcSOSTest.systemSeparator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+        HashMap<String, String> pairs = new HashMap<String, String>();
+        pairs.put("request", "GetCapabilities");
+        pairs.put("service", "SOS");
+        String output = new File(outputDir + "capabilities.xml").getAbsolutePath();
+        Element result = NcSOSTest.makeTestRequest(datasetFile.getAbsolutePath(), output, pairs);
+        Assert.assertFalse(NcSOSTest.isException(result));
+        capabilities = Files.readAllBytes(new File(output).toPath());
+    }
+
+    @Test
+    public void testNegotiate() {
+        Assert.assertNull(CompressingOutputStream.negotiate(null));
+        Assert.assertNull(CompressingOutputStream.negotiate("identity"));
+        Assert.assertEquals("gzip", CompressingOutputStream.negotiate("gzip, deflate"));
+        Assert.assertEquals("gzip", CompressingOutputStream.negotiate("x-gzip"));
+        Assert.assertEquals("deflate", CompressingOutputStream.negotiate("deflate"));
+        Assert.assertEquals("deflate", CompressingOutputStream.negotiate("gzip;q=0.5, deflate"));
+        Assert.assertEquals("deflate", CompressingOutputStream.negotiate("gzip;q=0, deflate"));
+        Assert.assertEquals("gzip", CompressingOutputStream.negotiate("*"));
+        Assert.assertNull(CompressingOutputStream.negotiate("gzip;q=0"));
+        Assert.assertNull(CompressingOutputStream.negotiate("*;q=0"));
+    }
+
+    @Test
+    public void testSmallResponseNotCompressed() throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        CompressingOutputStream out = new CompressingOutputStream(sent, fakeResponse(headers),
+                CompressingOutputStream.GZIP, 6, capabilities.length + 1);
+        out.write(capabilities);
+        out.flush();
+        // held back while the response might still be small
+        Assert.assertEquals(0, sent.size());
+        out.close();
+        Assert.assertArrayEquals(capabilities, sent.toByteArray());
+        Assert.assertNull(headers.get("Content-Encoding"));
+    }
+
+    @Test
+    public void testGzipResponse() throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        ConditionalGet validators = ConditionalGet.forRequest("http://localhost:8080/thredds/sos/test.nc", "/test.nc",
+                SosRequest.parse("request=GetCapabilities&service=SOS"), datasetFile);
+        HttpServletResponse res = fakeResponse(headers);
+        validators.setHeaders(res);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        CompressingOutputStream out = new CompressingOutputStream(sent, res, CompressingOutputStream.GZIP, 6, 1024);
+        int half = capabilities.length / 2;
+        out.write(capabilities, 0, half);
+        out.flush();
+        // the compressed part written so far goes out on a flush
+        int flushed = sent.size();
+        Assert.assertTrue(flushed > 0);
+        out.write(capabilities, half, capabilities.length - half);
+        out.close();
+        Assert.assertTrue(sent.size() > flushed);
+        Assert.assertTrue(sent.size() < capabilities.length);
+        Assert.assertEquals("gzip", headers.get("Content-Encoding"));
+        String gzipTag = ConditionalGet.withCoding(validators.getETag(), CompressingOutputStream.GZIP);
+        Assert.assertEquals(gzipTag, headers.get("ETag"));
+        Assert.assertArrayEquals(capabilities, readAll(new GZIPInputStream(new ByteArrayInputStream(sent.toByteArray()))));
+        // a client holding the compressed body is answered with 304
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-None-Match", gzipTag)));
+    }
+
+    @Test
+    public void testDeflateResponse() throws Exception {
+        Map<String, Object> headers = new HashMap<String, Object>();
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        CompressingOutputStream out = new CompressingOutputStream(sent, fakeResponse(headers),
+                CompressingOutputStream.DEFLATE, 9, 0);
+        for (byte b : capabilities) {
+            out.write(b);
+        }
+        out.close();
+        Assert.assertEquals("deflate", headers.get("Content-Encoding"));
+        Assert.assertNull(headers.get("ETag"));
+        Assert.assertArrayEquals(capabilities, readAll(new InflaterInputStream(new ByteArrayInputStream(sent.toByteArray()))));
+        try {
+            out.write(1);
+            Assert.fail("wrote to a closed stream");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            read.write(buffer, 0, count);
+        }
+        in.close();
+        return read.toByteArray();
+    }
+}
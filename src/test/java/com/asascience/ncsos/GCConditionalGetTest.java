@@ -0,0 +1,159 @@
+package com.asascience.ncsos;
+
+import com.asascience.ncsos.service.SosRequest;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import thredds.server.ncsos.controller.CompressingOutputStream;
+import thredds.server.ncsos.controller.ConditionalGet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Validates GetCapabilities and DescribeSensor responses with ETag and Last-Modified, and
+ * answers the conditional requests of a client holding a current copy with 304.
+ */
+public class GCConditionalGetTest extends NcSOSTest {
+
+    private static final String THREDDS_URI = "http://localhost:8080/thredds/sos/test.nc";
+    private static final String CAPABILITIES = "request=GetCapabilities&service=SOS";
+
+    private static File datasetFile;
+
+    @BeforeClass
+    public static void setupEnvironment() throws Exception {
+        NcSOSTest.setUpClass();
+
+        String outputDir = baseOutputDir + NcSOSTest.systemSeparator + "GetCapabilities-Conditional" + NcSOSTest.systemSeparator;
+
+        // Create output directories if they don't exist
+        new File(outputDir).mkdirs();
+
+        // a copy, so its modification time can be changed
+        File template = new File("resources" + NcSOSTest.systemSeparator + "datasets" + NcSOSTest.systemSeparator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+        datasetFile = new File(outputDir + "conditional.nc");
+        Files.copy(template.toPath(), datasetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Test
+    public void testValidatedRequests() {
+        Assert.assertNotNull(forQuery(CAPABILITIES, datasetFile));
+        Assert.assertNotNull(forQuery("request=DescribeSensor&service=SOS&version=1.0.0&procedure=urn:ioos:station:ncsos:Station-0"
+                + "&outputFormat=text/xml;subtype=\"sensorML/1.0.1/profiles/ioos_sos/1.0\"", datasetFile));
+        Assert.assertNull(forQuery("request=GetObservation&service=SOS&version=1.0.0&offering=urn:ioos:network:ncsos:all"
+                + "&observedProperty=temperature", datasetFile));
+        Assert.assertNull(forQuery(CAPABILITIES, null));
+    }
+
+    @Test
+    public void testETagFollowsQueryAndFile() throws Exception {
+        String etag = forQuery(CAPABILITIES, datasetFile).getETag();
+        Assert.assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+        // the same request written differently
+        Assert.assertEquals(etag, forQuery("SERVICE=sos&Request=getcapabilities", datasetFile).getETag());
+        Assert.assertFalse(etag.equals(forQuery(CAPABILITIES + "&sections=Contents", datasetFile).getETag()));
+        Assert.assertFalse(etag.equals(ConditionalGet.forRequest("http://example.org/thredds/sos/test.nc", "/test.nc",
+                SosRequest.parse(CAPABILITIES), datasetFile).getETag()));
+
+        long lastModified = datasetFile.lastModified();
+        try {
+            Assert.assertTrue(datasetFile.setLastModified(lastModified - 60000));
+            Assert.assertFalse(etag.equals(forQuery(CAPABILITIES, datasetFile).getETag()));
+        } finally {
+            datasetFile.setLastModified(lastModified);
+        }
+        Assert.assertEquals(etag, forQuery(CAPABILITIES, datasetFile).getETag());
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        ConditionalGet validators = forQuery(CAPABILITIES, datasetFile);
+        String etag = validators.getETag();
+        String gzipTag = ConditionalGet.withCoding(etag, CompressingOutputStream.GZIP);
+        Assert.assertEquals(etag.substring(0, etag.length() - 1) + "-gzip\"", gzipTag);
+
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-None-Match", etag)));
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-None-Match", "W/" + etag)));
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-None-Match", "\"other\", " + gzipTag)));
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-None-Match",
+                ConditionalGet.withCoding(etag, CompressingOutputStream.DEFLATE))));
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-None-Match", "*")));
+        Assert.assertFalse(validators.isNotModified(fakeRequest("If-None-Match", "\"other\"")));
+        // If-None-Match takes precedence over If-Modified-Since
+        HttpServletRequest both = fakeRequest("If-None-Match", "\"other\"",
+                "If-Modified-Since", httpDate(datasetFile.lastModified() + 60000));
+        Assert.assertFalse(validators.isNotModified(both));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        ConditionalGet validators = forQuery(CAPABILITIES, datasetFile);
+        long lastModified = datasetFile.lastModified();
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-Modified-Since", httpDate(lastModified))));
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-Modified-Since", httpDate(lastModified + 60000))));
+        Assert.assertFalse(validators.isNotModified(fakeRequest("If-Modified-Since", httpDate(lastModified - 60000))));
+        Assert.assertFalse(validators.isNotModified(fakeRequest("If-Modified-Since", "yesterday")));
+        Assert.assertFalse(validators.isNotModified(fakeRequest()));
+    }
+
+    @Test
+    public void testNotModifiedSendsClientTag() {
+        ConditionalGet validators = forQuery(CAPABILITIES, datasetFile);
+        String gzipTag = ConditionalGet.withCoding(validators.getETag(), CompressingOutputStream.GZIP);
+        Assert.assertTrue(validators.isNotModified(fakeRequest("If-None-Match", gzipTag)));
+        Map<String, Object> headers = new HashMap<String, Object>();
+        validators.sendNotModified(fakeResponse(headers));
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, headers.get("status"));
+        Assert.assertEquals(gzipTag, headers.get("ETag"));
+        Assert.assertEquals(datasetFile.lastModified(), headers.get("Last-Modified"));
+    }
+
+    @Test
+    public void testDescribeSensorTagPerProcedure() {
+        String sensorML = "&outputFormat=text/xml;subtype=\"sensorML/1.0.1/profiles/ioos_sos/1.0\"";
+        String station0 = forQuery("request=DescribeSensor&service=SOS&version=1.0.0"
+                + "&procedure=urn:ioos:station:ncsos:Station-0" + sensorML, datasetFile).getETag();
+        String station1 = forQuery("request=DescribeSensor&service=SOS&version=1.0.0"
+                + "&procedure=urn:ioos:station:ncsos:Station-1" + sensorML, datasetFile).getETag();
+        Assert.assertFalse(station0.equals(station1));
+        Assert.assertFalse(station0.equals(forQuery(CAPABILITIES, datasetFile).getETag()));
+        // the gml:id form of the procedure names the same sensor
+        Assert.assertEquals(station0, forQuery("request=DescribeSensor&service=SOS&version=1.0.0"
+                + "&procedure=urn_-_ioos_-_station_-_ncsos_-_Station-0" + sensorML, datasetFile).getETag());
+    }
+
+    @Test
+    public void testSetHeaders() {
+        ConditionalGet validators = forQuery(CAPABILITIES, datasetFile);
+        Map<String, Object> headers = new HashMap<String, Object>();
+        validators.setHeaders(fakeResponse(headers));
+        Assert.assertEquals(validators.getETag(), headers.get("ETag"));
+        Assert.assertEquals(datasetFile.lastModified(), headers.get("Last-Modified"));
+        Assert.assertNull(headers.get("status"));
+        // without a matched tag the 304 carries the identity tag
+        validators.sendNotModified(fakeResponse(headers));
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, headers.get("status"));
+        Assert.assertEquals(validators.getETag(), headers.get("ETag"));
+    }
+
+    private static ConditionalGet forQuery(String query, File file) {
+        return ConditionalGet.forRequest(THREDDS_URI, "/test.nc", SosRequest.parse(query), file);
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+}
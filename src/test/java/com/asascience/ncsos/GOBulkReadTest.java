@@ -0,0 +1,236 @@
+package com.asascience.ncsos;
+
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.cdmclasses.TimeSeries;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.ArrayChar;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.VariableSimpleIF;
+import ucar.nc2.constants.AxisType;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
+import ucar.nc2.ft.FeatureDatasetPoint;
+import ucar.nc2.ft.StationTimeSeriesFeatureCollection;
+import ucar.unidata.geoloc.Station;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Formatter;
+import java.util.List;
+
+/**
+ * Reads every station of the time series layouts through the bulk record reader and
+ * through the feature iterator, and checks both give the same records.
+ */
+public class GOBulkReadTest extends NcSOSTest {
+
+    private static String datasetDir;
+    private static String generatedDir;
+
+    // station of each record of the ragged files, in time order
+    private static final int[] RECORD_STATIONS = {0, 1, 2, 0, 1, 0, 2, 0, 1};
+    private static final int STATIONS = 3;
+
+    @BeforeClass
+    public static void setupEnvironment() throws Exception {
+        NcSOSTest.setUpClass();
+
+        datasetDir   = "resources" + NcSOSTest.systemSeparator + "datasets" + NcSOSTest.systemSeparator;
+        generatedDir = baseOutputDir + NcSOSTest.systemSeparator + "GetObservation-BulkRead" + NcSOSTest.systemSeparator;
+
+        // Create output directories if they don't exist
+        new File(generatedDir).mkdirs();
+    }
+
+    @Test
+    public void testOrthogonalMultidimensional() throws Exception {
+        compareWithIterator(datasetDir + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+    }
+
+    @Test
+    public void testIncompleteMultidimensional() throws Exception {
+        compareWithIterator(datasetDir + "cf_templates/timeSeries-Incomplete-MultiDimensional-MultipleStations-H.2.2.nc");
+    }
+
+    @Test
+    public void testSingleStation() throws Exception {
+        compareWithIterator(datasetDir + "cf_templates/timeSeries-MultiDimensional-SingleStation-H.2.3.nc");
+    }
+
+    @Test
+    public void testContiguousRagged() throws Exception {
+        String path = new File(generatedDir + "timeSeries-Contiguous-Ragged.nc").getAbsolutePath();
+        writeRagged(path, false);
+        compareWithIterator(path);
+    }
+
+    @Test
+    public void testIndexedRagged() throws Exception {
+        String path = new File(generatedDir + "timeSeries-Indexed-Ragged.nc").getAbsolutePath();
+        writeRagged(path, true);
+        compareWithIterator(path);
+    }
+
+    private static void compareWithIterator(String path) throws Exception {
+        System.out.println("------ " + path + " ------");
+        NetcdfDataset dataset = NetcdfDataset.openDataset(path);
+        try {
+            FeatureDatasetPoint featureDataset = (FeatureDatasetPoint) FeatureDatasetFactoryManager.wrap(
+                    FeatureType.STATION, dataset, null, new Formatter(System.err));
+            Assert.assertNotNull(featureDataset);
+            StationTimeSeriesFeatureCollection collection =
+                    (StationTimeSeriesFeatureCollection) featureDataset.getPointFeatureCollectionList().get(0);
+            Variable timeVariable = dataset.findCoordinateAxis(AxisType.Time);
+            Assert.assertNotNull(timeVariable);
+
+            List<String> stations = new ArrayList<String>();
+            for (Station station : collection.getStations()) {
+                stations.add(station.getName());
+            }
+            // only the variables dimensioned like the time, which the bulk reader reads
+            List<String> variables = new ArrayList<String>();
+            for (VariableSimpleIF variable : featureDataset.getDataVariables()) {
+                Variable found = dataset.findVariable(variable.getShortName());
+                if (found != null && found.getRank() > 0 && found.getDimension(found.getRank() - 1)
+                        .equals(timeVariable.getDimension(timeVariable.getRank() - 1))) {
+                    variables.add(variable.getShortName());
+                }
+            }
+            Assert.assertFalse(variables.isEmpty());
+            String[] stationNames = stations.toArray(new String[stations.size()]);
+            String[] variableNames = variables.toArray(new String[variables.size()]);
+
+            TimeSeries bulk = new TimeSeries(stationNames, null, variableNames);
+            bulk.setRecordVariables(dataset, findStationVariable(dataset), timeVariable);
+            bulk.setData(collection);
+            TimeSeries iterated = new TimeSeries(stationNames, null, variableNames);
+            iterated.setData(collection);
+
+            Assert.assertEquals(iterated.getNumberOfStations(), bulk.getNumberOfStations());
+            for (int st = 0; st < iterated.getNumberOfStations(); st++) {
+                ObservationBlock expected = iterated.getDataBlock(st);
+                ObservationBlock actual = bulk.getDataBlock(st);
+                Assert.assertFalse(expected.hasError());
+                Assert.assertTrue(expected.size() > 0);
+                Assert.assertEquals(iterated.getStationName(st), expected.toDataResponse(), actual.toDataResponse());
+            }
+        } finally {
+            dataset.close();
+        }
+    }
+
+    private static Variable findStationVariable(NetcdfDataset dataset) {
+        for (Variable variable : dataset.getVariables()) {
+            Attribute role = variable.findAttribute("cf_role");
+            if (role != null && "timeseries_id".equals(role.getStringValue())) {
+                return variable;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes three stations as a contiguous or indexed ragged array, with a float variable
+     * holding a fill value, a double and an integer variable.
+     */
+    private static void writeRagged(String path, boolean indexed) throws Exception {
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, path);
+        int records = RECORD_STATIONS.length;
+        writer.addDimension(null, "station", STATIONS);
+        writer.addDimension(null, "obs", records);
+        writer.addDimension(null, "name_strlen", 16);
+        writer.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
+        writer.addGroupAttribute(null, new Attribute("featureType", "timeSeries"));
+
+        Variable name = writer.addVariable(null, "station_name", DataType.CHAR, "station name_strlen");
+        writer.addVariableAttribute(name, new Attribute("cf_role", "timeseries_id"));
+        Variable lat = writer.addVariable(null, "lat", DataType.FLOAT, "station");
+        writer.addVariableAttribute(lat, new Attribute("units", "degrees_north"));
+        writer.addVariableAttribute(lat, new Attribute("standard_name", "latitude"));
+        Variable lon = writer.addVariable(null, "lon", DataType.FLOAT, "station");
+        writer.addVariableAttribute(lon, new Attribute("units", "degrees_east"));
+        writer.addVariableAttribute(lon, new Attribute("standard_name", "longitude"));
+        Variable ragged;
+        if (indexed) {
+            ragged = writer.addVariable(null, "stationIndex", DataType.INT, "obs");
+            writer.addVariableAttribute(ragged, new Attribute("instance_dimension", "station"));
+        } else {
+            ragged = writer.addVariable(null, "row_size", DataType.INT, "station");
+            writer.addVariableAttribute(ragged, new Attribute("sample_dimension", "obs"));
+        }
+        Variable time = writer.addVariable(null, "time", DataType.DOUBLE, "obs");
+        writer.addVariableAttribute(time, new Attribute("units", "seconds since 1990-01-01 00:00:00"));
+        writer.addVariableAttribute(time, new Attribute("standard_name", "time"));
+        Variable temperature = writer.addVariable(null, "temperature", DataType.FLOAT, "obs");
+        writer.addVariableAttribute(temperature, new Attribute("standard_name", "sea_water_temperature"));
+        writer.addVariableAttribute(temperature, new Attribute("units", "Celsius"));
+        writer.addVariableAttribute(temperature, new Attribute("coordinates", "time lat lon"));
+        writer.addVariableAttribute(temperature, new Attribute("_FillValue", -999f));
+        Variable salinity = writer.addVariable(null, "salinity", DataType.DOUBLE, "obs");
+        writer.addVariableAttribute(salinity, new Attribute("standard_name", "sea_water_salinity"));
+        writer.addVariableAttribute(salinity, new Attribute("units", "1e-3"));
+        writer.addVariableAttribute(salinity, new Attribute("coordinates", "time lat lon"));
+        Variable quality = writer.addVariable(null, "quality", DataType.INT, "obs");
+        writer.addVariableAttribute(quality, new Attribute("long_name", "quality flag"));
+        writer.addVariableAttribute(quality, new Attribute("coordinates", "time lat lon"));
+        writer.create();
+
+        ArrayChar.D2 names = new ArrayChar.D2(STATIONS, 16);
+        ArrayFloat.D1 lats = new ArrayFloat.D1(STATIONS);
+        ArrayFloat.D1 lons = new ArrayFloat.D1(STATIONS);
+        ArrayInt.D1 rowSizes = new ArrayInt.D1(STATIONS);
+        for (int st = 0; st < STATIONS; st++) {
+            names.setString(st, "Station-" + st);
+            lats.set(st, 10 + st);
+            lons.set(st, -70 - st);
+        }
+        for (int station : RECORD_STATIONS) {
+            rowSizes.set(station, rowSizes.get(station) + 1);
+        }
+
+        // a contiguous ragged array holds the records of each station together
+        int[] order = new int[records];
+        int at = 0;
+        for (int st = 0; st < STATIONS; st++) {
+            for (int record = 0; record < records; record++) {
+                if (indexed) {
+                    order[record] = record;
+                } else if (RECORD_STATIONS[record] == st) {
+                    order[at++] = record;
+                }
+            }
+        }
+        ArrayInt.D1 stationIndex = new ArrayInt.D1(records);
+        ArrayDouble.D1 times = new ArrayDouble.D1(records);
+        ArrayFloat.D1 temperatures = new ArrayFloat.D1(records);
+        ArrayDouble.D1 salinities = new ArrayDouble.D1(records);
+        ArrayInt.D1 qualities = new ArrayInt.D1(records);
+        for (int i = 0; i < records; i++) {
+            int record = order[i];
+            stationIndex.set(i, RECORD_STATIONS[record]);
+            times.set(i, record * 3600.0);
+            temperatures.set(i, record == 4 ? -999f : 20.5f + record);
+            salinities.set(i, 35.125 + record / 8.0);
+            qualities.set(i, record % 4);
+        }
+
+        writer.write(name, names);
+        writer.write(lat, lats);
+        writer.write(lon, lons);
+        writer.write(ragged, indexed ? stationIndex : rowSizes);
+        writer.write(time, times);
+        writer.write(temperature, temperatures);
+        writer.write(salinity, salinities);
+        writer.write(quality, qualities);
+        writer.close();
+    }
+}
@@ -0,0 +1,91 @@
+package com.asascience.ncsos;
+
+import org.jdom.Element;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.HashMap;
+
+/**
+ * Sets ncsos_max_values on a dataset through NcML, and checks a GetObservation request
+ * estimated to read more values is refused with an exception report, while one within
+ * the limit is answered.
+ */
+public class GOCostLimitTest extends NcSOSTest {
+
+    private static String outputDir;
+    private static String template;
+
+    @BeforeClass
+    public static void setupEnvironment() throws Exception {
+        NcSOSTest.setUpClass();
+
+        outputDir = baseOutputDir + NcSOSTest.systemSeparator + "GetObservation-CostLimit" + NcSOSTest.systemSeparator;
+
+        // Create output directories if they don't exist
+        new File(outputDir).mkdirs();
+
+        template = new File("resources" + NcSOSTest.systemSeparator + "datasets" + NcSOSTest.systemSeparator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc").getAbsolutePath();
+    }
+
+    @Test
+    public void testRequestOverLimitRefused() throws Exception {
+        String dataset = writeLimited("limited.ncml", "1");
+        Element result = makeTestRequest(dataset, outputDir + "limited.xml", observationPairs());
+        Assert.assertTrue(isException(result));
+        Assert.assertEquals("ResponseExceedsSizeLimit", getExceptionCode(result));
+        Assert.assertTrue(getExceptionText(result).contains("more than the 1 allowed"));
+    }
+
+    @Test
+    public void testRequestWithinLimitAnswered() throws Exception {
+        String dataset = writeLimited("unlimited.ncml", "100000000");
+        Element result = makeTestRequest(dataset, outputDir + "unlimited.xml", observationPairs());
+        Assert.assertNotNull(result);
+        Assert.assertFalse(isException(result));
+    }
+
+    @Test
+    public void testZeroLimitIsNoLimit() throws Exception {
+        String dataset = writeLimited("nolimit.ncml", "0");
+        Element result = makeTestRequest(dataset, outputDir + "nolimit.xml", observationPairs());
+        Assert.assertNotNull(result);
+        Assert.assertFalse(isException(result));
+    }
+
+    private static HashMap<String, String> observationPairs() throws Exception {
+        HashMap<String, String> pairs = new HashMap<String, String>();
+        pairs.put("request", "GetObservation");
+        pairs.put("service", "SOS");
+        pairs.put("version", "1.0.0");
+        pairs.put("offering", "urn:ioos:network:ncsos:all");
+        pairs.put("procedure", "urn:ioos:station:ncsos:Station-0,urn:ioos:station:ncsos:Station-1");
+        pairs.put("observedProperty", "temperature,humidity");
+        pairs.put("responseFormat", URLEncoder.encode("text/xml;subtype=\"om/1.0.0/profiles/ioos_sos/1.0\"", "UTF-8"));
+        return pairs;
+    }
+
+    /**
+     * @return path of an NcML wrapper of the template that sets ncsos_max_values
+     */
+    private static String writeLimited(String name, String maxValues) throws Exception {
+        File ncml = new File(outputDir + name);
+        Writer writer = new FileWriter(ncml);
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\" location=\""
+                    + new File(template).toURI() + "\">\n"
+                    + "  <attribute name=\"ncsos_max_values\" type=\"long\" value=\"" + maxValues + "\"/>\n"
+                    + "</netcdf>\n");
+        } finally {
+            writer.close();
+        }
+        return ncml.getAbsolutePath();
+    }
+}
@@ -0,0 +1,433 @@
+package com.asascience.ncsos;
+
+import com.asascience.ncsos.cdmclasses.IntervalResampler;
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.go.Resampling;
+import com.asascience.ncsos.outputformatter.OutputFormatter;
+import com.asascience.ncsos.service.Parser;
+import com.asascience.ncsos.service.SosRequest;
+import com.asascience.ncsos.util.XMLDomUtils;
+import org.jdom.Element;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.EnhanceScaleMissing;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checks the resampling parameters of GetObservation requests, and the records the
+ * interval resampler folds for each method, interval, station and bin.
+ */
+public class GOResamplingTest extends NcSOSTest {
+
+    private static final long HOUR = 3600000L;
+    private static final long MINUTE = 60000L;
+
+    private static HashMap<String, String> kvp = new HashMap<String, String>();
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() throws Exception {
+        NcSOSTest.setUpClass();
+
+        outputDir = baseOutputDir + NcSOSTest.systemSeparator + "GetObservation-Resampling" + NcSOSTest.systemSeparator;
+
+        // Create output directories if they don't exist
+        new File(outputDir).mkdirs();
+
+        kvp.put("responseFormat", URLEncoder.encode("text/xml;subtype=\"om/1.0.0/profiles/ioos_sos/1.0\"", "UTF-8"));
+        kvp.put("request", "GetObservation");
+        kvp.put("version", "1.0.0");
+        kvp.put("service", "SOS");
+        kvp.put("offering", "urn:ioos:network:ncsos:all");
+        kvp.put("observedProperty", "temperature");
+    }
+
+    @Test
+    public void testParseNone() {
+        Resampling resampling = Resampling.parse(SosRequest.parse("request=GetObservation&service=SOS"));
+        Assert.assertNull(resampling.getError());
+        Assert.assertTrue(resampling.isEmpty());
+    }
+
+    @Test
+    public void testParseDurations() {
+        Assert.assertEquals(6 * HOUR, parse("PT6H").getIntervalMillis());
+        Assert.assertEquals(24 * HOUR, parse("P1D").getIntervalMillis());
+        Assert.assertEquals(7 * 24 * HOUR, parse("P1W").getIntervalMillis());
+        Assert.assertEquals(30 * MINUTE, parse("PT30M").getIntervalMillis());
+        Assert.assertEquals(1500L, parse("PT1.5S").getIntervalMillis());
+        Assert.assertEquals(37 * HOUR + 30 * MINUTE, parse("P1DT13H30M").getIntervalMillis());
+        Assert.assertEquals(HOUR, parse("pt1h").getIntervalMillis());
+    }
+
+    @Test
+    public void testParseMethods() {
+        Assert.assertEquals(IntervalResampler.Method.MEAN, parse("PT1H").getMethod());
+        Resampling max = Resampling.parse(SosRequest.parse("resampleInterval=PT1H&resampleMethod=MAX"));
+        Assert.assertNull(max.getError());
+        Assert.assertFalse(max.isEmpty());
+        Assert.assertEquals(IntervalResampler.Method.MAX, max.getMethod());
+        for (IntervalResampler.Method method : IntervalResampler.Method.values()) {
+            Assert.assertEquals(method, IntervalResampler.Method.find(method.name().toLowerCase()));
+        }
+        Assert.assertNull(IntervalResampler.Method.find("median"));
+    }
+
+    @Test
+    public void testParseInvalid() {
+        String[] invalid = {"P1M", "P1Y", "PT0S", "1D", "P", "PT-1H", "P1.5D", "daily"};
+        for (String interval : invalid) {
+            Resampling resampling = parse(interval);
+            Assert.assertNotNull(interval, resampling.getError());
+            Assert.assertEquals(interval, "resampleInterval", resampling.getLocator());
+        }
+        Resampling noInterval = Resampling.parse(SosRequest.parse("resampleMethod=max"));
+        Assert.assertNotNull(noInterval.getError());
+        Assert.assertEquals("resampleInterval", noInterval.getLocator());
+        Resampling badMethod = Resampling.parse(SosRequest.parse("resampleInterval=PT1H&resampleMethod=median"));
+        Assert.assertNotNull(badMethod.getError());
+        Assert.assertEquals("resampleMethod", badMethod.getLocator());
+    }
+
+    @Test
+    public void testInvalidIntervalRequest() throws Exception {
+        HashMap<String, String> pairs = (HashMap<String, String>) kvp.clone();
+        pairs.put("resampleInterval", "P1M");
+        Element result = request("invalidInterval.xml", pairs);
+        Assert.assertTrue(NcSOSTest.isException(result));
+        Assert.assertEquals(INVALID_PARAMETER, NcSOSTest.getExceptionCode(result));
+        Assert.assertEquals("resampleInterval", NcSOSTest.getExceptionLocator(result));
+    }
+
+    @Test
+    public void testInvalidMethodRequest() throws Exception {
+        HashMap<String, String> pairs = (HashMap<String, String>) kvp.clone();
+        pairs.put("resampleInterval", "PT1H");
+        pairs.put("resampleMethod", "median");
+        Element result = request("invalidMethod.xml", pairs);
+        Assert.assertTrue(NcSOSTest.isException(result));
+        Assert.assertEquals(INVALID_PARAMETER, NcSOSTest.getExceptionCode(result));
+        Assert.assertEquals("resampleMethod", NcSOSTest.getExceptionLocator(result));
+    }
+
+    @Test
+    public void testMethods() {
+        // hour 0: 1, a fill value and 3 in its last millisecond; hour 1: 5 in its first; hour 2: 7 then 2
+        double[][] expected = {
+                {2, 5, 4.5},    // mean
+                {1, 5, 2},      // min
+                {3, 5, 7},      // max
+                {2, 1, 2},      // count
+                {3, 5, 2},      // last
+        };
+        IntervalResampler.Method[] methods = {IntervalResampler.Method.MEAN, IntervalResampler.Method.MIN,
+                IntervalResampler.Method.MAX, IntervalResampler.Method.COUNT, IntervalResampler.Method.LAST};
+        for (int m = 0; m < methods.length; m++) {
+            ObservationBlock block = newBlock(false);
+            addDouble(block, 0, 0, 1);
+            addDouble(block, 20 * MINUTE, 0, Double.NaN);
+            addDouble(block, HOUR - 1, 0, 3);
+            addDouble(block, HOUR, 0, 5);
+            addDouble(block, 2 * HOUR + 15 * MINUTE, 0, 7);
+            addDouble(block, 2 * HOUR + 45 * MINUTE, 0, 2);
+            ObservationBlock folded = resample(block, HOUR, methods[m]);
+            Assert.assertEquals(methods[m].name(), 3, folded.size());
+            for (int record = 0; record < 3; record++) {
+                Assert.assertEquals(record * HOUR, folded.getTime(record, 0));
+                Assert.assertEquals(0, folded.getLong(record, 1));
+                if (methods[m] == IntervalResampler.Method.COUNT) {
+                    Assert.assertEquals((long) expected[m][record], folded.getLong(record, 2));
+                } else {
+                    Assert.assertEquals(methods[m].name(), expected[m][record], folded.getDouble(record, 2), 1e-9);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testIntervalsAlignedToEpoch() {
+        ObservationBlock block = newBlock(false);
+        // the millisecond before the epoch starts the day before
+        addDouble(block, -1, 0, 1);
+        addDouble(block, 0, 0, 2);
+        addDouble(block, 24 * HOUR - 1, 0, 4);
+        addDouble(block, 24 * HOUR, 0, 8);
+        ObservationBlock folded = resample(block, 24 * HOUR, IntervalResampler.Method.MEAN);
+        Assert.assertEquals(3, folded.size());
+        Assert.assertEquals(-24 * HOUR, folded.getTime(0, 0));
+        Assert.assertEquals(1, folded.getDouble(0, 2), 0);
+        Assert.assertEquals(0, folded.getTime(1, 0));
+        Assert.assertEquals(3, folded.getDouble(1, 2), 0);
+        Assert.assertEquals(24 * HOUR, folded.getTime(2, 0));
+        Assert.assertEquals(8, folded.getDouble(2, 2), 0);
+    }
+
+    @Test
+    public void testStationsAndEarlierRecordsStartNewIntervals() {
+        ObservationBlock block = newBlock(false);
+        addDouble(block, 0, 0, 1);
+        addDouble(block, 10 * MINUTE, 1, 2);
+        addDouble(block, 20 * MINUTE, 1, 4);
+        // a record out of time order within the interval is folded into it
+        addDouble(block, 5 * MINUTE, 1, 6);
+        addDouble(block, HOUR + 5 * MINUTE, 1, 8);
+        // one earlier than the interval starts another
+        addDouble(block, 30 * MINUTE, 1, 10);
+        ObservationBlock folded = resample(block, HOUR, IntervalResampler.Method.MEAN);
+        Assert.assertEquals(4, folded.size());
+        long[] times = {0, 0, HOUR, 0};
+        long[] stations = {0, 1, 1, 1};
+        double[] means = {1, 4, 8, 10};
+        for (int record = 0; record < folded.size(); record++) {
+            Assert.assertEquals(times[record], folded.getTime(record, 0));
+            Assert.assertEquals(stations[record], folded.getLong(record, 1));
+            Assert.assertEquals(means[record], folded.getDouble(record, 2), 0);
+        }
+    }
+
+    @Test
+    public void testIntervalWithoutValidValues() {
+        ObservationBlock block = newBlock(false);
+        addDouble(block, 0, 0, Double.NaN);
+        addDouble(block, 10 * MINUTE, 0, Double.NaN);
+        ObservationBlock mean = resample(block, HOUR, IntervalResampler.Method.MEAN);
+        Assert.assertEquals(1, mean.size());
+        Assert.assertTrue(mean.isFill(0, 2));
+        Assert.assertTrue(Double.isNaN(mean.getDouble(0, 2)));
+
+        block = newBlock(false);
+        addDouble(block, 0, 0, Double.NaN);
+        ObservationBlock count = resample(block, HOUR, IntervalResampler.Method.COUNT);
+        Assert.assertEquals(1, count.size());
+        Assert.assertEquals(0, count.getLong(0, 2));
+    }
+
+    @Test
+    public void testBins() {
+        ObservationBlock block = newBlock(true);
+        addBinned(block, 0, 0, 10);
+        addBinned(block, 0, 1, 20);
+        addBinned(block, 30 * MINUTE, 0, 30);
+        addBinned(block, 30 * MINUTE, 1, 40);
+        addBinned(block, HOUR, 1, 50);
+        ObservationBlock folded = resample(block, HOUR, IntervalResampler.Method.MAX);
+        Assert.assertEquals(3, folded.size());
+        Assert.assertEquals(0, folded.getTime(0, 0));
+        Assert.assertEquals(0, folded.getLong(0, 2));
+        Assert.assertEquals(30, folded.getDouble(0, 3), 0);
+        Assert.assertEquals(0, folded.getTime(1, 0));
+        Assert.assertEquals(1, folded.getLong(1, 2));
+        Assert.assertEquals(40, folded.getDouble(1, 3), 0);
+        Assert.assertEquals(HOUR, folded.getTime(2, 0));
+        Assert.assertEquals(1, folded.getLong(2, 2));
+        Assert.assertEquals(50, folded.getDouble(2, 3), 0);
+    }
+
+    @Test
+    public void testValueTypes() {
+        ObservationBlock block = new ObservationBlock();
+        block.addColumn(ObservationBlock.TIME);
+        block.addColumn(ObservationBlock.STATION);
+        block.addColumn("temperature");
+        block.addColumn("quality");
+        long[] times = {0, MINUTE};
+        for (int i = 0; i < times.length; i++) {
+            block.addRecord();
+            block.setTime(0, times[i]);
+            block.setLong(1, 0);
+            block.setFloat(2, 1.5f + i);
+            block.setLong(3, 1 + i);
+        }
+        ObservationBlock max = resample(block, HOUR, IntervalResampler.Method.MAX);
+        Assert.assertEquals(Float.valueOf(2.5f), max.getValue(0, 2));
+        Assert.assertEquals(Long.valueOf(2), max.getValue(0, 3));
+        // a mean of whole numbers is a double
+        block.clear();
+        for (int i = 0; i < times.length; i++) {
+            block.addRecord();
+            block.setTime(0, times[i]);
+            block.setLong(1, 0);
+            block.setFloat(2, 1.5f + i);
+            block.setLong(3, 1 + i);
+        }
+        ObservationBlock mean = resample(block, HOUR, IntervalResampler.Method.MEAN);
+        Assert.assertEquals(Double.valueOf(1.5), mean.getValue(0, 3));
+    }
+
+    @Test
+    public void testLongValuesKeepPrecision() {
+        // past 2^53, where doubles no longer hold every long
+        long[] values = {(1L << 53) + 3, (1L << 53) + 1, Long.MAX_VALUE - 2, (1L << 53) + 5};
+        IntervalResampler.Method[] methods = {IntervalResampler.Method.MIN, IntervalResampler.Method.MAX,
+                IntervalResampler.Method.LAST};
+        long[] expected = {(1L << 53) + 1, Long.MAX_VALUE - 2, (1L << 53) + 5};
+        for (int m = 0; m < methods.length; m++) {
+            ObservationBlock block = newBlock(false);
+            for (int i = 0; i < values.length; i++) {
+                block.addRecord();
+                block.setTime(0, i * MINUTE);
+                block.setLong(1, 0);
+                block.setLong(2, values[i]);
+            }
+            ObservationBlock folded = resample(block, HOUR, methods[m]);
+            Assert.assertEquals(1, folded.size());
+            Assert.assertEquals(ObservationBlock.ColumnType.LONG, folded.getColumnType(2));
+            Assert.assertEquals(methods[m].name(), expected[m], folded.getLong(0, 2));
+        }
+    }
+
+    @Test
+    public void testFillAndMissingValuesLeftOut() throws Exception {
+        String path = new File(outputDir + "missing.nc").getAbsolutePath();
+        writeMissing(path);
+        NetcdfDataset dataset = NetcdfDataset.openDataset(path);
+        try {
+            Map<String, EnhanceScaleMissing> missing = new HashMap<String, EnhanceScaleMissing>();
+            missing.put("temperature", (EnhanceScaleMissing) dataset.findVariable("temperature"));
+            missing.put("quality", (EnhanceScaleMissing) dataset.findVariable("quality"));
+
+            ObservationBlock block = new ObservationBlock();
+            block.setMissingValues(missing);
+            block.addColumn(ObservationBlock.TIME);
+            block.addColumn(ObservationBlock.STATION);
+            block.addColumn("temperature");
+            block.addColumn("quality");
+            // the fill value of temperature, the fill and missing values of quality, as read unenhanced
+            float[] temperatures = {10f, -999f, 14f, -999f};
+            long[] qualities = {1, -127, 3, 99};
+            for (int i = 0; i < temperatures.length; i++) {
+                block.addRecord();
+                block.setTime(0, i * MINUTE);
+                block.setLong(1, 0);
+                block.setFloat(2, temperatures[i]);
+                block.setLong(3, qualities[i]);
+            }
+            // the block marks them as fill values, whatever their type
+            Assert.assertFalse(block.isFill(0, 2));
+            Assert.assertTrue(block.isFill(1, 2));
+            Assert.assertFalse(block.isFill(0, 3));
+            Assert.assertTrue(block.isFill(1, 3));
+            Assert.assertTrue(block.isFill(3, 3));
+            ObservationBlock mean = resample(block, HOUR, IntervalResampler.Method.MEAN);
+            Assert.assertEquals(1, mean.size());
+            Assert.assertEquals(12, mean.getDouble(0, 2), 1e-6);
+            Assert.assertEquals(2, mean.getDouble(0, 3), 0);
+
+            block.clear();
+            for (int i = 0; i < temperatures.length; i++) {
+                block.addRecord();
+                block.setTime(0, i * MINUTE);
+                block.setLong(1, 0);
+                block.setFloat(2, temperatures[i]);
+                block.setLong(3, qualities[i]);
+            }
+            ObservationBlock count = resample(block, HOUR, IntervalResampler.Method.COUNT);
+            Assert.assertEquals(2, count.getLong(0, 2));
+            Assert.assertEquals(2, count.getLong(0, 3));
+
+            // without the variables the fill values are numbers like any other
+            block = new ObservationBlock();
+            block.addColumn(ObservationBlock.TIME);
+            block.addColumn(ObservationBlock.STATION);
+            block.addColumn("temperature");
+            block.addColumn("quality");
+            block.addRecord();
+            block.setTime(0, 0);
+            block.setLong(1, 0);
+            block.setFloat(2, -999f);
+            block.setLong(3, -127);
+            Assert.assertFalse(block.isFill(0, 2));
+            ObservationBlock unchecked = resample(block, HOUR, IntervalResampler.Method.COUNT);
+            Assert.assertEquals(1, unchecked.getLong(0, 2));
+            Assert.assertEquals(1, unchecked.getLong(0, 3));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    private static Resampling parse(String interval) {
+        return Resampling.parse(SosRequest.parse("request=GetObservation&resampleInterval=" + interval));
+    }
+
+    /**
+     * Checks the parameters of a request the way the controller does, before the dataset is opened.
+     */
+    private static Element request(String name, HashMap<String, String> pairs) throws Exception {
+        OutputFormatter output = new Parser().planRequest(SosRequest.parse(getQueryString(pairs)));
+        Assert.assertNotNull(output);
+        Writer writer = new CharArrayWriter();
+        output.writeOutput(writer);
+        String path = new File(outputDir + name).getAbsolutePath();
+        NcSOSTest.fileWriter(path, writer);
+        return XMLDomUtils.loadFile(path).getRootElement();
+    }
+
+    private static ObservationBlock resample(ObservationBlock block, long intervalMillis,
+            IntervalResampler.Method method) {
+        IntervalResampler resampler = new IntervalResampler(intervalMillis, method, new ObservationBlock());
+        ObservationBlock folded = resampler.finish(block);
+        Assert.assertFalse(folded.hasError());
+        return folded;
+    }
+
+    private static ObservationBlock newBlock(boolean binned) {
+        ObservationBlock block = new ObservationBlock();
+        block.addColumn(ObservationBlock.TIME);
+        block.addColumn(ObservationBlock.STATION);
+        if (binned) {
+            block.addColumn(ObservationBlock.BIN);
+        }
+        block.addColumn("temperature");
+        return block;
+    }
+
+    private static void addDouble(ObservationBlock block, long millis, long station, double value) {
+        block.addRecord();
+        block.setTime(0, millis);
+        block.setLong(1, station);
+        block.setDouble(2, value);
+    }
+
+    private static void addBinned(ObservationBlock block, long millis, long bin, double value) {
+        block.addRecord();
+        block.setTime(0, millis);
+        block.setLong(1, 0);
+        block.setLong(2, bin);
+        block.setDouble(3, value);
+    }
+
+    /**
+     * Writes a float variable with a fill value and an integer one with a fill value and a missing value.
+     */
+    private static void writeMissing(String path) throws Exception {
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, path);
+        writer.addDimension(null, "obs", 1);
+        Variable temperature = writer.addVariable(null, "temperature", DataType.FLOAT, "obs");
+        writer.addVariableAttribute(temperature, new Attribute("_FillValue", -999f));
+        Variable quality = writer.addVariable(null, "quality", DataType.INT, "obs");
+        writer.addVariableAttribute(quality, new Attribute("_FillValue", -127));
+        writer.addVariableAttribute(quality, new Attribute("missing_value", 99));
+        writer.create();
+        ArrayFloat.D1 temperatures = new ArrayFloat.D1(1);
+        temperatures.set(0, 10f);
+        ArrayInt.D1 qualities = new ArrayInt.D1(1);
+        qualities.set(0, 1);
+        writer.write(temperature, temperatures);
+        writer.write(quality, qualities);
+        writer.close();
+    }
+}
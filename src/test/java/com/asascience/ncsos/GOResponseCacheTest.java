@@ -0,0 +1,155 @@
+package com.asascience.ncsos;
+
+import com.asascience.ncsos.service.SosRequest;
+import org.jdom.Element;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import thredds.server.ncsos.controller.SosResponseCache;
+
+import java.io.File;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+
+/**
+ * Caches GetObservation responses of a copied dataset, and checks they are dropped once
+ * the file changes or the byte budget is exceeded.
+ */
+public class GOResponseCacheTest extends NcSOSTest {
+
+    private static final String DATASET_PATH = "/test/cached.nc";
+    private static final String CONTENT_TYPE = "text/xml";
+
+    private static String outputDir;
+    private static File datasetFile;
+    private static HashMap<String, String> pairs;
+    private static byte[] observation;
+    private static SosResponseCache cache;
+
+    @BeforeClass
+    public static void setupEnvironment() throws Exception {
+        NcSOSTest.setUpClass();
+
+        outputDir = baseOutputDir + NcSOSTest.systemSeparator + "GetObservation-ResponseCache" + NcSOSTest.systemSeparator;
+
+        // Create output directories if they don't exist
+        new File(outputDir).mkdirs();
+
+        // a copy, so its modification time can be changed
+        File template = new File("resources" + NcSOSTest.systemSeparator + "datasets" + NcSOSTest.systemSeparator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+        datasetFile = new File(outputDir + "cached.nc");
+        Files.copy(template.toPath(), datasetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        pairs = new HashMap<String, String>();
+        pairs.put("request", "GetObservation");
+        pairs.put("service", "SOS");
+        pairs.put("version", "1.0.0");
+        pairs.put("offering", "urn:ioos:station:ncsos:Station-0");
+        pairs.put("procedure", "urn:ioos:station:ncsos:Station-0");
+        pairs.put("observedProperty", "temperature");
+        pairs.put("responseFormat", URLEncoder.encode("text/xml;subtype=\"om/1.0.0/profiles/ioos_sos/1.0\"", "UTF-8"));
+        String output = new File(outputDir + "observation.xml").getAbsolutePath();
+        Element result = NcSOSTest.makeTestRequest(datasetFile.getAbsolutePath(), output, pairs);
+        Assert.assertFalse(NcSOSTest.isException(result));
+        observation = Files.readAllBytes(new File(output).toPath());
+
+        cache = new SosResponseCache(observation.length * 4L, observation.length * 2);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        cache.shutdown();
+    }
+
+    @Test
+    public void testKeys() {
+        String key = keyFor(NcSOSTest.getQueryString(pairs));
+        Assert.assertNotNull(key);
+        Assert.assertTrue(key.startsWith(DATASET_PATH + "?"));
+        // the same request written differently
+        Assert.assertEquals(key, keyFor("REQUEST=getobservation&SERVICE=sos&version=1.0.0"
+                + "&responseFormat=" + pairs.get("responseFormat") + "&observedProperty=temperature"
+                + "&procedure=urn_-_ioos_-_station_-_ncsos_-_Station-0&offering=urn:ioos:station:ncsos:Station-0"));
+        HashMap<String, String> later = new HashMap<String, String>(pairs);
+        later.put("eventTime", "1990-01-01T00:00:00Z");
+        Assert.assertFalse(key.equals(keyFor(NcSOSTest.getQueryString(later))));
+        Assert.assertFalse(key.equals(SosResponseCache.keyFor("/test/other.nc",
+                SosRequest.parse(NcSOSTest.getQueryString(pairs)))));
+        Assert.assertNull(keyFor("request=GetCapabilities&service=SOS"));
+        Assert.assertNull(SosResponseCache.keyFor(null, SosRequest.parse(NcSOSTest.getQueryString(pairs))));
+    }
+
+    @Test
+    public void testCachedUntilFileChanges() {
+        cache.clear();
+        String key = keyFor(NcSOSTest.getQueryString(pairs));
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        long invalidations = cache.getInvalidations();
+
+        Assert.assertNull(cache.get(key, datasetFile));
+        cache.put(key, datasetFile.lastModified(), datasetFile.length(), CONTENT_TYPE, "UTF-8", observation);
+        SosResponseCache.Entry entry = cache.get(key, datasetFile);
+        Assert.assertNotNull(entry);
+        Assert.assertArrayEquals(observation, entry.getBody());
+        Assert.assertEquals(CONTENT_TYPE, entry.getContentType());
+        Assert.assertEquals("UTF-8", entry.getCharacterEncoding());
+        Assert.assertEquals(hits + 1, cache.getHits());
+        Assert.assertEquals(misses + 1, cache.getMisses());
+        Assert.assertEquals(observation.length, cache.getSizeBytes());
+
+        long lastModified = datasetFile.lastModified();
+        try {
+            Assert.assertTrue(datasetFile.setLastModified(lastModified - 60000));
+            Assert.assertNull(cache.get(key, datasetFile));
+            Assert.assertEquals(invalidations + 1, cache.getInvalidations());
+            Assert.assertEquals(0, cache.getEntryCount());
+            Assert.assertEquals(0, cache.getSizeBytes());
+        } finally {
+            datasetFile.setLastModified(lastModified);
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        cache.clear();
+        long evictions = cache.getEvictions();
+        // larger than one entry may be
+        cache.put("large", datasetFile.lastModified(), datasetFile.length(), CONTENT_TYPE, "UTF-8",
+                new byte[cache.getMaxEntryBytes() + 1]);
+        Assert.assertEquals(0, cache.getEntryCount());
+
+        for (int i = 0; i < 4; i++) {
+            cache.put("key" + i, datasetFile.lastModified(), datasetFile.length(), CONTENT_TYPE, "UTF-8", observation);
+        }
+        Assert.assertEquals(4, cache.getEntryCount());
+        // the least recently used entry goes first
+        Assert.assertNotNull(cache.get("key0", datasetFile));
+        cache.put("key4", datasetFile.lastModified(), datasetFile.length(), CONTENT_TYPE, "UTF-8", observation);
+        Assert.assertEquals(4, cache.getEntryCount());
+        Assert.assertEquals(evictions + 1, cache.getEvictions());
+        Assert.assertNull(cache.get("key1", datasetFile));
+        Assert.assertNotNull(cache.get("key0", datasetFile));
+        Assert.assertTrue(cache.getSizeBytes() <= cache.getMaxBytes());
+        cache.clear();
+    }
+
+    @Test
+    public void testDisabledCache() {
+        SosResponseCache disabled = new SosResponseCache(0, 1024);
+        Assert.assertFalse(disabled.isEnabled());
+        String key = keyFor(NcSOSTest.getQueryString(pairs));
+        disabled.put(key, datasetFile.lastModified(), datasetFile.length(), CONTENT_TYPE, "UTF-8", observation);
+        Assert.assertNull(disabled.get(key, datasetFile));
+        Assert.assertEquals(0, disabled.getEntryCount());
+        Assert.assertEquals(0, disabled.getMisses());
+    }
+
+    private static String keyFor(String query) {
+        return SosResponseCache.keyFor(DATASET_PATH, SosRequest.parse(query));
+    }
+}
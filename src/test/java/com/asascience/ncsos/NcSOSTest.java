@@ -8,10 +8,18 @@ import org.jdom.Element;
 import org.jdom.Namespace;
 import ucar.nc2.dataset.NetcdfDataset;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class NcSOSTest {
@@ -127,4 +135,62 @@ public class NcSOSTest {
         output.write(writer.toString());
         output.close();
     }
+
+    /**
+     * @param headers names and values of the request headers
+     * @return a request with only the headers
+     */
+    protected static HttpServletRequest fakeRequest(String... headers) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i + 1 < headers.length; i += 2) {
+            values.put(headers[i], headers[i + 1]);
+        }
+        return (HttpServletRequest) Proxy.newProxyInstance(NcSOSTest.class.getClassLoader(),
+                new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getHeader")) {
+                            return values.get((String) args[0]);
+                        }
+                        if (method.getName().equals("getDateHeader")) {
+                            String value = values.get((String) args[0]);
+                            if (value == null) {
+                                return -1L;
+                            }
+                            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                            try {
+                                return format.parse(value).getTime();
+                            } catch (ParseException ex) {
+                                throw new IllegalArgumentException(value);
+                            }
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * @param headers receives the headers set on the response, and its status as "status"
+     * @return a response keeping only its headers and status
+     */
+    protected static HttpServletResponse fakeResponse(final Map<String, Object> headers) {
+        return (HttpServletResponse) Proxy.newProxyInstance(NcSOSTest.class.getClassLoader(),
+                new Class[]{HttpServletResponse.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("setHeader") || name.equals("setDateHeader")) {
+                            headers.put((String) args[0], args[1]);
+                            return null;
+                        }
+                        if (name.equals("getHeader")) {
+                            Object value = headers.get((String) args[0]);
+                            return value != null ? value.toString() : null;
+                        }
+                        if (name.equals("setStatus") || name.equals("sendError")) {
+                            headers.put("status", args[0]);
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(name);
+                    }
+                });
+    }
 }
@@ -0,0 +1,123 @@
+package com.asascience.ncsos;
+
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.cdmclasses.ObservationVisitor;
+import org.junit.Assert;
+import org.junit.Test;
+import thredds.server.ncsos.controller.SosRequestExecutor;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues requests on a small executor, and checks a full queue is answered with 429 and
+ * Retry-After, and a cancelled request stops its reads at the next batch.
+ */
+public class SosRequestExecutorTest extends NcSOSTest {
+
+    @Test
+    public void testFullQueueRejected() throws Exception {
+        SosRequestExecutor executor = new SosRequestExecutor(1, 1, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            // one running, one queued
+            Assert.assertNotNull(executor.submit(blocked, false));
+            Assert.assertNotNull(executor.submit(blocked, false));
+            Assert.assertNull(executor.submit(blocked, false));
+            Assert.assertEquals(1, executor.getRejectedCount());
+
+            Map<String, Object> headers = new HashMap<String, Object>();
+            executor.reject(fakeResponse(headers));
+            Assert.assertEquals(429, headers.get("status"));
+            Assert.assertEquals("5", headers.get("Retry-After"));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testMetadataLane() throws Exception {
+        SosRequestExecutor executor = new SosRequestExecutor(1, 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch answered = new CountDownLatch(1);
+        try {
+            Runnable blocked = new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            executor.submit(blocked, false);
+            executor.submit(blocked, false);
+            Assert.assertNull(executor.submit(blocked, false));
+            // GetCapabilities and DescribeSensor are not queued behind the reads
+            Assert.assertNotNull(executor.submit(new Runnable() {
+                public void run() {
+                    answered.countDown();
+                }
+            }, true));
+            Assert.assertTrue(answered.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCancelledReadStops() throws Exception {
+        SosRequestExecutor executor = new SosRequestExecutor(1, 1, 0);
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final int[] visited = new int[1];
+        final Exception[] failure = new Exception[1];
+        try {
+            Future<?> worker = executor.submit(new Runnable() {
+                public void run() {
+                    ObservationBlock block = new ObservationBlock();
+                    block.addColumn(ObservationBlock.TIME);
+                    block.setVisitor(new ObservationVisitor() {
+                        public void visit(ObservationBlock batch) {
+                            visited[0]++;
+                            reading.countDown();
+                        }
+                    }, 10);
+                    try {
+                        // reads until the request is cancelled
+                        for (long record = 0; ; record++) {
+                            block.addRecord();
+                            block.setTime(0, record);
+                        }
+                    } catch (IllegalStateException ex) {
+                        failure[0] = block.getVisitorException();
+                    } finally {
+                        stopped.countDown();
+                    }
+                }
+            }, false);
+            Assert.assertTrue(reading.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(worker.cancel(true));
+            Assert.assertTrue(stopped.await(10, TimeUnit.SECONDS));
+            Assert.assertTrue(failure[0] instanceof InterruptedIOException);
+            Assert.assertTrue(visited[0] > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.asascience.ncsos.cdmclasses;
+
+import com.asascience.ncsos.service.SosRequest;
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.ArrayChar;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
+import ucar.nc2.ft.FeatureDatasetPoint;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Formatter;
+import java.util.List;
+
+/**
+ * Keeps the responses and stations of <code>latest</code> requests of a station file
+ * written by the test, and checks they are found again, by requests written differently
+ * too, until records are appended to the file.
+ */
+public class LatestObservationCacheTest {
+
+    private static final String DATASET_PATH = "/test/latest.nc";
+    private static final String LATEST = "request=GetObservation&service=SOS&version=1.0.0"
+            + "&offering=urn:ioos:network:ncsos:all&observedProperty=value&eventTime=latest";
+    private static final String CONTENT_TYPE = "text/xml";
+    private static final String[] STATIONS = {"Station-0", "Station-1"};
+    // the times of each station, in the order they are stored
+    private static final double[][] STATION_TIMES = {{10, 20, 30}, {15, 25}};
+
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() {
+        outputDir = "target" + File.separator + "test_out" + File.separator + "LatestCache" + File.separator;
+        new File(outputDir).mkdirs();
+    }
+
+    @Test
+    public void testResponseFoundBeforeOpening() throws Exception {
+        File file = writeStations("response.nc");
+        SosRequest request = SosRequest.parse(LATEST);
+        byte[] body = "<om:ObservationCollection/>".getBytes("UTF-8");
+        Assert.assertTrue(LatestObservationCache.isCachedRequest(request));
+        Assert.assertNull(LatestObservationCache.findResponse(DATASET_PATH, file, request));
+
+        LatestObservationCache.putResponse(DATASET_PATH, file, file.length(), file.lastModified(), request,
+                CONTENT_TYPE, "UTF-8", body);
+        LatestObservationCache.Response response = LatestObservationCache.findResponse(DATASET_PATH, file, request);
+        Assert.assertNotNull(response);
+        Assert.assertArrayEquals(body, response.getBody());
+        Assert.assertEquals(CONTENT_TYPE, response.getContentType());
+        Assert.assertEquals("UTF-8", response.getCharacterEncoding());
+        // the same request written differently
+        Assert.assertSame(response, LatestObservationCache.findResponse(DATASET_PATH, file, SosRequest.parse(
+                "EVENTTIME=latest&observedProperty=value&offering=urn:ioos:network:ncsos:all"
+                + "&VERSION=1.0.0&SERVICE=sos&REQUEST=getobservation")));
+        // another view of the file, or a file not known yet
+        Assert.assertNull(LatestObservationCache.findResponse("/test/other.ncml", file, request));
+        Assert.assertNull(LatestObservationCache.findResponse(DATASET_PATH, null, request));
+
+        // only latest requests are kept, and not too large responses
+        SosRequest first = SosRequest.parse(LATEST.replace("latest", "first"));
+        Assert.assertFalse(LatestObservationCache.isCachedRequest(first));
+        LatestObservationCache.putResponse(DATASET_PATH, file, file.length(), file.lastModified(), first,
+                CONTENT_TYPE, "UTF-8", body);
+        Assert.assertNull(LatestObservationCache.findResponse(DATASET_PATH, file, first));
+        SosRequest large = SosRequest.parse(LATEST.replace("observedProperty=value", "observedProperty=other"));
+        LatestObservationCache.putResponse(DATASET_PATH, file, file.length(), file.lastModified(), large,
+                CONTENT_TYPE, "UTF-8", new byte[LatestObservationCache.getMaxResponseBytes() + 1]);
+        Assert.assertNull(LatestObservationCache.findResponse(DATASET_PATH, file, large));
+
+        // read before the file changed
+        LatestObservationCache.putResponse(DATASET_PATH, file, file.length() - 1, file.lastModified(), large,
+                CONTENT_TYPE, "UTF-8", body);
+        Assert.assertNull(LatestObservationCache.findResponse(DATASET_PATH, file, large));
+
+        append(file);
+        Assert.assertNull(LatestObservationCache.findResponse(DATASET_PATH, file, request));
+    }
+
+    @Test
+    public void testStationSetupReused() throws Exception {
+        File file = writeStations("setup.nc");
+        List<String> names = Arrays.asList(STATIONS);
+        String key;
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            key = DatasetHandlerAdapter.getDatasetKey(dataset);
+            Assert.assertNotNull(key);
+            Assert.assertNull(LatestObservationCache.getSetup(key, file, names));
+
+            TimeSeries found = latest(dataset);
+            LatestObservationCache.StationSetup setup = LatestObservationCache.getSetup(key, file, names);
+            Assert.assertNotNull(setup);
+            Assert.assertEquals(STATIONS.length, setup.stations.size());
+
+            // taken from the cache, not looked up and kept again
+            TimeSeries reused = latest(dataset);
+            Assert.assertSame(setup, LatestObservationCache.getSetup(key, file, new ArrayList<String>(names)));
+            for (int i = 0; i < STATIONS.length; i++) {
+                Assert.assertEquals(found.getStationName(i), reused.getStationName(i));
+                Assert.assertEquals(found.getTimeBegin(i), reused.getTimeBegin(i));
+                Assert.assertEquals(found.getTimeEnd(i), reused.getTimeEnd(i));
+                Assert.assertEquals(found.getDataBlock(i).toDataResponse(), reused.getDataBlock(i).toDataResponse());
+            }
+            ObservationBlock block = reused.getDataBlock(0);
+            Assert.assertEquals(1, block.size());
+            Assert.assertEquals(60, block.getDouble(0, 2), 0);
+        } finally {
+            dataset.close();
+        }
+
+        append(file);
+        Assert.assertNull(LatestObservationCache.getSetup(key, file, names));
+    }
+
+    /**
+     * @return the latest observations of the stations, set up the way a latest request does
+     */
+    private static TimeSeries latest(NetcdfDataset dataset) throws Exception {
+        TimeSeries timeSeries = new TimeSeries(STATIONS, null, new String[]{"value"});
+        timeSeries.setRecordVariables(dataset, dataset.findVariable("station_name"), dataset.findVariable("time"));
+        timeSeries.setBoundaryRequest(false, true);
+        FeatureDatasetPoint features = (FeatureDatasetPoint) FeatureDatasetFactoryManager.wrap(FeatureType.STATION,
+                dataset, null, new Formatter());
+        timeSeries.setData(features.getPointFeatureCollectionList().get(0));
+        return timeSeries;
+    }
+
+    /**
+     * Changes the size and modification time of the file, as appending records does.
+     */
+    private static void append(File file) throws Exception {
+        long lastModified = file.lastModified();
+        OutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[4]);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(lastModified + 60000);
+    }
+
+    /**
+     * Writes the stations as a contiguous ragged array, with a value of twice the time.
+     */
+    private static File writeStations(String name) throws Exception {
+        File file = new File(outputDir + name);
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, file.getAbsolutePath());
+        int records = 0;
+        for (double[] times : STATION_TIMES) {
+            records += times.length;
+        }
+        writer.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
+        writer.addGroupAttribute(null, new Attribute("featureType", "timeSeries"));
+        writer.addDimension(null, "station", STATIONS.length);
+        writer.addDimension(null, "obs", records);
+        writer.addDimension(null, "name_strlen", 16);
+        Variable stationName = writer.addVariable(null, "station_name", DataType.CHAR, "station name_strlen");
+        writer.addVariableAttribute(stationName, new Attribute("cf_role", "timeseries_id"));
+        Variable lat = writer.addVariable(null, "lat", DataType.DOUBLE, "station");
+        writer.addVariableAttribute(lat, new Attribute("units", "degrees_north"));
+        Variable lon = writer.addVariable(null, "lon", DataType.DOUBLE, "station");
+        writer.addVariableAttribute(lon, new Attribute("units", "degrees_east"));
+        Variable rowSize = writer.addVariable(null, "row_size", DataType.INT, "station");
+        writer.addVariableAttribute(rowSize, new Attribute("sample_dimension", "obs"));
+        Variable time = writer.addVariable(null, "time", DataType.DOUBLE, "obs");
+        writer.addVariableAttribute(time, new Attribute("standard_name", "time"));
+        writer.addVariableAttribute(time, new Attribute("units", "seconds since 1990-01-01 00:00:00"));
+        Variable value = writer.addVariable(null, "value", DataType.DOUBLE, "obs");
+        writer.addVariableAttribute(value, new Attribute("coordinates", "time lat lon"));
+        writer.create();
+
+        ArrayChar.D2 names = new ArrayChar.D2(STATIONS.length, 16);
+        ArrayDouble.D1 lats = new ArrayDouble.D1(STATIONS.length);
+        ArrayDouble.D1 lons = new ArrayDouble.D1(STATIONS.length);
+        ArrayInt.D1 rowSizes = new ArrayInt.D1(STATIONS.length);
+        ArrayDouble.D1 timeValues = new ArrayDouble.D1(records);
+        ArrayDouble.D1 values = new ArrayDouble.D1(records);
+        int record = 0;
+        for (int station = 0; station < STATIONS.length; station++) {
+            names.setString(station, STATIONS[station]);
+            lats.set(station, 40 + station);
+            lons.set(station, -70 - station);
+            rowSizes.set(station, STATION_TIMES[station].length);
+            for (double t : STATION_TIMES[station]) {
+                timeValues.set(record, t);
+                values.set(record, t * 2);
+                record++;
+            }
+        }
+        writer.write(stationName, names);
+        writer.write(lat, lats);
+        writer.write(lon, lons);
+        writer.write(rowSize, rowSizes);
+        writer.write(time, timeValues);
+        writer.write(value, values);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,148 @@
+package com.asascience.ncsos.cdmclasses;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.File;
+
+/**
+ * Builds the record index of indexed ragged files written by the test, and checks the
+ * records are sorted by time, the sidecar file reads back the same index, and the index
+ * is rebuilt when the file changes.
+ */
+public class StationRecordIndexTest {
+
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() {
+        outputDir = "target" + File.separator + "test_out" + File.separator + "RecordIndex" + File.separator;
+        new File(outputDir).mkdirs();
+    }
+
+    @Test
+    public void testBuildSortsRecordsByTime() throws Exception {
+        // station of each record and its time, out of order within the stations
+        int[] stations = {1, 0, 1, 0, 2, 1, 0};
+        double[] times = {50, 30, 10, 10, 5, Double.NaN, 20};
+        File file = writeIndexed("sorted.nc", stations, times);
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            StationRecordIndex index = find(dataset, 3);
+            Assert.assertNotNull(index);
+            Assert.assertEquals(3, index.getCount(0));
+            Assert.assertArrayEquals(new int[]{3, 6, 1}, index.getPositions(0));
+            Assert.assertArrayEquals(new double[]{10, 20, 30}, index.getTimes(0), 0);
+            // the record without a time is left out
+            Assert.assertEquals(2, index.getCount(1));
+            Assert.assertArrayEquals(new int[]{2, 0}, index.getPositions(1));
+            Assert.assertArrayEquals(new double[]{10, 50}, index.getTimes(1), 0);
+            Assert.assertArrayEquals(new int[]{4}, index.getPositions(2));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testSidecarRoundTrip() throws Exception {
+        File file = writeIndexed("sidecar.nc", new int[]{0, 1, 0, 1, 1}, new double[]{3, 1, 2, 5, 4});
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            StationRecordIndex index = find(dataset, 2);
+            File indexFile = StationRecordIndex.getIndexFile(file.getAbsolutePath());
+            Assert.assertTrue(indexFile.isFile());
+            StationRecordIndex read = StationRecordIndex.read(indexFile);
+            for (int instance = 0; instance < 2; instance++) {
+                Assert.assertArrayEquals(index.getPositions(instance), read.getPositions(instance));
+                Assert.assertArrayEquals(index.getTimes(instance), read.getTimes(instance), 0);
+            }
+            Assert.assertEquals(index.getMemorySize(), read.getMemorySize());
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testRebuiltWhenModified() throws Exception {
+        File file = writeIndexed("modified.nc", new int[]{0, 1, 0}, new double[]{1, 2, 3});
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            StationRecordIndex index = find(dataset, 2);
+            Assert.assertSame(index, find(dataset, 2));
+            Assert.assertTrue(file.setLastModified(file.lastModified() - 60000));
+            StationRecordIndex rebuilt = find(dataset, 2);
+            Assert.assertNotSame(index, rebuilt);
+            Assert.assertSame(rebuilt, find(dataset, 2));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testRebuiltWhenResized() throws Exception {
+        File file = writeIndexed("resized.nc", new int[]{0, 1, 0}, new double[]{1, 2, 3});
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        StationRecordIndex index;
+        try {
+            index = find(dataset, 2);
+            Assert.assertEquals(2, index.getCount(0));
+        } finally {
+            dataset.close();
+        }
+        long lastModified = file.lastModified();
+        writeIndexed("resized.nc", new int[]{0, 1, 0, 0, 1, 0, 0, 1}, new double[]{1, 2, 3, 4, 5, 6, 7, 8});
+        // same modification time, so only the size tells the versions apart
+        Assert.assertTrue(file.setLastModified(lastModified));
+        dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            StationRecordIndex rebuilt = find(dataset, 2);
+            Assert.assertNotSame(index, rebuilt);
+            Assert.assertEquals(5, rebuilt.getCount(0));
+            Assert.assertEquals(3, rebuilt.getCount(1));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    private static StationRecordIndex find(NetcdfDataset dataset, int instances) throws Exception {
+        return StationRecordIndex.find(dataset, dataset.findVariable("stationIndex"), dataset.findVariable("time"),
+                instances);
+    }
+
+    /**
+     * Writes an indexed ragged array of the given records.
+     */
+    private static File writeIndexed(String name, int[] stations, double[] times) throws Exception {
+        File file = new File(outputDir + name);
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, file.getAbsolutePath());
+        int instances = 0;
+        for (int station : stations) {
+            instances = Math.max(instances, station + 1);
+        }
+        writer.addDimension(null, "station", instances);
+        writer.addDimension(null, "obs", stations.length);
+        Variable index = writer.addVariable(null, "stationIndex", DataType.INT, "obs");
+        writer.addVariableAttribute(index, new Attribute("instance_dimension", "station"));
+        Variable time = writer.addVariable(null, "time", DataType.DOUBLE, "obs");
+        writer.addVariableAttribute(time, new Attribute("units", "seconds since 1990-01-01 00:00:00"));
+        writer.create();
+        ArrayInt.D1 stationValues = new ArrayInt.D1(stations.length);
+        ArrayDouble.D1 timeValues = new ArrayDouble.D1(times.length);
+        for (int i = 0; i < stations.length; i++) {
+            stationValues.set(i, stations[i]);
+            timeValues.set(i, times[i]);
+        }
+        writer.write(index, stationValues);
+        writer.write(time, timeValues);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,128 @@
+package com.asascience.ncsos.cdmclasses;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.ArrayChar;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.File;
+
+/**
+ * Reads the first and last record of the stations of a contiguous ragged file written by
+ * the test, and checks the binary search is only trusted for stations stored in time
+ * order, the others being scanned, with the same result either way.
+ */
+public class StationRecordReaderTest {
+
+    // the times of each station, in the order they are stored
+    private static final double[][] STATION_TIMES = {
+        {10, 20, 30, 40},
+        // out of order
+        {50, 5, 70, 20, 30},
+        // missing times stored last
+        {1, 2, Double.NaN},
+        // a missing time among valid ones
+        {1, Double.NaN, 3},
+        {Double.NaN, Double.NaN}
+    };
+
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() {
+        outputDir = "target" + File.separator + "test_out" + File.separator + "RecordReader" + File.separator;
+        new File(outputDir).mkdirs();
+    }
+
+    @Test
+    public void testBoundaryOfStations() throws Exception {
+        File file = writeContiguous("boundary.nc");
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            StationRecordReader reader = StationRecordReader.create(dataset, dataset.findVariable("station_name"),
+                    dataset.findVariable("time"));
+            Assert.assertNotNull(reader);
+            double[][] expected = {{10, 40}, {5, 70}, {1, 2}, {1, 3}, null};
+            for (int station = 0; station < STATION_TIMES.length; station++) {
+                for (boolean timeSearch : new boolean[]{true, false}) {
+                    String message = "station " + station + (timeSearch ? " searched" : " scanned");
+                    StationRecordReader.Records first = reader.readBoundary(station, new String[]{"value"}, false, timeSearch);
+                    StationRecordReader.Records last = reader.readBoundary(station, new String[]{"value"}, true, timeSearch);
+                    if (expected[station] == null) {
+                        Assert.assertEquals(message, 0, first.size());
+                        Assert.assertEquals(message, 0, last.size());
+                        continue;
+                    }
+                    assertRecord(message, expected[station][0], first);
+                    assertRecord(message, expected[station][1], last);
+                }
+            }
+        } finally {
+            dataset.close();
+        }
+    }
+
+    /**
+     * Checks the record has the time and the value written with it.
+     */
+    private static void assertRecord(String message, double time, StationRecordReader.Records records) {
+        Assert.assertEquals(message, 1, records.size());
+        Assert.assertEquals(message, time, records.getTime(0), 0);
+        ObservationBlock block = new ObservationBlock();
+        int column = block.addColumn("value");
+        block.addRecord();
+        records.copyValue(0, 0, block, column);
+        Assert.assertEquals(message, time * 2, block.getDouble(0, column), 0);
+    }
+
+    /**
+     * Writes the stations as a contiguous ragged array, with a value of twice the time.
+     */
+    private static File writeContiguous(String name) throws Exception {
+        File file = new File(outputDir + name);
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, file.getAbsolutePath());
+        int records = 0;
+        for (double[] times : STATION_TIMES) {
+            records += times.length;
+        }
+        writer.addDimension(null, "station", STATION_TIMES.length);
+        writer.addDimension(null, "obs", records);
+        writer.addDimension(null, "name_strlen", 16);
+        Variable stationName = writer.addVariable(null, "station_name", DataType.CHAR, "station name_strlen");
+        writer.addVariableAttribute(stationName, new Attribute("cf_role", "timeseries_id"));
+        Variable rowSize = writer.addVariable(null, "row_size", DataType.INT, "station");
+        writer.addVariableAttribute(rowSize, new Attribute("sample_dimension", "obs"));
+        Variable time = writer.addVariable(null, "time", DataType.DOUBLE, "obs");
+        writer.addVariableAttribute(time, new Attribute("units", "seconds since 1990-01-01 00:00:00"));
+        Variable value = writer.addVariable(null, "value", DataType.DOUBLE, "obs");
+        writer.create();
+
+        ArrayChar.D2 names = new ArrayChar.D2(STATION_TIMES.length, 16);
+        ArrayInt.D1 rowSizes = new ArrayInt.D1(STATION_TIMES.length);
+        ArrayDouble.D1 timeValues = new ArrayDouble.D1(records);
+        ArrayDouble.D1 values = new ArrayDouble.D1(records);
+        int record = 0;
+        for (int station = 0; station < STATION_TIMES.length; station++) {
+            names.setString(station, "Station-" + station);
+            rowSizes.set(station, STATION_TIMES[station].length);
+            for (double t : STATION_TIMES[station]) {
+                timeValues.set(record, t);
+                values.set(record, t * 2);
+                record++;
+            }
+        }
+        writer.write(stationName, names);
+        writer.write(rowSize, rowSizes);
+        writer.write(time, timeValues);
+        writer.write(value, values);
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,128 @@
+package com.asascience.ncsos.gc;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.LatLonPointImpl;
+import ucar.unidata.geoloc.LatLonRect;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Builds snapshots by hand and through GetCapabilities on copied datasets, and checks the
+ * network bounds, that a snapshot cannot be changed, that it is only found while the file
+ * is unchanged, and that it holds the bounds the feature loop computes.
+ */
+public class CapabilitiesSnapshotTest {
+
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() {
+        outputDir = "target" + File.separator + "test_out" + File.separator + "CapabilitiesSnapshot" + File.separator;
+        new File(outputDir).mkdirs();
+    }
+
+    @Test
+    public void testNetworkBounds() {
+        Map<Integer, CalendarDateRange> stationDateRange = new HashMap<Integer, CalendarDateRange>();
+        Map<Integer, LatLonRect> stationBBox = new HashMap<Integer, LatLonRect>();
+        CalendarDate start = CalendarDate.of(631152000000L);
+        CalendarDate end = CalendarDate.of(631238400000L);
+        stationDateRange.put(0, CalendarDateRange.of(start, start));
+        stationDateRange.put(1, CalendarDateRange.of(start, end));
+        stationBBox.put(0, new LatLonRect(new LatLonPointImpl(10, -70), new LatLonPointImpl(10, -70)));
+        stationBBox.put(1, new LatLonRect(new LatLonPointImpl(-5, -80), new LatLonPointImpl(12, -75)));
+        CapabilitiesSnapshot snapshot = new CapabilitiesSnapshot(start, end, stationDateRange, stationBBox);
+
+        Assert.assertEquals(-5, snapshot.getNetworkBBox().getLatMin(), 0);
+        Assert.assertEquals(12, snapshot.getNetworkBBox().getLatMax(), 0);
+        Assert.assertEquals(-80, snapshot.getNetworkBBox().getLonMin(), 0);
+        Assert.assertEquals(-70, snapshot.getNetworkBBox().getLonMax(), 0);
+        Assert.assertEquals(CalendarDateRange.of(start, end), snapshot.getDateRange());
+        Assert.assertTrue(snapshot.getDimensionLengths().isEmpty());
+        Assert.assertNull(new CapabilitiesSnapshot(null, end, stationDateRange, stationBBox).getDateRange());
+
+        // the maps are copied, so the snapshot does not follow the ones it was built from
+        stationBBox.remove(1);
+        Assert.assertEquals(2, snapshot.getStationBBox().size());
+        try {
+            snapshot.getStationDateRange().clear();
+            Assert.fail("the station time ranges of a snapshot can be changed");
+        } catch (UnsupportedOperationException expected) {
+        }
+    }
+
+    @Test
+    public void testFoundWhileFileUnchanged() throws Exception {
+        File file = copyDataset("unchanged.nc");
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            Assert.assertNull(CapabilitiesSnapshot.find(dataset));
+            CapabilitiesSnapshot computed = ReferenceBounds.compute(dataset);
+            CapabilitiesSnapshot stored = CapabilitiesSnapshot.store(dataset, file.lastModified(), file.length(),
+                    computed.withDimensionLengths(CoordinateBoundsReader.getDimensionLengths(dataset)));
+            Assert.assertSame(stored, CapabilitiesSnapshot.find(dataset));
+            // an unchanged file has no records to add, but the snapshot could be extended
+            Assert.assertSame(stored, CapabilitiesSnapshot.findPrevious(dataset));
+
+            // an older modification time is a file that was replaced, not appended to
+            Assert.assertTrue(file.setLastModified(file.lastModified() - 60000));
+            Assert.assertNull(CapabilitiesSnapshot.find(dataset));
+            Assert.assertNull(CapabilitiesSnapshot.findPrevious(dataset));
+
+            // stamped with the state before the bounds were computed, so a later change is noticed
+            CapabilitiesSnapshot.store(dataset, file.lastModified() - 1, file.length(), computed);
+            Assert.assertNull(CapabilitiesSnapshot.find(dataset));
+            // without dimension lengths it cannot be extended either
+            Assert.assertNull(CapabilitiesSnapshot.findPrevious(dataset));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testHandlerMatchesFeatureLoop() throws Exception {
+        File file = copyDataset("handler.nc");
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            GetCapabilitiesRequestHandler handler = new GetCapabilitiesRequestHandler(dataset,
+                    "http://localhost:8080/thredds/sos/handler.nc", "contents");
+            handler.parseGetCapabilitiesDocument();
+            CapabilitiesSnapshot snapshot = CapabilitiesSnapshot.find(dataset);
+            ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), snapshot);
+            Assert.assertEquals(CoordinateBoundsReader.getDimensionLengths(dataset), snapshot.getDimensionLengths());
+
+            // a second request shares the snapshot
+            new GetCapabilitiesRequestHandler(dataset, "http://localhost:8080/thredds/sos/handler.nc", "contents")
+                    .parseGetCapabilitiesDocument();
+            Assert.assertSame(snapshot, CapabilitiesSnapshot.find(dataset));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testNotCachedWithoutLocalFile() throws Exception {
+        CapabilitiesSnapshot snapshot = new CapabilitiesSnapshot(null, null,
+                Collections.<Integer, CalendarDateRange>emptyMap(), Collections.<Integer, LatLonRect>emptyMap());
+        Assert.assertNull(CapabilitiesSnapshot.find(null));
+        Assert.assertSame(snapshot, CapabilitiesSnapshot.store(null, 0, 0, snapshot));
+    }
+
+    private static File copyDataset(String name) throws Exception {
+        File template = new File("resources" + File.separator + "datasets" + File.separator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+        File file = new File(outputDir + name);
+        Files.copy(template.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+}
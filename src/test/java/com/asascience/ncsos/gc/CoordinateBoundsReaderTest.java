@@ -0,0 +1,326 @@
+package com.asascience.ncsos.gc;
+
+import com.asascience.ncsos.service.BaseRequestHandler;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.ma2.ArrayChar;
+import ucar.ma2.ArrayDouble;
+import ucar.ma2.ArrayFloat;
+import ucar.ma2.ArrayInt;
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFileWriter;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reduces the coordinate variables of the station templates and of generated ragged
+ * files to station bounds, and checks they are the bounds of the feature loop, also
+ * when the bounds of a grown file are extended with its appended records only.
+ */
+public class CoordinateBoundsReaderTest {
+
+    private static final String DATASET_DIR = "resources" + File.separator + "datasets" + File.separator + "cf_templates" + File.separator;
+
+    // station of each record of the ragged files, in time order
+    private static final int[] RECORD_STATIONS = {0, 1, 2, 0, 1, 0, 2, 0, 1};
+    private static final int STATIONS = 3;
+
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() {
+        outputDir = "target" + File.separator + "test_out" + File.separator + "CoordinateBounds" + File.separator;
+        new File(outputDir).mkdirs();
+    }
+
+    @Test
+    public void testOrthogonalMultidimensional() throws Exception {
+        compareWithFeatureLoop(DATASET_DIR + "timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+    }
+
+    @Test
+    public void testIncompleteMultidimensional() throws Exception {
+        compareWithFeatureLoop(DATASET_DIR + "timeSeries-Incomplete-MultiDimensional-MultipleStations-H.2.2.nc");
+    }
+
+    @Test
+    public void testSingleStation() throws Exception {
+        compareWithFeatureLoop(DATASET_DIR + "timeSeries-MultiDimensional-SingleStation-H.2.3.nc");
+    }
+
+    @Test
+    public void testContiguousRagged() throws Exception {
+        String path = outputDir + "contiguous.nc";
+        writeRagged(path, false);
+        compareWithFeatureLoop(path);
+    }
+
+    @Test
+    public void testIndexedRagged() throws Exception {
+        String path = outputDir + "indexed.nc";
+        writeRagged(path, true);
+        compareWithFeatureLoop(path);
+    }
+
+    @Test
+    public void testStationCountMismatch() throws Exception {
+        NetcdfDataset dataset = NetcdfDataset.openDataset(new File(DATASET_DIR
+                + "timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc").getAbsolutePath());
+        try {
+            Handler handler = new Handler(dataset);
+            // the stations of the file are not the ones the handler found, the features decide
+            Assert.assertNull(CoordinateBoundsReader.read(dataset, handler.getStationVariable(),
+                    handler.getStationCount() + 1, handler.getLatVariable(), handler.getLonVariable(), handler.getTimeVariable()));
+            Assert.assertNull(CoordinateBoundsReader.read(dataset, null,
+                    handler.getStationCount(), handler.getLatVariable(), handler.getLonVariable(), handler.getTimeVariable()));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testExtendAppendedRecords() throws Exception {
+        String path = outputDir + "appended.nc";
+        writeRagged(path, true);
+        CapabilitiesSnapshot previous;
+        NetcdfDataset dataset = NetcdfDataset.openDataset(new File(path).getAbsolutePath());
+        try {
+            previous = new Handler(dataset).read().withDimensionLengths(CoordinateBoundsReader.getDimensionLengths(dataset));
+        } finally {
+            dataset.close();
+        }
+
+        // one record before everything so far, the others after
+        append(path, new int[]{2, 0, 1, 0}, new double[]{-1800.0, 20 * 3600.0, 15 * 3600.0, 12 * 3600.0});
+        dataset = NetcdfDataset.openDataset(new File(path).getAbsolutePath());
+        try {
+            Handler handler = new Handler(dataset);
+            CapabilitiesSnapshot extended = handler.extend(previous);
+            ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), extended);
+            ReferenceBounds.assertSameBounds(handler.read(), extended);
+            Assert.assertTrue(extended.getStart().isBefore(previous.getStart()));
+            Assert.assertTrue(extended.getEnd().isAfter(previous.getEnd()));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testExtendRefusedUnlessAppended() throws Exception {
+        String path = outputDir + "rewritten.nc";
+        writeRagged(path, true);
+        NetcdfDataset dataset = NetcdfDataset.openDataset(new File(path).getAbsolutePath());
+        try {
+            Handler handler = new Handler(dataset);
+            CapabilitiesSnapshot bounds = handler.read();
+            Map<String, Integer> lengths = CoordinateBoundsReader.getDimensionLengths(dataset);
+            Assert.assertNotNull(handler.extend(bounds.withDimensionLengths(lengths)));
+
+            // computed without the dimension lengths
+            Assert.assertNull(handler.extend(bounds));
+            // records were removed
+            Map<String, Integer> shrunk = new HashMap<String, Integer>(lengths);
+            shrunk.put("obs", lengths.get("obs") + 1);
+            Assert.assertNull(handler.extend(bounds.withDimensionLengths(shrunk)));
+            // a fixed dimension changed
+            Map<String, Integer> resized = new HashMap<String, Integer>(lengths);
+            resized.put("station", STATIONS - 1);
+            Assert.assertNull(handler.extend(bounds.withDimensionLengths(resized)));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testRefreshedByHandler() throws Exception {
+        String path = new File(outputDir + "refreshed.nc").getAbsolutePath();
+        String threddsURI = "http://localhost:8080/thredds/sos/refreshed.nc";
+        writeRagged(path, true);
+        CapabilitiesSnapshot previous;
+        NetcdfDataset dataset = NetcdfDataset.openDataset(path);
+        try {
+            new GetCapabilitiesRequestHandler(dataset, threddsURI, "contents").parseGetCapabilitiesDocument();
+            previous = CapabilitiesSnapshot.find(dataset);
+            Assert.assertNotNull(previous);
+        } finally {
+            dataset.close();
+        }
+
+        append(path, new int[]{1, 2}, new double[]{30 * 3600.0, 31 * 3600.0});
+        dataset = NetcdfDataset.openDataset(path);
+        try {
+            Assert.assertNull(CapabilitiesSnapshot.find(dataset));
+            Assert.assertSame(previous, CapabilitiesSnapshot.findPrevious(dataset));
+            new GetCapabilitiesRequestHandler(dataset, threddsURI, "contents").parseGetCapabilitiesDocument();
+            CapabilitiesSnapshot refreshed = CapabilitiesSnapshot.find(dataset);
+            Assert.assertNotSame(previous, refreshed);
+            ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), refreshed);
+            Assert.assertEquals(Integer.valueOf(RECORD_STATIONS.length + 2), refreshed.getDimensionLengths().get("obs"));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    private static void compareWithFeatureLoop(String path) throws Exception {
+        NetcdfDataset dataset = NetcdfDataset.openDataset(new File(path).getAbsolutePath());
+        try {
+            CapabilitiesSnapshot bounds = new Handler(dataset).read();
+            ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), bounds);
+        } finally {
+            dataset.close();
+        }
+    }
+
+    /**
+     * Writes three stations as a contiguous or indexed ragged array along an unlimited
+     * dimension, with the times of every station out of step with the others.
+     */
+    private static void writeRagged(String path, boolean indexed) throws Exception {
+        NetcdfFileWriter writer = NetcdfFileWriter.createNew(NetcdfFileWriter.Version.netcdf3, path);
+        int records = RECORD_STATIONS.length;
+        writer.addDimension(null, "station", STATIONS);
+        writer.addUnlimitedDimension("obs");
+        writer.addDimension(null, "name_strlen", 16);
+        writer.addGroupAttribute(null, new Attribute("Conventions", "CF-1.6"));
+        writer.addGroupAttribute(null, new Attribute("featureType", "timeSeries"));
+
+        Variable name = writer.addVariable(null, "station_name", DataType.CHAR, "station name_strlen");
+        writer.addVariableAttribute(name, new Attribute("cf_role", "timeseries_id"));
+        Variable lat = writer.addVariable(null, "lat", DataType.FLOAT, "station");
+        writer.addVariableAttribute(lat, new Attribute("units", "degrees_north"));
+        writer.addVariableAttribute(lat, new Attribute("standard_name", "latitude"));
+        Variable lon = writer.addVariable(null, "lon", DataType.FLOAT, "station");
+        writer.addVariableAttribute(lon, new Attribute("units", "degrees_east"));
+        writer.addVariableAttribute(lon, new Attribute("standard_name", "longitude"));
+        Variable ragged;
+        if (indexed) {
+            ragged = writer.addVariable(null, "stationIndex", DataType.INT, "obs");
+            writer.addVariableAttribute(ragged, new Attribute("instance_dimension", "station"));
+        } else {
+            ragged = writer.addVariable(null, "row_size", DataType.INT, "station");
+            writer.addVariableAttribute(ragged, new Attribute("sample_dimension", "obs"));
+        }
+        Variable time = writer.addVariable(null, "time", DataType.DOUBLE, "obs");
+        writer.addVariableAttribute(time, new Attribute("units", "seconds since 1990-01-01 00:00:00"));
+        writer.addVariableAttribute(time, new Attribute("standard_name", "time"));
+        Variable temperature = writer.addVariable(null, "temperature", DataType.FLOAT, "obs");
+        writer.addVariableAttribute(temperature, new Attribute("standard_name", "sea_water_temperature"));
+        writer.addVariableAttribute(temperature, new Attribute("units", "Celsius"));
+        writer.addVariableAttribute(temperature, new Attribute("coordinates", "time lat lon"));
+        writer.create();
+
+        ArrayChar.D2 names = new ArrayChar.D2(STATIONS, 16);
+        ArrayFloat.D1 lats = new ArrayFloat.D1(STATIONS);
+        ArrayFloat.D1 lons = new ArrayFloat.D1(STATIONS);
+        ArrayInt.D1 rowSizes = new ArrayInt.D1(STATIONS);
+        for (int st = 0; st < STATIONS; st++) {
+            names.setString(st, "Station-" + st);
+            lats.set(st, 10.5f + st);
+            lons.set(st, -70.25f - st);
+        }
+        for (int station : RECORD_STATIONS) {
+            rowSizes.set(station, rowSizes.get(station) + 1);
+        }
+
+        // a contiguous ragged array holds the records of each station together
+        int[] order = new int[records];
+        int at = 0;
+        for (int st = 0; st < STATIONS; st++) {
+            for (int record = 0; record < records; record++) {
+                if (indexed) {
+                    order[record] = record;
+                } else if (RECORD_STATIONS[record] == st) {
+                    order[at++] = record;
+                }
+            }
+        }
+        ArrayInt.D1 stationIndex = new ArrayInt.D1(records);
+        ArrayDouble.D1 times = new ArrayDouble.D1(records);
+        ArrayFloat.D1 temperatures = new ArrayFloat.D1(records);
+        for (int i = 0; i < records; i++) {
+            int record = order[i];
+            stationIndex.set(i, RECORD_STATIONS[record]);
+            times.set(i, record * 3600.0 + RECORD_STATIONS[record] * 60.0);
+            temperatures.set(i, 20.5f + record);
+        }
+
+        writer.write(name, names);
+        writer.write(lat, lats);
+        writer.write(lon, lons);
+        writer.write(ragged, indexed ? stationIndex : rowSizes);
+        writer.write(time, times);
+        writer.write(temperature, temperatures);
+        writer.close();
+    }
+
+    /**
+     * Appends records to an indexed ragged file written by {@link #writeRagged}.
+     * @param stations station of every record
+     * @param times time of every record, in seconds since 1990
+     */
+    private static void append(String path, int[] stations, double[] times) throws Exception {
+        NetcdfFileWriter writer = NetcdfFileWriter.openExisting(path);
+        try {
+            int records = writer.getNetcdfFile().findDimension("obs").getLength();
+            ArrayInt.D1 stationIndex = new ArrayInt.D1(stations.length);
+            ArrayDouble.D1 values = new ArrayDouble.D1(times.length);
+            ArrayFloat.D1 temperatures = new ArrayFloat.D1(times.length);
+            for (int i = 0; i < stations.length; i++) {
+                stationIndex.set(i, stations[i]);
+                values.set(i, times[i]);
+                temperatures.set(i, 30.5f + i);
+            }
+            int[] origin = {records};
+            writer.write(writer.findVariable("stationIndex"), origin, stationIndex);
+            writer.write(writer.findVariable("time"), origin, values);
+            writer.write(writer.findVariable("temperature"), origin, temperatures);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * A request handler that finds the station and coordinate variables of a dataset.
+     */
+    private static class Handler extends BaseRequestHandler {
+        Handler(NetcdfDataset dataset) throws Exception {
+            super(dataset);
+        }
+
+        CapabilitiesSnapshot read() {
+            return CoordinateBoundsReader.read(netCDFDataset, stationVariable, getStationCount(), latVariable,
+                    lonVariable, timeVariable);
+        }
+
+        CapabilitiesSnapshot extend(CapabilitiesSnapshot previous) {
+            return CoordinateBoundsReader.extend(previous, netCDFDataset, stationVariable, getStationCount(),
+                    latVariable, lonVariable, timeVariable);
+        }
+
+        int getStationCount() {
+            return getStationNames().size();
+        }
+
+        Variable getStationVariable() {
+            return stationVariable;
+        }
+
+        Variable getLatVariable() {
+            return latVariable;
+        }
+
+        Variable getLonVariable() {
+            return lonVariable;
+        }
+
+        Variable getTimeVariable() {
+            return timeVariable;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.asascience.ncsos.gc;
+
+import com.asascience.ncsos.util.DatasetHandlePool;
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+/**
+ * Computes the bounds of the station templates serially and in parallel, and checks both
+ * give the bounds of the feature loop, in the same station order.
+ */
+public class FeatureBoundsCalculatorTest {
+
+    private static final String DATASET_DIR = "resources" + File.separator + "datasets" + File.separator + "cf_templates" + File.separator;
+    private static final String[] STATION_TEMPLATES = {
+        "timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc",
+        "timeSeries-Incomplete-MultiDimensional-MultipleStations-H.2.2.nc",
+        "timeSeries-MultiDimensional-SingleStation-H.2.3.nc"
+    };
+
+    @AfterClass
+    public static void tearDown() {
+        FeatureBoundsCalculator.shutdownPool();
+        DatasetHandlerAdapter.shutdownPool();
+    }
+
+    @Test
+    public void testSerialScan() throws Exception {
+        for (String template : STATION_TEMPLATES) {
+            NetcdfDataset dataset = NetcdfDataset.openDataset(new File(DATASET_DIR + template).getAbsolutePath());
+            try {
+                FeatureBoundsCalculator calculator = new FeatureBoundsCalculator(FeatureType.STATION, dataset, 1, 1);
+                CapabilitiesSnapshot bounds = calculator.compute(ReferenceBounds.openStations(dataset));
+                ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), bounds);
+            } finally {
+                dataset.close();
+            }
+        }
+    }
+
+    @Test
+    public void testParallelScan() throws Exception {
+        for (int t = 0; t < 2; t++) {
+            String path = new File(DATASET_DIR + STATION_TEMPLATES[t]).getAbsolutePath();
+            // opened for a request, so every range can open a handle of its own
+            NetcdfDataset dataset = DatasetHandlerAdapter.openDataset(datasetRequest(path), null);
+            try {
+                DatasetHandlePool pool = DatasetHandlerAdapter.getPool();
+                long borrowed = pool.getHits() + pool.getMisses();
+                FeatureBoundsCalculator calculator = new FeatureBoundsCalculator(FeatureType.STATION, dataset, 4, 1);
+                CapabilitiesSnapshot bounds = calculator.compute(ReferenceBounds.openStations(dataset));
+                // one handle per range, not a serial fallback
+                Assert.assertTrue(pool.getHits() + pool.getMisses() >= borrowed + 2);
+                ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), bounds);
+
+                // the same ranges again, on the handles the first scan gave back
+                long hits = pool.getHits();
+                ReferenceBounds.assertSameBounds(bounds, calculator.compute(ReferenceBounds.openStations(dataset)));
+                Assert.assertTrue(pool.getHits() > hits);
+            } finally {
+                DatasetHandlerAdapter.closeDataset(dataset);
+            }
+        }
+    }
+
+    @Test
+    public void testSmallCollectionScannedSerially() throws Exception {
+        String path = new File(DATASET_DIR + STATION_TEMPLATES[0]).getAbsolutePath();
+        NetcdfDataset dataset = DatasetHandlerAdapter.openDataset(datasetRequest(path), null);
+        try {
+            DatasetHandlePool pool = DatasetHandlerAdapter.getPool();
+            long borrowed = pool.getHits() + pool.getMisses();
+            FeatureBoundsCalculator calculator = new FeatureBoundsCalculator(FeatureType.STATION, dataset, 4, 1000);
+            CapabilitiesSnapshot bounds = calculator.compute(ReferenceBounds.openStations(dataset));
+            Assert.assertEquals(borrowed, pool.getHits() + pool.getMisses());
+            ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), bounds);
+        } finally {
+            DatasetHandlerAdapter.closeDataset(dataset);
+        }
+    }
+
+    @Test
+    public void testParallelFallsBackWithoutRequest() throws Exception {
+        // not opened for a request, there is no other handle to read from
+        NetcdfDataset dataset = NetcdfDataset.openDataset(new File(DATASET_DIR + STATION_TEMPLATES[0]).getAbsolutePath());
+        try {
+            FeatureBoundsCalculator calculator = new FeatureBoundsCalculator(FeatureType.STATION, dataset, 4, 1);
+            CapabilitiesSnapshot bounds = calculator.compute(ReferenceBounds.openStations(dataset));
+            ReferenceBounds.assertSameBounds(ReferenceBounds.compute(dataset), bounds);
+        } finally {
+            dataset.close();
+        }
+    }
+
+    /**
+     * @return a request passing in the dataset URL, the way an opendap request does
+     */
+    private static HttpServletRequest datasetRequest(final String path) {
+        return (HttpServletRequest) Proxy.newProxyInstance(FeatureBoundsCalculatorTest.class.getClassLoader(),
+                new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getServletPath")) {
+                            return null;
+                        }
+                        if (method.getName().equals("getParameterNames")) {
+                            return Collections.enumeration(Collections.singletonList("dataset"));
+                        }
+                        if (method.getName().equals("getParameter")) {
+                            return "dataset".equals(args[0]) ? path : null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
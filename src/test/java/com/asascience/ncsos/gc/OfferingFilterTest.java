@@ -0,0 +1,160 @@
+package com.asascience.ncsos.gc;
+
+import com.asascience.ncsos.outputformatter.OutputFormatter;
+import com.asascience.ncsos.service.Parser;
+import com.asascience.ncsos.service.SosRequest;
+import org.junit.Assert;
+import org.junit.Test;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.LatLonPointImpl;
+import ucar.unidata.geoloc.LatLonRect;
+
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parses the offering filters of GetCapabilities requests, and checks stations are
+ * matched by bounding box, time overlap and procedure prefix, and the matching offerings
+ * of a station template are paged in station order.
+ */
+public class OfferingFilterTest {
+
+    private static final String CAPABILITIES = "request=GetCapabilities&service=SOS";
+    private static final String STATION = "urn:ioos:station:ncsos:Station-";
+    private static final CalendarDate DAY_1 = CalendarDate.of(631152000000L);
+    private static final CalendarDate DAY_2 = CalendarDate.of(631238400000L);
+    private static final CalendarDate DAY_3 = CalendarDate.of(631324800000L);
+    private static final CalendarDate DAY_4 = CalendarDate.of(631411200000L);
+
+    @Test
+    public void testNoFilter() {
+        OfferingFilter filter = parse(CAPABILITIES + "&sections=Contents");
+        Assert.assertTrue(filter.isEmpty());
+        Assert.assertSame(OfferingFilter.none(), filter);
+        Assert.assertTrue(filter.accepts(STATION + "0", null, null));
+        Assert.assertFalse(filter.isPageFull(100000));
+        Assert.assertEquals(0, filter.getStartIndex());
+    }
+
+    @Test
+    public void testBoundingBox() {
+        OfferingFilter filter = parse(CAPABILITIES + "&bbox=-80,30,-70,40");
+        Assert.assertNull(filter.getError());
+        Assert.assertFalse(filter.isEmpty());
+        Assert.assertTrue(filter.accepts(STATION + "0", box(35, -75, 35, -75), null));
+        // a box crossing the edge intersects it
+        Assert.assertTrue(filter.accepts(STATION + "0", box(25, -85, 31, -79), null));
+        Assert.assertTrue(filter.accepts(STATION + "0", box(40, -70, 45, -60), null));
+        Assert.assertFalse(filter.accepts(STATION + "0", box(41, -75, 45, -75), null));
+        Assert.assertFalse(filter.accepts(STATION + "0", box(35, -69, 35, -60), null));
+        // stations without bounds do not match
+        Assert.assertFalse(filter.accepts(STATION + "0", null, CalendarDateRange.of(DAY_1, DAY_2)));
+
+        assertInvalid(CAPABILITIES + "&bbox=-80,30,-70", Parser.BBOX);
+        assertInvalid(CAPABILITIES + "&bbox=west,30,-70,40", Parser.BBOX);
+        assertInvalid(CAPABILITIES + "&bbox=-70,30,-80,40", Parser.BBOX);
+    }
+
+    @Test
+    public void testTimeOverlap() {
+        OfferingFilter filter = parse(CAPABILITIES + "&eventTime=1990-01-02T00:00:00Z/1990-01-03T00:00:00Z");
+        Assert.assertNull(filter.getError());
+        Assert.assertTrue(filter.accepts(STATION + "0", null, CalendarDateRange.of(DAY_1, DAY_2)));
+        Assert.assertTrue(filter.accepts(STATION + "0", null, CalendarDateRange.of(DAY_1, DAY_4)));
+        Assert.assertTrue(filter.accepts(STATION + "0", null, CalendarDateRange.of(DAY_3, DAY_4)));
+        Assert.assertFalse(filter.accepts(STATION + "0", null, CalendarDateRange.of(DAY_1, DAY_1)));
+        Assert.assertFalse(filter.accepts(STATION + "0", null, CalendarDateRange.of(DAY_4, DAY_4)));
+        Assert.assertFalse(filter.accepts(STATION + "0", box(35, -75, 35, -75), null));
+
+        // an instant matches the stations whose range holds it
+        OfferingFilter instant = parse(CAPABILITIES + "&eventTime=1990-01-02T00:00:00Z");
+        Assert.assertTrue(instant.accepts(STATION + "0", null, CalendarDateRange.of(DAY_1, DAY_3)));
+        Assert.assertFalse(instant.accepts(STATION + "0", null, CalendarDateRange.of(DAY_3, DAY_4)));
+
+        assertInvalid(CAPABILITIES + "&eventTime=latest", Parser.EVENT_TIME);
+        assertInvalid(CAPABILITIES + "&eventTime=1990-01-03T00:00:00Z/1990-01-02T00:00:00Z", Parser.EVENT_TIME);
+    }
+
+    @Test
+    public void testProcedurePrefix() {
+        OfferingFilter filter = parse(CAPABILITIES + "&procedurePrefix=" + STATION + "1");
+        Assert.assertTrue(filter.accepts(STATION + "1", null, null));
+        Assert.assertTrue(filter.accepts(STATION + "10", null, null));
+        Assert.assertFalse(filter.accepts(STATION + "2", null, null));
+        Assert.assertFalse(filter.accepts("urn:ioos:network:ncsos:all", null, null));
+    }
+
+    @Test
+    public void testPaging() {
+        OfferingFilter filter = parse(CAPABILITIES + "&startIndex=3&pageSize=2");
+        Assert.assertEquals(3, filter.getStartIndex());
+        Assert.assertFalse(filter.isPageFull(1));
+        Assert.assertTrue(filter.isPageFull(2));
+        Assert.assertTrue(filter.accepts(STATION + "0", null, null));
+
+        assertInvalid(CAPABILITIES + "&startIndex=-1", Parser.START_INDEX);
+        assertInvalid(CAPABILITIES + "&startIndex=first", Parser.START_INDEX);
+        assertInvalid(CAPABILITIES + "&pageSize=0", Parser.PAGE_SIZE);
+        assertInvalid(CAPABILITIES + "&pageSize=many", Parser.PAGE_SIZE);
+    }
+
+    @Test
+    public void testOfferingsPagedInStationOrder() throws Exception {
+        String path = new File("resources" + File.separator + "datasets" + File.separator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc").getAbsolutePath();
+        NetcdfDataset dataset = NetcdfDataset.openDataset(path);
+        try {
+            List<String> all = listStations(dataset, "");
+            Assert.assertEquals(10, all.size());
+            Assert.assertEquals(all.subList(3, 7), listStations(dataset, "&startIndex=3&pageSize=4"));
+            Assert.assertEquals(all.subList(8, 10), listStations(dataset, "&startIndex=8&pageSize=4"));
+            Assert.assertTrue(listStations(dataset, "&startIndex=10").isEmpty());
+            // paged among the matching offerings
+            Assert.assertEquals(all.subList(1, 2), listStations(dataset, "&procedurePrefix=" + STATION + "1&pageSize=1"));
+            // every station of the template has bounds, a box around the world keeps them all
+            Assert.assertEquals(all, listStations(dataset, "&bbox=-180,-90,180,90"));
+            Assert.assertTrue(listStations(dataset, "&eventTime=1800-01-01T00:00:00Z/1800-01-02T00:00:00Z").isEmpty());
+        } finally {
+            dataset.close();
+        }
+    }
+
+    /**
+     * @return the procedures of the station offerings of the Contents section, in document order
+     */
+    private static List<String> listStations(NetcdfDataset dataset, String filter) throws Exception {
+        OutputFormatter output = (OutputFormatter) new Parser().enhanceGETRequest(dataset,
+                CAPABILITIES + "&sections=Contents" + filter, "http://localhost:8080/thredds/sos/offerings.nc")
+                .get(Parser.OUTPUT_FORMATTER);
+        CharArrayWriter writer = new CharArrayWriter();
+        output.writeOutput(writer);
+        String document = writer.toString();
+        Assert.assertFalse(document.contains("ExceptionReport"));
+        List<String> stations = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("<gml:name>(" + Pattern.quote(STATION) + "[^<]*)</gml:name>").matcher(document);
+        while (matcher.find()) {
+            stations.add(matcher.group(1));
+        }
+        return stations;
+    }
+
+    private static OfferingFilter parse(String query) {
+        return OfferingFilter.parse(SosRequest.parse(query));
+    }
+
+    private static void assertInvalid(String query, String locator) {
+        OfferingFilter filter = parse(query);
+        Assert.assertNotNull(query, filter.getError());
+        Assert.assertEquals(locator, filter.getLocator());
+    }
+
+    private static LatLonRect box(double latMin, double lonMin, double latMax, double lonMax) {
+        return new LatLonRect(new LatLonPointImpl(latMin, lonMin), new LatLonPointImpl(latMax, lonMax));
+    }
+}
@@ -0,0 +1,94 @@
+package com.asascience.ncsos.gc;
+
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import org.junit.Assert;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
+import ucar.nc2.ft.FeatureDatasetPoint;
+import ucar.nc2.ft.StationTimeSeriesFeature;
+import ucar.nc2.ft.StationTimeSeriesFeatureCollection;
+import ucar.nc2.time.CalendarDate;
+import ucar.nc2.time.CalendarDateRange;
+import ucar.unidata.geoloc.LatLonRect;
+
+import java.util.Formatter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The station bounds as the serial feature loop of CalculateBoundsForFeatureSet computed
+ * them before the bounds were cached, read in bulk or scanned in parallel; the other
+ * bounds paths are checked against it.
+ */
+final class ReferenceBounds {
+
+    private ReferenceBounds() {
+    }
+
+    /**
+     * @param dataset a station dataset
+     * @return the bounds of every station, by its position in the collection
+     */
+    static CapabilitiesSnapshot compute(NetcdfDataset dataset) throws Exception {
+        StationTimeSeriesFeatureCollection collection = openStations(dataset);
+        Map<Integer, CalendarDateRange> stationDateRange = new HashMap<Integer, CalendarDateRange>();
+        Map<Integer, LatLonRect> stationBBox = new HashMap<Integer, LatLonRect>();
+        CalendarDate start = null, end = null;
+        int stationIndex = 0;
+        collection.resetIteration();
+        while (collection.hasNext()) {
+            StationTimeSeriesFeature feature = collection.next();
+            if (DatasetHandlerAdapter.calcBounds(feature)) {
+                if (start == null || start.isAfter(feature.getCalendarDateRange().getStart())) {
+                    start = feature.getCalendarDateRange().getStart();
+                }
+                if (end == null || end.isBefore(feature.getCalendarDateRange().getEnd())) {
+                    end = feature.getCalendarDateRange().getEnd();
+                }
+                stationDateRange.put(stationIndex, feature.getCalendarDateRange());
+                stationBBox.put(stationIndex, feature.getBoundingBox());
+            } else {
+                GetCapabilitiesRequestHandler.GetExtentsFromSubFeatures(feature, stationIndex, stationDateRange, stationBBox);
+            }
+            stationIndex++;
+        }
+        return new CapabilitiesSnapshot(start, end, stationDateRange, stationBBox);
+    }
+
+    /**
+     * @param dataset a station dataset
+     * @return its station collection
+     */
+    static StationTimeSeriesFeatureCollection openStations(NetcdfDataset dataset) throws Exception {
+        FeatureDatasetPoint featureDataset = (FeatureDatasetPoint) FeatureDatasetFactoryManager.wrap(
+                FeatureType.STATION, dataset, null, new Formatter(System.err));
+        Assert.assertNotNull(featureDataset);
+        return (StationTimeSeriesFeatureCollection) featureDataset.getPointFeatureCollectionList().get(0);
+    }
+
+    /**
+     * Checks two snapshots hold the same time range and bounding box for every station.
+     */
+    static void assertSameBounds(CapabilitiesSnapshot expected, CapabilitiesSnapshot actual) {
+        Assert.assertNotNull(actual);
+        Assert.assertFalse(expected.getStationDateRange().isEmpty());
+        Assert.assertEquals(expected.getStationDateRange().keySet(), actual.getStationDateRange().keySet());
+        Assert.assertEquals(expected.getStationBBox().keySet(), actual.getStationBBox().keySet());
+        Assert.assertEquals(expected.getStart().getMillis(), actual.getStart().getMillis());
+        Assert.assertEquals(expected.getEnd().getMillis(), actual.getEnd().getMillis());
+        for (Integer index : expected.getStationDateRange().keySet()) {
+            CalendarDateRange expectedRange = expected.getStationDateRange().get(index);
+            CalendarDateRange actualRange = actual.getStationDateRange().get(index);
+            Assert.assertEquals("start of station " + index, expectedRange.getStart().getMillis(), actualRange.getStart().getMillis());
+            Assert.assertEquals("end of station " + index, expectedRange.getEnd().getMillis(), actualRange.getEnd().getMillis());
+
+            LatLonRect expectedBox = expected.getStationBBox().get(index);
+            LatLonRect actualBox = actual.getStationBBox().get(index);
+            Assert.assertEquals("latitude of station " + index, expectedBox.getLatMin(), actualBox.getLatMin(), 1e-6);
+            Assert.assertEquals("latitude of station " + index, expectedBox.getLatMax(), actualBox.getLatMax(), 1e-6);
+            Assert.assertEquals("longitude of station " + index, expectedBox.getLonMin(), actualBox.getLonMin(), 1e-6);
+            Assert.assertEquals("longitude of station " + index, expectedBox.getLonMax(), actualBox.getLonMax(), 1e-6);
+        }
+    }
+}
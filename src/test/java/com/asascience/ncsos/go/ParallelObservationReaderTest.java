@@ -0,0 +1,207 @@
+package com.asascience.ncsos.go;
+
+import com.asascience.ncsos.cdmclasses.ObservationBlock;
+import com.asascience.ncsos.cdmclasses.ObservationVisitor;
+import com.asascience.ncsos.cdmclasses.iStationData;
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Reads the stations of a template ahead on handles of their own, and checks the formatter
+ * gets the observations of every station in request order, as a serial read gives them,
+ * whether it takes them batch by batch or whole, skips stations or stops early.
+ */
+public class ParallelObservationReaderTest {
+
+    private static final String PATH = new File("resources" + File.separator + "datasets" + File.separator
+            + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc").getAbsolutePath();
+    private static final String RESPONSE_FORMAT = "text/xml;subtype=\"om/1.0.0/profiles/ioos_sos/1.0\"";
+    private static final int STATIONS = 10;
+
+    @AfterClass
+    public static void tearDown() {
+        DatasetHandlerAdapter.shutdownPool();
+    }
+
+    @Test
+    public void testOrderMatchesSerialRead() throws Exception {
+        List<String> expected = readSerially();
+        NetcdfDataset dataset = DatasetHandlerAdapter.openDataset(datasetRequest(PATH), null);
+        String location = dataset.getLocation();
+        try {
+            iStationData serial = newHandler(dataset).getCDMDataset();
+            for (int readers = 1; readers <= 4; readers++) {
+                ParallelObservationReader reader = newReader(dataset, readers);
+                try {
+                    List<String> read = new ArrayList<String>();
+                    for (int p = 0; p < STATIONS; p++) {
+                        StringBuilder text = new StringBuilder();
+                        if (!reader.readObservations(p, append(text))) {
+                            // not read ahead, the formatter reads it on the dataset of the request
+                            serial.readData(p, append(text));
+                        }
+                        read.add(text.toString());
+                    }
+                    Assert.assertEquals("readers: " + readers, expected, read);
+                } finally {
+                    reader.close();
+                }
+            }
+
+            // taken whole
+            ParallelObservationReader reader = newReader(dataset, 3);
+            try {
+                for (int p = 0; p < STATIONS; p++) {
+                    ObservationBlock block = reader.get(p);
+                    if (block == null) {
+                        block = serial.getDataBlock(p);
+                    }
+                    Assert.assertFalse(block.hasError());
+                    Assert.assertEquals(expected.get(p), block.toDataResponse());
+                }
+            } finally {
+                reader.close();
+            }
+        } finally {
+            DatasetHandlerAdapter.closeDataset(dataset);
+        }
+        assertReadsFinished(location);
+    }
+
+    @Test
+    public void testSkippedAndStoppedProcedures() throws Exception {
+        List<String> expected = readSerially();
+        NetcdfDataset dataset = DatasetHandlerAdapter.openDataset(datasetRequest(PATH), null);
+        String location = dataset.getLocation();
+        try {
+            ParallelObservationReader reader = newReader(dataset, 3);
+            try {
+                StringBuilder text = new StringBuilder();
+                if (reader.readObservations(4, append(text))) {
+                    Assert.assertEquals(expected.get(4), text.toString());
+                }
+                // passed over or asked for already, left to the caller
+                Assert.assertFalse(reader.readObservations(2, append(new StringBuilder())));
+                Assert.assertFalse(reader.readObservations(4, append(new StringBuilder())));
+                Assert.assertNull(reader.get(STATIONS));
+
+                // a formatter failing to write stops the read of the station
+                try {
+                    // false if the station was not read ahead, there was nothing to stop
+                    Assert.assertFalse(reader.readObservations(5, new ObservationVisitor() {
+                        public void visit(ObservationBlock batch) throws IOException {
+                            throw new IOException("client went away");
+                        }
+                    }));
+                } catch (IOException expectedFailure) {
+                    Assert.assertEquals("client went away", expectedFailure.getMessage());
+                }
+                Assert.assertFalse(reader.readObservations(5, append(new StringBuilder())));
+                text = new StringBuilder();
+                if (reader.readObservations(6, append(text))) {
+                    Assert.assertEquals(expected.get(6), text.toString());
+                }
+            } finally {
+                reader.close();
+            }
+            // closed, nothing more is read ahead
+            Assert.assertFalse(reader.readObservations(8, append(new StringBuilder())));
+        } finally {
+            DatasetHandlerAdapter.closeDataset(dataset);
+        }
+        assertReadsFinished(location);
+    }
+
+    /**
+     * @return the observations of every station as key=value text, read on one handle
+     */
+    private static List<String> readSerially() throws Exception {
+        NetcdfDataset dataset = NetcdfDataset.openDataset(PATH);
+        try {
+            iStationData data = newHandler(dataset).getCDMDataset();
+            List<String> stations = new ArrayList<String>();
+            for (int p = 0; p < STATIONS; p++) {
+                StringBuilder text = new StringBuilder();
+                data.readData(p, append(text));
+                Assert.assertTrue(text.length() > 0);
+                stations.add(text.toString());
+            }
+            return stations;
+        } finally {
+            dataset.close();
+        }
+    }
+
+    /**
+     * The reads stopped by close may still be winding down; the permits of the dataset
+     * are dropped once the last one finishes.
+     */
+    private static void assertReadsFinished(String location) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (ParallelObservationReader.isReading(location) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(ParallelObservationReader.isReading(location));
+    }
+
+    private static ParallelObservationReader newReader(NetcdfDataset dataset, int readers) {
+        return new ParallelObservationReader(dataset, new ParallelObservationReader.StationDataFactory() {
+            public iStationData create(NetcdfDataset handle) throws Exception {
+                return newHandler(handle).getCDMDataset();
+            }
+        }, STATIONS, readers);
+    }
+
+    private static GetObservationRequestHandler newHandler(NetcdfDataset dataset) throws Exception {
+        String[] procedures = new String[STATIONS];
+        for (int p = 0; p < STATIONS; p++) {
+            procedures[p] = "urn:ioos:station:ncsos:Station-" + p;
+        }
+        return new GetObservationRequestHandler(dataset, procedures, "urn:ioos:network:ncsos:all",
+                new String[]{"temperature", "humidity"}, null, RESPONSE_FORMAT, new HashMap<String, String>());
+    }
+
+    private static ObservationVisitor append(final StringBuilder text) {
+        return new ObservationVisitor() {
+            public void visit(ObservationBlock batch) {
+                Assert.assertFalse(batch.getError(), batch.hasError());
+                text.append(batch.toDataResponse());
+            }
+        };
+    }
+
+    /**
+     * @return a request passing in the dataset URL, the way an opendap request does
+     */
+    private static HttpServletRequest datasetRequest(final String path) {
+        return (HttpServletRequest) Proxy.newProxyInstance(ParallelObservationReaderTest.class.getClassLoader(),
+                new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getServletPath")) {
+                            return null;
+                        }
+                        if (method.getName().equals("getParameterNames")) {
+                            return Collections.enumeration(Collections.singletonList("dataset"));
+                        }
+                        if (method.getName().equals("getParameter")) {
+                            return "dataset".equals(args[0]) ? path : null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
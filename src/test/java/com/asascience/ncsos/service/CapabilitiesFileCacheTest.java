@@ -0,0 +1,100 @@
+package com.asascience.ncsos.service;
+
+import com.asascience.ncsos.gc.GetCapabilitiesRequestHandler;
+import com.asascience.ncsos.outputformatter.CachedFileFormatter;
+import com.asascience.ncsos.outputformatter.OutputFormatter;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.CharArrayWriter;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Caches the GetCapabilities document of a copied dataset, and checks every combination
+ * of sections served from the cache is the document built for the request without it,
+ * and the cached document is dropped when the file changes.
+ */
+public class CapabilitiesFileCacheTest {
+
+    private static final String[] SECTIONS = {"all", "contents", "serviceidentification",
+        "operationsmetadata,serviceprovider", "contents,serviceidentification", "serviceprovider,contents,operationsmetadata"};
+
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() {
+        outputDir = "target" + File.separator + "test_out" + File.separator + "CapabilitiesFileCache" + File.separator;
+        new File(outputDir).mkdirs();
+    }
+
+    @Test
+    public void testSectionsMatchUncachedResponse() throws Exception {
+        File file = copyDataset("sections.nc");
+        String threddsURI = "http://localhost:8080/thredds/sos/cache-test/sections.nc";
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            Assert.assertNull(CapabilitiesFileCache.find(threddsURI, file));
+            OutputFormatter first = (OutputFormatter) new Parser().enhanceGETRequest(dataset,
+                    "request=GetCapabilities&service=SOS&sections=contents", threddsURI).get(Parser.OUTPUT_FORMATTER);
+            Assert.assertTrue(first instanceof CachedFileFormatter);
+            CachedFileFormatter cached = CapabilitiesFileCache.find(threddsURI, file);
+            Assert.assertNotNull(cached);
+
+            for (String sections : SECTIONS) {
+                GetCapabilitiesRequestHandler handler = new GetCapabilitiesRequestHandler(dataset, threddsURI, sections);
+                handler.parseGetCapabilitiesDocument();
+                String expected = write(handler.getOutputFormatter());
+                Assert.assertFalse(expected.contains("ExceptionReport"));
+                Assert.assertEquals(sections, expected, write(cached.withSections(sections)));
+            }
+            Assert.assertEquals(write(cached.withSections("contents")), write(first));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testDroppedWhenFileChanges() throws Exception {
+        File file = copyDataset("changed.nc");
+        String threddsURI = "http://localhost:8080/thredds/sos/cache-test/changed.nc";
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            new Parser().enhanceGETRequest(dataset, "request=GetCapabilities&service=SOS", threddsURI);
+            Assert.assertNotNull(CapabilitiesFileCache.find(threddsURI, file));
+            // the URL is part of the document
+            Assert.assertNull(CapabilitiesFileCache.find(threddsURI + "?other=1", file));
+            Assert.assertNull(CapabilitiesFileCache.find(threddsURI, null));
+
+            Assert.assertTrue(file.setLastModified(file.lastModified() - 60000));
+            Assert.assertNull(CapabilitiesFileCache.find(threddsURI, file));
+            // the next request builds and caches the document again
+            Object output = new Parser().enhanceGETRequest(dataset, "request=GetCapabilities&service=SOS",
+                    threddsURI).get(Parser.OUTPUT_FORMATTER);
+            Assert.assertTrue(output instanceof CachedFileFormatter);
+            Assert.assertNotNull(CapabilitiesFileCache.find(threddsURI, file));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    /**
+     * @return the document, without the whitespace between elements
+     */
+    private static String write(OutputFormatter output) throws Exception {
+        CharArrayWriter writer = new CharArrayWriter();
+        output.writeOutput(writer);
+        return writer.toString().replaceAll(">\\s+<", "><").trim();
+    }
+
+    private static File copyDataset(String name) throws Exception {
+        File template = new File("resources" + File.separator + "datasets" + File.separator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+        File file = new File(outputDir + name);
+        Files.copy(template.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+}
@@ -0,0 +1,138 @@
+package com.asascience.ncsos.service;
+
+import com.asascience.ncsos.util.DatasetHandlerAdapter;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Builds the metadata index of copied datasets, and checks the sidecar file reads back the
+ * same index, a later request restores its metadata from it, and the index is rebuilt when
+ * the file changes.
+ */
+public class DatasetMetadataIndexTest {
+
+    private static String outputDir;
+
+    @BeforeClass
+    public static void setupEnvironment() {
+        outputDir = "target" + File.separator + "test_out" + File.separator + "MetadataIndex" + File.separator;
+        new File(outputDir).mkdirs();
+    }
+
+    @Test
+    public void testSidecarRoundTrip() throws Exception {
+        File file = copyDataset("roundtrip.nc");
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            DatasetMetadataIndex index = new Handler(dataset).getMetadataIndex();
+            Assert.assertNotNull(index);
+            Assert.assertEquals(10, index.stationNames.size());
+            Assert.assertTrue(index.sensorVariables.containsKey("temperature"));
+
+            File indexFile = DatasetMetadataIndex.getIndexFile(file, DatasetHandlerAdapter.getDatasetKey(dataset));
+            Assert.assertTrue(indexFile.isFile());
+            DatasetMetadataIndex read = DatasetMetadataIndex.read(indexFile);
+            Assert.assertEquals(index.featureType, read.featureType);
+            Assert.assertEquals(index.stationVariable, read.stationVariable);
+            Assert.assertEquals(index.timeVariable, read.timeVariable);
+            Assert.assertEquals(index.stationNames, read.stationNames);
+            Assert.assertEquals(index.urnToStationName, read.urnToStationName);
+            Assert.assertEquals(index.platformVariables, read.platformVariables);
+            Assert.assertEquals(index.sensorVariables, read.sensorVariables);
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testMetadataRestored() throws Exception {
+        File file = copyDataset("restored.nc");
+        NetcdfDataset first = NetcdfDataset.openDataset(file.getAbsolutePath());
+        NetcdfDataset second = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            Handler built = new Handler(first);
+            Handler restored = new Handler(second);
+            Assert.assertSame(built.getMetadataIndex(), restored.getMetadataIndex());
+            Assert.assertEquals(built.getFeatureDatasetType(), restored.getFeatureDatasetType());
+            Assert.assertEquals(built.getUrnToStationName(), restored.getUrnToStationName());
+            Assert.assertNotNull(restored.getSensorVariable("temperature"));
+            Assert.assertNotNull(restored.getSensorVariable("humidity"));
+            Assert.assertSame(second.findVariable("temperature"), restored.getSensorVariable("temperature"));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testRebuiltWhenModified() throws Exception {
+        File file = copyDataset("modified.nc");
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            DatasetMetadataIndex index = new Handler(dataset).getMetadataIndex();
+            Assert.assertSame(index, DatasetMetadataIndex.find(dataset));
+            Assert.assertTrue(file.setLastModified(file.lastModified() - 60000));
+            Assert.assertNull(DatasetMetadataIndex.find(dataset));
+            DatasetMetadataIndex rebuilt = new Handler(dataset).getMetadataIndex();
+            Assert.assertNotNull(rebuilt);
+            Assert.assertNotSame(index, rebuilt);
+            Assert.assertSame(rebuilt, DatasetMetadataIndex.find(dataset));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    @Test
+    public void testRebuiltWhenResized() throws Exception {
+        File file = copyDataset("resized.nc");
+        NetcdfDataset dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            DatasetMetadataIndex index = new Handler(dataset).getMetadataIndex();
+            Assert.assertNotNull(index);
+        } finally {
+            dataset.close();
+        }
+        long lastModified = file.lastModified();
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[16]);
+        } finally {
+            out.close();
+        }
+        // same modification time, so only the size tells the versions apart
+        Assert.assertTrue(file.setLastModified(lastModified));
+        dataset = NetcdfDataset.openDataset(file.getAbsolutePath());
+        try {
+            Assert.assertNull(DatasetMetadataIndex.find(dataset));
+            DatasetMetadataIndex rebuilt = new Handler(dataset).getMetadataIndex();
+            Assert.assertNotNull(rebuilt);
+            Assert.assertSame(rebuilt, DatasetMetadataIndex.find(dataset));
+        } finally {
+            dataset.close();
+        }
+    }
+
+    private static File copyDataset(String name) throws Exception {
+        File template = new File("resources" + File.separator + "datasets" + File.separator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+        File file = new File(outputDir + name);
+        Files.copy(template.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    /**
+     * A request handler that only initializes the dataset.
+     */
+    private static class Handler extends BaseRequestHandler {
+        Handler(NetcdfDataset dataset) throws Exception {
+            super(dataset);
+        }
+    }
+}
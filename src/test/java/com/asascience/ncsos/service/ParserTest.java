@@ -0,0 +1,75 @@
+package com.asascience.ncsos.service;
+
+import com.asascience.ncsos.outputformatter.OutputFormatter;
+import org.junit.Assert;
+import org.junit.Test;
+import ucar.nc2.dataset.NetcdfDataset;
+
+import java.io.CharArrayWriter;
+import java.util.HashMap;
+
+/**
+ * Plans requests without a dataset, and checks malformed requests and unsupported
+ * formats get their exception report before any dataset is opened.
+ */
+public class ParserTest {
+
+    private static final String THREDDS_URI = "http://localhost:8080/thredds/sos/test.nc";
+    private static final String OBSERVATION = "request=GetObservation&service=SOS&version=1.0.0"
+            + "&offering=urn:ioos:network:ncsos:all&observedProperty=temperature";
+    private static final String IOOS_FORMAT = "&responseFormat=text/xml;subtype=\"om/1.0.0/profiles/ioos_sos/1.0\"";
+
+    @Test
+    public void testValidRequestsPlanned() throws Exception {
+        Assert.assertNull(new Parser().planRequest(SosRequest.parse(OBSERVATION + IOOS_FORMAT)));
+        Assert.assertNull(new Parser().planRequest(SosRequest.parse("request=GetCapabilities&service=SOS")));
+        Assert.assertNull(new Parser().planRequest(SosRequest.parse("request=DescribeSensor&service=SOS&version=1.0.0"
+                + "&procedure=urn:ioos:station:ncsos:Station-0"
+                + "&outputFormat=text/xml;subtype=\"sensorML/1.0.1/profiles/ioos_sos/1.0\"")));
+        Assert.assertNull(new Parser().planRequest(SosRequest.parse(null)));
+    }
+
+    @Test
+    public void testMalformedRequestWithoutDataset() throws Exception {
+        assertPlannedException("request=GetObservation&service=SOS&procedure=%zz", "could not decode", null);
+        assertPlannedException("service=SOS", "MissingParameterValue", "request");
+        assertPlannedException("request=GetObservation&service=SOS&version=1.0.0&offering=all" + IOOS_FORMAT,
+                "MissingParameterValue", "observedProperty");
+        assertPlannedException("request=GetResult&service=SOS", "OperationNotSupported", "request");
+        assertPlannedException(OBSERVATION + IOOS_FORMAT + "&latitude=north", "InvalidParameterValue", "latitude");
+
+        // the same checks run when the request was not planned, still without the dataset
+        assertException(new Parser().enhanceGETRequest((NetcdfDataset) null,
+                "request=GetObservation&service=SOS&procedure=%zz", THREDDS_URI), "could not decode", null);
+        assertException(new Parser().enhanceGETRequest((NetcdfDataset) null, "service=SOS", THREDDS_URI),
+                "MissingParameterValue", "request");
+    }
+
+    @Test
+    public void testBadFormatWithoutDataset() throws Exception {
+        assertPlannedException(OBSERVATION + "&responseFormat=text/html", "InvalidParameterValue", "responseFormat");
+        assertPlannedException("request=DescribeSensor&service=SOS&version=1.0.0&procedure=urn:ioos:station:ncsos:Station-0"
+                + "&outputFormat=text/html", "InvalidParameterValue", "outputFormat");
+    }
+
+    private static void assertPlannedException(String query, String expected, String locator) throws Exception {
+        assertException(new Parser().planRequest(SosRequest.parse(query)), expected, locator);
+    }
+
+    private static void assertException(HashMap<String, Object> result, String expected, String locator)
+            throws Exception {
+        assertException((OutputFormatter) result.get(Parser.OUTPUT_FORMATTER), expected, locator);
+    }
+
+    private static void assertException(OutputFormatter output, String expected, String locator) throws Exception {
+        Assert.assertNotNull(output);
+        CharArrayWriter writer = new CharArrayWriter();
+        output.writeOutput(writer);
+        String report = writer.toString();
+        Assert.assertTrue(report.contains("ExceptionReport"));
+        Assert.assertTrue(report.contains(expected));
+        if (locator != null) {
+            Assert.assertTrue(report.contains("locator=\"" + locator + "\""));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.asascience.ncsos.service;
+
+import com.asascience.ncsos.outputformatter.OutputFormatter;
+import org.junit.Assert;
+import org.junit.Test;
+import ucar.nc2.time.CalendarDate;
+
+import java.io.CharArrayWriter;
+
+/**
+ * Parses query strings into requests, and checks the values are decoded, keys matched in
+ * any case, event times and coordinates parsed, and invalid coordinates reported with
+ * the parameter at fault.
+ */
+public class SosRequestTest {
+
+    private static final String OBSERVATION = "request=GetObservation&service=SOS&version=1.0.0"
+            + "&offering=urn:ioos:network:ncsos:all&observedProperty=temperature"
+            + "&responseFormat=text/xml;subtype=\"om/1.0.0\"";
+
+    @Test
+    public void testUrlDecoding() {
+        SosRequest request = SosRequest.parse("request=GetObservation&observedProperty=sea%20water%5Ftemperature"
+                + "&responseFormat=text%2Fxml%3Bsubtype%3D%22om%2F1.0.0%22&procedure=a+b&offering=%20padded%20");
+        Assert.assertNull(request.getError());
+        Assert.assertArrayEquals(new String[]{"sea water_temperature"}, request.getObservedProperties());
+        Assert.assertEquals("text/xml;subtype=\"om/1.0.0\"", request.getResponseFormat());
+        Assert.assertArrayEquals(new String[]{"a b"}, request.getProcedures());
+        // values are trimmed once decoded
+        Assert.assertEquals("padded", request.getOffering());
+        // the same request with and without escapes
+        Assert.assertEquals(request.getNormalizedQuery(), SosRequest.parse("request=GetObservation"
+                + "&observedProperty=sea water_temperature&responseFormat=text/xml;subtype=\"om/1.0.0\""
+                + "&procedure=a b&offering=padded").getNormalizedQuery());
+
+        SosRequest malformed = SosRequest.parse("request=GetObservation&procedure=%zz");
+        Assert.assertNotNull(malformed.getError());
+        Assert.assertTrue(malformed.getError().contains("%zz"));
+        Assert.assertNull(malformed.getProcedures());
+    }
+
+    @Test
+    public void testRepeatedKeys() {
+        // the last value of a repeated key is kept, whatever the case of the key
+        SosRequest request = SosRequest.parse("request=GetObservation&procedure=a&PROCEDURE=b&procedure=c");
+        Assert.assertArrayEquals(new String[]{"c"}, request.getProcedures());
+        Assert.assertEquals("c", request.getParameter("Procedure"));
+        Assert.assertEquals(SosRequest.parse("request=GetObservation&procedure=c").getNormalizedQuery(),
+                request.getNormalizedQuery());
+    }
+
+    @Test
+    public void testCaseFolding() {
+        SosRequest request = SosRequest.parse("REQUEST=getcapabilities&Service=SOS&ACCEPTVERSIONS=1.0.0&Sections=Contents");
+        Assert.assertEquals(SosRequest.Kind.GET_CAPABILITIES, request.getKind());
+        Assert.assertEquals("getcapabilities", request.getRequest());
+        // values keep their case, only the keys are folded
+        Assert.assertEquals("SOS", request.getService());
+        Assert.assertEquals("SOS", request.getParameter("service"));
+        Assert.assertTrue(request.hasParameter("SERVICE"));
+        Assert.assertArrayEquals(new String[]{"1.0.0"}, request.getAcceptVersions());
+        Assert.assertEquals("Contents", request.getSections());
+        Assert.assertEquals(SosRequest.parse("request=GetCapabilities&service=sos&AcceptVersions=1.0.0&sections=Contents")
+                .getNormalizedQuery(), request.getNormalizedQuery());
+
+        Assert.assertEquals(SosRequest.Kind.DESCRIBE_SENSOR, SosRequest.parse("Request=DESCRIBESENSOR").getKind());
+        Assert.assertEquals(SosRequest.Kind.OTHER, SosRequest.parse("request=GetResult").getKind());
+        Assert.assertNull(SosRequest.parse("service=SOS").getKind());
+        Assert.assertEquals(SosRequest.Kind.GET_CAPABILITIES, SosRequest.parse(null).getKind());
+        // 'sections' sent without a value
+        Assert.assertEquals("", SosRequest.parse("request=GetCapabilities&sections").getSections());
+    }
+
+    @Test
+    public void testEventTimeInstants() {
+        SosRequest request = SosRequest.parse(OBSERVATION + "&eventTime=1990-01-01T00:00:00Z/1990-01-02T00:00:00Z");
+        Assert.assertArrayEquals(new String[]{"1990-01-01T00:00:00Z", "1990-01-02T00:00:00Z"}, request.getEventTime());
+        CalendarDate[] instants = request.getEventTimeInstants();
+        Assert.assertEquals(2, instants.length);
+        Assert.assertEquals(631152000000L, instants[0].getMillis());
+        Assert.assertEquals(631238400000L, instants[1].getMillis());
+
+        SosRequest latest = SosRequest.parse(OBSERVATION + "&eventTime=latest");
+        Assert.assertArrayEquals(new String[]{"latest"}, latest.getEventTime());
+        Assert.assertEquals(1, latest.getEventTimeInstants().length);
+        Assert.assertNull(latest.getEventTimeInstants()[0]);
+
+        Assert.assertNull(SosRequest.parse(OBSERVATION).getEventTimeInstants());
+        // the instants handed out are copies
+        instants[0] = null;
+        Assert.assertNotNull(request.getEventTimeInstants()[0]);
+    }
+
+    @Test
+    public void testCoordinateRanges() {
+        SosRequest request = SosRequest.parse(OBSERVATION + "&latitude=10_5&longitude=-70.5&depth=0_10,20");
+        Assert.assertNull(request.getCoordinateError());
+        Assert.assertNull(request.getCoordinateLocator());
+        SosRequest.Range[] latitude = request.getLatitudeRanges();
+        Assert.assertEquals(1, latitude.length);
+        Assert.assertEquals(5, latitude[0].getMin(), 0);
+        Assert.assertEquals(10, latitude[0].getMax(), 0);
+        Assert.assertFalse(latitude[0].isPoint());
+        // a negative value is not read as a range
+        Assert.assertTrue(request.getLongitudeRanges()[0].isPoint());
+        Assert.assertEquals(-70.5, request.getLongitudeRanges()[0].getMin(), 0);
+        Assert.assertEquals(2, request.getDepthRanges().length);
+        Assert.assertEquals(3, request.getCoordinates().size());
+    }
+
+    @Test
+    public void testCoordinateLocators() throws Exception {
+        assertCoordinateError(OBSERVATION + "&latitude=north&longitude=-70", "latitude");
+        assertCoordinateError(OBSERVATION + "&latitude=40&longitude=west", "longitude");
+        assertCoordinateError(OBSERVATION + "&latitude=40&longitude=-70&depth=deep", "depth");
+        // the first invalid coordinate is reported
+        assertCoordinateError(OBSERVATION + "&latitude=40_x&longitude=west&depth=deep", "latitude");
+        assertCoordinateError(OBSERVATION + "&longitude=1_west&depth=deep", "longitude");
+    }
+
+    private static void assertCoordinateError(String query, String locator) throws Exception {
+        SosRequest request = SosRequest.parse(query);
+        Assert.assertEquals(locator, request.getCoordinateLocator());
+        Assert.assertTrue(request.getCoordinateError().contains(locator));
+
+        // the parser reports it before any dataset is opened
+        OutputFormatter output = new Parser().planRequest(request);
+        Assert.assertNotNull(output);
+        CharArrayWriter writer = new CharArrayWriter();
+        output.writeOutput(writer);
+        String report = writer.toString();
+        Assert.assertTrue(report.contains("InvalidParameterValue"));
+        Assert.assertTrue(report.contains("locator=\"" + locator + "\""));
+    }
+}
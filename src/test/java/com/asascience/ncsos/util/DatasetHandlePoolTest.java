@@ -0,0 +1,177 @@
+package com.asascience.ncsos.util;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import ucar.nc2.constants.FeatureType;
+import ucar.nc2.dataset.NetcdfDataset;
+import ucar.nc2.ft.FeatureDataset;
+import ucar.nc2.ft.FeatureDatasetFactoryManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Formatter;
+
+/**
+ * Lends out handles of a copied dataset, and checks they are reused until the file
+ * changes, evicted least recently used first, and closed when the pool is cleared, and
+ * that the feature datasets wrapped around a handle are kept with it.
+ */
+public class DatasetHandlePoolTest {
+
+    private static final String DATASET_PATH = "/test/pooled.nc";
+
+    private static File datasetFile;
+
+    @BeforeClass
+    public static void setupEnvironment() throws Exception {
+        String outputDir = "target" + File.separator + "test_out" + File.separator + "HandlePool" + File.separator;
+        new File(outputDir).mkdirs();
+
+        // a copy, so its modification time can be changed
+        File template = new File("resources" + File.separator + "datasets" + File.separator
+                + "cf_templates/timeSeries-Orthogonal-Multidimensional-MultipleStations-H.2.1.nc");
+        datasetFile = new File(outputDir + "pooled.nc");
+        Files.copy(template.toPath(), datasetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Test
+    public void testPooledHandleReused() throws Exception {
+        DatasetHandlePool pool = new DatasetHandlePool(2, 300);
+        Assert.assertNull(pool.borrow(DATASET_PATH));
+        Assert.assertEquals(1, pool.getMisses());
+
+        NetcdfDataset dataset = open();
+        pool.track(DATASET_PATH, dataset);
+        pool.release(dataset);
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        NetcdfDataset borrowed = pool.borrow(DATASET_PATH);
+        Assert.assertSame(dataset, borrowed);
+        Assert.assertEquals(1, pool.getHits());
+        Assert.assertEquals(0, pool.getIdleCount());
+        // still open and readable
+        Assert.assertNotNull(borrowed.findVariable("temperature").read());
+        pool.release(borrowed);
+        Assert.assertEquals(1, pool.getIdleCount());
+        pool.clear();
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertEquals(1, pool.getEvictions());
+    }
+
+    @Test
+    public void testModifiedHandleDropped() throws Exception {
+        DatasetHandlePool pool = new DatasetHandlePool(2, 300);
+        NetcdfDataset dataset = open();
+        pool.track(DATASET_PATH, dataset);
+        pool.release(dataset);
+
+        long lastModified = datasetFile.lastModified();
+        try {
+            Assert.assertTrue(datasetFile.setLastModified(lastModified - 60000));
+            Assert.assertNull(pool.borrow(DATASET_PATH));
+            Assert.assertEquals(1, pool.getEvictions());
+            Assert.assertEquals(0, pool.getIdleCount());
+
+            // changed while lent out
+            NetcdfDataset lent = open();
+            pool.track(DATASET_PATH, lent);
+            Assert.assertTrue(datasetFile.setLastModified(lastModified));
+            pool.release(lent);
+            Assert.assertEquals(2, pool.getEvictions());
+            Assert.assertEquals(0, pool.getIdleCount());
+        } finally {
+            datasetFile.setLastModified(lastModified);
+        }
+    }
+
+    @Test
+    public void testFeaturesKeptWithHandle() throws Exception {
+        DatasetHandlePool pool = new DatasetHandlePool(2, 300);
+        NetcdfDataset dataset = open();
+        pool.track(DATASET_PATH, dataset);
+        Assert.assertNull(pool.getFeatures(dataset, FeatureType.STATION));
+        FeatureDataset features = FeatureDatasetFactoryManager.wrap(FeatureType.STATION, dataset, null, new Formatter(System.err));
+        pool.putFeatures(dataset, FeatureType.STATION, features);
+        Assert.assertSame(features, pool.getFeatures(dataset, FeatureType.STATION));
+        Assert.assertNull(pool.getFeatures(dataset, FeatureType.POINT));
+        pool.release(dataset);
+        // only handed out with the handle
+        Assert.assertNull(pool.getFeatures(dataset, FeatureType.STATION));
+
+        NetcdfDataset borrowed = pool.borrow(DATASET_PATH);
+        Assert.assertSame(dataset, borrowed);
+        Assert.assertSame(features, pool.getFeatures(borrowed, FeatureType.STATION));
+        pool.release(borrowed);
+
+        // a handle the pool did not lend out keeps none
+        NetcdfDataset untracked = open();
+        pool.putFeatures(untracked, FeatureType.STATION, features);
+        Assert.assertNull(pool.getFeatures(untracked, FeatureType.STATION));
+        untracked.close();
+        pool.clear();
+    }
+
+    @Test
+    public void testExpiredHandleDropped() throws Exception {
+        DatasetHandlePool pool = new DatasetHandlePool(2, 1);
+        NetcdfDataset dataset = open();
+        pool.track(DATASET_PATH, dataset);
+        pool.release(dataset);
+        pool.evictIdle();
+        Assert.assertEquals(1, pool.getIdleCount());
+        Thread.sleep(1100);
+        pool.evictIdle();
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertEquals(1, pool.getEvictions());
+    }
+
+    @Test
+    public void testPoolLimits() throws Exception {
+        DatasetHandlePool pool = new DatasetHandlePool(2, 300);
+        NetcdfDataset first = open();
+        NetcdfDataset second = open();
+        NetcdfDataset third = open();
+        pool.track(DATASET_PATH, first);
+        pool.track("/test/second.nc", second);
+        pool.track(DATASET_PATH, third);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        // the least recently used path loses its handle
+        Assert.assertEquals(2, pool.getIdleCount());
+        Assert.assertEquals(1, pool.getEvictions());
+        Assert.assertNull(pool.borrow("/test/second.nc"));
+        Assert.assertSame(third, pool.borrow(DATASET_PATH));
+        Assert.assertSame(first, pool.borrow(DATASET_PATH));
+
+        // handles lent out when the pool is cleared are closed on release
+        pool.clear();
+        pool.release(first);
+        pool.release(third);
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertEquals(3, pool.getEvictions());
+
+        // a handle the pool did not lend out is closed
+        NetcdfDataset untracked = open();
+        pool.release(untracked);
+        Assert.assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void testDisabledPool() throws Exception {
+        DatasetHandlePool disabled = new DatasetHandlePool(0, 300);
+        Assert.assertFalse(disabled.isEnabled());
+        NetcdfDataset dataset = open();
+        disabled.track(DATASET_PATH, dataset);
+        disabled.release(dataset);
+        Assert.assertEquals(0, disabled.getIdleCount());
+        Assert.assertNull(disabled.borrow(DATASET_PATH));
+        Assert.assertEquals(0, disabled.getMisses());
+    }
+
+    private static NetcdfDataset open() throws Exception {
+        return NetcdfDataset.openDataset(datasetFile.getAbsolutePath());
+    }
+}